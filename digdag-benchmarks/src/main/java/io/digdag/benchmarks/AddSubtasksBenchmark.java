@@ -0,0 +1,157 @@
+package io.digdag.benchmarks;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.time.Instant;
+import java.util.Properties;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import com.google.common.collect.ImmutableList;
+import io.digdag.client.config.Config;
+import io.digdag.client.config.ConfigElement;
+import io.digdag.client.config.ConfigFactory;
+import io.digdag.core.DigdagEmbed;
+import io.digdag.core.LocalSite;
+import io.digdag.core.archive.ArchiveMetadata;
+import io.digdag.core.archive.WorkflowFile;
+import io.digdag.core.repository.StoredWorkflowDefinition;
+import io.digdag.core.repository.WorkflowDefinitionList;
+import io.digdag.core.session.ArchivedTask;
+import io.digdag.core.session.SessionStoreManager;
+import io.digdag.core.session.StoredSessionAttemptWithSession;
+import io.digdag.core.workflow.AttemptRequest;
+import io.digdag.core.workflow.TaskControl;
+import io.digdag.core.workflow.WorkflowCompiler;
+import io.digdag.core.workflow.WorkflowTaskList;
+import io.digdag.spi.ScheduleTime;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Inserts subtasks that for_each> generates into a locked parent task, as
+ * WorkflowExecutor does for generated subtasks.
+ *
+ * It uses in-memory H2 database by default. To run it against PostgreSQL,
+ * write database.* system config in a properties file and pass it as
+ * {@code -jvmArgsAppend -Dio.digdag.benchmarks.systemConfig=postgresql.properties}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 10)
+@Fork(1)
+public class AddSubtasksBenchmark
+{
+    @Param({"1000", "10000"})
+    public int size;
+
+    private DigdagEmbed embed;
+    private LocalSite localSite;
+    private SessionStoreManager sm;
+    private StoredWorkflowDefinition def;
+    private LocalSite.StoreWorkflowResult stored;
+    private WorkflowTaskList subtasks;
+    private long sessionTime;
+    private long parentTaskId;
+
+    @Setup
+    public void setup()
+        throws Exception
+    {
+        ConfigFactory cf = Fixtures.configFactory();
+
+        // for_each> generates 3 tasks for each value. Limits reads the property
+        // only once when it's loaded.
+        System.setProperty("io.digdag.limits.maxWorkflowTasks", Integer.toString(size * 3 + 100));
+
+        embed = new DigdagEmbed.Bootstrap()
+            .setSystemConfig(ConfigElement.copyOf(loadSystemConfig(cf)))
+            .withExtensionLoader(false)
+            .initializeWithoutShutdownHook();
+        localSite = embed.getLocalSite();
+        sm = embed.getInjector().getInstance(SessionStoreManager.class);
+
+        Config workflow = cf.create()
+            .set("timezone", "UTC")
+            .setNested("+loop", cf.create().set("echo>", "loop"));
+        ArchiveMetadata meta = ArchiveMetadata.of(
+                WorkflowDefinitionList.of(ImmutableList.of(
+                        WorkflowFile.fromConfig("fan_out", workflow).toWorkflowDefinition())),
+                cf.create());
+        stored = localSite.storeLocalWorkflowsWithoutSchedule(
+                "add-subtasks-benchmark",
+                "revision-" + UUID.randomUUID(),
+                meta);
+        def = stored.getWorkflowDefinitions().get(0);
+
+        subtasks = new WorkflowCompiler().compileTasks("+fan_out+loop", "^sub", Fixtures.forEachSubtasks(cf, size));
+        sessionTime = Instant.now().getEpochSecond() / 3600 * 3600;
+    }
+
+    // each iteration inserts subtasks into a new attempt so that the
+    // task count of the attempt doesn't grow
+    @Setup(Level.Iteration)
+    public void submitAttempt()
+        throws Exception
+    {
+        sessionTime += 3600;
+        AttemptRequest ar = localSite.getAttemptBuilder()
+            .buildFromStoredWorkflow(
+                    stored.getRevision(),
+                    def,
+                    Fixtures.configFactory().create(),
+                    ScheduleTime.runNow(Instant.ofEpochSecond(sessionTime)));
+        StoredSessionAttemptWithSession attempt = localSite.submitWorkflow(ar, def);
+        ArchivedTask loop = localSite.getSessionStore().getTasksOfAttempt(attempt.getId()).stream()
+            .filter(task -> task.getFullName().equals("+fan_out+loop"))
+            .findFirst()
+            .get();
+        parentTaskId = loop.getId();
+    }
+
+    @TearDown
+    public void tearDown()
+        throws Exception
+    {
+        embed.close();
+    }
+
+    @Benchmark
+    public long addGeneratedSubtasks()
+    {
+        return sm.lockTaskIfExists(parentTaskId, (store, task) ->
+                new TaskControl(store, task).addGeneratedSubtasks(subtasks, ImmutableList.of(), false))
+            .get();
+    }
+
+    private static Config loadSystemConfig(ConfigFactory cf)
+        throws IOException
+    {
+        Config config = cf.create();
+        String path = System.getProperty("io.digdag.benchmarks.systemConfig");
+        if (path != null) {
+            Properties props = new Properties();
+            try (InputStream in = Files.newInputStream(Paths.get(path))) {
+                props.load(in);
+            }
+            for (String key : props.stringPropertyNames()) {
+                config.set(key, props.getProperty(key));
+            }
+        }
+        return config;
+    }
+}
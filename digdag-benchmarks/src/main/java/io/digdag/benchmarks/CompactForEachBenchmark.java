@@ -0,0 +1,93 @@
+package io.digdag.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.base.Throwables;
+import io.digdag.client.config.Config;
+import io.digdag.client.config.ConfigFactory;
+import io.digdag.core.workflow.CompactForEachConfig;
+import io.digdag.core.workflow.WorkflowCompiler;
+import io.digdag.core.workflow.WorkflowTaskList;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import static io.digdag.client.DigdagClient.objectMapper;
+
+// Compares td_for_each> subtasks in the compact form with the same subtasks
+// copied per row. The compact form is what agents send and the database
+// stores. It is expanded when WorkflowExecutor adds the subtasks.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+@Fork(1)
+public class CompactForEachBenchmark
+{
+    private static final Logger logger = LoggerFactory.getLogger(CompactForEachBenchmark.class);
+
+    @Param({"1000", "10000"})
+    public int rows;
+
+    @Param({"10"})
+    public int columns;
+
+    private final ObjectMapper mapper = objectMapper();
+    private final WorkflowCompiler compiler = new WorkflowCompiler();
+
+    private Config compact;
+    private Config expanded;
+
+    @Setup
+    public void setup()
+    {
+        ConfigFactory cf = Fixtures.configFactory();
+        compact = Fixtures.compactForEachSubtasks(cf, rows, columns);
+        expanded = CompactForEachConfig.expand(compact);
+        try {
+            logger.info("Serialized subtask config: compact {} bytes, expanded {} bytes",
+                    mapper.writeValueAsBytes(compact).length, mapper.writeValueAsBytes(expanded).length);
+        }
+        catch (JsonProcessingException ex) {
+            throw Throwables.propagate(ex);
+        }
+    }
+
+    @Benchmark
+    public byte[] serializeCompact()
+        throws JsonProcessingException
+    {
+        return mapper.writeValueAsBytes(compact);
+    }
+
+    @Benchmark
+    public byte[] serializeExpanded()
+        throws JsonProcessingException
+    {
+        return mapper.writeValueAsBytes(expanded);
+    }
+
+    // cost of addSubtasksIfNotEmpty with the compact form
+    @Benchmark
+    public WorkflowTaskList expandAndCompileCompact()
+    {
+        return compiler.compileTasks("+benchmark+loop", "^sub", CompactForEachConfig.expand(compact));
+    }
+
+    @Benchmark
+    public WorkflowTaskList compileExpanded()
+    {
+        return compiler.compileTasks("+benchmark+loop", "^sub", expanded);
+    }
+}
@@ -0,0 +1,111 @@
+package io.digdag.benchmarks;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import com.google.common.collect.ImmutableList;
+import io.digdag.client.config.Config;
+import io.digdag.client.config.ConfigFactory;
+import io.digdag.core.database.ConfigMapper;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+// Config.set benchmarks show allocation rate with the gc profiler:
+//   ./gradlew :digdag-benchmarks:jmh -PjmhArgs="ConfigBenchmark.set -prof gc"
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+@Fork(1)
+public class ConfigBenchmark
+{
+    @Param({"10", "1000"})
+    public int exportParamsSize;
+
+    private ConfigMapper configMapper;
+
+    private Config exportParams;
+    private Config storeParams;
+    private String exportParamsText;
+    private Config target;
+    private Config nested;
+    private List<List<Object>> rows;
+
+    @Setup
+    public void setup()
+    {
+        ConfigFactory cf = Fixtures.configFactory();
+        configMapper = new ConfigMapper(cf);
+        exportParams = Fixtures.exportParams(cf, exportParamsSize);
+        storeParams = Fixtures.exportParams(cf, exportParamsSize / 2)
+            .set("last_executed_at", "2016-10-01 00:00:00");
+        exportParamsText = configMapper.toText(exportParams);
+        target = cf.create();
+        nested = exportParams.getNested("table_0");
+
+        // rows of a query result as td_for_each> sets them to params
+        rows = new ArrayList<>();
+        for (int i = 0; i < exportParamsSize; i++) {
+            rows.add(ImmutableList.of("name_" + i, (long) i, i / 3.0, i % 2 == 0));
+        }
+    }
+
+    @Benchmark
+    public Config deepCopy()
+    {
+        return exportParams.deepCopy();
+    }
+
+    // WorkflowExecutor merges export params and store params of tasks to build params of a task
+    @Benchmark
+    public Config merge()
+    {
+        return exportParams.deepCopy().merge(storeParams);
+    }
+
+    @Benchmark
+    public String toText()
+    {
+        return configMapper.toText(exportParams);
+    }
+
+    @Benchmark
+    public Config fromText()
+    {
+        return configMapper.fromText(exportParamsText);
+    }
+
+    @Benchmark
+    public Config setString()
+    {
+        return target.set("key", "value");
+    }
+
+    @Benchmark
+    public Config setLong()
+    {
+        return target.set("key", 1470000000L);
+    }
+
+    @Benchmark
+    public Config setNestedConfig()
+    {
+        return target.set("key", nested);
+    }
+
+    @Benchmark
+    public Config setRows()
+    {
+        return target.set("key", rows);
+    }
+}
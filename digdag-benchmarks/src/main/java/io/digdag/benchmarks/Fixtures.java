@@ -0,0 +1,185 @@
+package io.digdag.benchmarks;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import com.google.common.base.Optional;
+import com.google.common.base.Throwables;
+import com.google.common.collect.ImmutableList;
+import io.digdag.client.config.Config;
+import io.digdag.client.config.ConfigFactory;
+import io.digdag.core.config.YamlConfigLoader;
+import io.digdag.core.session.TaskRelation;
+import io.digdag.core.workflow.CompactForEachConfig;
+import static io.digdag.client.DigdagClient.objectMapper;
+
+/**
+ * Workflows and params shaped like large production workflows.
+ */
+public final class Fixtures
+{
+    private Fixtures()
+    { }
+
+    public static ConfigFactory configFactory()
+    {
+        return new ConfigFactory(objectMapper());
+    }
+
+    public static Config loadYaml(ConfigFactory cf, String yaml)
+    {
+        try {
+            return new YamlConfigLoader().loadString(yaml).toConfig(cf);
+        }
+        catch (IOException ex) {
+            throw Throwables.propagate(ex);
+        }
+    }
+
+    /**
+     * A workflow that nests groups {@code depth} levels deep. Each group has
+     * {@code width} sequential shell tasks and a nested group at the end.
+     */
+    public static String nestedWorkflow(int depth, int width)
+    {
+        StringBuilder sb = new StringBuilder();
+        sb.append("timezone: UTC\n");
+        sb.append("_export:\n");
+        sb.append("  td:\n");
+        sb.append("    database: benchmark\n");
+        appendGroup(sb, "", depth, width);
+        return sb.toString();
+    }
+
+    private static void appendGroup(StringBuilder sb, String indent, int depth, int width)
+    {
+        for (int i = 0; i < width; i++) {
+            sb.append(indent).append("+step").append(i).append(":\n");
+            sb.append(indent).append("  sh>: echo ${session_time} ").append(i).append("\n");
+            sb.append(indent).append("  _retry: 3\n");
+        }
+        if (depth > 0) {
+            sb.append(indent).append("+nested").append(depth).append(":\n");
+            sb.append(indent).append("  _parallel: ").append(depth % 2 == 0).append("\n");
+            sb.append(indent).append("  _export:\n");
+            sb.append(indent).append("    level: ").append(depth).append("\n");
+            appendGroup(sb, indent + "  ", depth - 1, width);
+        }
+    }
+
+    /**
+     * A for_each> workflow with {@code size} values.
+     */
+    public static String forEachWorkflow(int size)
+    {
+        StringBuilder sb = new StringBuilder();
+        sb.append("timezone: UTC\n");
+        sb.append("+loop:\n");
+        sb.append("  for_each>:\n");
+        sb.append("    n: [");
+        for (int i = 0; i < size; i++) {
+            if (i > 0) {
+                sb.append(", ");
+            }
+            sb.append(i);
+        }
+        sb.append("]\n");
+        sb.append("  _parallel: true\n");
+        sb.append("  _do:\n");
+        sb.append("    +load:\n");
+        sb.append("      sh>: load.sh ${n}\n");
+        sb.append("    +check:\n");
+        sb.append("      sh>: check.sh ${n}\n");
+        return sb.toString();
+    }
+
+    /**
+     * Subtask config that for_each> generates with {@code size} values.
+     */
+    public static Config forEachSubtasks(ConfigFactory cf, int size)
+    {
+        Config subtasks = cf.create();
+        for (int i = 0; i < size; i++) {
+            Config task = cf.create();
+            task.getNestedOrSetEmpty("_export").set("n", i);
+            task.getNestedOrSetEmpty("+load").set("sh>", "load.sh ${n}");
+            task.getNestedOrSetEmpty("+check").set("sh>", "check.sh ${n}");
+            subtasks.setNested("+for-n=" + i, task);
+        }
+        subtasks.set("_parallel", true);
+        return subtasks;
+    }
+
+    /**
+     * Compact subtask config that td_for_each> generates with {@code size} rows
+     * of {@code columns} columns.
+     */
+    public static Config compactForEachSubtasks(ConfigFactory cf, int size, int columns)
+    {
+        Config template = cf.create();
+        template.getNestedOrSetEmpty("+load").set("sh>", "load.sh ${td.each.column_0}");
+        template.getNestedOrSetEmpty("+check").set("sh>", "check.sh ${td.each.column_0}");
+        List<String> names = new ArrayList<>();
+        for (int c = 0; c < columns; c++) {
+            names.add("column_" + c);
+        }
+        CompactForEachConfig.Builder builder = CompactForEachConfig.builder(
+                template, "+td-for-each-", ImmutableList.of("td", "each"), names);
+        for (int i = 0; i < size; i++) {
+            List<Object> row = new ArrayList<>();
+            for (int c = 0; c < columns; c++) {
+                row.add(c % 2 == 0 ? (Object) (long) i : "value_" + i + "_" + c);
+            }
+            builder.addRow(row);
+        }
+        return builder.parallel(true).build();
+    }
+
+    /**
+     * Export params with {@code size} keys of nested objects, arrays and
+     * strings, which is typical for params passed from a py> task.
+     */
+    public static Config exportParams(ConfigFactory cf, int size)
+    {
+        Config params = cf.create();
+        for (int i = 0; i < size; i++) {
+            List<String> columns = new ArrayList<>();
+            for (int c = 0; c < 10; c++) {
+                columns.add("column_" + c);
+            }
+            params.setNested("table_" + i, cf.create()
+                    .set("name", "table_" + i)
+                    .set("rows", i * 1000L)
+                    .set("ratio", i / 3.0)
+                    .set("enabled", i % 2 == 0)
+                    .set("columns", columns)
+                    .set("query", "select " + String.join(", ", columns) + " from table_" + i + " where td_time_range(time, '${session_date}')"));
+        }
+        return params;
+    }
+
+    /**
+     * Task relations of an attempt with {@code groups} sequential groups,
+     * each having {@code tasksPerGroup} sequential tasks.
+     */
+    public static List<TaskRelation> taskRelations(int groups, int tasksPerGroup)
+    {
+        ImmutableList.Builder<TaskRelation> builder = ImmutableList.builder();
+        long rootId = 1;
+        builder.add(TaskRelation.ofRoot(rootId));
+        long id = rootId;
+        Optional<Long> lastGroupId = Optional.absent();
+        for (int g = 0; g < groups; g++) {
+            long groupId = ++id;
+            builder.add(TaskRelation.of(groupId, rootId, ImmutableList.copyOf(lastGroupId.asSet())));
+            Optional<Long> lastTaskId = Optional.absent();
+            for (int t = 0; t < tasksPerGroup; t++) {
+                long taskId = ++id;
+                builder.add(TaskRelation.of(taskId, groupId, ImmutableList.copyOf(lastTaskId.asSet())));
+                lastTaskId = Optional.of(taskId);
+            }
+            lastGroupId = Optional.of(groupId);
+        }
+        return builder.build();
+    }
+}
@@ -0,0 +1,132 @@
+package io.digdag.benchmarks;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.util.Comparator;
+import java.util.Random;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+import com.google.common.base.Optional;
+import io.digdag.client.config.ConfigFactory;
+import io.digdag.core.TempFileManager;
+import io.digdag.core.agent.LocalWorkspaceManager;
+import io.digdag.core.metrics.MetricsRegistry;
+import io.digdag.spi.StorageObject;
+import io.digdag.spi.TaskRequest;
+import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
+import org.apache.commons.compress.archivers.tar.TarArchiveOutputStream;
+import org.apache.commons.compress.compressors.gzip.GzipCompressorOutputStream;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class LocalWorkspaceManagerBenchmark
+{
+    @Param({"100", "1000"})
+    public int files;
+
+    @Param({"10240"})
+    public int fileSize;
+
+    // 0 disables the workspace archive cache
+    @Param({"0", "536870912"})
+    public long cacheMaxSize;
+
+    private Path tempDir;
+    private LocalWorkspaceManager workspaceManager;
+    private TaskRequest request;
+    private byte[] archive;
+
+    @Setup
+    public void setup()
+        throws IOException
+    {
+        ConfigFactory cf = Fixtures.configFactory();
+        tempDir = Files.createTempDirectory("digdag-benchmark-");
+        workspaceManager = new LocalWorkspaceManager(
+                new TempFileManager(tempDir),
+                cf.create().set("agent.workspaceCache.maxSize", cacheMaxSize),
+                new MetricsRegistry());
+        request = TaskRequest.builder()
+            .siteId(0)
+            .projectId(1)
+            .workflowName("benchmark")
+            .revision(Optional.of("rev"))
+            .taskId(1)
+            .attemptId(1)
+            .sessionId(1)
+            .retryAttemptName(Optional.absent())
+            .taskName("+benchmark+task")
+            .lockId("lock")
+            .timeZone(ZoneId.of("UTC"))
+            .sessionUuid(UUID.randomUUID())
+            .sessionTime(Instant.ofEpochSecond(1475280000))
+            .createdAt(Instant.now())
+            .localConfig(cf.create())
+            .config(cf.create())
+            .lastStateParams(cf.create())
+            .build();
+        archive = buildArchive(files, fileSize);
+    }
+
+    @TearDown
+    public void tearDown()
+        throws IOException
+    {
+        try (Stream<Path> paths = Files.walk(tempDir)) {
+            paths.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+        }
+    }
+
+    // same archive format as digdag push uploads
+    private static byte[] buildArchive(int files, int fileSize)
+        throws IOException
+    {
+        Random random = new Random(0);
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (TarArchiveOutputStream tar = new TarArchiveOutputStream(new GzipCompressorOutputStream(bytes))) {
+            tar.setLongFileMode(TarArchiveOutputStream.LONGFILE_POSIX);
+            for (int i = 0; i < files; i++) {
+                byte[] data = new byte[fileSize];
+                random.nextBytes(data);
+                TarArchiveEntry entry = new TarArchiveEntry("dir" + (i % 10) + "/file" + i + ".sql");
+                entry.setSize(data.length);
+                entry.setMode(0644);
+                tar.putArchiveEntry(entry);
+                tar.write(data);
+                tar.closeArchiveEntry();
+            }
+        }
+        return bytes.toByteArray();
+    }
+
+    @Benchmark
+    public Path extractArchive()
+        throws IOException
+    {
+        return workspaceManager.withExtractedArchive(request,
+                () -> Optional.of(new StorageObject(new ByteArrayInputStream(archive), archive.length)),
+                (workspacePath) -> workspacePath);
+    }
+}
@@ -0,0 +1,63 @@
+package io.digdag.benchmarks;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import io.digdag.core.session.TaskRelation;
+import io.digdag.core.workflow.TaskTree;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+@Fork(1)
+public class TaskTreeBenchmark
+{
+    @Param({"10", "100"})
+    public int groups;
+
+    @Param({"100"})
+    public int tasksPerGroup;
+
+    private List<TaskRelation> relations;
+    private TaskTree tree;
+    private long lastTaskId;
+
+    @Setup
+    public void setup()
+    {
+        relations = Fixtures.taskRelations(groups, tasksPerGroup);
+        tree = new TaskTree(relations);
+        lastTaskId = relations.get(relations.size() - 1).getId();
+    }
+
+    @Benchmark
+    public TaskTree build()
+    {
+        return new TaskTree(relations);
+    }
+
+    // used to collect export and store params of upstream tasks
+    @Benchmark
+    public List<Long> parentsUpstreamChildrenOfLastTask()
+    {
+        return tree.getRecursiveParentsUpstreamChildrenIdListFromFar(lastTaskId);
+    }
+
+    @Benchmark
+    public List<Long> childrenOfRoot()
+    {
+        return tree.getRecursiveChildrenIdList(tree.getRootTaskId());
+    }
+}
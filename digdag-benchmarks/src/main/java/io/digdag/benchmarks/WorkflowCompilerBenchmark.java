@@ -0,0 +1,60 @@
+package io.digdag.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+import io.digdag.client.config.Config;
+import io.digdag.client.config.ConfigFactory;
+import io.digdag.core.workflow.Workflow;
+import io.digdag.core.workflow.WorkflowCompiler;
+import io.digdag.core.workflow.WorkflowTaskList;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+@Fork(1)
+public class WorkflowCompilerBenchmark
+{
+    @Param({"5", "20"})
+    public int depth;
+
+    @Param({"1000"})
+    public int forEachSize;
+
+    private final WorkflowCompiler compiler = new WorkflowCompiler();
+
+    private Config nestedWorkflow;
+    private Config forEachSubtasks;
+
+    @Setup
+    public void setup()
+    {
+        ConfigFactory cf = Fixtures.configFactory();
+        nestedWorkflow = Fixtures.loadYaml(cf, Fixtures.nestedWorkflow(depth, 10));
+        forEachSubtasks = Fixtures.forEachSubtasks(cf, forEachSize);
+    }
+
+    @Benchmark
+    public Workflow compileNestedWorkflow()
+    {
+        return compiler.compile("benchmark", nestedWorkflow);
+    }
+
+    // WorkflowExecutor compiles generated subtasks when for_each> finishes
+    @Benchmark
+    public WorkflowTaskList compileForEachSubtasks()
+    {
+        return compiler.compileTasks("+benchmark+loop", "^sub", forEachSubtasks);
+    }
+}
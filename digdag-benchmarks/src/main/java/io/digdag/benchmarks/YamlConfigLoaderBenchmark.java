@@ -0,0 +1,58 @@
+package io.digdag.benchmarks;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import io.digdag.client.config.ConfigElement;
+import io.digdag.core.config.YamlConfigLoader;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+@Fork(1)
+public class YamlConfigLoaderBenchmark
+{
+    @Param({"20"})
+    public int depth;
+
+    @Param({"1000", "10000"})
+    public int forEachSize;
+
+    private final YamlConfigLoader loader = new YamlConfigLoader();
+
+    private String nestedWorkflow;
+    private String forEachWorkflow;
+
+    @Setup
+    public void setup()
+    {
+        nestedWorkflow = Fixtures.nestedWorkflow(depth, 10);
+        forEachWorkflow = Fixtures.forEachWorkflow(forEachSize);
+    }
+
+    @Benchmark
+    public ConfigElement loadNestedWorkflow()
+        throws IOException
+    {
+        return loader.loadString(nestedWorkflow);
+    }
+
+    @Benchmark
+    public ConfigElement loadForEachWorkflow()
+        throws IOException
+    {
+        return loader.loadString(forEachWorkflow);
+    }
+}
@@ -0,0 +1,29 @@
+package io.digdag.benchmarks.loadtest;
+
+import javax.sql.DataSource;
+import com.google.inject.Inject;
+import com.google.inject.Provider;
+import io.digdag.core.database.DatabaseModule;
+import org.skife.jdbi.v2.DBI;
+
+// Same with DatabaseModule.DbiProvider but counts statements
+public class CountingDbiProvider
+        implements Provider<DBI>
+{
+    private final DataSource ds;
+    private final LoadTestMetrics metrics;
+
+    @Inject
+    public CountingDbiProvider(DataSource ds, DatabaseModule.AutoMigrator migrator, LoadTestMetrics metrics)
+    {
+        this.ds = ds;
+        this.metrics = metrics;
+    }
+
+    public DBI get()
+    {
+        DBI dbi = new DBI(ds);
+        dbi.setTimingCollector(metrics);
+        return dbi;
+    }
+}
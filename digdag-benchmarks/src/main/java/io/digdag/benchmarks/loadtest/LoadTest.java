@@ -0,0 +1,192 @@
+package io.digdag.benchmarks.loadtest;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicInteger;
+import com.google.common.collect.ImmutableList;
+import com.google.inject.Scopes;
+import com.google.inject.multibindings.Multibinder;
+import io.digdag.client.config.Config;
+import io.digdag.client.config.ConfigElement;
+import io.digdag.client.config.ConfigFactory;
+import io.digdag.core.DigdagEmbed;
+import io.digdag.core.LocalSite;
+import io.digdag.core.archive.ArchiveMetadata;
+import io.digdag.core.archive.WorkflowFile;
+import io.digdag.core.repository.StoredWorkflowDefinition;
+import io.digdag.core.repository.WorkflowDefinitionList;
+import io.digdag.core.session.StoredSessionAttemptWithSession;
+import io.digdag.core.workflow.AttemptRequest;
+import io.digdag.core.workflow.TaskQueueDispatcher;
+import io.digdag.spi.CommandExecutor;
+import io.digdag.spi.OperatorFactory;
+import io.digdag.spi.ScheduleTime;
+import io.digdag.spi.SchedulerFactory;
+import io.digdag.spi.TaskRequest;
+import org.skife.jdbi.v2.DBI;
+import static io.digdag.client.DigdagClient.objectMapper;
+
+/**
+ * End-to-end throughput test of WorkflowExecutor, DatabaseTaskQueueServer
+ * and MultiThreadAgent running in one process.
+ *
+ * Usage:
+ *
+ * <pre>
+ * ./gradlew :digdag-benchmarks:loadTest -PloadTestArgs="-s 1000 -c postgresql.properties WIDE DEEP"
+ * </pre>
+ *
+ * -c sets system config in the same format with digdag server --config. By default
+ * it uses in-memory H2 database. Set database.type=postgresql and database.* to
+ * run it against PostgreSQL.
+ */
+public class LoadTest
+{
+    private static final int WARMUP_SIZE = 50;
+
+    // makes workflow names unique so that sessions don't conflict
+    private static final AtomicInteger runCount = new AtomicInteger();
+
+    public static void main(String[] args)
+        throws Exception
+    {
+        ConfigFactory cf = new ConfigFactory(objectMapper());
+        Config systemConfig = cf.create();
+        int size = 1000;
+        List<Scenario> scenarios = new ArrayList<>();
+
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+            case "-c":
+                systemConfig.merge(loadProperties(cf, Paths.get(args[++i])));
+                break;
+            case "-s":
+                size = Integer.parseInt(args[++i]);
+                break;
+            default:
+                scenarios.add(Scenario.valueOf(args[i]));
+            }
+        }
+        if (scenarios.isEmpty()) {
+            scenarios.addAll(ImmutableList.copyOf(Scenario.values()));
+        }
+
+        // Limits reads the property only once when it's loaded
+        if (System.getProperty("io.digdag.limits.maxWorkflowTasks") == null) {
+            System.setProperty("io.digdag.limits.maxWorkflowTasks", Integer.toString(size + 100));
+        }
+
+        try (DigdagEmbed embed = setupEmbed(ConfigElement.copyOf(systemConfig))) {
+            LocalSite localSite = embed.getLocalSite();
+            LoadTestMetrics metrics = embed.getInjector().getInstance(LoadTestMetrics.class);
+
+            System.out.println(String.format("database: %s",
+                        systemConfig.get("database.type", String.class, "memory")));
+            System.out.println(String.format("%-16s %8s %10s %10s %9s %9s %9s %9s %12s",
+                        "scenario", "tasks", "time (ms)", "tasks/sec",
+                        "p50 (ms)", "p90 (ms)", "p99 (ms)", "max (ms)", "stmts/task"));
+
+            for (Scenario scenario : scenarios) {
+                // warm up JIT and caches
+                runWorkflow(localSite, cf, scenario, WARMUP_SIZE);
+
+                metrics.reset();
+                long startTime = System.nanoTime();
+                long attemptId = runWorkflow(localSite, cf, scenario, size);
+                long elapsedMillis = (System.nanoTime() - startTime) / 1000000;
+                long statements = metrics.getStatementCount();
+                int tasks = localSite.getSessionStore().getTasksOfAttempt(attemptId).size();
+
+                List<Double> latencies = metrics.getStartLatencies();
+                System.out.println(String.format("%-16s %8d %10d %10.1f %9.1f %9.1f %9.1f %9.1f %12.1f",
+                            scenario, tasks, elapsedMillis,
+                            tasks * 1000.0 / Math.max(elapsedMillis, 1),
+                            LoadTestMetrics.percentile(latencies, 50),
+                            LoadTestMetrics.percentile(latencies, 90),
+                            LoadTestMetrics.percentile(latencies, 99),
+                            LoadTestMetrics.percentile(latencies, 100),
+                            statements / (double) Math.max(tasks, 1)));
+            }
+        }
+    }
+
+    private static Config loadProperties(ConfigFactory cf, Path path)
+        throws IOException
+    {
+        Properties props = new Properties();
+        try (InputStream in = Files.newInputStream(path)) {
+            props.load(in);
+        }
+        Config config = cf.create();
+        for (String key : props.stringPropertyNames()) {
+            config.set(key, props.getProperty(key));
+        }
+        return config;
+    }
+
+    private static DigdagEmbed setupEmbed(ConfigElement systemConfig)
+    {
+        return new DigdagEmbed.Bootstrap()
+            .setSystemConfig(systemConfig)
+            .withExtensionLoader(false)
+            .addModules((binder) -> {
+                binder.bind(LoadTestMetrics.class).in(Scopes.SINGLETON);
+                binder.bind(CommandExecutor.class).toInstance(LoadTest::noCommandExecutor);
+
+                Multibinder.newSetBinder(binder, SchedulerFactory.class);
+
+                Multibinder<OperatorFactory> operatorFactoryBinder = Multibinder.newSetBinder(binder, OperatorFactory.class);
+                operatorFactoryBinder.addBinding().to(NoopOperatorFactory.class).in(Scopes.SINGLETON);
+            })
+            .overrideModulesWith((binder) -> {
+                binder.bind(DBI.class).toProvider(CountingDbiProvider.class);
+                binder.bind(TaskQueueDispatcher.class).to(TimingTaskQueueDispatcher.class).in(Scopes.SINGLETON);
+            })
+            .initializeWithoutShutdownHook();
+    }
+
+    private static Process noCommandExecutor(Path workspacePath, TaskRequest request, ProcessBuilder pb)
+    {
+        throw new UnsupportedOperationException("Load test doesn't run commands");
+    }
+
+    // returns id of the finished attempt
+    private static long runWorkflow(LocalSite localSite, ConfigFactory cf, Scenario scenario, int size)
+        throws Exception
+    {
+        String workflowName = scenario.name().toLowerCase() + "_" + runCount.incrementAndGet();
+        Config workflow = scenario.workflow(cf, size).set("timezone", "UTC");
+
+        ArchiveMetadata meta = ArchiveMetadata.of(
+                WorkflowDefinitionList.of(ImmutableList.of(
+                        WorkflowFile.fromConfig(workflowName, workflow).toWorkflowDefinition())),
+                cf.create());
+        LocalSite.StoreWorkflowResult stored = localSite.storeLocalWorkflowsWithoutSchedule(
+                "load-test",
+                "revision-" + UUID.randomUUID(),
+                meta);
+        StoredWorkflowDefinition def = stored.getWorkflowDefinitions().get(0);
+
+        AttemptRequest ar = localSite.getAttemptBuilder()
+            .buildFromStoredWorkflow(
+                    stored.getRevision(),
+                    def,
+                    cf.create(),
+                    ScheduleTime.runNow(Instant.ofEpochSecond(Instant.now().getEpochSecond())));
+        StoredSessionAttemptWithSession attempt = localSite.submitWorkflow(ar, def);
+        StoredSessionAttemptWithSession done = localSite.runUntilDone(attempt.getId());
+        if (!done.getStateFlags().isSuccess()) {
+            throw new IllegalStateException("Workflow failed: " + done);
+        }
+
+        return done.getId();
+    }
+}
@@ -0,0 +1,78 @@
+package io.digdag.benchmarks.loadtest;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import org.skife.jdbi.v2.StatementContext;
+import org.skife.jdbi.v2.TimingCollector;
+
+/**
+ * Collects enqueue and start time of tasks, and number of statements
+ * executed through JDBI.
+ */
+public class LoadTestMetrics
+        implements TimingCollector
+{
+    private final Map<Long, Long> enqueueNanos = new ConcurrentHashMap<>();
+    private final Map<Long, Long> startNanos = new ConcurrentHashMap<>();
+    private final AtomicLong statements = new AtomicLong();
+
+    public void reset()
+    {
+        enqueueNanos.clear();
+        startNanos.clear();
+        statements.set(0);
+    }
+
+    public void taskEnqueued(long taskId)
+    {
+        enqueueNanos.putIfAbsent(taskId, System.nanoTime());
+    }
+
+    public void taskStarted(long taskId)
+    {
+        startNanos.putIfAbsent(taskId, System.nanoTime());
+    }
+
+    @Override
+    public void collect(long elapsedTime, StatementContext ctx)
+    {
+        statements.incrementAndGet();
+    }
+
+    public long getStatementCount()
+    {
+        return statements.get();
+    }
+
+    public int getStartedTaskCount()
+    {
+        return startNanos.size();
+    }
+
+    // latencies from enqueue to start of operator in milliseconds, sorted
+    public List<Double> getStartLatencies()
+    {
+        List<Double> latencies = new ArrayList<>();
+        for (Map.Entry<Long, Long> pair : startNanos.entrySet()) {
+            Long enqueued = enqueueNanos.get(pair.getKey());
+            if (enqueued != null) {
+                latencies.add((pair.getValue() - enqueued) / 1000000.0);
+            }
+        }
+        Collections.sort(latencies);
+        return latencies;
+    }
+
+    public static double percentile(List<Double> sorted, double p)
+    {
+        if (sorted.isEmpty()) {
+            return 0.0;
+        }
+        int index = (int) Math.ceil(p / 100.0 * sorted.size()) - 1;
+        return sorted.get(Math.max(0, Math.min(index, sorted.size() - 1)));
+    }
+}
@@ -0,0 +1,32 @@
+package io.digdag.benchmarks.loadtest;
+
+import java.nio.file.Path;
+import com.google.inject.Inject;
+import io.digdag.spi.Operator;
+import io.digdag.spi.OperatorFactory;
+import io.digdag.spi.TaskRequest;
+import io.digdag.spi.TaskResult;
+
+public class NoopOperatorFactory
+        implements OperatorFactory
+{
+    private final LoadTestMetrics metrics;
+
+    @Inject
+    public NoopOperatorFactory(LoadTestMetrics metrics)
+    {
+        this.metrics = metrics;
+    }
+
+    public String getType()
+    {
+        return "noop";
+    }
+
+    @Override
+    public Operator newTaskExecutor(Path workspacePath, TaskRequest request)
+    {
+        metrics.taskStarted(request.getTaskId());
+        return () -> TaskResult.empty(request);
+    }
+}
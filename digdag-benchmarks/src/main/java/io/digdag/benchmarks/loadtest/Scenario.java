@@ -0,0 +1,63 @@
+package io.digdag.benchmarks.loadtest;
+
+import io.digdag.client.config.Config;
+import io.digdag.client.config.ConfigFactory;
+
+/**
+ * Synthetic workflows of noop> tasks.
+ */
+public enum Scenario
+{
+    // all tasks run in parallel
+    WIDE {
+        @Override
+        public Config workflow(ConfigFactory cf, int size)
+        {
+            Config group = tasks(cf, size).set("_parallel", true);
+            return cf.create().setNested("+wide", group);
+        }
+    },
+
+    // all tasks run one by one
+    DEEP {
+        @Override
+        public Config workflow(ConfigFactory cf, int size)
+        {
+            return cf.create().setNested("+deep", tasks(cf, size));
+        }
+    },
+
+    // a task fans out to parallel tasks that fan in to a task. repeated 4 times.
+    FAN_OUT_FAN_IN {
+        @Override
+        public Config workflow(ConfigFactory cf, int size)
+        {
+            Config workflow = cf.create();
+            int stages = 4;
+            for (int s = 0; s < stages; s++) {
+                Config stage = cf.create();
+                stage.setNested("+fan_out", noop(cf));
+                stage.setNested("+parallel", tasks(cf, Math.max(1, size / stages - 2)).set("_parallel", true));
+                stage.setNested("+fan_in", noop(cf));
+                workflow.setNested("+stage" + s, stage);
+            }
+            return workflow;
+        }
+    };
+
+    public abstract Config workflow(ConfigFactory cf, int size);
+
+    private static Config tasks(ConfigFactory cf, int size)
+    {
+        Config group = cf.create();
+        for (int i = 0; i < size; i++) {
+            group.setNested("+t" + i, noop(cf));
+        }
+        return group;
+    }
+
+    private static Config noop(ConfigFactory cf)
+    {
+        return cf.create().set("noop>", "");
+    }
+}
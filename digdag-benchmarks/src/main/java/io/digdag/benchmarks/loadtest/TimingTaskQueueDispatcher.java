@@ -0,0 +1,36 @@
+package io.digdag.benchmarks.loadtest;
+
+import com.google.common.base.Optional;
+import com.google.inject.Inject;
+import io.digdag.core.queue.QueueSettingStoreManager;
+import io.digdag.core.queue.QueueTaskQueueDispatcher;
+import io.digdag.core.queue.TaskQueueServerManager;
+import io.digdag.core.repository.ResourceNotFoundException;
+import io.digdag.spi.TaskConflictException;
+import io.digdag.spi.TaskQueueRequest;
+
+public class TimingTaskQueueDispatcher
+        extends QueueTaskQueueDispatcher
+{
+    private final LoadTestMetrics metrics;
+
+    @Inject
+    public TimingTaskQueueDispatcher(
+            QueueSettingStoreManager queueManager,
+            TaskQueueServerManager queueServerManager,
+            LoadTestMetrics metrics)
+    {
+        super(queueManager, queueServerManager);
+        this.metrics = metrics;
+    }
+
+    @Override
+    public void dispatch(int siteId, Optional<String> queueName, TaskQueueRequest request)
+        throws ResourceNotFoundException, TaskConflictException
+    {
+        if (request.getUniqueTaskId().isPresent()) {
+            metrics.taskEnqueued(request.getUniqueTaskId().get());
+        }
+        super.dispatch(siteId, queueName, request);
+    }
+}
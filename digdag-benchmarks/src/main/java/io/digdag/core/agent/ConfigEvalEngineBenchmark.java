@@ -0,0 +1,82 @@
+package io.digdag.core.agent;
+
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.concurrent.TimeUnit;
+import io.digdag.benchmarks.Fixtures;
+import io.digdag.client.config.Config;
+import io.digdag.client.config.ConfigFactory;
+import io.digdag.spi.TemplateException;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+// This benchmark is in io.digdag.core.agent package to call package-private
+// ConfigEvalEngine(int) and protected eval.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+@Fork(1)
+public class ConfigEvalEngineBenchmark
+{
+    // 0 disables pooling of JavaScript engines
+    @Param({"0", "32"})
+    public int maxIdleEngines;
+
+    @Param({"10", "1000"})
+    public int exportParamsSize;
+
+    private final Path workspacePath = Paths.get("").toAbsolutePath();
+
+    private ConfigEvalEngine engine;
+    private Config templateConfig;
+    private Config plainConfig;
+    private Config params;
+
+    @Setup
+    public void setup()
+    {
+        ConfigFactory cf = Fixtures.configFactory();
+        engine = new ConfigEvalEngine(maxIdleEngines);
+
+        templateConfig = cf.create()
+            .set("td>", "queries/${table_0.name}.sql")
+            .set("database", "${td.database}")
+            .set("create_table", "${table_0.name}_${session_date_compact}")
+            .setNested("_export", cf.create().set("path", "s3://bucket/${session_date}/${table_0.name}"));
+        plainConfig = cf.create()
+            .set("sh>", "echo hello")
+            .set("_retry", 3);
+
+        params = Fixtures.exportParams(cf, exportParamsSize)
+            .set("timezone", "UTC")
+            .set("session_time", "2016-10-01T00:00:00+00:00")
+            .set("session_date", "2016-10-01")
+            .set("session_date_compact", "20161001")
+            .setNested("td", cf.create().set("database", "benchmark"));
+    }
+
+    @Benchmark
+    public Config evalTemplate()
+        throws TemplateException
+    {
+        return engine.eval(workspacePath, templateConfig, params);
+    }
+
+    @Benchmark
+    public Config evalPlainText()
+        throws TemplateException
+    {
+        return engine.eval(workspacePath, plainConfig, params);
+    }
+}
@@ -71,6 +71,7 @@ import io.digdag.core.workflow.SessionAttemptConflictException;
 import io.digdag.core.workflow.TaskTree;
 import io.digdag.core.workflow.TaskMatchPattern;
 import io.digdag.core.config.ConfigLoaderManager;
+import io.digdag.core.metrics.MetricsRegistry;
 import io.digdag.spi.TaskRequest;
 import io.digdag.spi.TaskResult;
 import io.digdag.spi.OperatorFactory;
@@ -627,9 +628,10 @@ public class Run
                 TaskCallbackApi callback, WorkspaceManager workspaceManager,
                 WorkflowCompiler compiler, ConfigFactory cf,
                 ConfigEvalEngine evalEngine, OperatorRegistry registry,
+                MetricsRegistry metrics,
                 Run cmd, YamlMapper yamlMapper)
         {
-            super(config, agentId, callback, workspaceManager, compiler, cf, evalEngine, registry);
+            super(config, agentId, callback, workspaceManager, compiler, cf, evalEngine, registry, metrics);
             this.cf = cf;
             this.cmd = cmd;
             this.yamlMapper = yamlMapper;
@@ -18,6 +18,8 @@ import static io.digdag.cli.SystemExitException.systemExit;
 public class ShowLog
     extends ClientCommand
 {
+    private static final int FOLLOW_WAIT_SECONDS = 5;
+
     @Parameter(names = {"-v", "--verbose"})
     protected boolean verbose = false;
 
@@ -72,9 +74,16 @@ public class ShowLog
                     break;
                 }
                 else {
-                    Thread.sleep(interval);
-                    interval = Math.min(interval * 2, 10000);
-                    boolean updated = update(client, watcher, attemptId, taskName);
+                    // long-poll the task that is writing logs. This returns as soon
+                    // as new logs arrive instead of waiting for the polling interval.
+                    boolean updated = watcher.waitForUpdate(FOLLOW_WAIT_SECONDS);
+                    if (!updated) {
+                        Thread.sleep(interval);
+                        interval = Math.min(interval * 2, 10000);
+                    }
+                    if (update(client, watcher, attemptId, taskName)) {
+                        updated = true;
+                    }
                     if (updated) {
                         interval = 500;
                     }
@@ -8,21 +8,18 @@ import java.util.HashMap;
 import java.util.LinkedHashMap;
 import java.util.Comparator;
 import java.util.Collections;
-import java.util.zip.GZIPInputStream;
 import java.util.regex.Pattern;
 import java.util.regex.Matcher;
 import java.time.Instant;
 import java.io.BufferedReader;
-import java.io.InputStream;
-import java.io.InputStreamReader;
 import java.io.IOException;
-import java.io.EOFException;
+import java.io.StringReader;
 import com.google.common.base.Optional;
 import io.digdag.client.DigdagClient;
 import io.digdag.client.api.RestLogFileHandle;
+import io.digdag.client.api.RestLogTail;
 import io.digdag.core.log.LogLevel;
 import static java.util.Locale.ENGLISH;
-import static java.nio.charset.StandardCharsets.UTF_8;
 
 class TaskLogWatcher
 {
@@ -34,6 +31,7 @@ class TaskLogWatcher
     private final Map<String, TaskLogState> stateMap;
     private final LogLevel levelFilter;
     private final PrintStream out;
+    private String lastActiveTaskName = null;
 
     TaskLogWatcher(DigdagClient client, long attemptId, LogLevel levelFilterOrNull, PrintStream out)
     {
@@ -52,7 +50,7 @@ class TaskLogWatcher
         for (Map.Entry<String, List<RestLogFileHandle>> pair : sortHandles(handles).entrySet()) {
             TaskLogState state = stateMap.get(pair.getKey());
             if (state == null) {
-                state = new TaskLogState();
+                state = new TaskLogState(pair.getKey());
                 stateMap.put(pair.getKey(), state);
             }
 
@@ -65,75 +63,73 @@ class TaskLogWatcher
         return updatedAtLeastOne;
     }
 
+    // waits for new logs of the task that wrote logs most recently.
+    boolean waitForUpdate(int waitSeconds)
+        throws IOException
+    {
+        if (lastActiveTaskName == null) {
+            return false;
+        }
+        return stateMap.get(lastActiveTaskName).showTail(waitSeconds);
+    }
+
     private class TaskLogState
     {
+        private final String taskName;
         private RestLogFileHandle lastFile = null;
-        private int lastLineCount = 0;
+        private Optional<String> cursorFileName = Optional.absent();
+        private long cursorOffset = 0;
+        private long cursorChunkOffset = 0;
         private boolean lastLineFiltered = false;
 
+        TaskLogState(String taskName)
+        {
+            this.taskName = taskName;
+        }
+
         boolean update(List<RestLogFileHandle> sortedHandles)
             throws IOException
         {
-            int i = 0;
-            boolean updated = false;
-
-            if (lastFile != null) {
-                // skip unnecessary files...
-                for (; i < sortedHandles.size(); i++) {
-                    RestLogFileHandle handle = sortedHandles.get(i);
-                    if (lastFile.getFileTime().isAfter(handle.getFileTime())) {
-                        continue;  // this file is already shown before. skip it
-                    }
-                    else if (lastFile.getFileName().equals(handle.getFileName())) {
-                        // showing the last file if its size is grown
-                        if (handle.getFileSize() > lastFile.getFileSize()) {
-                            showFileAndUpdate(handle, lastLineCount, lastLineFiltered);
-                            updated = true;
-                        }
-                        // following files are all new files
-                        i++;
-                        break;
-                    }
-                    else {
-                        // following files are all new files
-                        break;
-                    }
-                }
+            RestLogFileHandle last = sortedHandles.get(sortedHandles.size() - 1);
+            if (lastFile != null &&
+                    lastFile.getFileName().equals(last.getFileName()) &&
+                    lastFile.getFileSize() == last.getFileSize()) {
+                // nothing changed since the last update
+                return false;
             }
-
-            // show all following files
-            for (; i < sortedHandles.size(); i++) {
-                RestLogFileHandle handle = sortedHandles.get(i);
-                showFileAndUpdate(handle, 0, false);
-                updated = true;
-            }
-
-            return updated;
+            lastFile = last;
+            return showTail(0);
         }
 
-        private void showFileAndUpdate(RestLogFileHandle handle, int lineOffset, boolean lastLineFiltered)
+        // reads logs after the cursor. The server returns only the new part
+        // of the logs so that following a large log doesn't download it again.
+        private boolean showTail(int waitSeconds)
             throws IOException
         {
-            int lines = 0;
-
-            try (BufferedReader reader = new BufferedReader(new InputStreamReader(new GZIPInputStream(client.getLogFile(attemptId, handle)), UTF_8))) {
-                String line;
-                while ((line = reader.readLine()) != null) {
-                    lines++;
-                    if (lineOffset > 0) {
-                        lineOffset--;
-                        continue;
+            boolean updated = false;
+            while (true) {
+                RestLogTail tail = client.getLogTail(attemptId, taskName, cursorFileName, cursorOffset, cursorChunkOffset, waitSeconds);
+                cursorFileName = tail.getFileName();
+                cursorOffset = tail.getOffset();
+                cursorChunkOffset = tail.getChunkOffset();
+
+                String content = tail.getContent();
+                if (!content.isEmpty()) {
+                    try (BufferedReader reader = new BufferedReader(new StringReader(content))) {
+                        String line;
+                        while ((line = reader.readLine()) != null) {
+                            lastLineFiltered = showOrFilterLine(line, lastLineFiltered);
+                        }
                     }
-                    lastLineFiltered = showOrFilterLine(line, lastLineFiltered);
+                    updated = true;
+                    lastActiveTaskName = taskName;
                 }
-            }
-            catch (EOFException ex) {
-                // OK to ignore Unexpected end of ZLIB input stream
-            }
 
-            this.lastFile = handle;
-            this.lastLineCount = lines;
-            this.lastLineFiltered = false;
+                if (!tail.getMore()) {
+                    return updated;
+                }
+                waitSeconds = 0;
+            }
         }
     }
 
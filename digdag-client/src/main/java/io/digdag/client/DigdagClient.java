@@ -9,6 +9,7 @@ import com.google.common.base.Optional;
 import io.digdag.client.api.JacksonTimeModule;
 import io.digdag.client.api.LocalTimeOrInstant;
 import io.digdag.client.api.RestLogFileHandle;
+import io.digdag.client.api.RestLogTail;
 import io.digdag.client.api.RestProject;
 import io.digdag.client.api.RestRevision;
 import io.digdag.client.api.RestSchedule;
@@ -438,6 +439,15 @@ public class DigdagClient implements AutoCloseable
                 .resolveTemplate("id", attemptId));
     }
 
+    public List<RestTask> getTasks(long attemptId, int pageSize, Optional<Long> lastId)
+    {
+        return doGet(new GenericType<List<RestTask>>() { },
+                target("/api/attempts/{id}/tasks")
+                .resolveTemplate("id", attemptId)
+                .queryParam("page_size", pageSize)
+                .queryParam("last_id", lastId.orNull()));
+    }
+
     public List<RestLogFileHandle> getLogFileHandlesOfAttempt(long attemptId)
     {
         return doGet(new GenericType<List<RestLogFileHandle>>() { },
@@ -479,6 +489,19 @@ public class DigdagClient implements AutoCloseable
         return res.readEntity(InputStream.class);
     }
 
+    public RestLogTail getLogTail(long attemptId, String taskName,
+            Optional<String> fileName, long offset, long chunkOffset, int waitSeconds)
+    {
+        return doGet(RestLogTail.class,
+                target("/api/logs/{id}/tail")
+                .resolveTemplate("id", attemptId)
+                .queryParam("task", taskName)
+                .queryParam("file", fileName.orNull())
+                .queryParam("offset", offset)
+                .queryParam("chunk_offset", chunkOffset)
+                .queryParam("wait", waitSeconds));
+    }
+
     public RestSessionAttempt startSessionAttempt(RestSessionAttemptRequest request)
     {
         return doPut(RestSessionAttempt.class,
@@ -0,0 +1,29 @@
+package io.digdag.client.api;
+
+import com.google.common.base.Optional;
+import org.immutables.value.Value;
+import com.fasterxml.jackson.databind.annotation.JsonSerialize;
+import com.fasterxml.jackson.databind.annotation.JsonDeserialize;
+
+@Value.Immutable
+@JsonSerialize(as = ImmutableRestLogTail.class)
+@JsonDeserialize(as = ImmutableRestLogTail.class)
+public interface RestLogTail
+{
+    Optional<String> getFileName();
+
+    // compressed offset of the chunk in the file
+    long getOffset();
+
+    // decompressed bytes of the chunk that are already read
+    long getChunkOffset();
+
+    String getContent();
+
+    boolean getMore();
+
+    static ImmutableRestLogTail.Builder builder()
+    {
+        return ImmutableRestLogTail.builder();
+    }
+}
@@ -1,5 +1,7 @@
 package io.digdag.client.config;
 
+import java.io.IOException;
+import java.math.BigInteger;
 import java.util.List;
 import java.util.Map;
 import java.util.Iterator;
@@ -11,12 +13,21 @@ import com.fasterxml.jackson.databind.ObjectMapper;
 import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.node.ObjectNode;
 import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.BooleanNode;
+import com.fasterxml.jackson.databind.node.DoubleNode;
+import com.fasterxml.jackson.databind.node.IntNode;
+import com.fasterxml.jackson.databind.node.LongNode;
+import com.fasterxml.jackson.databind.node.TextNode;
+import com.fasterxml.jackson.databind.util.TokenBuffer;
 import com.fasterxml.jackson.databind.node.JsonNodeFactory;
 import com.fasterxml.jackson.databind.RuntimeJsonMappingException;
+import com.fasterxml.jackson.databind.DeserializationFeature;
 import com.fasterxml.jackson.databind.JavaType;
 import com.fasterxml.jackson.annotation.JsonCreator;
 import com.fasterxml.jackson.annotation.JsonValue;
 import com.fasterxml.jackson.annotation.JacksonInject;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
 import com.fasterxml.jackson.core.type.TypeReference;
 import static java.util.Locale.ENGLISH;
 
@@ -191,6 +202,16 @@ public class Config
 
     private JsonNode writeObject(Object obj)
     {
+        // Values are converted to the same nodes as parsing JSON text written by
+        // the mapper, without writing the text. Values that can't be converted
+        // that way fall back to writing and parsing JSON text.
+        if (!mapper.isEnabled(DeserializationFeature.USE_BIG_DECIMAL_FOR_FLOATS) &&
+                !mapper.isEnabled(DeserializationFeature.USE_BIG_INTEGER_FOR_INTS)) {
+            JsonNode node = writeObjectToTree(obj);
+            if (node != null) {
+                return node;
+            }
+        }
         try {
             String value = mapper.writeValueAsString(obj);
             return mapper.readTree(value);
@@ -200,6 +221,135 @@ public class Config
         }
     }
 
+    // returns null if the value needs the JSON text round trip
+    private JsonNode writeObjectToTree(Object obj)
+    {
+        if (obj instanceof String) {
+            return TextNode.valueOf((String) obj);
+        }
+        else if (obj instanceof Boolean) {
+            return BooleanNode.valueOf((Boolean) obj);
+        }
+        else if (obj instanceof Integer || obj instanceof Short || obj instanceof Byte) {
+            return IntNode.valueOf(((Number) obj).intValue());
+        }
+        else if (obj instanceof Long) {
+            return normalizeLong((Long) obj);
+        }
+        else if (obj instanceof Double && !((Double) obj).isNaN() && !((Double) obj).isInfinite()) {
+            return DoubleNode.valueOf((Double) obj);
+        }
+
+        try {
+            JsonParser parser;
+            if (obj instanceof Config) {
+                parser = ((Config) obj).object.traverse();
+            }
+            else if (obj instanceof JsonNode) {
+                parser = ((JsonNode) obj).traverse();
+            }
+            else {
+                TokenBuffer buffer = new TokenBuffer(mapper, false);
+                mapper.writeValue(buffer, obj);
+                parser = buffer.asParser();
+            }
+            parser.nextToken();
+            return readTreeAsText(parser);
+        }
+        catch (IOException ex) {
+            return null;
+        }
+    }
+
+    // Builds the node of the current value as if it's parsed from JSON text.
+    // Returns null if the JSON text of the value depends on generator
+    // settings (non-finite floats, big decimals and binaries).
+    private JsonNode readTreeAsText(JsonParser parser)
+        throws IOException
+    {
+        JsonNodeFactory nodeFactory = mapper.getNodeFactory();
+        switch (parser.getCurrentToken()) {
+        case START_OBJECT:
+            {
+                ObjectNode node = nodeFactory.objectNode();
+                while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                    String key = parser.getCurrentName();
+                    parser.nextToken();
+                    JsonNode value = readTreeAsText(parser);
+                    if (value == null) {
+                        return null;
+                    }
+                    node.set(key, value);
+                }
+                return node;
+            }
+        case START_ARRAY:
+            {
+                ArrayNode node = nodeFactory.arrayNode();
+                while (parser.nextToken() != JsonToken.END_ARRAY) {
+                    JsonNode value = readTreeAsText(parser);
+                    if (value == null) {
+                        return null;
+                    }
+                    node.add(value);
+                }
+                return node;
+            }
+        case VALUE_STRING:
+            return nodeFactory.textNode(parser.getText());
+        case VALUE_TRUE:
+            return nodeFactory.booleanNode(true);
+        case VALUE_FALSE:
+            return nodeFactory.booleanNode(false);
+        case VALUE_NULL:
+            return nodeFactory.nullNode();
+        case VALUE_NUMBER_INT:
+            {
+                // JSON text parser uses the smallest type
+                JsonParser.NumberType type = parser.getNumberType();
+                if (type == JsonParser.NumberType.INT) {
+                    return nodeFactory.numberNode(parser.getIntValue());
+                }
+                BigInteger v = parser.getBigIntegerValue();
+                if (v.bitLength() < 64) {
+                    return normalizeLong(v.longValue());
+                }
+                return nodeFactory.numberNode(v);
+            }
+        case VALUE_NUMBER_FLOAT:
+            {
+                JsonParser.NumberType type = parser.getNumberType();
+                double v;
+                if (type == JsonParser.NumberType.DOUBLE) {
+                    v = parser.getDoubleValue();
+                }
+                else if (type == JsonParser.NumberType.FLOAT) {
+                    // JSON text of a float is parsed as a double
+                    v = Double.parseDouble(Float.toString(parser.getFloatValue()));
+                }
+                else {
+                    // big decimal is parsed as an integer or a double depending on its scale
+                    return null;
+                }
+                if (Double.isNaN(v) || Double.isInfinite(v)) {
+                    return null;
+                }
+                return nodeFactory.numberNode(v);
+            }
+        default:
+            // VALUE_EMBEDDED_OBJECT such as binary
+            return null;
+        }
+    }
+
+    private static JsonNode normalizeLong(long v)
+    {
+        if (v >= Integer.MIN_VALUE && v <= Integer.MAX_VALUE) {
+            return IntNode.valueOf((int) v);
+        }
+        return LongNode.valueOf(v);
+    }
+
     public ConfigFactory getFactory()
     {
         return new ConfigFactory(mapper);
@@ -31,6 +31,7 @@ import io.digdag.core.agent.AgentModule;
 import io.digdag.core.agent.LocalAgentModule;
 import io.digdag.core.storage.StorageModule;
 import io.digdag.core.log.LogModule;
+import io.digdag.core.metrics.MetricsModule;
 import io.digdag.core.plugin.PluginSet;
 import io.digdag.core.plugin.DynamicPluginModule;
 import io.digdag.core.plugin.SystemPluginModule;
@@ -164,6 +165,7 @@ public class DigdagEmbed
                     new QueueModule(),
                     new NotificationModule(),
                     new StorageModule(),
+                    new MetricsModule(),
                     (binder) -> {
                         binder.bind(ProjectArchiveLoader.class);
                         binder.bind(ConfigElement.class).toInstance(systemConfig);
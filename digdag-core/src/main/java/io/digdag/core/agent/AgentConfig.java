@@ -13,6 +13,10 @@ public interface AgentConfig
     static final int DEFAULT_HEARTBEAT_INTERVAL = 60;
     static final int DEFAULT_LOCK_RETENTION_TIME = 300;
     static final int DEFAULT_MAX_TASK_THREADS = 0;
+    static final int DEFAULT_RESIDENT_POLLING_MAX_TASKS = 16;
+    static final int DEFAULT_RESIDENT_POLLING_MAX_INTERVAL = 30;
+    static final int DEFAULT_RESIDENT_POLLING_MAX_TIME = 600;
+    static final int DEFAULT_PREFETCH_MAX_TASKS = 0;
 
     boolean getEnabled();
 
@@ -22,13 +26,29 @@ public interface AgentConfig
 
     int getMaxThreads();
 
+    // Number of tasks that can keep waiting for next polling on this agent
+    // instead of going back to the queue. 0 disables resident polling.
+    int getResidentPollingMaxTasks();
+
+    int getResidentPollingMaxInterval();
+
+    int getResidentPollingMaxTime();
+
+    // Maximum number of tasks locked in advance while all task threads are
+    // busy. 0 disables prefetching. Works only with max-task-threads.
+    int getPrefetchMaxTasks();
+
     static ImmutableAgentConfig.Builder defaultBuilder()
     {
         return ImmutableAgentConfig.builder()
             .enabled(true)
             .heartbeatInterval(DEFAULT_HEARTBEAT_INTERVAL)
             .lockRetentionTime(DEFAULT_LOCK_RETENTION_TIME)
-            .maxThreads(DEFAULT_MAX_TASK_THREADS);
+            .maxThreads(DEFAULT_MAX_TASK_THREADS)
+            .residentPollingMaxTasks(DEFAULT_RESIDENT_POLLING_MAX_TASKS)
+            .residentPollingMaxInterval(DEFAULT_RESIDENT_POLLING_MAX_INTERVAL)
+            .residentPollingMaxTime(DEFAULT_RESIDENT_POLLING_MAX_TIME)
+            .prefetchMaxTasks(DEFAULT_PREFETCH_MAX_TASKS);
     }
 
     static AgentConfig convertFrom(Config config)
@@ -38,6 +58,10 @@ public interface AgentConfig
             .heartbeatInterval(config.get("agent.heartbeatInterval", int.class, DEFAULT_HEARTBEAT_INTERVAL))
             .lockRetentionTime(config.get("agent.lockRetentionTime", int.class, DEFAULT_LOCK_RETENTION_TIME))
             .maxThreads(config.get("agent.max-task-threads", int.class, DEFAULT_MAX_TASK_THREADS))
+            .residentPollingMaxTasks(config.get("agent.residentPolling.maxTasks", int.class, DEFAULT_RESIDENT_POLLING_MAX_TASKS))
+            .residentPollingMaxInterval(config.get("agent.residentPolling.maxInterval", int.class, DEFAULT_RESIDENT_POLLING_MAX_INTERVAL))
+            .residentPollingMaxTime(config.get("agent.residentPolling.maxTime", int.class, DEFAULT_RESIDENT_POLLING_MAX_TIME))
+            .prefetchMaxTasks(config.get("agent.prefetch.maxTasks", int.class, DEFAULT_PREFETCH_MAX_TASKS))
             .build();
     }
 }
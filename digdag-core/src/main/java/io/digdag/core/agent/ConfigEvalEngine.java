@@ -8,8 +8,6 @@ import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.charset.Charset;
-import javax.script.ScriptEngine;
-import javax.script.ScriptEngineManager;
 import javax.script.ScriptException;
 import javax.script.Invocable;
 import com.fasterxml.jackson.databind.ObjectMapper;
@@ -21,7 +19,6 @@ import com.google.common.io.CharStreams;
 import com.google.inject.Inject;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
-import jdk.nashorn.api.scripting.NashornScriptEngineFactory;
 import io.digdag.client.config.Config;
 import io.digdag.client.config.ConfigException;
 import io.digdag.spi.TemplateEngine;
@@ -45,64 +42,98 @@ public class ConfigEvalEngine
         }
     }
 
+    // enough to keep an engine for each concurrently running task of an agent
+    private static final int DEFAULT_MAX_IDLE_ENGINES_PER_TIME_ZONE = Math.max(32, Runtime.getRuntime().availableProcessors());
+
     private final ObjectMapper jsonMapper;
-    private final NashornScriptEngineFactory jsEngineFactory;
+    private final JsEnginePool jsEnginePool;
 
     @Inject
     public ConfigEvalEngine()
+    {
+        this(DEFAULT_MAX_IDLE_ENGINES_PER_TIME_ZONE);
+    }
+
+    ConfigEvalEngine(int maxIdleEnginesPerTimeZone)
     {
         this.jsonMapper = new ObjectMapper();
-        this.jsEngineFactory = new NashornScriptEngineFactory();
+        this.jsEnginePool = new JsEnginePool(DIGDAG_JS, maxIdleEnginesPerTimeZone);
     }
 
     protected Config eval(Path workspacePath, Config config, Config params)
         throws TemplateException
     {
         ObjectNode object = config.convert(ObjectNode.class);
-        ObjectNode built = new Context(workspacePath, params).evalObjectRecursive(object);
-        return config.getFactory().create(built);
+        try (JsEnginePool.Lease lease = leaseTemplateEngine(params)) {
+            ObjectNode built = new Context(workspacePath, params, lease.getInvocable()).evalObjectRecursive(object);
+            return config.getFactory().create(built);
+        }
     }
 
-    private Invocable newTemplateInvocable(Config params)
+    private JsEnginePool.Lease leaseTemplateEngine(Config params)
+    {
+        return jsEnginePool.lease(params.get("timezone", String.class));
+    }
+
+    // params is a JSON string or an object returned by parseParams of the same engine
+    private String invokeTemplate(Invocable templateInvocable, Path workspacePath, String code, Object params, String localsJson)
+        throws TemplateException
     {
-        ScriptEngine jsEngine = jsEngineFactory.getScriptEngine(new String[] {
-            //"--language=es6",  // this is not even accepted with jdk1.8.0_20 and has a bug with jdk1.8.0_51
-            "--no-java",
-            "--no-syntax-extensions",
-            "-timezone=" + params.get("timezone", String.class),
-        });
         try {
-            jsEngine.eval(DIGDAG_JS);
+            return (String) templateInvocable.invokeFunction("template", code, params, localsJson);
         }
-        catch (ScriptException | ClassCastException ex) {
-            throw new IllegalStateException("Unexpected script evaluation failure", ex);
+        catch (ScriptException | NoSuchMethodException ex) {
+            throw new TemplateException("Failed to evaluate JavaScript code: " + code, ex);
         }
-        return (Invocable) jsEngine;
     }
 
-    private String invokeTemplate(Invocable templateInvocable, Path workspacePath, String code, Config params)
+    private String toJson(Object value)
         throws TemplateException
     {
         try {
-            String context = jsonMapper.writeValueAsString(params);
-            return (String) templateInvocable.invokeFunction("template", code, context);
+            return jsonMapper.writeValueAsString(value);
         }
-        catch (ScriptException | NoSuchMethodException | IOException ex) {
-            throw new TemplateException("Failed to evaluate JavaScript code: " + code, ex);
+        catch (IOException ex) {
+            throw new TemplateException("Failed to serialize template parameters", ex);
         }
     }
 
+    // Returns true if evaluating the code as a template always returns the code as is.
+    // digdag.js replaces ${...} and ${%...%} with evaluated results, and $$ with $.
+    private static boolean isPlainText(String code)
+    {
+        return !code.contains("${") && !code.contains("$$");
+    }
+
     private class Context
     {
         private final Path workspacePath;
         private final Config params;
         private final Invocable templateInvocable;
+        private Object parsedParams = null;
 
-        public Context(Path workspacePath, Config params)
+        public Context(Path workspacePath, Config params, Invocable templateInvocable)
         {
             this.workspacePath = workspacePath;
             this.params = params;
-            this.templateInvocable = newTemplateInvocable(params);
+            this.templateInvocable = templateInvocable;
+        }
+
+        // params are serialized and parsed by the JavaScript engine once per task
+        // only if the config includes a template
+        private Object getParsedParams()
+            throws TemplateException
+        {
+            if (parsedParams == null) {
+                String paramsJson = toJson(params);
+                try {
+                    parsedParams = templateInvocable.invokeFunction("parseParams", paramsJson);
+                }
+                catch (ScriptException | NoSuchMethodException ex) {
+                    throw new TemplateException("Failed to parse template parameters", ex);
+                }
+            }
+            return parsedParams;
         }
 
         private ObjectNode evalObjectRecursive(ObjectNode local)
@@ -163,11 +194,14 @@ public class ConfigEvalEngine
         private JsonNode evalValue(ObjectNode local, String code)
             throws TemplateException
         {
-            Config scopedParams = params.deepCopy();
-            for (Map.Entry<String, JsonNode> pair : ImmutableList.copyOf(local.fields())) {
-                scopedParams.set(pair.getKey(), pair.getValue());
+            if (isPlainText(code)) {
+                return jsonMapper.getNodeFactory().textNode(code);
             }
-            String resultText = invokeTemplate(templateInvocable, workspacePath, code, scopedParams);
+
+            // local fields evaluated so far overwrite params. digdag.js layers them
+            // on the parsed params so that params don't have to be copied for each template.
+            String localsJson = local.size() == 0 ? null : toJson(local);
+            String resultText = invokeTemplate(templateInvocable, workspacePath, code, getParsedParams(), localsJson);
             if (resultText == null) {
                 return jsonMapper.getNodeFactory().nullNode();
             }
@@ -181,8 +215,10 @@ public class ConfigEvalEngine
     public String template(Path basePath, String content, Config params)
         throws TemplateException
     {
-        Invocable templateInvocable = newTemplateInvocable(params);
-        String resultText = invokeTemplate(templateInvocable, basePath, content, params);
+        String resultText;
+        try (JsEnginePool.Lease lease = leaseTemplateEngine(params)) {
+            resultText = invokeTemplate(lease.getInvocable(), basePath, content, toJson(params), null);
+        }
         if (resultText == null) {
             return "";
         }
@@ -92,10 +92,10 @@ public class InProcessTaskCallbackApi
     }
 
     @Override
-    public void taskHeartbeat(int siteId,
+    public List<String> taskHeartbeat(int siteId,
             List<String> lockedIds, AgentId agentId, int lockSeconds)
     {
-        queueClient.taskHeartbeat(siteId, lockedIds, agentId.toString(), lockSeconds);
+        return queueClient.taskHeartbeat(siteId, lockedIds, agentId.toString(), lockSeconds);
     }
 
     @Override
@@ -0,0 +1,126 @@
+package io.digdag.core.agent;
+
+import java.util.Map;
+import java.util.concurrent.BlockingDeque;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingDeque;
+import javax.script.Compilable;
+import javax.script.CompiledScript;
+import javax.script.Invocable;
+import javax.script.ScriptContext;
+import javax.script.ScriptEngine;
+import javax.script.ScriptException;
+import javax.script.SimpleScriptContext;
+import jdk.nashorn.api.scripting.NashornScriptEngineFactory;
+
+/**
+ * Pool of Nashorn script engines keyed by timezone.
+ *
+ * Timezone is an engine option and can't be changed after creation, so
+ * engines are pooled separately for each timezone. An engine keeps the
+ * script compiled once at creation. Each lease evaluates the compiled
+ * script in a new global so that variables set by a template don't leak
+ * to templates of other tasks.
+ *
+ * A ScriptEngine is not thread-safe. A leased engine is used only by
+ * the lessee until the lease is closed.
+ */
+class JsEnginePool
+{
+    private final NashornScriptEngineFactory jsEngineFactory = new NashornScriptEngineFactory();
+    private final String script;
+    private final int maxIdleEnginesPerTimeZone;
+    private final Map<String, BlockingDeque<PooledEngine>> idleEngines = new ConcurrentHashMap<>();
+
+    JsEnginePool(String script, int maxIdleEnginesPerTimeZone)
+    {
+        this.script = script;
+        this.maxIdleEnginesPerTimeZone = maxIdleEnginesPerTimeZone;
+    }
+
+    Lease lease(String timeZone)
+    {
+        BlockingDeque<PooledEngine> idles = idleEngines.computeIfAbsent(timeZone, (key) -> new LinkedBlockingDeque<>());
+        PooledEngine engine = idles.pollFirst();
+        if (engine == null) {
+            engine = new PooledEngine(timeZone);
+        }
+        return new Lease(engine);
+    }
+
+    private void release(PooledEngine engine)
+    {
+        // offerFirst so that recently used engines, which are warmed up by JIT, are reused first
+        BlockingDeque<PooledEngine> idles = idleEngines.get(engine.timeZone);
+        if (idles.size() < maxIdleEnginesPerTimeZone) {
+            idles.offerFirst(engine);
+        }
+    }
+
+    private class PooledEngine
+    {
+        private final String timeZone;
+        private final ScriptEngine jsEngine;
+        private final CompiledScript compiled;
+
+        PooledEngine(String timeZone)
+        {
+            this.timeZone = timeZone;
+            this.jsEngine = jsEngineFactory.getScriptEngine(new String[] {
+                //"--language=es6",  // this is not even accepted with jdk1.8.0_20 and has a bug with jdk1.8.0_51
+                "--no-java",
+                "--no-syntax-extensions",
+                "-timezone=" + timeZone,
+            });
+            try {
+                this.compiled = ((Compilable) jsEngine).compile(script);
+            }
+            catch (ScriptException | ClassCastException ex) {
+                throw new IllegalStateException("Unexpected script compilation failure", ex);
+            }
+        }
+
+        Invocable newInvocable()
+        {
+            ScriptContext context = new SimpleScriptContext();
+            context.setBindings(jsEngine.createBindings(), ScriptContext.ENGINE_SCOPE);
+            try {
+                compiled.eval(context);
+            }
+            catch (ScriptException ex) {
+                throw new IllegalStateException("Unexpected script evaluation failure", ex);
+            }
+            // Invocable.invokeFunction uses the default context of the engine
+            jsEngine.setContext(context);
+            return (Invocable) jsEngine;
+        }
+    }
+
+    class Lease
+            implements AutoCloseable
+    {
+        private final PooledEngine engine;
+        private final Invocable invocable;
+        private boolean closed = false;
+
+        private Lease(PooledEngine engine)
+        {
+            this.engine = engine;
+            this.invocable = engine.newInvocable();
+        }
+
+        Invocable getInvocable()
+        {
+            return invocable;
+        }
+
+        @Override
+        public void close()
+        {
+            if (!closed) {
+                closed = true;
+                release(engine);
+            }
+        }
+    }
+}
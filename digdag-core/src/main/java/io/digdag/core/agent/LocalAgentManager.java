@@ -7,6 +7,7 @@ import javax.annotation.PostConstruct;
 import javax.annotation.PreDestroy;
 import com.google.inject.Inject;
 import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import io.digdag.core.metrics.MetricsRegistry;
 import io.digdag.core.queue.TaskQueueServerManager;
 
 public class LocalAgentManager
@@ -20,10 +21,11 @@ public class LocalAgentManager
             AgentConfig config,
             AgentId agentId,
             TaskServerApi taskServer,
-            OperatorManager operatorManager)
+            OperatorManager operatorManager,
+            MetricsRegistry metrics)
     {
         if (config.getEnabled()) {
-            this.agentFactory = () -> new MultiThreadAgent(config, agentId, taskServer, operatorManager);
+            this.agentFactory = () -> new MultiThreadAgent(config, agentId, taskServer, operatorManager, metrics);
         }
         else {
             this.agentFactory = null;
@@ -21,10 +21,12 @@ import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
 import org.apache.commons.compress.archivers.tar.TarArchiveInputStream;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import io.digdag.client.config.Config;
 import io.digdag.spi.TaskRequest;
 import io.digdag.spi.StorageObject;
 import io.digdag.core.TempFileManager;
 import io.digdag.core.TempFileManager.TempDir;
+import io.digdag.core.metrics.MetricsRegistry;
 
 public class LocalWorkspaceManager
     implements WorkspaceManager
@@ -32,11 +34,23 @@ public class LocalWorkspaceManager
     private final Logger logger = LoggerFactory.getLogger(getClass());
 
     private final TempFileManager tempFiles;
+    private final WorkspaceArchiveCache archiveCache;  // null if disabled
 
     @Inject
-    public LocalWorkspaceManager(TempFileManager tempFiles)
+    public LocalWorkspaceManager(TempFileManager tempFiles, Config systemConfig, MetricsRegistry metrics)
     {
         this.tempFiles = tempFiles;
+        long cacheMaxSize = systemConfig.get("agent.workspaceCache.maxSize", long.class, 512L * 1024 * 1024);  // bytes
+        if (cacheMaxSize > 0) {
+            // cache directory is never deleted explicitly. It's deleted with other temp files.
+            Path cacheDir = tempFiles.createTempDir("workspace-cache", "archives").get();
+            this.archiveCache = new WorkspaceArchiveCache(cacheDir, cacheMaxSize,
+                    systemConfig.get("agent.workspaceCache.hardLink", boolean.class, false),
+                    metrics);
+        }
+        else {
+            this.archiveCache = null;
+        }
     }
 
     @Override
@@ -44,16 +58,32 @@ public class LocalWorkspaceManager
             throws IOException
     {
         try (TempDir workspacePath = createNewWorkspace(request)) {
-            Optional<StorageObject> in = archiveProvider.open();
-            if (in.isPresent()) {
-                try (TarArchiveInputStream archive = new TarArchiveInputStream(new GzipCompressorInputStream(new BufferedInputStream(in.get().getContentInputStream())))) {
-                    extractArchive(workspacePath.get(), archive);
-                }
+            if (archiveCache != null && request.getRevision().isPresent()) {
+                // a revision is immutable once it's uploaded
+                String cacheKey = request.getProjectId() + "/" + request.getRevision().get();
+                archiveCache.copyTo(cacheKey, workspacePath.get(), (dir) -> extractArchive(dir, archiveProvider));
+            }
+            else {
+                extractArchive(workspacePath.get(), archiveProvider);
             }
             return func.run(workspacePath.get());
         }
     }
 
+    // returns size of the archive
+    private long extractArchive(Path destDir, ArchiveProvider archiveProvider)
+        throws IOException
+    {
+        Optional<StorageObject> in = archiveProvider.open();
+        if (!in.isPresent()) {
+            return 0L;
+        }
+        try (TarArchiveInputStream archive = new TarArchiveInputStream(new GzipCompressorInputStream(new BufferedInputStream(in.get().getContentInputStream())))) {
+            extractArchive(destDir, archive);
+        }
+        return in.get().getContentLength();
+    }
+
     private void extractArchive(Path destDir, TarArchiveInputStream archive)
         throws IOException
     {
@@ -1,29 +1,69 @@
 package io.digdag.core.agent;
 
 import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.TimeUnit;
 import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import io.digdag.core.metrics.MetricsRegistry;
 import io.digdag.spi.TaskRequest;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+/**
+ * Polls the queue and runs tasks on a thread pool.
+ *
+ * Polling is driven by task completion. When a task finishes, the agent
+ * locks next tasks immediately instead of sleeping for a fixed interval.
+ * If agent.prefetch.maxTasks is set, the agent also locks tasks in advance
+ * and keeps them in a local buffer while all threads are busy. OperatorManager
+ * sends heartbeat for the buffered tasks until they start. The size of the
+ * buffer follows the number of tasks expected to finish during one poll,
+ * calculated from the measured durations of tasks and polls.
+ *
+ * agent.prefetch.maxTasks is 0 by default. Then an agent with
+ * max-task-threads polls only as many tasks as free threads and the
+ * adaptive sizing above doesn't apply.
+ */
 public class MultiThreadAgent
         implements Runnable
 {
     private static final Logger logger = LoggerFactory.getLogger(MultiThreadAgent.class);
 
+    // Poll size of an agent without max-task-threads. It doubles while
+    // polls return full batches and goes back to the minimum otherwise.
+    private static final int MIN_UNBOUNDED_POLL_SIZE = 10;
+    private static final int MAX_UNBOUNDED_POLL_SIZE = 100;
+
+    private static final long MAX_WAIT_MILLIS = 1000;
+
+    // weight of a new sample in moving averages of task and poll durations
+    private static final double AVERAGE_WEIGHT = 0.2;
+
     private final AgentConfig config;
     private final AgentId agentId;
     private final TaskServerApi taskServer;
     private final OperatorManager runner;
     private final ThreadPoolExecutor executor;
+    private final int maxThreads;  // 0 if unbounded
     private volatile boolean stop = false;
 
+    // guards runningTasks and averageTaskMillis. notified when a task finishes.
+    private final Object slotNotice = new Object();
+    private int runningTasks = 0;
+    private double averageTaskMillis = -1;
+
+    // tasks locked but not started yet. Used only by the agent thread except metrics.
+    private final Queue<TaskRequest> prefetchedTasks = new ConcurrentLinkedQueue<>();
+    private double averagePollMillis = -1;
+    private int unboundedPollSize = MIN_UNBOUNDED_POLL_SIZE;
+
     public MultiThreadAgent(AgentConfig config, AgentId agentId,
-            TaskServerApi taskServer, OperatorManager runner)
+            TaskServerApi taskServer, OperatorManager runner, MetricsRegistry metrics)
     {
         this.agentId = agentId;
         this.config = config;
@@ -35,16 +75,32 @@ public class MultiThreadAgent
             .build();
         if (config.getMaxThreads() > 0) {
             this.executor = (ThreadPoolExecutor) Executors.newFixedThreadPool(config.getMaxThreads(), threadFactory);
+            this.maxThreads = config.getMaxThreads();
         }
         else {
             this.executor = (ThreadPoolExecutor) Executors.newCachedThreadPool(threadFactory);
+            this.maxThreads = 0;
         }
+
+        metrics.gauge("digdag_agent_threads_active", "Number of task threads running a task",
+                () -> executor.getActiveCount());
+        metrics.gauge("digdag_agent_threads", "Number of task threads in the pool",
+                () -> executor.getPoolSize());
+        if (config.getMaxThreads() > 0) {
+            metrics.gauge("digdag_agent_threads_max", "Maximum number of task threads",
+                    () -> executor.getMaximumPoolSize());
+        }
+        metrics.gauge("digdag_agent_prefetched_tasks", "Number of tasks locked but not started yet",
+                () -> prefetchedTasks.size());
     }
 
     public void shutdown()
     {
         stop = true;
         taskServer.interruptLocalWait();
+        synchronized (slotNotice) {
+            slotNotice.notifyAll();
+        }
         executor.shutdown();
     }
 
@@ -53,27 +109,181 @@ public class MultiThreadAgent
     {
         while (!stop) {
             try {
-                int max = Math.min(executor.getMaximumPoolSize() - executor.getActiveCount(), 10);
-                if (max > 0) {
-                    List<TaskRequest> reqs = taskServer.lockSharedAgentTasks(max, agentId, config.getLockRetentionTime(), 1000);
-                    for (TaskRequest req : reqs) {
-                        executor.submit(() -> {
-                            try {
-                                runner.run(req);
-                            }
-                            catch (Throwable t) {
-                                logger.error("Uncaught exception. Task heartbeat for at-least-once task execution is not implemented yet.", t);
-                            }
-                        });
+                startPrefetchedTasks();
+
+                int freeSlots = getFreeSlots();
+                int pollSize = getPollSize(freeSlots);
+                if (pollSize <= 0) {
+                    waitForFreeSlot();
+                    continue;
+                }
+
+                // sleep in the queue only if there're free threads. Otherwise,
+                // this thread needs to wake up when a running task finishes.
+                long maxSleepMillis = freeSlots > 0 ? MAX_WAIT_MILLIS : -1;
+                long startNanos = System.nanoTime();
+                List<TaskRequest> reqs = taskServer.lockSharedAgentTasks(pollSize, agentId, config.getLockRetentionTime(), maxSleepMillis);
+                if (reqs.isEmpty()) {
+                    unboundedPollSize = MIN_UNBOUNDED_POLL_SIZE;
+                    if (freeSlots <= 0) {
+                        waitForFreeSlot();
                     }
+                    continue;
                 }
-                else {
-                    Thread.sleep(500);
+
+                averagePollMillis = movingAverage(averagePollMillis,
+                        TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos));
+                if (maxThreads <= 0 && reqs.size() >= pollSize) {
+                    unboundedPollSize = Math.min(unboundedPollSize * 2, MAX_UNBOUNDED_POLL_SIZE);
+                }
+
+                for (TaskRequest req : reqs) {
+                    if (!trySubmit(req)) {
+                        runner.addPrefetchedTask(req);
+                        prefetchedTasks.add(req);
+                    }
                 }
             }
+            catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                break;
+            }
             catch (Throwable t) {
                 logger.error("Uncaught exception. Ignoring.", t);
             }
         }
+
+        releasePrefetchedTasks();
+    }
+
+    private int getFreeSlots()
+    {
+        if (maxThreads <= 0) {
+            return Integer.MAX_VALUE;
+        }
+        synchronized (slotNotice) {
+            return maxThreads - runningTasks;
+        }
+    }
+
+    private int getPollSize(int freeSlots)
+    {
+        if (maxThreads <= 0) {
+            // tasks start as soon as they're locked. prefetching doesn't help.
+            return unboundedPollSize;
+        }
+        return Math.max(freeSlots, 0) + Math.max(getPrefetchTarget() - prefetchedTasks.size(), 0);
+    }
+
+    // Number of tasks to lock in advance. It's the number of tasks expected to
+    // finish while this agent polls the queue once, so that threads freed by
+    // them don't have to wait for the next poll.
+    private int getPrefetchTarget()
+    {
+        int max = config.getPrefetchMaxTasks();
+        if (max <= 0 || averagePollMillis < 0) {
+            return 0;
+        }
+        double running;
+        double taskMillis;
+        synchronized (slotNotice) {
+            if (averageTaskMillis < 0) {
+                return 0;
+            }
+            running = runningTasks;
+            taskMillis = averageTaskMillis;
+        }
+        double expected = running * Math.max(averagePollMillis, 1) / Math.max(taskMillis, 1);
+        return (int) Math.min(Math.ceil(expected), max);
+    }
+
+    private void startPrefetchedTasks()
+    {
+        while (!prefetchedTasks.isEmpty() && getFreeSlots() > 0) {
+            TaskRequest req = prefetchedTasks.remove();
+            if (!runner.removePrefetchedTask(req)) {
+                logger.warn("Lock of task {} is lost before starting it. The task will be executed by another agent.", req.getTaskName());
+                continue;
+            }
+            if (!trySubmit(req)) {
+                // executor is shut down
+                runner.addPrefetchedTask(req);
+                prefetchedTasks.add(req);
+                return;
+            }
+        }
+    }
+
+    private boolean trySubmit(TaskRequest req)
+    {
+        synchronized (slotNotice) {
+            if (maxThreads > 0 && runningTasks >= maxThreads) {
+                return false;
+            }
+            runningTasks++;
+        }
+        try {
+            executor.submit(() -> {
+                long startNanos = System.nanoTime();
+                try {
+                    runner.run(req);
+                }
+                catch (Throwable t) {
+                    logger.error("Uncaught exception. Task heartbeat for at-least-once task execution is not implemented yet.", t);
+                }
+                finally {
+                    taskFinished(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos));
+                }
+            });
+            return true;
+        }
+        catch (RejectedExecutionException ex) {
+            synchronized (slotNotice) {
+                runningTasks--;
+            }
+            return false;
+        }
+    }
+
+    private void taskFinished(long elapsedMillis)
+    {
+        synchronized (slotNotice) {
+            runningTasks--;
+            averageTaskMillis = movingAverage(averageTaskMillis, elapsedMillis);
+            slotNotice.notifyAll();
+        }
+    }
+
+    private void waitForFreeSlot()
+        throws InterruptedException
+    {
+        synchronized (slotNotice) {
+            if (!stop && getFreeSlots() <= 0) {
+                slotNotice.wait(MAX_WAIT_MILLIS);
+            }
+        }
+    }
+
+    // puts prefetched tasks back to the queue so that other agents can run them
+    // without waiting for expiration of the locks.
+    private void releasePrefetchedTasks()
+    {
+        while (!prefetchedTasks.isEmpty()) {
+            TaskRequest req = prefetchedTasks.remove();
+            try {
+                runner.releasePrefetchedTask(req);
+            }
+            catch (Throwable t) {
+                logger.error("Failed to release a prefetched task {}. The task will be retried after expiration of the lock.", req.getTaskName(), t);
+            }
+        }
+    }
+
+    private static double movingAverage(double average, long sample)
+    {
+        if (average < 0) {
+            return sample;
+        }
+        return average * (1 - AVERAGE_WEIGHT) + sample * AVERAGE_WEIGHT;
     }
 }
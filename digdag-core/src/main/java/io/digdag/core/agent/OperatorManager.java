@@ -8,7 +8,9 @@ import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.stream.Collectors;
+import java.util.stream.Stream;
 import java.io.File;
 import java.io.IOException;
 import java.nio.file.Path;
@@ -30,6 +32,7 @@ import io.digdag.core.repository.WorkflowDefinition;
 import io.digdag.core.log.TaskLogger;
 import io.digdag.core.log.TaskContextLogging;
 import io.digdag.core.log.LogLevel;
+import io.digdag.core.metrics.MetricsRegistry;
 import io.digdag.spi.*;
 import static io.digdag.spi.TaskExecutionException.buildExceptionErrorConfig;
 
@@ -47,13 +50,23 @@ public class OperatorManager
     private final OperatorRegistry registry;
 
     private final ScheduledExecutorService heartbeatScheduler;
+    private final MetricsRegistry.Counter heartbeatFailures;
+    private final MetricsRegistry.Counter lostLocks;
     private final ConcurrentHashMap<Long, TaskRequest> runningTaskMap = new ConcurrentHashMap<>();  // {taskId => TaskRequest}
+    private final ConcurrentHashMap<Long, TaskRequest> prefetchedTaskMap = new ConcurrentHashMap<>();  // {taskId => TaskRequest}
+
+    private final int maxResidentPollingTasks;
+    private final AtomicInteger residentPollingTasks = new AtomicInteger(0);
+    private final Set<String> lostLockIds = ConcurrentHashMap.newKeySet();
+    private final Object residentPollingWait = new Object();
+    private volatile boolean shuttingDown = false;
 
     @Inject
     public OperatorManager(AgentConfig agentConfig, AgentId agentId,
             TaskCallbackApi callback, WorkspaceManager workspaceManager,
             WorkflowCompiler compiler, ConfigFactory cf,
-            ConfigEvalEngine evalEngine, OperatorRegistry registry)
+            ConfigEvalEngine evalEngine, OperatorRegistry registry,
+            MetricsRegistry metrics)
     {
         this.agentConfig = agentConfig;
         this.agentId = agentId;
@@ -65,12 +78,24 @@ public class OperatorManager
 
         this.registry = registry;
 
+        // resident polling tasks occupy task threads. Leave half of the threads for other tasks.
+        if (agentConfig.getMaxThreads() > 0) {
+            this.maxResidentPollingTasks = Math.min(agentConfig.getResidentPollingMaxTasks(), agentConfig.getMaxThreads() / 2);
+        }
+        else {
+            this.maxResidentPollingTasks = agentConfig.getResidentPollingMaxTasks();
+        }
+
         this.heartbeatScheduler = Executors.newSingleThreadScheduledExecutor(
                 new ThreadFactoryBuilder()
                 .setDaemon(true)
                 .setNameFormat("heartbeat-%d")
                 .build()
                 );
+        this.heartbeatFailures = metrics.counter("digdag_agent_heartbeat_failures_total",
+                "Number of task heartbeats failed with an exception");
+        this.lostLocks = metrics.counter("digdag_agent_lost_locks_total",
+                "Number of task locks found lost at heartbeat");
     }
 
     @PostConstruct
@@ -84,10 +109,40 @@ public class OperatorManager
     @PreDestroy
     public void shutdown()
     {
+        // resident polling tasks go back to the queue so that another agent can take them
+        shuttingDown = true;
+        synchronized (residentPollingWait) {
+            residentPollingWait.notifyAll();
+        }
         heartbeatScheduler.shutdown();
         // TODO wait for shutdown completion?
     }
 
+    // MultiThreadAgent locks tasks before threads become available. Heartbeat
+    // keeps locks of these prefetched tasks until they start.
+    public void addPrefetchedTask(TaskRequest request)
+    {
+        prefetchedTaskMap.put(request.getTaskId(), request);
+    }
+
+    // Returns false if the lock is lost while the task is waiting. Caller must not
+    // run the task then because another agent may run it.
+    public boolean removePrefetchedTask(TaskRequest request)
+    {
+        prefetchedTaskMap.remove(request.getTaskId());
+        return !lostLockIds.remove(request.getLockId());
+    }
+
+    // Puts a prefetched task back to the queue without running it.
+    public void releasePrefetchedTask(TaskRequest request)
+    {
+        if (removePrefetchedTask(request)) {
+            callback.retryTask(request.getSiteId(),
+                    request.getTaskId(), request.getLockId(), agentId,
+                    0, request.getLastStateParams(), Optional.absent());
+        }
+    }
+
     public void run(TaskRequest request)
     {
         long taskId = request.getTaskId();
@@ -103,6 +158,7 @@ public class OperatorManager
                     }
                     finally {
                         runningTaskMap.remove(taskId);
+                        lostLockIds.remove(request.getLockId());
                     }
                 }
                 finally {
@@ -224,7 +280,12 @@ public class OperatorManager
         // re-get workdir from CheckedConfig
         String workdir = checkedConfig.get("_workdir", String.class, "");
 
-        TaskResult result = callExecutor(workspacePath.resolve(workdir), type, mergedRequest);
+        Optional<TaskResult> resultOrLockLost = callExecutorWithResidentPolling(workspacePath.resolve(workdir), type, mergedRequest);
+        if (!resultOrLockLost.isPresent()) {
+            logger.warn("Lock of task {} is lost while waiting for next polling. The task will be executed by another agent.", request.getTaskName());
+            return;
+        }
+        TaskResult result = resultOrLockLost.get();
 
         if (!checkedConfig.isAllUsed()) {
             List<String> usedKeys = checkedConfig.getUsedKeys();
@@ -250,6 +311,112 @@ public class OperatorManager
         }
     }
 
+    private enum ResidentPollingWait
+    {
+        POLL,
+        SHUTDOWN,
+        LOCK_LOST,
+    }
+
+    // Polling operators (td>, pg>, etc.) throw TaskExecutionException.ofNextPolling
+    // until their jobs finish. Going back to the queue for every polling repeats
+    // retryTask, enqueue, workspace extraction and config evaluation. Instead, this
+    // keeps the evaluated task and workspace on this agent and calls the operator
+    // again after the interval. The task still goes back to the queue as usual
+    // (RETRY_WAITING) when:
+    //   * interval is 0. Operators use it to save state params durably before
+    //     starting an external job (e.g. domain key of a td job).
+    //   * interval or total waiting time exceeds the limit, so that killing the
+    //     attempt takes effect within a reasonable time.
+    //   * the agent is shutting down.
+    // Returns absent if the lock of the task is lost during waiting.
+    private Optional<TaskResult> callExecutorWithResidentPolling(Path workspacePath, String type, TaskRequest mergedRequest)
+        throws TaskExecutionException
+    {
+        long residentDeadline = System.currentTimeMillis() + agentConfig.getResidentPollingMaxTime() * 1000L;
+        TaskRequest request = mergedRequest;
+        boolean resident = false;
+        try {
+            while (true) {
+                try {
+                    return Optional.of(callExecutor(workspacePath, type, request));
+                }
+                catch (TaskExecutionException ex) {
+                    if (!isResidentPollingApplicable(ex, residentDeadline)) {
+                        throw ex;
+                    }
+                    if (!resident) {
+                        if (residentPollingTasks.incrementAndGet() > maxResidentPollingTasks) {
+                            residentPollingTasks.decrementAndGet();
+                            throw ex;
+                        }
+                        resident = true;
+                    }
+
+                    int interval = ex.getRetryInterval().get();
+                    logger.debug("Waiting {} seconds for next polling", interval);
+                    switch (waitForNextPolling(request.getLockId(), interval)) {
+                    case POLL:
+                        break;
+                    case SHUTDOWN:
+                        throw ex;
+                    case LOCK_LOST:
+                    default:
+                        return Optional.absent();
+                    }
+
+                    request = TaskRequest.builder()
+                        .from(request)
+                        .lastStateParams(ex.getStateParams(cf).get())
+                        .build();
+                }
+            }
+        }
+        finally {
+            if (resident) {
+                residentPollingTasks.decrementAndGet();
+            }
+        }
+    }
+
+    private boolean isResidentPollingApplicable(TaskExecutionException ex, long residentDeadline)
+    {
+        if (!ex.getRetryInterval().isPresent() || ex.getError(cf).isPresent()) {
+            return false;
+        }
+        int interval = ex.getRetryInterval().get();
+        return !shuttingDown &&
+            interval > 0 &&
+            interval <= agentConfig.getResidentPollingMaxInterval() &&
+            System.currentTimeMillis() + interval * 1000L <= residentDeadline;
+    }
+
+    private ResidentPollingWait waitForNextPolling(String lockId, int interval)
+    {
+        long deadline = System.currentTimeMillis() + interval * 1000L;
+        synchronized (residentPollingWait) {
+            while (true) {
+                if (shuttingDown) {
+                    return ResidentPollingWait.SHUTDOWN;
+                }
+                if (lostLockIds.contains(lockId)) {
+                    return ResidentPollingWait.LOCK_LOST;
+                }
+                long remaining = deadline - System.currentTimeMillis();
+                if (remaining <= 0) {
+                    return ResidentPollingWait.POLL;
+                }
+                try {
+                    residentPollingWait.wait(remaining);
+                }
+                catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                    return ResidentPollingWait.SHUTDOWN;
+                }
+            }
+        }
+    }
+
     protected TaskResult callExecutor(Path workspacePath, String type, TaskRequest mergedRequest)
     {
         OperatorFactory factory = registry.get(mergedRequest ,type);
@@ -264,7 +431,9 @@ public class OperatorManager
     private void heartbeat()
     {
         try {
-            Map<Integer, List<String>> sites = runningTaskMap.values().stream()
+            Map<Integer, List<String>> sites = Stream.concat(
+                    runningTaskMap.values().stream(),
+                    prefetchedTaskMap.values().stream())
                 .collect(Collectors.groupingBy(
                             TaskRequest::getSiteId,
                             Collectors.mapping(TaskRequest::getLockId, Collectors.toList())
@@ -272,10 +441,18 @@ public class OperatorManager
             for (Map.Entry<Integer, List<String>> pair : sites.entrySet()) {
                 int siteId = pair.getKey();
                 List<String> lockIds = pair.getValue();
-                callback.taskHeartbeat(siteId, lockIds, agentId, agentConfig.getLockRetentionTime());
+                List<String> notFound = callback.taskHeartbeat(siteId, lockIds, agentId, agentConfig.getLockRetentionTime());
+                if (!notFound.isEmpty()) {
+                    lostLocks.inc(notFound.size());
+                    lostLockIds.addAll(notFound);
+                    synchronized (residentPollingWait) {
+                        residentPollingWait.notifyAll();
+                    }
+                }
             }
         }
         catch (Throwable t) {
+            heartbeatFailures.inc();
             logger.error("An uncaught exception is ignored. Heartbeat thread will be retried.", t);
         }
     }
@@ -16,7 +16,8 @@ public interface TaskCallbackApi
 {
     TaskLogger newTaskLogger(TaskRequest request);
 
-    void taskHeartbeat(int siteId,
+    // returns lock ids that are not held by the agent any more
+    List<String> taskHeartbeat(int siteId,
             List<String> lockedIds, AgentId agentId, int lockSeconds);
 
     Optional<StorageObject> openArchive(TaskRequest request)
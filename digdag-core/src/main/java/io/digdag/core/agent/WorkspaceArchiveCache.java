@@ -0,0 +1,288 @@
+package io.digdag.core.agent;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import io.digdag.core.TempFileManager;
+import io.digdag.core.metrics.MetricsRegistry;
+
+/**
+ * On-disk cache of extracted project archives keyed by revision.
+ *
+ * A task gets its own workspace built from a cached tree by copying files,
+ * or by creating hard links if linkFiles is set. Hard links are much cheaper
+ * but a task that modifies a file in place also modifies the cached file,
+ * so they're used only if tasks are known to replace files instead of
+ * modifying them.
+ *
+ * Entries are evicted in least-recently-used order when total size of
+ * extracted files exceeds maxSize. An entry used by a running task is
+ * evicted after the task finishes copying it.
+ */
+class WorkspaceArchiveCache
+{
+    private static final Logger logger = LoggerFactory.getLogger(WorkspaceArchiveCache.class);
+
+    interface Extractor
+    {
+        // extracts an archive into the directory and returns size of the archive
+        long extract(Path dir) throws IOException;
+    }
+
+    private static class Entry
+    {
+        private final Path dir;
+        private final long size;
+        private final long archiveSize;
+        private int refCount = 0;
+
+        Entry(Path dir, long size, long archiveSize)
+        {
+            this.dir = dir;
+            this.size = size;
+            this.archiveSize = archiveSize;
+        }
+    }
+
+    private final Path cacheDir;
+    private final long maxSize;
+    private final boolean linkFiles;
+
+    // access-ordered to evict least recently used entries first
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private final Map<String, CompletableFuture<Entry>> loadings = new HashMap<>();
+    private long totalSize = 0;
+
+    private final MetricsRegistry.Counter hitCount;
+    private final MetricsRegistry.Counter missCount;
+    private final MetricsRegistry.Counter savedBytes;
+
+    WorkspaceArchiveCache(Path cacheDir, long maxSize, boolean linkFiles, MetricsRegistry metrics)
+    {
+        this.cacheDir = cacheDir;
+        this.maxSize = maxSize;
+        this.linkFiles = linkFiles;
+        this.hitCount = metrics.counter("digdag_agent_workspace_cache_hits_total",
+                "Number of workspaces built from cached archives");
+        this.missCount = metrics.counter("digdag_agent_workspace_cache_misses_total",
+                "Number of archives extracted into the workspace cache");
+        this.savedBytes = metrics.counter("digdag_agent_workspace_cache_saved_bytes_total",
+                "Total size of archives that didn't have to be downloaded and extracted");
+        metrics.gauge("digdag_agent_workspace_cache_bytes",
+                "Total size of extracted files in the workspace cache",
+                () -> getTotalSize());
+    }
+
+    void copyTo(String key, Path dest, Extractor extractor)
+        throws IOException
+    {
+        Entry entry = acquire(key, extractor);
+        try {
+            copyTree(entry.dir, dest);
+        }
+        finally {
+            release(entry);
+        }
+    }
+
+    long getHitCount()
+    {
+        return hitCount.get();
+    }
+
+    long getMissCount()
+    {
+        return missCount.get();
+    }
+
+    // total size of archives that didn't have to be downloaded and extracted
+    long getSavedBytes()
+    {
+        return savedBytes.get();
+    }
+
+    synchronized long getTotalSize()
+    {
+        return totalSize;
+    }
+
+    private Entry acquire(String key, Extractor extractor)
+        throws IOException
+    {
+        while (true) {
+            CompletableFuture<Entry> loading;
+            boolean loader = false;
+            synchronized (this) {
+                Entry entry = entries.get(key);
+                if (entry != null) {
+                    entry.refCount++;
+                    hitCount.inc();
+                    savedBytes.inc(entry.archiveSize);
+                    return entry;
+                }
+                loading = loadings.get(key);
+                if (loading == null) {
+                    loading = new CompletableFuture<>();
+                    loadings.put(key, loading);
+                    missCount.inc();
+                    loader = true;
+                }
+            }
+
+            if (loader) {
+                return load(key, extractor, loading);
+            }
+
+            // another task is extracting the same archive. wait for it and retry.
+            // if it failed, this task will try to extract it by itself.
+            try {
+                loading.get();
+            }
+            catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException();
+            }
+            catch (ExecutionException ex) {
+                // retry
+            }
+        }
+    }
+
+    private Entry load(String key, Extractor extractor, CompletableFuture<Entry> loading)
+        throws IOException
+    {
+        Path dir = null;
+        try {
+            dir = Files.createTempDirectory(cacheDir, "archive_");
+            long archiveSize = extractor.extract(dir);
+            Entry entry = new Entry(dir, sizeOf(dir), archiveSize);
+            List<Entry> evicted;
+            synchronized (this) {
+                entry.refCount++;
+                entries.put(key, entry);
+                loadings.remove(key);
+                totalSize += entry.size;
+                evicted = collectEvictions();
+            }
+            deleteEntries(evicted);
+            loading.complete(entry);
+            return entry;
+        }
+        catch (IOException | RuntimeException ex) {
+            if (dir != null) {
+                TempFileManager.deleteFilesIfExistsRecursively(dir);
+            }
+            synchronized (this) {
+                loadings.remove(key);
+            }
+            loading.completeExceptionally(ex);
+            throw ex;
+        }
+    }
+
+    private void release(Entry entry)
+    {
+        List<Entry> evicted;
+        synchronized (this) {
+            entry.refCount--;
+            evicted = collectEvictions();
+        }
+        deleteEntries(evicted);
+    }
+
+    // must be called with the lock of this
+    private List<Entry> collectEvictions()
+    {
+        List<Entry> evicted = new ArrayList<>();
+        Iterator<Entry> ite = entries.values().iterator();
+        while (totalSize > maxSize && ite.hasNext()) {
+            Entry entry = ite.next();
+            if (entry.refCount == 0) {
+                ite.remove();
+                totalSize -= entry.size;
+                evicted.add(entry);
+            }
+        }
+        return evicted;
+    }
+
+    private void deleteEntries(List<Entry> evicted)
+    {
+        for (Entry entry : evicted) {
+            logger.debug("Evicting cached workspace archive {}", entry.dir);
+            TempFileManager.deleteFilesIfExistsRecursively(entry.dir);
+        }
+    }
+
+    private static long sizeOf(Path dir)
+        throws IOException
+    {
+        long[] size = new long[] {0};
+        Files.walkFileTree(dir, new SimpleFileVisitor<Path>()
+        {
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs)
+            {
+                size[0] += attrs.size();
+                return FileVisitResult.CONTINUE;
+            }
+        });
+        return size[0];
+    }
+
+    private void copyTree(Path source, Path dest)
+        throws IOException
+    {
+        // permissions of directories aren't copied on a file system without
+        // posix attributes such as Windows
+        boolean posix = source.getFileSystem().supportedFileAttributeViews().contains("posix") &&
+            dest.getFileSystem().supportedFileAttributeViews().contains("posix");
+        Files.walkFileTree(source, new SimpleFileVisitor<Path>()
+        {
+            @Override
+            public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs)
+                throws IOException
+            {
+                Path target = dest.resolve(source.relativize(dir));
+                Files.createDirectories(target);
+                if (posix) {
+                    Files.setPosixFilePermissions(target, Files.getPosixFilePermissions(dir));
+                }
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs)
+                throws IOException
+            {
+                Path target = dest.resolve(source.relativize(file));
+                if (attrs.isSymbolicLink()) {
+                    Files.createSymbolicLink(target, Files.readSymbolicLink(file));
+                }
+                else if (linkFiles) {
+                    Files.createLink(target, file);
+                }
+                else {
+                    Files.copy(file, target, StandardCopyOption.COPY_ATTRIBUTES, LinkOption.NOFOLLOW_LINKS);
+                }
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+}
@@ -8,6 +8,7 @@ import java.sql.ResultSet;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.fasterxml.jackson.dataformat.smile.SmileFactory;
 import com.google.common.base.*;
 import com.google.common.collect.*;
 import com.google.inject.Inject;
@@ -20,13 +21,27 @@ import io.digdag.client.config.ConfigFactory;
 public class ConfigMapper
 {
     private final ObjectMapper jsonTreeMapper;
+    private final ObjectMapper smileTreeMapper;
     private final ConfigFactory cf;
+    private final String format;  // DatabaseConfig.getConfigFormat
 
     @Inject
+    public ConfigMapper(ConfigFactory cf, DatabaseConfig config)
+    {
+        this(cf, config.getConfigFormat());
+    }
+
     public ConfigMapper(ConfigFactory cf)
+    {
+        this(cf, "text");
+    }
+
+    public ConfigMapper(ConfigFactory cf, String format)
     {
         this.jsonTreeMapper = new ObjectMapper();
+        this.smileTreeMapper = new ObjectMapper(new SmileFactory());
         this.cf = cf;
+        this.format = format;
     }
 
     public ConfigArgumentFactory getArgumentFactory()
@@ -37,28 +52,45 @@ public class ConfigMapper
     public Optional<Config> fromResultSet(ResultSet rs, String column)
             throws SQLException
     {
-        String text = rs.getString(column);
-        if (rs.wasNull()) {
-            return Optional.absent();
+        if (format.equals("smile")) {
+            byte[] data = rs.getBytes(column);
+            if (rs.wasNull()) {
+                return Optional.absent();
+            }
+            return Optional.of(fromBinary(data));
         }
         else {
-            return Optional.of(fromText(text));
+            return fromTextColumn(rs, column);
         }
     }
 
     public Config fromResultSetOrEmpty(ResultSet rs, String column)
             throws SQLException
+    {
+        return fromResultSet(rs, column).or(() -> cf.create());
+    }
+
+    // for columns stored in JSON text regardless of the format, such as
+    // workflow_configs.config which is looked up by digest of the text
+    public Config fromTextColumnOrEmpty(ResultSet rs, String column)
+            throws SQLException
+    {
+        return fromTextColumn(rs, column).or(() -> cf.create());
+    }
+
+    private Optional<Config> fromTextColumn(ResultSet rs, String column)
+            throws SQLException
     {
         String text = rs.getString(column);
         if (rs.wasNull()) {
-            return cf.create();
+            return Optional.absent();
         }
         else {
-            return fromText(text);
+            return Optional.of(fromText(text));
         }
     }
 
-    private Config fromText(String text)
+    public Config fromText(String text)
     {
         try {
             JsonNode node = jsonTreeMapper.readTree(text);
@@ -80,6 +112,33 @@ public class ConfigMapper
         }
     }
 
+    public Config fromBinary(byte[] data)
+    {
+        try {
+            JsonNode node = smileTreeMapper.readTree(data);
+            Preconditions.checkState(node instanceof ObjectNode, "Stored Config must be an object");
+            return cf.create((ObjectNode) node);
+        }
+        catch (IOException ex) {
+            throw Throwables.propagate(ex);
+        }
+    }
+
+    public byte[] toBinary(Config config)
+    {
+        try {
+            return smileTreeMapper.writeValueAsBytes(config);
+        }
+        catch (IOException ex) {
+            throw Throwables.propagate(ex);
+        }
+    }
+
+    public Argument toArgument(Config config)
+    {
+        return new ConfigArgument(config);
+    }
+
     public String toBinding(Config config)
     {
         if (config == null) {
@@ -126,12 +185,38 @@ public class ConfigMapper
         public void apply(int position, PreparedStatement statement, StatementContext ctx)
                 throws SQLException
         {
-            String text = toBinding(config);
-            if (text == null) {
-                statement.setNull(position, Types.CLOB);
-            }
-            else {
-                statement.setString(position, text);
+            switch (format) {
+            case "smile":
+                if (config == null || config.isEmpty()) {
+                    statement.setNull(position, Types.BLOB);
+                }
+                else {
+                    statement.setBytes(position, toBinary(config));
+                }
+                break;
+            case "jsonb":
+                {
+                    // Types.OTHER lets PostgreSQL cast the text to the type of the column
+                    String text = toBinding(config);
+                    if (text == null) {
+                        statement.setNull(position, Types.OTHER);
+                    }
+                    else {
+                        statement.setObject(position, text, Types.OTHER);
+                    }
+                }
+                break;
+            default:
+                {
+                    String text = toBinding(config);
+                    if (text == null) {
+                        statement.setNull(position, Types.CLOB);
+                    }
+                    else {
+                        statement.setString(position, text);
+                    }
+                }
+                break;
             }
         }
 
@@ -31,6 +31,16 @@ public interface DatabaseConfig
 
     boolean getAutoMigrate();
 
+    // Storage format of Config columns: "text" (JSON text), "jsonb"
+    // (PostgreSQL only. Columns that keep task order stay text) or "smile"
+    // (binary JSON. H2 only). Columns are converted by DatabaseMigrator
+    // when this changes.
+    @Value.Default
+    default String getConfigFormat()
+    {
+        return "text";
+    }
+
     ////
     // HikariCP config params
     //
@@ -108,6 +118,25 @@ public interface DatabaseConfig
         builder.autoMigrate(
                 config.get("database.migrate", boolean.class, true));
 
+        String configFormat = config.get("database.configFormat", String.class, "text");
+        switch (configFormat) {
+        case "text":
+            break;
+        case "jsonb":
+            if (!type.equals("postgresql")) {
+                throw new ConfigException("database.configFormat=jsonb requires database.type=postgresql");
+            }
+            break;
+        case "smile":
+            if (type.equals("postgresql")) {
+                throw new ConfigException("database.configFormat=smile is not supported by database.type=postgresql. Use jsonb instead");
+            }
+            break;
+        default:
+            throw new ConfigException("Unknown database.configFormat: " + configFormat);
+        }
+        builder.configFormat(configFormat);
+
         builder.expireLockInterval(
                 config.get("database.queue.expireLockInterval", int.class, 10));
 
@@ -154,6 +183,8 @@ public interface DatabaseConfig
 
         config.set("database.migrate", databaseConfig.getAutoMigrate());
 
+        config.set("database.configFormat", databaseConfig.getConfigFormat());
+
         config.set("database.queue.expireLockInterval", databaseConfig.getExpireLockInterval());
 
         return config;
@@ -234,6 +265,7 @@ public interface DatabaseConfig
             if (rc.get().getSsl()) {
                 props.setProperty("ssl", "true");
                 props.setProperty("sslfactory", "org.postgresql.ssl.NonValidatingFactory");  // disable server certificate validation
+                props.setProperty("sslmode", "require");  // PgJDBC 42 defaults to verify-full, which verifies host name
             }
         }
 
@@ -1,28 +1,81 @@
 package io.digdag.core.database;
 
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.dataformat.smile.SmileFactory;
+import com.google.common.base.Throwables;
+import com.google.common.io.BaseEncoding;
+import com.google.common.collect.ImmutableListMultimap;
+import com.google.common.collect.ImmutableSetMultimap;
+import com.google.common.collect.ListMultimap;
+import com.google.common.collect.SetMultimap;
 import com.google.inject.Inject;
 import org.skife.jdbi.v2.DBI;
 import org.skife.jdbi.v2.Handle;
+import org.skife.jdbi.v2.PreparedBatch;
 import org.skife.jdbi.v2.exceptions.StatementException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
+import java.io.IOException;
+import java.util.AbstractMap;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
 
 public class DatabaseMigrator
 {
+    private static final Logger logger = LoggerFactory.getLogger(DatabaseMigrator.class);
+
+    // Columns written by ConfigMapper.ConfigArgument. workflow_configs.config
+    // is not included because it's looked up by digest of the JSON text.
+    private static final ListMultimap<String, String> CONFIG_COLUMNS = ImmutableListMultimap.<String, String>builder()
+        .putAll("revisions", "default_params", "user_info")
+        .putAll("session_attempts", "params")
+        .putAll("session_monitors", "config")
+        .putAll("queue_settings", "config")
+        .putAll("tasks", "state_params")
+        .putAll("task_details", "local_config", "export_config")
+        .putAll("task_state_details", "subtask_config", "export_params", "store_params", "report", "error")
+        .putAll("resuming_tasks", "local_config", "export_config", "subtask_config", "export_params", "store_params", "report", "error")
+        .build();
+
+    // Columns that keep definitions of tasks such as _error, _check, sla
+    // and generated subtasks. Their key order is the order of the tasks. jsonb
+    // doesn't preserve key order, so they stay text with configFormat=jsonb.
+    // Smile preserves key order.
+    private static final SetMultimap<String, String> ORDERED_CONFIG_COLUMNS = ImmutableSetMultimap.<String, String>builder()
+        .putAll("session_monitors", "config")
+        .putAll("task_details", "local_config", "export_config")
+        .putAll("task_state_details", "subtask_config")
+        .putAll("resuming_tasks", "local_config", "export_config", "subtask_config")
+        .build();
+
+    private static final int CONVERT_BATCH_SIZE = 1000;
+
+    private static final ObjectMapper JSON_MAPPER = new ObjectMapper();
+    private static final ObjectMapper SMILE_MAPPER = new ObjectMapper(new SmileFactory());
+
     private final DBI dbi;
     private final String databaseType;
+    private final String configFormat;
 
     @Inject
     public DatabaseMigrator(DBI dbi, DatabaseConfig config)
     {
-        this(dbi, config.getType());
+        this(dbi, config.getType(), config.getConfigFormat());
     }
 
     public DatabaseMigrator(DBI dbi, String databaseType)
+    {
+        this(dbi, databaseType, "text");
+    }
+
+    public DatabaseMigrator(DBI dbi, String databaseType, String configFormat)
     {
         this.dbi = dbi;
         this.databaseType = databaseType;
+        this.configFormat = configFormat;
     }
 
     public static String getDriverClassName(String type)
@@ -60,6 +113,168 @@ public class DatabaseMigrator
                 }
             }
         }
+        migrateConfigFormat();
+    }
+
+    // Converts Config columns to the type of database.configFormat. Unlike
+    // the versioned migrations, this runs every time because the format
+    // can be changed by configuration.
+    private void migrateConfigFormat()
+    {
+        for (Map.Entry<String, String> pair : CONFIG_COLUMNS.entries()) {
+            String table = pair.getKey();
+            String column = pair.getValue();
+            try (Handle handle = dbi.open()) {
+                if (isPostgres()) {
+                    migratePostgresConfigColumn(handle, table, column);
+                }
+                else {
+                    migrateH2ConfigColumn(handle, table, column);
+                }
+            }
+        }
+    }
+
+    private void migratePostgresConfigColumn(Handle handle, String table, String column)
+    {
+        String dataType = handle.createQuery(
+                "select data_type from information_schema.columns" +
+                " where table_schema = current_schema()" +
+                " and table_name = :table and column_name = :column")
+            .bind("table", table)
+            .bind("column", column)
+            .mapTo(String.class)
+            .first();
+        boolean isJsonb = "jsonb".equals(dataType);
+        boolean toJsonb = configFormat.equals("jsonb") && !ORDERED_CONFIG_COLUMNS.containsEntry(table, column);
+        if (toJsonb && !isJsonb) {
+            logger.info("Converting {}.{} to jsonb", table, column);
+            handle.update("alter table " + table + " alter column " + column + " type jsonb using " + column + "::jsonb");
+        }
+        else if (!toJsonb && isJsonb) {
+            logger.info("Converting {}.{} to text", table, column);
+            handle.update("alter table " + table + " alter column " + column + " type text using " + column + "::text");
+        }
+    }
+
+    private void migrateH2ConfigColumn(Handle handle, String table, String column)
+    {
+        // type_name, is_nullable, column_default
+        String[] columnInfo = handle.createQuery(
+                "select type_name, is_nullable, column_default from information_schema.columns" +
+                " where table_schema = schema()" +
+                " and table_name = :table and column_name = :column")
+            .bind("table", table.toUpperCase())
+            .bind("column", column.toUpperCase())
+            .map((index, r, ctx) -> new String[] { r.getString(1), r.getString(2), r.getString(3) })
+            .first();
+        boolean isBinary = "BLOB".equals(columnInfo[0]);
+        boolean toBinary = configFormat.equals("smile");
+
+        // H2 can't convert between JSON text and Smile in SQL, but it converts
+        // hex strings in a clob to bytes when it changes the type to blob, and
+        // bytes to hex strings for the other way. Values are re-encoded in one
+        // transaction, and the type is changed by one statement. A clob that
+        // holds hex strings means that a conversion stopped between them.
+        if (isBinary) {
+            if (!toBinary) {
+                logger.info("Converting {}.{} to text", table, column);
+                alterH2ColumnType(handle, table, column, "clob", columnInfo);
+                reencodeH2ConfigColumn(handle, table, column, false);
+            }
+        }
+        else {
+            boolean isHex = isH2ConfigColumnHexEncoded(handle, table, column);
+            if (toBinary) {
+                logger.info("Converting {}.{} to smile", table, column);
+                if (!isHex) {
+                    reencodeH2ConfigColumn(handle, table, column, true);
+                }
+                alterH2ColumnType(handle, table, column, "blob", columnInfo);
+            }
+            else if (isHex) {
+                logger.info("Converting {}.{} to text", table, column);
+                reencodeH2ConfigColumn(handle, table, column, false);
+            }
+        }
+    }
+
+    private static boolean isH2ConfigColumnHexEncoded(Handle handle, String table, String column)
+    {
+        // all values are in the same encoding because they're re-encoded in one transaction
+        String value = handle.createQuery(
+                "select " + column + " from " + table +
+                " where " + column + " is not null limit 1")
+            .mapTo(String.class)
+            .first();
+        return value != null && !value.startsWith("{");
+    }
+
+    private static void alterH2ColumnType(Handle handle, String table, String column, String type, String[] columnInfo)
+    {
+        // "alter column" replaces the whole column definition. Keeps default and nullability.
+        StringBuilder sb = new StringBuilder();
+        sb.append("alter table ").append(table).append(" alter column ").append(column).append(" ").append(type);
+        if (columnInfo[2] != null) {
+            sb.append(" default ").append(columnInfo[2]);
+        }
+        if ("NO".equals(columnInfo[1])) {
+            sb.append(" not null");
+        }
+        handle.update(sb.toString());
+    }
+
+    // JSON text <-> hex string of Smile
+    private static void reencodeH2ConfigColumn(Handle handle, String table, String column, boolean toHex)
+    {
+        handle.inTransaction((h, session) -> {
+            long lastId = Long.MIN_VALUE;
+            while (true) {
+                List<Map.Entry<Long, String>> rows = h.createQuery(
+                        "select id, " + column + " from " + table +
+                        " where id > :lastId and " + column + " is not null" +
+                        " order by id limit " + CONVERT_BATCH_SIZE)
+                    .bind("lastId", lastId)
+                    .<Map.Entry<Long, String>>map((index, r, ctx) -> new AbstractMap.SimpleImmutableEntry<>(
+                                r.getLong("id"), r.getString(column)))
+                    .list();
+                if (rows.isEmpty()) {
+                    break;
+                }
+                PreparedBatch batch = h.prepareBatch(
+                        "update " + table + " set " + column + " = :value where id = :id");
+                for (Map.Entry<Long, String> row : rows) {
+                    batch.add()
+                        .bind("id", row.getKey())
+                        .bind("value", toHex ? jsonToSmileHex(row.getValue()) : smileHexToJson(row.getValue()));
+                    lastId = row.getKey();
+                }
+                batch.execute();
+            }
+            return true;
+        });
+    }
+
+    private static String jsonToSmileHex(String json)
+    {
+        try {
+            JsonNode node = JSON_MAPPER.readTree(json);
+            return BaseEncoding.base16().lowerCase().encode(SMILE_MAPPER.writeValueAsBytes(node));
+        }
+        catch (IOException ex) {
+            throw Throwables.propagate(ex);
+        }
+    }
+
+    private static String smileHexToJson(String hex)
+    {
+        try {
+            JsonNode node = SMILE_MAPPER.readTree(BaseEncoding.base16().decode(hex.toUpperCase()));
+            return JSON_MAPPER.writeValueAsString(node);
+        }
+        catch (IOException ex) {
+            throw Throwables.propagate(ex);
+        }
     }
 
     private boolean isPostgres()
@@ -406,7 +621,7 @@ public class DatabaseMigrator
             if (isPostgres()) {
                 // for findTasksByState(BLOCKED) at propagateAllBlockedToReady
                 // for findTasksByState(PLANNED) at propagateAllPlannedToDone
-                // for findTasksByState(READY) through findAllReadyTaskIds() at enqueueReadyTasks
+                // for findReadyTasks() at enqueueReadyTasks
                 handle.update("create index tasks_on_state_and_id on tasks (state, id) where state = 0 or state = 1 or state = 5");
             }
             else {
@@ -733,6 +948,84 @@ public class DatabaseMigrator
         }
     };
 
+    private final Migration MigrateAddTasksOnUpdatedAtIndex = new Migration() {
+        @Override
+        public String getVersion()
+        {
+            return "20160928123456";
+        }
+
+        @Override
+        public void migrate(Handle handle)
+        {
+            // for findRecentlyChangedTasks at WorkflowExecutor.IncrementalStatusPropagator
+            handle.update("create index tasks_on_updated_at_and_id on tasks (updated_at, id)");
+        }
+    };
+
+    private final Migration MigrateCreateTaskArchiveChunks = new Migration() {
+        @Override
+        public String getVersion()
+        {
+            return "20161005123456";
+        }
+
+        @Override
+        public void migrate(Handle handle)
+        {
+            // task_archive_chunks replaces task_archives. Tasks are stored
+            // in gzip-compressed json arrays of up to 1000 tasks ordered by id.
+            handle.update(
+                    new CreateTableBuilder("task_archive_chunks")
+                    .addLong("attempt_id", "not null references session_attempts (id)")
+                    .addLong("last_task_id", "not null")
+                    .addInt("task_count", "not null")
+                    .addLongBinary("tasks", "not null")
+                    .addTimestamp("created_at", "not null")
+                    .build());
+            handle.update("create unique index task_archive_chunks_on_attempt_id_and_last_task_id on task_archive_chunks (attempt_id, last_task_id)");
+        }
+    };
+
+    private final Migration MigrateAddTasksOnRunningStateIndex = new Migration() {
+        @Override
+        public String getVersion()
+        {
+            return "20161018123456";
+        }
+
+        @Override
+        public void migrate(Handle handle)
+        {
+            if (isPostgres()) {
+                // for countTasksByState(RUNNING) at metrics of WorkflowExecutor.
+                // Other states are covered by tasks_on_state_and_id.
+                handle.update("create index tasks_on_running_state on tasks (id) where state = 4");
+            }
+        }
+    };
+
+    private final Migration MigrateCreateAttemptTaskCounts = new Migration() {
+        @Override
+        public String getVersion()
+        {
+            return "20161018234567";
+        }
+
+        @Override
+        public void migrate(Handle handle)
+        {
+            // number of tasks of an attempt. This is a separate table instead of a
+            // column of session_attempts so that adding tasks doesn't lock the
+            // attempt, which is locked before its root task by session monitors.
+            handle.update(
+                    new CreateTableBuilder("attempt_task_counts")
+                    .addLongIdNoAutoIncrement("attempt_id", "references session_attempts (id)")
+                    .addLong("task_count", "not null")
+                    .build());
+        }
+    };
+
     private final Migration[] migrations = {
         MigrateCreateTables,
         MigrateSessionsOnProjectIdIndexToDesc,
@@ -740,5 +1033,9 @@ public class DatabaseMigrator
         MigrateMakeProjectsDeletable,
         MigrateAddUserInfoColumnToRevisions,
         MigrateQueueRearchitecture,
+        MigrateAddTasksOnUpdatedAtIndex,
+        MigrateCreateTaskArchiveChunks,
+        MigrateAddTasksOnRunningStateIndex,
+        MigrateCreateAttemptTaskCounts,
     };
 }
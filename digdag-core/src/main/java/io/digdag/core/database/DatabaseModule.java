@@ -8,6 +8,7 @@ import com.google.inject.Provider;
 import javax.sql.DataSource;
 import javax.annotation.PostConstruct;
 import io.digdag.core.queue.QueueSettingStoreManager;
+import io.digdag.core.queue.TaskSignalChannel;
 import io.digdag.core.repository.ProjectStoreManager;
 import io.digdag.core.schedule.ScheduleStoreManager;
 import io.digdag.core.session.SessionStoreManager;
@@ -32,6 +33,7 @@ public class DatabaseModule
         binder.bind(ScheduleStoreManager.class).to(DatabaseScheduleStoreManager.class).in(Scopes.SINGLETON);
         binder.bind(DatabaseTaskQueueConfig.class).in(Scopes.SINGLETON);
         binder.bind(DatabaseTaskQueueServer.class).in(Scopes.SINGLETON);
+        binder.bind(TaskSignalChannel.class).toProvider(TaskSignalChannelProvider.class).in(Scopes.SINGLETON);
     }
 
     public static class AutoMigrator
@@ -812,7 +812,7 @@ public class DatabaseProjectStoreManager
                 .revisionId(r.getInt("revision_id"))
                 .timeZone(ZoneId.of(r.getString("timezone")))
                 .name(r.getString("name"))
-                .config(cfm.fromResultSetOrEmpty(r, "config"))
+                .config(cfm.fromTextColumnOrEmpty(r, "config"))
                 .build();
         }
     }
@@ -842,7 +842,7 @@ public class DatabaseProjectStoreManager
                 .revisionId(r.getInt("revision_id"))
                 .timeZone(ZoneId.of(r.getString("timezone")))
                 .name(r.getString("name"))
-                .config(cfm.fromResultSetOrEmpty(r, "config"))
+                .config(cfm.fromTextColumnOrEmpty(r, "config"))
                 .project(
                         ImmutableStoredProject.builder()
                             .id(r.getInt("proj_id"))
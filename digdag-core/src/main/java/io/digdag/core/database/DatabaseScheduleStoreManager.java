@@ -1,9 +1,11 @@
 package io.digdag.core.database;
 
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
 import java.time.Instant;
 import java.time.ZoneId;
+import java.sql.DatabaseMetaData;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.util.stream.Stream;
@@ -38,6 +40,9 @@ public class DatabaseScheduleStoreManager
         extends BasicDatabaseStoreManager<DatabaseScheduleStoreManager.Dao>
         implements ScheduleStoreManager
 {
+    // SKIP LOCKED is available since PostgreSQL 9.5. null until checked.
+    private volatile Boolean skipLockedSupported = null;
+
     @Inject
     public DatabaseScheduleStoreManager(DBI dbi, ConfigMapper cfm, DatabaseConfig config)
     {
@@ -54,10 +59,24 @@ public class DatabaseScheduleStoreManager
     }
 
     @Override
-    public void lockReadySchedules(Instant currentTime, ScheduleAction func)
+    public int lockReadySchedules(Instant currentTime, int limit, ScheduleAction func)
     {
+        List<Integer> lockedIds = new ArrayList<>();
         List<RuntimeException> exceptions = transaction((handle, dao, ts) -> {
-            return dao.lockReadySchedules(currentTime.getEpochSecond(), 10)  // TODO 10 should be configurable?
+            List<Integer> schedIds = handle.createQuery(
+                    "select id from schedules" +
+                    " where next_run_time <= :currentTime" +
+                    " order by next_run_time" +
+                    " limit :limit" +
+                    lockReadySchedulesSql(handle)
+                )
+                .bind("currentTime", currentTime.getEpochSecond())
+                .bind("limit", limit)
+                .mapTo(Integer.class)
+                .list();
+            lockedIds.clear();
+            lockedIds.addAll(schedIds);
+            return schedIds
                 .stream()
                 .map(schedId -> {
                     // TODO JOIN + FOR UPDATE doesn't work with H2 database
@@ -81,6 +100,43 @@ public class DatabaseScheduleStoreManager
             }
             throw first;
         }
+
+        return lockedIds.size();
+    }
+
+    private String lockReadySchedulesSql(Handle handle)
+    {
+        if (isSkipLockedSupported(handle)) {
+            // skip schedules locked by other threads or servers so that they
+            // can fire different schedules concurrently without waiting.
+            return " for update skip locked";
+        }
+        else {
+            return " for update";
+        }
+    }
+
+    private boolean isSkipLockedSupported(Handle handle)
+    {
+        if (skipLockedSupported == null) {
+            switch (databaseType) {
+            case "postgresql":
+                try {
+                    DatabaseMetaData meta = handle.getConnection().getMetaData();
+                    int major = meta.getDatabaseMajorVersion();
+                    int minor = meta.getDatabaseMinorVersion();
+                    skipLockedSupported = major > 9 || (major == 9 && minor >= 5);
+                }
+                catch (SQLException ex) {
+                    throw Throwables.propagate(ex);
+                }
+                break;
+            default:
+                skipLockedSupported = false;
+                break;
+            }
+        }
+        return skipLockedSupported;
     }
 
     public <T> T lockScheduleById(long schedId, ScheduleLockAction<T> func)
@@ -192,12 +248,6 @@ public class DatabaseScheduleStoreManager
                 ")")
         StoredSchedule getScheduleById(@Bind("siteId") int siteId, @Bind("schedId") long schedId);
 
-        @SqlQuery("select id from schedules" +
-                " where next_run_time <= :currentTime" +
-                " limit :limit" +
-                " for update")
-        List<Integer> lockReadySchedules(@Bind("currentTime") long currentTime, @Bind("limit") int limit);
-
         @SqlQuery("select * from schedules" +
                 " where id = :id" +
                 " for update")
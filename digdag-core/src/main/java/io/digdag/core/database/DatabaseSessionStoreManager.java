@@ -52,6 +52,8 @@ import io.digdag.spi.TaskReport;
 import io.digdag.spi.TaskResult;
 import org.skife.jdbi.v2.DBI;
 import org.skife.jdbi.v2.Handle;
+import org.skife.jdbi.v2.PreparedBatch;
+import org.skife.jdbi.v2.ResultIterator;
 import org.skife.jdbi.v2.StatementContext;
 import org.skife.jdbi.v2.sqlobject.Bind;
 import org.skife.jdbi.v2.sqlobject.GetGeneratedKeys;
@@ -59,16 +61,25 @@ import org.skife.jdbi.v2.sqlobject.SqlQuery;
 import org.skife.jdbi.v2.sqlobject.SqlUpdate;
 import org.skife.jdbi.v2.tweak.ResultSetMapper;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.time.Instant;
 import java.time.ZoneId;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
 
 public class DatabaseSessionStoreManager
         extends BasicDatabaseStoreManager<DatabaseSessionStoreManager.Dao>
@@ -76,6 +87,9 @@ public class DatabaseSessionStoreManager
 {
     private static final String DEFAULT_ATTEMPT_NAME = "";
 
+    // number of tasks stored in a row of task_archive_chunks
+    private static final int TASK_ARCHIVE_CHUNK_SIZE = 1000;
+
     private final ObjectMapper mapper;
     private final ConfigFactory cf;
     private final ConfigMapper cfm;
@@ -227,9 +241,43 @@ public class DatabaseSessionStoreManager
     }
 
     @Override
-    public List<Long> findAllReadyTaskIds(int maxEntries)
+    public Map<TaskStateCode, Long> countTasksByState(List<TaskStateCode> states)
     {
-        return autoCommit((handle, dao) -> dao.findAllTaskIdsByState(TaskStateCode.READY.get(), maxEntries));
+        // counts each state separately so that every query uses a partial
+        // index of tasks_on_state_and_id or tasks_on_running_state instead
+        // of scanning the tasks table.
+        return autoCommit((handle, dao) -> {
+            Map<TaskStateCode, Long> counts = new HashMap<>();
+            for (TaskStateCode state : states) {
+                long count = handle.createQuery(
+                        "select count(*) from tasks" +
+                        " where state = " + state.get()
+                        )
+                    .mapTo(long.class)
+                    .first();
+                counts.put(state, count);
+            }
+            return counts;
+        });
+    }
+
+    @Override
+    public List<TaskAttemptSummary> findReadyTasks(long lastId, int limit)
+    {
+        return autoCommit((handle, dao) ->
+                handle.createQuery(
+                    "select id, attempt_id, state" +
+                    " from tasks" +
+                    " where state = " + TaskStateCode.READY_CODE +
+                    " and id > :lastId" +
+                    " order by id asc" +
+                    " limit :limit"
+                    )
+                .bind("lastId", lastId)
+                .bind("limit", limit)
+                .map(tasm)
+                .list()
+            );
     }
 
     @Override
@@ -249,7 +297,7 @@ public class DatabaseSessionStoreManager
     @Override
     public List<TaskStateSummary> findRecentlyChangedTasks(Instant updatedSince, long lastId)
     {
-        return autoCommit((handle, dao) -> dao.findRecentlyChangedTasks(updatedSince, lastId, 100));
+        return autoCommit((handle, dao) -> dao.findRecentlyChangedTasks(sqlTimestampOf(updatedSince), lastId, 100));
     }
 
     @Override
@@ -393,6 +441,25 @@ public class DatabaseSessionStoreManager
             );
     }
 
+    @Override
+    public long getTaskCountOfAttempt(long attemptId)
+    {
+        return autoCommit((handle, dao) -> {
+            Long count = dao.getAttemptTaskCount(attemptId);
+            if (count != null) {
+                return count;
+            }
+            // attempts started before attempt_task_counts was added
+            return handle.createQuery(
+                    "select count(*) from tasks" +
+                    " where attempt_id = :attemptId"
+                    )
+                .bind("attemptId", attemptId)
+                .mapTo(long.class)
+                .first();
+        });
+    }
+
     @Override
     public List<Config> getExportParams(List<Long> idList)
     {
@@ -471,16 +538,30 @@ public class DatabaseSessionStoreManager
         return builder.build();
     }
 
-    private String dumpTaskArchive(List<ArchivedTask> tasks)
+    private byte[] dumpTaskArchiveChunk(List<ArchivedTask> tasks)
     {
-        try {
-            return mapper.writeValueAsString(tasks);
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (OutputStream out = new GZIPOutputStream(bytes)) {
+            mapper.writeValue(out, tasks);
         }
         catch (IOException ex) {
             throw new RuntimeException(ex);
         }
+        return bytes.toByteArray();
+    }
+
+    @SuppressWarnings("unchecked")
+    private List<ArchivedTask> loadTaskArchiveChunk(byte[] data)
+    {
+        try (InputStream in = new GZIPInputStream(new ByteArrayInputStream(data))) {
+            return (List<ArchivedTask>) mapper.readValue(in, mapper.getTypeFactory().constructParametrizedType(List.class, List.class, ArchivedTask.class));
+        }
+        catch (IOException ex) {
+            throw new RuntimeException("Failed to load task archive", ex);
+        }
     }
 
+    // task_archives is written only by old versions. New versions write task_archive_chunks.
     @SuppressWarnings("unchecked")
     private List<ArchivedTask> loadTaskArchive(String data)
     {
@@ -492,6 +573,13 @@ public class DatabaseSessionStoreManager
         }
     }
 
+    private static java.sql.Timestamp sqlTimestampOf(Instant instant)
+    {
+        java.sql.Timestamp t = new java.sql.Timestamp(instant.getEpochSecond() * 1000);
+        t.setNanos(instant.getNano());
+        return t;
+    }
+
     private StoredTask getTaskById(Handle handle, long taskId)
         throws ResourceNotFoundException
     {
@@ -520,30 +608,69 @@ public class DatabaseSessionStoreManager
         @Override
         public int aggregateAndInsertTaskArchive(long attemptId)
         {
-            int count;
-            String archive;
-
-            {
-                List<ArchivedTask> tasks = handle.createQuery(
+            // Tasks are read using a cursor and written to task_archive_chunks every
+            // TASK_ARCHIVE_CHUNK_SIZE tasks so that memory usage doesn't depend on
+            // number of tasks of the attempt.
+            int count = 0;
+            List<ArchivedTask> chunk = new ArrayList<>();
+            try (ResultIterator<ArchivedTask> ite = handle.createQuery(
                         "select t.*, td.full_name, td.local_config, td.export_config, td.resuming_task_id, ts.subtask_config, ts.export_params, ts.store_params, ts.error, ts.report, " +
-                            "(select " + commaGroupConcat("upstream_id") + " from task_dependencies where downstream_id = t.id) as upstream_ids" +
+                            "null as upstream_ids" +
                         " from tasks t" +
-                        " join session_attempts sa on sa.id = t.attempt_id" +
                         " join task_details td on t.id = td.id" +
                         " join task_state_details ts on t.id = ts.id" +
                         " where t.attempt_id = :attemptId" +
                         " order by t.id"
                     )
                     .bind("attemptId", attemptId)
+                    .setFetchSize(TASK_ARCHIVE_CHUNK_SIZE)
                     .map(atm)
-                    .list();
-                archive = dumpTaskArchive(tasks);
-                count = tasks.size();
+                    .iterator()) {
+                while (ite.hasNext()) {
+                    chunk.add(ite.next());
+                    if (chunk.size() >= TASK_ARCHIVE_CHUNK_SIZE) {
+                        count += insertTaskArchiveChunk(attemptId, chunk);
+                        chunk.clear();
+                    }
+                }
+            }
+            if (!chunk.isEmpty()) {
+                count += insertTaskArchiveChunk(attemptId, chunk);
             }
+            return count;
+        }
 
-            dao.insertTaskArchive(attemptId, archive);
+        private int insertTaskArchiveChunk(long attemptId, List<ArchivedTask> tasks)
+        {
+            long firstTaskId = tasks.get(0).getId();
+            long lastTaskId = tasks.get(tasks.size() - 1).getId();
 
-            return count;
+            // upstream ids of the tasks in this chunk with one query instead of a subquery for each task
+            List<Map.Entry<Long, Long>> dependencies = handle.createQuery(
+                    "select td.downstream_id, td.upstream_id" +
+                    " from task_dependencies td" +
+                    " join tasks t on t.id = td.downstream_id" +
+                    " where t.attempt_id = :attemptId" +
+                    " and td.downstream_id between :firstTaskId and :lastTaskId" +
+                    " order by td.id"
+                )
+                .bind("attemptId", attemptId)
+                .bind("firstTaskId", firstTaskId)
+                .bind("lastTaskId", lastTaskId)
+                .map((index, r, ctx) -> (Map.Entry<Long, Long>) new AbstractMap.SimpleImmutableEntry<>(r.getLong("downstream_id"), r.getLong("upstream_id")))
+                .list();
+            Map<Long, List<Long>> upstreams = new HashMap<>();
+            for (Map.Entry<Long, Long> pair : dependencies) {
+                upstreams.computeIfAbsent(pair.getKey(), (key) -> new ArrayList<>()).add(pair.getValue());
+            }
+
+            List<ArchivedTask> archived = tasks.stream()
+                .map(task -> (ArchivedTask) ImmutableArchivedTask.copyOf(task)
+                        .withUpstreams(upstreams.getOrDefault(task.getId(), ImmutableList.of())))
+                .collect(Collectors.toList());
+
+            dao.insertTaskArchiveChunk(attemptId, lastTaskId, archived.size(), dumpTaskArchiveChunk(archived));
+            return archived.size();
         }
 
         @Override
@@ -565,6 +692,7 @@ public class DatabaseSessionStoreManager
             dao.deleteTaskStateDetails(attemptId);
             dao.deleteTaskDetails(attemptId);
             dao.deleteResumingTasks(attemptId);
+            dao.deleteAttemptTaskCount(attemptId);
             return dao.deleteTasks(attemptId);
         }
 
@@ -617,9 +745,104 @@ public class DatabaseSessionStoreManager
             long taskId = dao.insertTask(attemptId, task.getParentId().orNull(), task.getTaskType().get(), task.getState().get(), task.getStateFlags().get());  // tasks table don't have unique index
             dao.insertTaskDetails(taskId, task.getFullName(), task.getConfig().getLocal(), task.getConfig().getExport());
             dao.insertEmptyTaskStateDetails(taskId);
+            dao.addAttemptTaskCount(attemptId, 1);
             return taskId;
         }
 
+        @Override
+        public List<Long> addSubtasks(long attemptId, List<Task> tasks,
+                List<Optional<Integer>> parentIndexes, List<List<Integer>> upstreamIndexes)
+        {
+            if (tasks.isEmpty()) {
+                return ImmutableList.of();
+            }
+
+            // A large for_each> generates thousands of tasks. Inserting them one by
+            // one takes minutes while the parent task is locked. Here uses batch
+            // statements so that the number of round trips doesn't depend on the
+            // number of tasks.
+            List<Long> ids;
+            switch (databaseType) {
+            case "h2":
+                // H2 doesn't expose the sequence of an AUTO_INCREMENT column. Ids
+                // are generated by inserting tasks one by one. Other tables are
+                // inserted using batch statements.
+                ids = new ArrayList<>(tasks.size());
+                for (int i = 0; i < tasks.size(); i++) {
+                    Task task = tasks.get(i);
+                    Long parentId = getParentIdOf(task, parentIndexes.get(i), ids);
+                    ids.add(dao.insertTask(attemptId, parentId, task.getTaskType().get(), task.getState().get(), task.getStateFlags().get()));
+                }
+                break;
+            default:
+                // allocate ids from the sequence of the bigserial column at once
+                ids = handle.createQuery(
+                        "select nextval('tasks_id_seq') from generate_series(1, :count)")
+                    .bind("count", tasks.size())
+                    .mapTo(long.class)
+                    .list();
+                PreparedBatch taskBatch = handle.prepareBatch(
+                        "insert into tasks (id, attempt_id, parent_id, task_type, state, state_flags, updated_at)" +
+                        " values (:id, :attemptId, :parentId, :taskType, :state, :stateFlags, now())");
+                for (int i = 0; i < tasks.size(); i++) {
+                    Task task = tasks.get(i);
+                    taskBatch.add()
+                        .bind("id", ids.get(i))
+                        .bind("attemptId", attemptId)
+                        .bind("parentId", getParentIdOf(task, parentIndexes.get(i), ids))
+                        .bind("taskType", task.getTaskType().get())
+                        .bind("state", task.getState().get())
+                        .bind("stateFlags", task.getStateFlags().get());
+                }
+                taskBatch.execute();
+                break;
+            }
+
+            PreparedBatch detailsBatch = handle.prepareBatch(
+                    "insert into task_details (id, full_name, local_config, export_config)" +
+                    " values (:id, :fullName, :localConfig, :exportConfig)");
+            PreparedBatch stateDetailsBatch = handle.prepareBatch(
+                    "insert into task_state_details (id)" +
+                    " values (:id)");
+            PreparedBatch dependencyBatch = handle.prepareBatch(
+                    "insert into task_dependencies (upstream_id, downstream_id)" +
+                    " values (:upstreamId, :downstreamId)");
+            for (int i = 0; i < tasks.size(); i++) {
+                Task task = tasks.get(i);
+                long id = ids.get(i);
+                detailsBatch.add()
+                    .bind("id", id)
+                    .bind("fullName", task.getFullName())
+                    .bind("localConfig", task.getConfig().getLocal())
+                    .bind("exportConfig", task.getConfig().getExport());
+                stateDetailsBatch.add()
+                    .bind("id", id);
+                for (int upstreamIndex : upstreamIndexes.get(i)) {
+                    dependencyBatch.add()
+                        .bind("upstreamId", ids.get(upstreamIndex))
+                        .bind("downstreamId", id);
+                }
+            }
+            detailsBatch.execute();
+            stateDetailsBatch.execute();
+            if (dependencyBatch.getSize() > 0) {
+                dependencyBatch.execute();
+            }
+            dao.addAttemptTaskCount(attemptId, tasks.size());
+
+            return ids;
+        }
+
+        private Long getParentIdOf(Task task, Optional<Integer> parentIndex, List<Long> ids)
+        {
+            if (parentIndex.isPresent()) {
+                return ids.get(parentIndex.get());
+            }
+            else {
+                return task.getParentId().orNull();
+            }
+        }
+
         @Override
         public long addResumedSubtask(long attemptId, long parentId,
                 TaskType taskType, TaskStateCode state, TaskStateFlags flags,
@@ -641,16 +864,10 @@ public class DatabaseSessionStoreManager
                     resumingTask.getStoreParams(),
                     null,
                     resumingTask.getError());
+            dao.addAttemptTaskCount(attemptId, 1);
             return taskId;
         }
 
-        private java.sql.Timestamp sqlTimestampOf(Instant instant)
-        {
-            java.sql.Timestamp t = new java.sql.Timestamp(instant.getEpochSecond() * 1000);
-            t.setNanos(instant.getNano());
-            return t;
-        }
-
         @Override
         public void addResumingTasks(long attemptId, List<ResumingTask> tasks)
         {
@@ -848,7 +1065,7 @@ public class DatabaseSessionStoreManager
                 .bind("id", taskId)
                 .bind("oldState", beforeState.get())
                 .bind("newState", afterState.get())
-                .bind("stateParams", cfm.toBinding(stateParams))
+                .bind("stateParams", cfm.toArgument(stateParams))
                 .execute();
             if (n > 0) {
                 if (updateError.isPresent()) {
@@ -959,6 +1176,96 @@ public class DatabaseSessionStoreManager
             }, ResourceConflictException.class, ResourceNotFoundException.class);
         }
 
+        @Override
+        public <T> T putAndLockSessions(int projectId, String workflowName, List<Instant> sessionTimes, SessionsLockAction<T> func)
+            throws ResourceConflictException, ResourceNotFoundException
+        {
+            if (sessionTimes.isEmpty()) {
+                return DatabaseSessionStoreManager.this.<T, ResourceConflictException, ResourceNotFoundException>transaction((handle, dao, ts) -> {
+                    return func.call(new DatabaseSessionControlStore(handle, siteId), ImmutableList.of());
+                }, ResourceConflictException.class, ResourceNotFoundException.class);
+            }
+
+            String timeList = sessionTimes.stream()
+                .map(time -> Long.toString(time.getEpochSecond())).collect(Collectors.joining(", "));
+
+            return DatabaseSessionStoreManager.this.<T, ResourceConflictException, ResourceNotFoundException>transaction((handle, dao, ts) -> {
+                Set<Long> existingTimes = new HashSet<>(handle.createQuery(
+                            "select session_time from sessions" +
+                            " where project_id = :projectId" +
+                            " and workflow_name = :workflowName" +
+                            " and session_time in (" + timeList + ")"
+                        )
+                        .bind("projectId", projectId)
+                        .bind("workflowName", workflowName)
+                        .mapTo(Long.class)
+                        .list());
+
+                List<Long> missingTimes = sessionTimes.stream()
+                    .map(time -> time.getEpochSecond())
+                    .filter(time -> !existingTimes.contains(time))
+                    .distinct()
+                    .collect(Collectors.toList());
+                if (!missingTimes.isEmpty()) {
+                    try {
+                        catchForeignKeyNotFound(() ->
+                                catchConflict(() -> {
+                                    PreparedBatch batch = handle.prepareBatch(
+                                            "insert into sessions (project_id, workflow_name, session_time, last_attempt_id)" +
+                                            " values (:projectId, :workflowName, :sessionTime, NULL)");
+                                    for (long time : missingTimes) {
+                                        batch.add()
+                                            .bind("projectId", projectId)
+                                            .bind("workflowName", workflowName)
+                                            .bind("sessionTime", time);
+                                    }
+                                    return batch.execute();
+                                },
+                                "sessions in project_id=%d and workflow_name=%s", projectId, workflowName),
+                                "project id=%d", projectId);
+                    }
+                    catch (ResourceConflictException ex) {
+                        if (ts.isRetried()) {
+                            throw ex;
+                        }
+                        // another transaction inserted some of the sessions. retry
+                        // with a new transaction to select them as existing ones.
+                        ts.retry(ex);
+                        return null;
+                    }
+                }
+
+                // lock sessions in order of id to avoid deadlocks
+                List<StoredSession> locked = handle.createQuery(
+                        "select * from sessions" +
+                        " where project_id = :projectId" +
+                        " and workflow_name = :workflowName" +
+                        " and session_time in (" + timeList + ")" +
+                        " order by id" +
+                        " for update"
+                    )
+                    .bind("projectId", projectId)
+                    .bind("workflowName", workflowName)
+                    .mapTo(StoredSession.class)
+                    .list();
+                Map<Instant, StoredSession> lockedByTime = new HashMap<>();
+                for (StoredSession storedSession : locked) {
+                    lockedByTime.put(storedSession.getSessionTime(), storedSession);
+                }
+
+                ImmutableList.Builder<StoredSession> storedSessions = ImmutableList.builder();
+                for (Instant time : sessionTimes) {
+                    StoredSession storedSession = lockedByTime.get(Instant.ofEpochSecond(time.getEpochSecond()));
+                    if (storedSession == null) {
+                        throw new IllegalStateException("Database state error");
+                    }
+                    storedSessions.add(storedSession);
+                }
+
+                return func.call(new DatabaseSessionControlStore(handle, siteId), storedSessions.build());
+            }, ResourceConflictException.class, ResourceNotFoundException.class);
+        }
+
         @Override
         public List<StoredSessionWithLastAttempt> getSessions(int pageSize, Optional<Long> lastId)
         {
@@ -1052,6 +1359,36 @@ public class DatabaseSessionStoreManager
                     "session attempt name=%s in session project id=%d workflow name=%s time=%s", retryAttemptName, projectId, workflowName, sessionTime);
         }
 
+        @Override
+        public List<Instant> getSessionTimesWithAttemptName(int projectId, String workflowName, List<Instant> sessionTimes, String retryAttemptName)
+        {
+            if (sessionTimes.isEmpty()) {
+                return ImmutableList.of();
+            }
+            return autoCommit((handle, dao) ->
+                    handle.createQuery(
+                        "select s.session_time from sessions s" +
+                        " join session_attempts sa on sa.session_id = s.id" +
+                        " where s.project_id = :projectId" +
+                        " and s.workflow_name = :workflowName" +
+                        " and s.session_time in (" +
+                            sessionTimes.stream()
+                            .map(time -> Long.toString(time.getEpochSecond())).collect(Collectors.joining(", ")) + ")" +
+                        " and sa.attempt_name = :attemptName" +
+                        " and sa.site_id = :siteId" +
+                        " order by s.session_time"
+                    )
+                    .bind("projectId", projectId)
+                    .bind("workflowName", workflowName)
+                    .bind("attemptName", retryAttemptName)
+                    .bind("siteId", siteId)
+                    .mapTo(Long.class)
+                    .list()
+                    .stream()
+                    .map(time -> Instant.ofEpochSecond(time))
+                    .collect(Collectors.toList()));
+        }
+
         @Override
         public List<StoredSessionAttemptWithSession> getOtherAttempts(long attemptId)
             throws ResourceNotFoundException
@@ -1084,6 +1421,12 @@ public class DatabaseSessionStoreManager
 
         @Override
         public List<ArchivedTask> getTasksOfAttempt(long attemptId)
+        {
+            return getTasksOfAttempt(attemptId, Integer.MAX_VALUE, Optional.absent());
+        }
+
+        @Override
+        public List<ArchivedTask> getTasksOfAttempt(long attemptId, int pageSize, Optional<Long> lastId)
         {
             List<ArchivedTask> tasks = autoCommit((handle, dao) ->
                     handle.createQuery(
@@ -1095,21 +1438,54 @@ public class DatabaseSessionStoreManager
                         " join task_state_details ts on t.id = ts.id" +
                         " where sa.site_id = :siteId" +
                         " and t.attempt_id = :attemptId" +
-                        " order by t.id"
+                        " and t.id > :lastId" +
+                        " order by t.id" +
+                        " limit :limit"
                         )
                     .bind("siteId", siteId)
                     .bind("attemptId", attemptId)
+                    .bind("lastId", lastId.or(0L))
+                    .bind("limit", pageSize)
                     .map(atm)
                     .list()
                 );
             if (tasks.isEmpty()) {
-                String archive = autoCommit((handle, dao) -> dao.getTaskArchiveById(siteId, attemptId));
-                if (archive != null) {
-                    return loadTaskArchive(archive);
-                }
+                return getArchivedTasksOfAttempt(attemptId, pageSize, lastId);
             }
             return tasks;
         }
+
+        private List<ArchivedTask> getArchivedTasksOfAttempt(long attemptId, int pageSize, Optional<Long> lastId)
+        {
+            long afterTaskId = lastId.or(0L);
+
+            // loads only chunks that include the requested page
+            List<Long> chunkKeys = autoCommit((handle, dao) -> dao.getTaskArchiveChunkKeys(siteId, attemptId, afterTaskId));
+            if (!chunkKeys.isEmpty()) {
+                List<ArchivedTask> tasks = new ArrayList<>();
+                for (long lastTaskId : chunkKeys) {
+                    byte[] data = autoCommit((handle, dao) -> dao.getTaskArchiveChunk(attemptId, lastTaskId));
+                    for (ArchivedTask task : loadTaskArchiveChunk(data)) {
+                        if (task.getId() > afterTaskId) {
+                            tasks.add(task);
+                            if (tasks.size() >= pageSize) {
+                                return tasks;
+                            }
+                        }
+                    }
+                }
+                return tasks;
+            }
+
+            String archive = autoCommit((handle, dao) -> dao.getTaskArchiveById(siteId, attemptId));
+            if (archive != null) {
+                return loadTaskArchive(archive).stream()
+                    .filter(task -> task.getId() > afterTaskId)
+                    .limit(pageSize)
+                    .collect(Collectors.toList());
+            }
+            return ImmutableList.of();
+        }
     }
 
     private class DatabaseSessionControlStore
@@ -1148,6 +1524,75 @@ public class DatabaseSessionStoreManager
             }
         }
 
+        @Override
+        public List<StoredSessionAttempt> insertAttempts(List<Long> sessionIds, int projId, List<SessionAttempt> attempts)
+            throws ResourceConflictException, ResourceNotFoundException
+        {
+            if (sessionIds.size() != attempts.size()) {
+                throw new IllegalArgumentException("Number of sessions and attempts must be same");
+            }
+            if (attempts.isEmpty()) {
+                return ImmutableList.of();
+            }
+
+            catchForeignKeyNotFound(() ->
+                    catchConflict(() -> {
+                        PreparedBatch batch = handle.prepareBatch(
+                                "insert into session_attempts (session_id, site_id, project_id, attempt_name, workflow_definition_id, state_flags, timezone, params, created_at)" +
+                                " values (:sessionId, :siteId, :projectId, :attemptName, :workflowDefinitionId, :stateFlags, :timezone, :params, now())");
+                        for (int i = 0; i < attempts.size(); i++) {
+                            SessionAttempt attempt = attempts.get(i);
+                            batch.add()
+                                .bind("sessionId", sessionIds.get(i))
+                                .bind("siteId", siteId)
+                                .bind("projectId", projId)
+                                .bind("attemptName", attempt.getRetryAttemptName().or(DEFAULT_ATTEMPT_NAME))
+                                .bind("workflowDefinitionId", attempt.getWorkflowDefinitionId().orNull())
+                                .bind("stateFlags", AttemptStateFlags.empty().get())
+                                .bind("timezone", attempt.getTimeZone().getId())
+                                .bind("params", attempt.getParams());
+                        }
+                        return batch.execute();
+                    },
+                    "session attempts in %d sessions", sessionIds.size()),
+                    "workflow definitions of %d session attempts", attempts.size());
+
+            String idList = sessionIds.stream()
+                .map(id -> Long.toString(id)).collect(Collectors.joining(", "));
+            Map<Map.Entry<Long, String>, StoredSessionAttempt> insertedByName = new HashMap<>();
+            for (StoredSessionAttempt inserted : handle.createQuery(
+                        "select * from session_attempts" +
+                        " where session_id in (" + idList + ")"
+                    )
+                    .mapTo(StoredSessionAttempt.class)
+                    .list()) {
+                insertedByName.put(
+                        new AbstractMap.SimpleImmutableEntry<>(inserted.getSessionId(), inserted.getRetryAttemptName().or(DEFAULT_ATTEMPT_NAME)),
+                        inserted);
+            }
+
+            ImmutableList.Builder<StoredSessionAttempt> builder = ImmutableList.builder();
+            PreparedBatch updateBatch = handle.prepareBatch(
+                    "update sessions" +
+                    " set last_attempt_id = :attemptId" +
+                    " where id = :sessionId");
+            for (int i = 0; i < attempts.size(); i++) {
+                long sessionId = sessionIds.get(i);
+                StoredSessionAttempt inserted = insertedByName.get(
+                        new AbstractMap.SimpleImmutableEntry<>(sessionId, attempts.get(i).getRetryAttemptName().or(DEFAULT_ATTEMPT_NAME)));
+                if (inserted == null) {
+                    throw new IllegalStateException("Database state error");
+                }
+                updateBatch.add()
+                    .bind("attemptId", inserted.getId())
+                    .bind("sessionId", sessionId);
+                builder.add(inserted);
+            }
+            updateBatch.execute();
+
+            return builder.build();
+        }
+
         @Override
         public StoredSessionAttempt getLastAttempt(long sessionId)
             throws ResourceNotFoundException
@@ -1169,6 +1614,7 @@ public class DatabaseSessionStoreManager
             long taskId = dao.insertTask(attemptId, task.getParentId().orNull(), task.getTaskType().get(), task.getState().get(), task.getStateFlags().get());  // tasks table don't have unique index
             dao.insertTaskDetails(taskId, task.getFullName(), task.getConfig().getLocal(), task.getConfig().getExport());
             dao.insertEmptyTaskStateDetails(taskId);
+            dao.insertAttemptTaskCount(attemptId, 1);
             return func.call(new DatabaseTaskControlStore(handle), taskId);
         }
 
@@ -1395,9 +1841,6 @@ public class DatabaseSessionStoreManager
         @GetGeneratedKeys
         long insertSessionMonitor(@Bind("attemptId") long attemptId, @Bind("nextRunTime") long nextRunTime, @Bind("type") String type, @Bind("config") Config config);
 
-        @SqlQuery("select id from tasks where state = :state limit :limit")
-        List<Long> findAllTaskIdsByState(@Bind("state") short state, @Bind("limit") int limit);
-
         @SqlQuery("select id, session_id, state_flags from session_attempts where id = :attemptId for update")
         SessionAttemptSummary lockAttempt(@Bind("attemptId") long attemptId);
 
@@ -1460,7 +1903,7 @@ public class DatabaseSessionStoreManager
                 " or (updated_at = :updatedSince and id > :lastId)" +
                 " order by updated_at asc, id asc" +
                 " limit :limit")
-        List<TaskStateSummary> findRecentlyChangedTasks(@Bind("updatedSince") Instant updatedSince, @Bind("lastId") long lastId, @Bind("limit") int limit);
+        List<TaskStateSummary> findRecentlyChangedTasks(@Bind("updatedSince") java.sql.Timestamp updatedSince, @Bind("lastId") long lastId, @Bind("limit") int limit);
 
         @SqlQuery("select id, attempt_id, parent_id, state, updated_at " +
                 " from tasks " +
@@ -1528,10 +1971,25 @@ public class DatabaseSessionStoreManager
                 " and sa.site_id = :siteId")
         String getTaskArchiveById(@Bind("siteId") int siteId, @Bind("attemptId") long attemptId);
 
-        @SqlUpdate("insert into task_archives" +
-                " (id, tasks, created_at)" +
-                " values (:attemptId, :tasks, now())")
-        void insertTaskArchive(@Bind("attemptId") long attemptId, @Bind("tasks") String tasks);
+        @SqlQuery("select c.last_task_id" +
+                " from task_archive_chunks c" +
+                " join session_attempts sa on sa.id = c.attempt_id" +
+                " where c.attempt_id = :attemptId" +
+                " and sa.site_id = :siteId" +
+                " and c.last_task_id > :afterTaskId" +
+                " order by c.last_task_id")
+        List<Long> getTaskArchiveChunkKeys(@Bind("siteId") int siteId, @Bind("attemptId") long attemptId, @Bind("afterTaskId") long afterTaskId);
+
+        @SqlQuery("select tasks" +
+                " from task_archive_chunks" +
+                " where attempt_id = :attemptId" +
+                " and last_task_id = :lastTaskId")
+        byte[] getTaskArchiveChunk(@Bind("attemptId") long attemptId, @Bind("lastTaskId") long lastTaskId);
+
+        @SqlUpdate("insert into task_archive_chunks" +
+                " (attempt_id, last_task_id, task_count, tasks, created_at)" +
+                " values (:attemptId, :lastTaskId, :taskCount, :tasks, now())")
+        void insertTaskArchiveChunk(@Bind("attemptId") long attemptId, @Bind("lastTaskId") long lastTaskId, @Bind("taskCount") int taskCount, @Bind("tasks") byte[] tasks);
 
         @SqlUpdate("delete from session_monitors" +
                 " where id = :id")
@@ -1541,6 +1999,23 @@ public class DatabaseSessionStoreManager
                 " where attempt_id = :attemptId")
         int deleteTasks(@Bind("attemptId") long attemptId);
 
+        @SqlUpdate("insert into attempt_task_counts (attempt_id, task_count)" +
+                " values (:attemptId, :count)")
+        void insertAttemptTaskCount(@Bind("attemptId") long attemptId, @Bind("count") long count);
+
+        @SqlUpdate("update attempt_task_counts" +
+                " set task_count = task_count + :count" +
+                " where attempt_id = :attemptId")
+        int addAttemptTaskCount(@Bind("attemptId") long attemptId, @Bind("count") long count);
+
+        @SqlQuery("select task_count from attempt_task_counts" +
+                " where attempt_id = :attemptId")
+        Long getAttemptTaskCount(@Bind("attemptId") long attemptId);
+
+        @SqlUpdate("delete from attempt_task_counts" +
+                " where attempt_id = :attemptId")
+        int deleteAttemptTaskCount(@Bind("attemptId") long attemptId);
+
         @SqlUpdate("delete from task_details" +
                 " where id in (select id from tasks where attempt_id = :attemptId)")
         void deleteTaskDetails(@Bind("attemptId") long attemptId);
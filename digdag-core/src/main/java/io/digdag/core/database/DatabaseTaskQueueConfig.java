@@ -6,15 +6,22 @@ import com.google.inject.Inject;
 public class DatabaseTaskQueueConfig
 {
     private final int defaultMaxConcurrency;
+    private final boolean fairSitePolling;
 
     @Inject
     public DatabaseTaskQueueConfig(Config systemConfig)
     {
         this.defaultMaxConcurrency = systemConfig.get("queue.db.max_concurrency", int.class, Integer.MAX_VALUE);
+        this.fairSitePolling = systemConfig.get("queue.db.fair_site_polling", boolean.class, false);
     }
 
     public int getSiteMaxConcurrency(int siteId)
     {
         return defaultMaxConcurrency;
     }
+
+    public boolean getFairSitePolling()
+    {
+        return fairSitePolling;
+    }
 }
@@ -2,9 +2,11 @@ package io.digdag.core.database;
 
 import java.io.IOException;
 import java.util.List;
+import java.util.Set;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.stream.Collectors;
 import java.sql.ResultSet;
 import java.sql.SQLException;
@@ -17,9 +19,12 @@ import com.google.common.collect.*;
 import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import com.google.inject.Inject;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import io.digdag.core.metrics.MetricsRegistry;
 import io.digdag.core.queue.QueueSettingStore;
 import io.digdag.core.queue.QueueSettingStoreManager;
 import io.digdag.core.queue.StoredQueueSetting;
+import io.digdag.core.queue.TaskSignalChannel;
+import io.digdag.core.queue.TaskSignalChannel.Signal;
 import io.digdag.core.queue.ImmutableStoredQueueSetting;
 import org.skife.jdbi.v2.DBI;
 import org.skife.jdbi.v2.Handle;
@@ -48,20 +53,27 @@ public class DatabaseTaskQueueServer
 {
     private final DatabaseTaskQueueConfig queueConfig;
     private final ObjectMapper taskObjectMapper;
+    private final TaskSignalChannel signalChannel;
 
     private final int expireLockInterval;
     private final LocalLockMap localLockMap = new LocalLockMap();
     private final ScheduledExecutorService expireExecutor;
+    private final AtomicInteger siteRotation = new AtomicInteger(0);
+
+    private final MetricsRegistry.Histogram localLockWaitTime;
+    private final MetricsRegistry.Histogram lockTime;
+    private final MetricsRegistry.Counter lockedTasks;
+    private final MetricsRegistry.Counter expiredLocks;
 
     @Inject
-    public DatabaseTaskQueueServer(DBI dbi, DatabaseConfig config, DatabaseTaskQueueConfig queueConfig, ObjectMapper taskObjectMapper)
+    public DatabaseTaskQueueServer(DBI dbi, DatabaseConfig config, DatabaseTaskQueueConfig queueConfig, ObjectMapper taskObjectMapper,
+            TaskSignalChannel signalChannel, MetricsRegistry metrics)
     {
         super(config.getType(), Dao.class, dbi);
 
-        dbi.registerMapper(new ImmutableTaskQueueLockMapper());
-
         this.queueConfig = queueConfig;
         this.taskObjectMapper = taskObjectMapper;
+        this.signalChannel = signalChannel;
         this.expireLockInterval = config.getExpireLockInterval();
         this.expireExecutor = Executors.newSingleThreadScheduledExecutor(
                 new ThreadFactoryBuilder()
@@ -69,6 +81,18 @@ public class DatabaseTaskQueueServer
                 .setNameFormat("lock-expire-%d")
                 .build()
                 );
+
+        this.localLockWaitTime = metrics.histogram("digdag_queue_local_lock_wait_seconds",
+                "Time waiting for other threads of this process locking tasks of the same site");
+        this.lockTime = metrics.histogram("digdag_queue_lock_seconds",
+                "Time to lock queued tasks of a site in the database");
+        this.lockedTasks = metrics.counter("digdag_queue_locked_tasks_total",
+                "Number of queued tasks locked by agents");
+        this.expiredLocks = metrics.counter("digdag_queue_expired_locks_total",
+                "Number of task locks expired because agents stopped sending heartbeat");
+
+        // wake up agents sleeping in lockSharedAgentTasks when a task is enqueued on any server
+        signalChannel.subscribe(Signal.TASK_ENQUEUED, () -> interruptLocalWait());
     }
 
     private final Object localTaskNoticeHelper = new Object();
@@ -168,7 +192,7 @@ public class DatabaseTaskQueueServer
             return queuedTaskId;
         }, ResourceConflictException.class);
 
-        interruptLocalWait();
+        signalChannel.publish(Signal.TASK_ENQUEUED);
 
         return id;
     }
@@ -248,70 +272,103 @@ public class DatabaseTaskQueueServer
 
     public List<String> taskHeartbeat(int siteId, List<String> lockedIds, String agentId, int lockSeconds)
     {
-        ImmutableList.Builder<String> notFoundList = ImmutableList.builder();
-        for (String formatted : lockedIds) {
-            boolean success;
-            if (isSharedTaskLockId(formatted)) {
-                success = taskHeartbeat0(siteId, null, parseTaskLockId(formatted), agentId, lockSeconds);
-            }
-            else {
-                success = taskHeartbeat0(siteId, parseQueueId(formatted), parseTaskLockId(formatted), agentId, lockSeconds);
-            }
-            if (!success) {
-                notFoundList.add(formatted);
-            }
+        if (lockedIds.isEmpty()) {
+            return ImmutableList.of();
         }
-        return notFoundList.build();
+
+        // shared lock ids and queue-bound lock ids share the same id space of queued_task_locks
+        // and a queue-bound lock is identified by queued_task_locks.queue_id. So both kinds of
+        // locks are updated by a single statement.
+        List<Long> taskLockIds = lockedIds.stream()
+            .map(formatted -> parseTaskLockId(formatted))
+            .distinct()
+            .collect(Collectors.toList());
+
+        Set<Long> updatedIds = ImmutableSet.copyOf(taskHeartbeat0(siteId, taskLockIds, agentId, lockSeconds));
+
+        return lockedIds.stream()
+            .filter(formatted -> !updatedIds.contains(parseTaskLockId(formatted)))
+            .collect(Collectors.toList());
     }
 
-    private boolean taskHeartbeat0(int siteId, Integer queueId, long taskLockId, String agentId, int lockSeconds)
+    private List<Long> taskHeartbeat0(int siteId, List<Long> taskLockIds, String agentId, int lockSeconds)
     {
-        return autoCommit((handle, dao) -> {
-            String lockExpireTimeSql;
-            if (isEmbededDatabase()) {
-                lockExpireTimeSql = Long.toString(Instant.now().getEpochSecond() + lockSeconds);
-            }
-            else {
-                lockExpireTimeSql = statementUnixTimestampSql() + " + " + Integer.toString(lockSeconds);
-            }
-            return handle.createStatement(
-                    "update queued_task_locks" +
-                    " set lock_expire_time = " + lockExpireTimeSql +
-                    " where id = :id" +
-                    " and lock_agent_id = :agentId" +
-                    " and coalesce(site_id, (select site_id from queue_settings where id = :queueId)) = :siteId"
-                )
-                .bind("expireTime", Instant.now().getEpochSecond() + lockSeconds)
-                .bind("id", taskLockId)
-                .bind("agentId", agentId)
-                .bind("queueId", queueId)
-                .bind("siteId", siteId)
-                .execute();
-        }) > 0;
+        String idList = taskLockIds.stream()
+            .map(it -> Long.toString(it)).collect(Collectors.joining(", "));
+        String lockOwnerCondition =
+            " and lock_agent_id = :agentId" +
+            " and (site_id = :siteId" +
+                " or (site_id is null and queue_id in (select id from queue_settings where site_id = :siteId)))";
+
+        if (isEmbededDatabase()) {
+            // H2 doesn't support UPDATE ... RETURNING. Locking the rows first in the same
+            // transaction makes the selected ids equal to the updated ids.
+            return transaction((handle, dao, ts) -> {
+                List<Long> ids = handle.createQuery(
+                        "select id from queued_task_locks" +
+                        " where id in (" + idList + ")" +
+                        lockOwnerCondition +
+                        " for update"
+                    )
+                    .bind("agentId", agentId)
+                    .bind("siteId", siteId)
+                    .mapTo(long.class)
+                    .list();
+                if (!ids.isEmpty()) {
+                    handle.createStatement(
+                            "update queued_task_locks" +
+                            " set lock_expire_time = :expireTime" +
+                            " where id in (" +
+                                ids.stream()
+                                .map(it -> Long.toString(it)).collect(Collectors.joining(", ")) +
+                            ")"
+                        )
+                        .bind("expireTime", Instant.now().getEpochSecond() + lockSeconds)
+                        .execute();
+                }
+                return ids;
+            });
+        }
+        else {
+            return autoCommit((handle, dao) ->
+                    handle.createQuery(
+                        "update queued_task_locks" +
+                        " set lock_expire_time = " + statementUnixTimestampSql() + " + " + Integer.toString(lockSeconds) +
+                        " where id in (" + idList + ")" +
+                        lockOwnerCondition +
+                        " returning id"
+                    )
+                    .bind("agentId", agentId)
+                    .bind("siteId", siteId)
+                    .mapTo(long.class)
+                    .list()
+                );
+        }
     }
 
     @Override
     public List<TaskQueueLock> lockSharedAgentTasks(int count, String agentId, int lockSeconds, long maxSleepMillis)
     {
-        for (int siteId : autoCommit((handle, dao) -> dao.getActiveSiteIdList())) {
-            List<Long> taskLockIds = tryLockSharedAgentTasks(siteId, count, agentId, lockSeconds);
-            if (!taskLockIds.isEmpty()) {
-                ImmutableList.Builder<TaskQueueLock> builder = ImmutableList.builder();
-                for (long taskLockId : taskLockIds) {
-                    ImmutableTaskQueueLock data = autoCommit((handle, dao) -> dao.getTaskData(taskLockId));
-                    if (data == null) {
-                        // queued_task is deleted after tryLockSharedAgentTasks call.
-                        // it is possible just because there are 2 different transactions.
-                    }
-                    else {
-                        String lockId = formatSharedTaskLockId(taskLockId);
-                        builder.add(data.withLockId(lockId));
-                    }
+        List<Integer> siteIds = autoCommit((handle, dao) -> dao.getActiveSiteIdList());
+
+        List<TaskQueueLock> locks;
+        if (queueConfig.getFairSitePolling()) {
+            locks = lockSharedAgentTasksOfSites(siteIds, count, agentId, lockSeconds);
+        }
+        else {
+            locks = ImmutableList.of();
+            for (int siteId : siteIds) {
+                locks = tryLockSharedAgentTasks(siteId, count, agentId, lockSeconds);
+                if (!locks.isEmpty()) {
+                    break;
                 }
-                return builder.build();
             }
         }
 
+        if (!locks.isEmpty()) {
+            return locks;
+        }
+
         // no tasks are ready to lock. sleep.
         if (maxSleepMillis >= 0) {
             sleepForEnqueue(maxSleepMillis);
@@ -319,12 +376,38 @@ public class DatabaseTaskQueueServer
         return ImmutableList.of();
     }
 
-    private List<Long> tryLockSharedAgentTasks(int siteId,
+    // Distributes count over all active sites so that a site with many
+    // queued tasks doesn't starve the others. The first site to try is
+    // rotated on each call, and the share of a site is recalculated after
+    // each site so that unused share moves to the sites tried later.
+    private List<TaskQueueLock> lockSharedAgentTasksOfSites(List<Integer> siteIds,
+            int count, String agentId, int lockSeconds)
+    {
+        if (siteIds.isEmpty()) {
+            return ImmutableList.of();
+        }
+
+        int offset = Math.floorMod(siteRotation.getAndIncrement(), siteIds.size());
+
+        ImmutableList.Builder<TaskQueueLock> builder = ImmutableList.builder();
+        int remaining = count;
+        for (int i = 0; i < siteIds.size() && remaining > 0; i++) {
+            int siteId = siteIds.get((offset + i) % siteIds.size());
+            int sitesLeft = siteIds.size() - i;
+            int share = (remaining + sitesLeft - 1) / sitesLeft;
+            List<TaskQueueLock> locks = tryLockSharedAgentTasks(siteId, share, agentId, lockSeconds);
+            builder.addAll(locks);
+            remaining -= locks.size();
+        }
+        return builder.build();
+    }
+
+    private List<TaskQueueLock> tryLockSharedAgentTasks(int siteId,
             int count, String agentId, int lockSeconds)
     {
         int siteMaxConcurrency = queueConfig.getSiteMaxConcurrency(siteId);
 
-        try {
+        try (MetricsRegistry.Timer timer = localLockWaitTime.start()) {
             if (!localLockMap.tryLock(siteId, 500)) {
                 return ImmutableList.of();
             }
@@ -334,73 +417,93 @@ public class DatabaseTaskQueueServer
             return ImmutableList.of();
         }
 
-        try {
-            if (isEmbededDatabase()) {
-                return transaction((handle, dao, ts) -> {
-                    List<Long> taskLockIds = handle.createQuery(
-                            "select id " +
-                            "from queued_task_locks " +
-                            "where lock_expire_time is null " +
-                            "and site_id = :siteId " +
-                            "and not exists (" +
-                                "select * from (" +
-                                    "select queue_id, count(*) as count " +
-                                    "from queued_task_locks " +
-                                    "where lock_expire_time is not null " +
-                                    "and site_id = :siteId " +
-                                    "group by queue_id" +
-                                ") runnings " +
-                                "join queues on queues.id = runnings.queue_id " +
-                                "where runnings.count >= queues.max_concurrency " +
-                                "and runnings.queue_id = queued_task_locks.queue_id" +
-                            ") " +
-                            "and not exists (" +
-                              "select count(*) " +
-                              "from queued_task_locks " +
-                              "where lock_expire_time is not null " +
-                              "and site_id = :siteId " +
-                              "having count(*) >= :siteMaxConcurrency" +
-                            ") " +
-                            "order by queue_id, priority desc, id " +
-                            "limit :limit"
-                            )
-                            .bind("siteId", siteId)
-                            .bind("siteMaxConcurrency", siteMaxConcurrency)
-                            .bind("limit", count)
-                            .mapTo(long.class)
-                            .list();
+        try (MetricsRegistry.Timer timer = lockTime.start()) {
+            List<TaskQueueLock> locks = lockSharedAgentTasksOfSite(siteId, siteMaxConcurrency, count, agentId, lockSeconds);
+            lockedTasks.inc(locks.size());
+            return locks;
+        }
+        finally {
+            localLockMap.unlock(siteId);
+        }
+    }
+
+    private List<TaskQueueLock> lockSharedAgentTasksOfSite(int siteId, int siteMaxConcurrency,
+            int count, String agentId, int lockSeconds)
+    {
+        if (isEmbededDatabase()) {
+            // H2 doesn't support UPDATE ... RETURNING. Selecting payloads together
+            // with lock ids and updating them in the same transaction is safe because
+            // localLockMap serializes lockers of a site within this process.
+            return transaction((handle, dao, ts) -> {
+                List<TaskQueueLock> locks = handle.createQuery(
+                        "select queued_task_locks.id, queued_tasks.task_id, queued_tasks.data " +
+                        "from queued_task_locks " +
+                        "join queued_tasks on queued_tasks.id = queued_task_locks.id " +
+                        "where queued_task_locks.lock_expire_time is null " +
+                        "and queued_task_locks.site_id = :siteId " +
+                        "and not exists (" +
+                            "select * from (" +
+                                "select queue_id, count(*) as count " +
+                                "from queued_task_locks " +
+                                "where lock_expire_time is not null " +
+                                "and site_id = :siteId " +
+                                "group by queue_id" +
+                            ") runnings " +
+                            "join queues on queues.id = runnings.queue_id " +
+                            "where runnings.count >= queues.max_concurrency " +
+                            "and runnings.queue_id = queued_task_locks.queue_id" +
+                        ") " +
+                        "and not exists (" +
+                          "select count(*) " +
+                          "from queued_task_locks " +
+                          "where lock_expire_time is not null " +
+                          "and site_id = :siteId " +
+                          "having count(*) >= :siteMaxConcurrency" +
+                        ") " +
+                        "order by queued_task_locks.queue_id, queued_task_locks.priority desc, queued_task_locks.id " +
+                        "limit :limit"
+                        )
+                        .bind("siteId", siteId)
+                        .bind("siteMaxConcurrency", siteMaxConcurrency)
+                        .bind("limit", count)
+                        .map(new SharedTaskLockMapper())
+                        .list();
+                if (!locks.isEmpty()) {
                     handle.createStatement(
                             "update queued_task_locks" +
                             " set lock_expire_time = :expireTime, lock_agent_id = :agentId" +
                             " where id in (" +
-                                taskLockIds.stream()
-                                .map(it -> Long.toString(it)).collect(Collectors.joining(", ")) +
+                                locks.stream()
+                                .map(it -> Long.toString(parseTaskLockId(it.getLockId()))).collect(Collectors.joining(", ")) +
                             ")"
                         )
                         .bind("expireTime", Instant.now().getEpochSecond() + lockSeconds)
                         .bind("agentId", agentId)
                         .execute();
-                    return taskLockIds;
-                });
-            }
-            else {
-                // see DatabaseMigrator for the definition of lock_shared_tasks function.
-                return autoCommit((handle, dao) ->
-                        handle.createQuery(
-                            "select lock_shared_tasks(:siteId, :siteMaxConcurrency, :limit, :lockExpireSeconds, :agentId)"
-                        )
-                        .bind("siteId", siteId)
-                        .bind("siteMaxConcurrency", siteMaxConcurrency)
-                        .bind("limit", count)
-                        .bind("lockExpireSeconds", lockSeconds)
-                        .bind("agentId", agentId)
-                        .mapTo(long.class)
-                        .list()
-                    );
-            }
+                }
+                return locks;
+            });
         }
-        finally {
-            localLockMap.unlock(siteId);
+        else {
+            // see DatabaseMigrator for the definition of lock_shared_tasks function.
+            // Payloads are joined in the same statement. A queued_task deleted
+            // concurrently is simply not returned.
+            return autoCommit((handle, dao) ->
+                    handle.createQuery(
+                        "select locked.id, queued_tasks.task_id, queued_tasks.data " +
+                        "from lock_shared_tasks(:siteId, :siteMaxConcurrency, :limit, :lockExpireSeconds, :agentId) " +
+                            "with ordinality as locked (id, seq) " +
+                        "join queued_tasks on queued_tasks.id = locked.id " +
+                        "order by locked.seq"
+                    )
+                    .bind("siteId", siteId)
+                    .bind("siteMaxConcurrency", siteMaxConcurrency)
+                    .bind("limit", count)
+                    .bind("lockExpireSeconds", lockSeconds)
+                    .bind("agentId", agentId)
+                    .map(new SharedTaskLockMapper())
+                    .list()
+                );
         }
     }
 
@@ -430,6 +533,7 @@ public class DatabaseTaskQueueServer
                 }
             });
             if (c > 0) {
+                expiredLocks.inc(c);
                 logger.warn("{} task locks are expired. Tasks will be retried.", c);
             }
         }
@@ -438,15 +542,15 @@ public class DatabaseTaskQueueServer
         }
     }
 
-    private static class ImmutableTaskQueueLockMapper
-            implements ResultSetMapper<ImmutableTaskQueueLock>
+    private static class SharedTaskLockMapper
+            implements ResultSetMapper<TaskQueueLock>
     {
         @Override
-        public ImmutableTaskQueueLock map(int index, ResultSet r, StatementContext ctx)
+        public TaskQueueLock map(int index, ResultSet r, StatementContext ctx)
                 throws SQLException
         {
             return ImmutableTaskQueueLock.builder()
-                .lockId("")  // should be reset later
+                .lockId(formatSharedTaskLockId(r.getLong("id")))
                 .uniqueTaskId(getOptionalLong(r, "task_id"))
                 .data(getOptionalBytes(r, "data"))
                 .build();
@@ -497,9 +601,6 @@ public class DatabaseTaskQueueServer
                 @Bind("siteId") Integer siteId, @Bind("queueId") Integer queueId,
                 @Bind("priority") int priority);
 
-        @SqlQuery("select task_id, data from queued_tasks where id = :taskLockId")
-        ImmutableTaskQueueLock getTaskData(@Bind("taskLockId") long taskLockId);
-
         @SqlUpdate("delete from queued_task_locks" +
                 " where id = :taskLockId" +
                 " and lock_agent_id = :agentId")
@@ -0,0 +1,215 @@
+package io.digdag.core.database;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.EnumMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import javax.sql.DataSource;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.postgresql.PGConnection;
+import org.postgresql.PGNotification;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import io.digdag.core.queue.LocalTaskSignalChannel;
+
+/**
+ * TaskSignalChannel implementation using LISTEN / NOTIFY of PostgreSQL.
+ *
+ * Listening uses a dedicated connection out of the connection pool because
+ * the connection must stay open. Notifications sent from this process carry
+ * its node id as the payload and are ignored when they come back because
+ * they are already delivered to local subscribers at publish.
+ *
+ * The listener thread blocks on PgJDBC's getNotifications with a timeout
+ * instead of polling the connection with queries. Closing the channel closes
+ * the listening connection to wake up the thread.
+ */
+public class PgTaskSignalChannel
+        extends LocalTaskSignalChannel
+        implements AutoCloseable
+{
+    private static final Logger logger = LoggerFactory.getLogger(PgTaskSignalChannel.class);
+
+    private static final int RECONNECT_INTERVAL = 5 * 1000;
+    private static final int LISTEN_TIMEOUT = 60 * 1000;
+
+    private final DatabaseConfig config;
+    private final DataSource ds;
+    private final int listenTimeout;
+    private final int reconnectInterval;
+    private final String nodeId = UUID.randomUUID().toString();
+
+    private final Map<Signal, AtomicBoolean> pendingNotifications = new EnumMap<>(Signal.class);
+    private final ExecutorService notifier;
+    private final Thread listener;
+    private volatile Connection listenConnection = null;
+    private volatile boolean closed = false;
+
+    public PgTaskSignalChannel(DatabaseConfig config, DataSource ds)
+    {
+        this(config, ds, LISTEN_TIMEOUT, RECONNECT_INTERVAL);
+    }
+
+    PgTaskSignalChannel(DatabaseConfig config, DataSource ds, int listenTimeout, int reconnectInterval)
+    {
+        this.config = config;
+        this.ds = ds;
+        this.listenTimeout = listenTimeout;
+        this.reconnectInterval = reconnectInterval;
+        for (Signal signal : Signal.values()) {
+            pendingNotifications.put(signal, new AtomicBoolean(false));
+        }
+        this.notifier = Executors.newSingleThreadExecutor(
+                new ThreadFactoryBuilder()
+                .setDaemon(true)
+                .setNameFormat("task-signal-notifier")
+                .build()
+                );
+        this.listener = new ThreadFactoryBuilder()
+            .setDaemon(true)
+            .setNameFormat("task-signal-listener")
+            .build()
+            .newThread(() -> listen());
+    }
+
+    public void start()
+    {
+        listener.start();
+    }
+
+    @Override
+    public void close()
+    {
+        closed = true;
+        listener.interrupt();
+        // getNotifications doesn't respond to interrupt
+        closeQuietly(listenConnection);
+        notifier.shutdown();
+    }
+
+    private static String channelName(Signal signal)
+    {
+        return "digdag_" + signal.name().toLowerCase(Locale.ENGLISH);
+    }
+
+    @Override
+    public void publish(Signal signal)
+    {
+        deliver(signal);
+
+        // A burst of publish calls is coalesced into one NOTIFY. The flag is cleared
+        // before sending so that a publish after the cleared point always causes
+        // another NOTIFY, which reaches the other servers after the publisher's commit.
+        AtomicBoolean pending = pendingNotifications.get(signal);
+        if (pending.compareAndSet(false, true)) {
+            notifier.execute(() -> {
+                pending.set(false);
+                sendNotification(signal);
+            });
+        }
+    }
+
+    private void sendNotification(Signal signal)
+    {
+        try (Connection conn = ds.getConnection();
+                PreparedStatement stmt = conn.prepareStatement("select pg_notify(?, ?)")) {
+            stmt.setString(1, channelName(signal));
+            stmt.setString(2, nodeId);
+            stmt.execute();
+            if (!conn.getAutoCommit()) {
+                conn.commit();
+            }
+        }
+        catch (SQLException ex) {
+            logger.warn("Failed to notify {} signal. Other servers will find the change at their next poll.", signal, ex);
+        }
+    }
+
+    private void listen()
+    {
+        Connection conn = null;
+        while (!closed) {
+            try {
+                if (conn == null) {
+                    conn = DriverManager.getConnection(
+                            DatabaseConfig.buildJdbcUrl(config),
+                            DatabaseConfig.buildJdbcProperties(config));
+                    listenConnection = conn;
+                    if (closed) {
+                        break;
+                    }
+                    conn.setAutoCommit(true);
+                    try (Statement stmt = conn.createStatement()) {
+                        for (Signal signal : Signal.values()) {
+                            stmt.execute("LISTEN " + channelName(signal));
+                        }
+                    }
+                    // signals sent while this node was not listening are lost
+                    for (Signal signal : Signal.values()) {
+                        deliver(signal);
+                    }
+                }
+
+                // blocks until a notification arrives or listenTimeout passes
+                PGNotification[] notifications = conn.unwrap(PGConnection.class).getNotifications(listenTimeout);
+                if (notifications != null) {
+                    for (PGNotification notification : notifications) {
+                        if (nodeId.equals(notification.getParameter())) {
+                            continue;
+                        }
+                        Signal signal = signalOf(notification.getName());
+                        if (signal != null) {
+                            deliver(signal);
+                        }
+                    }
+                }
+            }
+            catch (SQLException ex) {
+                if (closed) {
+                    break;
+                }
+                logger.warn("Failed to listen task signals. Retrying.", ex);
+                closeQuietly(conn);
+                conn = null;
+                try {
+                    Thread.sleep(reconnectInterval);
+                }
+                catch (InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+            }
+        }
+        closeQuietly(conn);
+    }
+
+    private static Signal signalOf(String channelName)
+    {
+        for (Signal signal : Signal.values()) {
+            if (channelName(signal).equals(channelName)) {
+                return signal;
+            }
+        }
+        return null;
+    }
+
+    private static void closeQuietly(Connection conn)
+    {
+        if (conn != null) {
+            try {
+                conn.close();
+            }
+            catch (SQLException ex) {
+                logger.debug("Failed to close a listening connection", ex);
+            }
+        }
+    }
+}
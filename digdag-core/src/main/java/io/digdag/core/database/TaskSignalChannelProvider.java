@@ -0,0 +1,57 @@
+package io.digdag.core.database;
+
+import javax.annotation.PreDestroy;
+import javax.sql.DataSource;
+import com.google.inject.Inject;
+import com.google.inject.Provider;
+import io.digdag.client.config.Config;
+import io.digdag.core.queue.LocalTaskSignalChannel;
+import io.digdag.core.queue.TaskSignalChannel;
+
+public class TaskSignalChannelProvider
+        implements Provider<TaskSignalChannel>
+{
+    private final DatabaseConfig config;
+    private final DataSource ds;
+    private final boolean notify;
+    private TaskSignalChannel channel;
+    private PgTaskSignalChannel pgChannel;
+
+    @Inject
+    public TaskSignalChannelProvider(DatabaseConfig config, DataSource ds, Config systemConfig)
+    {
+        this.config = config;
+        this.ds = ds;
+        this.notify = systemConfig.get("database.queue.notify", boolean.class, false);
+    }
+
+    public synchronized TaskSignalChannel get()
+    {
+        if (channel == null) {
+            switch (config.getType()) {
+            case "postgresql":
+                if (notify) {
+                    pgChannel = new PgTaskSignalChannel(config, ds);
+                    pgChannel.start();
+                    channel = pgChannel;
+                    break;
+                }
+                // fallthrough
+            default:
+                // h2 database is not shared by multiple servers
+                channel = new LocalTaskSignalChannel();
+                break;
+            }
+        }
+        return channel;
+    }
+
+    @PreDestroy
+    public synchronized void close()
+    {
+        if (pgChannel != null) {
+            pgChannel.close();
+            pgChannel = null;
+        }
+    }
+}
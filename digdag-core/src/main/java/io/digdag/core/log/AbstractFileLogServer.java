@@ -36,6 +36,12 @@ public abstract class AbstractFileLogServer
 
     protected abstract void putFile(String dateDir, String attemptDir, String fileName, byte[] gzData);
 
+    protected void putFile(String dateDir, String attemptDir, String fileName, Path gzFile)
+        throws IOException
+    {
+        putFile(dateDir, attemptDir, fileName, Files.readAllBytes(gzFile));
+    }
+
     protected abstract byte[] getFile(String dateDir, String attemptDir, String fileName)
             throws StorageFileNotFoundException;
 
@@ -67,6 +73,19 @@ public abstract class AbstractFileLogServer
         return fileName;
     }
 
+    @Override
+    public String putFile(LogFilePrefix prefix, String taskName, Instant firstLogTime, String agentId, Path gzFile)
+        throws IOException
+    {
+        String dateDir = LogFiles.formatDataDir(prefix);
+        String attemptDir = LogFiles.formatSessionAttemptDir(prefix);
+        String fileName = LogFiles.formatFileName(taskName, firstLogTime, agentId);
+
+        putFile(dateDir, attemptDir, fileName, gzFile);
+
+        return fileName;
+    }
+
     @Override
     public byte[] getFile(LogFilePrefix prefix, String fileName)
             throws StorageFileNotFoundException
@@ -1,49 +1,84 @@
 package io.digdag.core.log;
 
+import java.time.Duration;
 import java.time.Instant;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
 import java.util.zip.GZIPOutputStream;
-import java.io.InputStream;
-import java.io.OutputStream;
 import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
 import java.util.concurrent.locks.ReentrantReadWriteLock.ReadLock;
 import java.util.concurrent.locks.ReentrantReadWriteLock.WriteLock;
-import java.time.Instant;
+import com.google.common.base.Optional;
 import com.google.common.base.Throwables;
-import com.google.common.io.ByteStreams;
 import io.digdag.core.TempFileManager;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import static java.nio.charset.StandardCharsets.UTF_8;
 
 public class BufferedRemoteTaskLogger
     implements TaskLogger
 {
+    private static final Logger logger = LoggerFactory.getLogger(BufferedRemoteTaskLogger.class);
+
     public static interface Uploader
     {
-        void upload(Instant firstLogTime, byte[] gzData);
+        void upload(Instant firstLogTime, Path gzFile)
+            throws IOException;
     }
 
-    private static final int UPLOAD_THRESHOLD = 16 * 1024 * 1024;
+    public static final int DEFAULT_FLUSH_SIZE = 1024 * 1024;
+    public static final Duration DEFAULT_FLUSH_INTERVAL = Duration.ofSeconds(60);
 
     private final TempFileManager tempFiles;
     private final String tempFilePrefix;
     private final Uploader uploader;
+    private final int flushSize;
+    private final Duration flushInterval;
     private final ReentrantReadWriteLock lock;
     private final ReadLock logAppendLock;
-    private final WriteLock logUploadLock;
+    private final WriteLock logSwapLock;
+    private final Object uploadLock = new Object();
+    private final List<CountingLogOutputStream> pendingFiles = new ArrayList<>();  // guarded by uploadLock
+    private final ScheduledFuture<?> flushSchedule;
     private volatile CountingLogOutputStream currentFile = null;
     private volatile boolean closed;
+    private Instant lastFirstLogTime = Instant.EPOCH;
 
     public BufferedRemoteTaskLogger(TempFileManager tempFiles, String tempFilePrefix,
             Uploader uploader)
+    {
+        this(tempFiles, tempFilePrefix, uploader,
+                DEFAULT_FLUSH_SIZE, DEFAULT_FLUSH_INTERVAL, Optional.absent());
+    }
+
+    public BufferedRemoteTaskLogger(TempFileManager tempFiles, String tempFilePrefix,
+            Uploader uploader, int flushSize, Duration flushInterval,
+            Optional<ScheduledExecutorService> flushScheduler)
     {
         this.tempFiles = tempFiles;
         this.tempFilePrefix = tempFilePrefix;
         this.uploader = uploader;
+        this.flushSize = flushSize;
+        this.flushInterval = flushInterval;
         this.lock = new ReentrantReadWriteLock();
         this.logAppendLock = lock.readLock();
-        this.logUploadLock = lock.writeLock();
+        this.logSwapLock = lock.writeLock();
+        if (flushScheduler.isPresent()) {
+            // a task that stops writing logs (e.g. waiting for a long query)
+            // still ships what it wrote so far within about flushInterval.
+            long millis = Math.max(flushInterval.toMillis(), 1);
+            this.flushSchedule = flushScheduler.get().scheduleWithFixedDelay(
+                    this::flushExpired, millis, millis, TimeUnit.MILLISECONDS);
+        }
+        else {
+            this.flushSchedule = null;
+        }
     }
 
     @Override
@@ -56,27 +91,31 @@ public class BufferedRemoteTaskLogger
     @Override
     public void log(byte[] data, int off, int len)
     {
+        boolean uploadAfterUnlock = false;
+        logAppendLock.lock();
         try {
-            boolean uploadAfterUnlock = false;
-            logAppendLock.lock();
-            try {
-                openCurrentFile();
-                currentFile.write(data, off, len);
-                if (currentFile.getUncompressedSize() > UPLOAD_THRESHOLD) {
-                    uploadAfterUnlock = true;
-                }
-            }
-            finally {
-                logAppendLock.unlock();
-            }
-            if (uploadAfterUnlock) {
-                tryUpload(false);
+            openCurrentFile();
+            currentFile.write(data, off, len);
+            if (isFlushRequired(currentFile, Instant.now())) {
+                uploadAfterUnlock = true;
             }
         }
         catch (IOException ex) {
             // here can do almost nothing. adding logs to logger causes infinite loop
             throw Throwables.propagate(ex);
         }
+        finally {
+            logAppendLock.unlock();
+        }
+        if (uploadAfterUnlock) {
+            try {
+                tryUpload(false);
+            }
+            catch (IOException | RuntimeException ex) {
+                // failed chunks are kept and uploaded again at the next flush.
+                // adding logs to logger here causes infinite loop.
+            }
+        }
     }
 
     private void openCurrentFile()
@@ -89,50 +128,113 @@ public class BufferedRemoteTaskLogger
                         throw new IOException("Task logger is already closed");
                     }
                     currentFile = new CountingLogOutputStream(
-                            tempFiles.createTempFile("logs", tempFilePrefix, ".log.gz").get()
-                            );
+                            tempFiles.createTempFile("logs", tempFilePrefix, ".log.gz").get(),
+                            nextFirstLogTime());
                 }
             }
         }
     }
 
+    // File names of the uploaded chunks are ordered by firstLogTime. This keeps
+    // them strictly increasing even if 2 chunks are opened within the clock resolution.
+    private Instant nextFirstLogTime()
+    {
+        Instant now = Instant.now();
+        if (!now.isAfter(lastFirstLogTime)) {
+            now = lastFirstLogTime.plusNanos(1);
+        }
+        lastFirstLogTime = now;
+        return now;
+    }
+
+    private boolean isFlushRequired(CountingLogOutputStream file, Instant now)
+    {
+        return file.getUncompressedSize() > flushSize ||
+            !file.getOpenTime().plus(flushInterval).isAfter(now);
+    }
+
+    private void flushExpired()
+    {
+        try {
+            tryUpload(false);
+        }
+        catch (Throwable ex) {
+            logger.warn("Failed to upload task logs. Retrying at the next flush.", ex);
+        }
+    }
+
     private void tryUpload(boolean atClose)
         throws IOException
     {
-        logUploadLock.lock();
-        try {
-            if (currentFile != null && (atClose || currentFile.getUncompressedSize() > UPLOAD_THRESHOLD)) {
-                currentFile.close();
-                Path path = currentFile.getPath();
-                Instant firstLogTime = currentFile.getOpenTime();
-                currentFile = null;
-
-                byte[] gzData;
-                try (InputStream in = Files.newInputStream(path)) {
-                    gzData = ByteStreams.toByteArray(in);
+        // uploads are serialized so that close() returns after all chunks are uploaded.
+        // Appending logs is blocked only while the current file is being swapped.
+        synchronized (uploadLock) {
+            CountingLogOutputStream file;
+            logSwapLock.lock();
+            try {
+                file = currentFile;
+                if (file != null && (atClose || isFlushRequired(file, Instant.now()))) {
+                    currentFile = null;
                 }
+                else {
+                    file = null;
+                }
+                if (atClose) {
+                    closed = true;
+                }
+            }
+            finally {
+                logSwapLock.unlock();
+            }
 
-                uploader.upload(firstLogTime, gzData);
-                Files.deleteIfExists(path);
+            if (file != null) {
+                file.close();
+                pendingFiles.add(file);
             }
-            if (atClose) {
-                closed = true;
+
+            // A chunk that failed to upload stays in pendingFiles until an upload
+            // succeeds. Chunks are uploaded in order so that a failed chunk doesn't
+            // get behind its following chunks.
+            while (!pendingFiles.isEmpty()) {
+                CountingLogOutputStream pending = pendingFiles.get(0);
+                uploader.upload(pending.getOpenTime(), pending.getPath());
+                pendingFiles.remove(0);
+                Files.deleteIfExists(pending.getPath());
             }
         }
-        finally {
-            logUploadLock.unlock();
+    }
+
+    private void deletePendingFiles()
+    {
+        synchronized (uploadLock) {
+            for (CountingLogOutputStream pending : pendingFiles) {
+                try {
+                    Files.deleteIfExists(pending.getPath());
+                }
+                catch (IOException ex) {
+                    // ignore. adding logs to logger here causes infinite loop
+                }
+            }
+            pendingFiles.clear();
         }
     }
 
     @Override
     public void close()
     {
+        if (flushSchedule != null) {
+            flushSchedule.cancel(false);
+        }
         try {
             tryUpload(true);
         }
         catch (IOException ex) {
             throw Throwables.propagate(ex);
         }
+        finally {
+            // there is no next flush after close
+            deletePendingFiles();
+        }
     }
 
     private static class CountingLogOutputStream
@@ -142,13 +244,13 @@ public class BufferedRemoteTaskLogger
         private final Instant openTime;
         private int count;
 
-        public CountingLogOutputStream(Path path)
+        public CountingLogOutputStream(Path path, Instant openTime)
             throws IOException
         {
             super(Files.newOutputStream(path), 8*1024);
             this.def.setLevel(9);
             this.path = path;
-            this.openTime = Instant.now();
+            this.openTime = openTime;
         }
 
         @Override
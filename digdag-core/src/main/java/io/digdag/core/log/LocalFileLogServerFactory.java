@@ -99,6 +99,15 @@ public class LocalFileLogServerFactory
             }
         }
 
+        @Override
+        protected void putFile(String dateDir, String attemptDir, String fileName, Path gzFile)
+            throws IOException
+        {
+            Path dir = getPrefixDir(dateDir, attemptDir);
+            Files.createDirectories(dir);
+            Files.copy(gzFile, dir.resolve(fileName));
+        }
+
         @Override
         protected void listFiles(String dateDir, String attemptDir, FileMetadataConsumer consumer)
         {
@@ -1,14 +1,23 @@
 package io.digdag.core.log;
 
 import java.util.List;
+import java.util.ArrayList;
 import java.util.Comparator;
 import java.util.Collections;
 import java.time.Instant;
 import java.time.ZoneId;
 import java.time.format.DateTimeFormatter;
+import java.util.function.BooleanSupplier;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+import java.io.ByteArrayOutputStream;
 import com.google.common.base.Optional;
+import com.google.common.base.Throwables;
+import io.digdag.spi.LogServer;
 import io.digdag.spi.LogFilePrefix;
 import io.digdag.spi.LogFileHandle;
+import io.digdag.spi.StorageFileNotFoundException;
 import static java.util.Locale.ENGLISH;
 import static java.nio.charset.StandardCharsets.UTF_8;
 
@@ -113,4 +122,231 @@ public class LogFiles
         });
         return handles;
     }
+
+    /**
+     * Reads logs of a task after a cursor.
+     *
+     * A log file consists of one or more gzip members (chunks) because
+     * a local log server appends a chunk at every flush. The cursor points
+     * to a chunk by its compressed offset in the file so that reading the
+     * following logs doesn't decompress the file from the beginning.
+     *
+     * The last line of the last file may be still incomplete. It's returned
+     * only if logComplete returns true, which is checked only when needed.
+     */
+    public static LogTail readLogTail(LogServer logServer, LogFilePrefix prefix, String taskName,
+            Optional<String> fileName, long offset, long chunkOffset,
+            BooleanSupplier logComplete, int maxSize)
+        throws StorageFileNotFoundException
+    {
+        List<LogFileHandle> handles = new ArrayList<>();
+        for (LogFileHandle handle : logServer.getFileHandles(prefix, Optional.of(taskName))) {
+            // getFileHandles matches task name by prefix
+            if (handle.getTaskName().equals(taskName)) {
+                handles.add(handle);
+            }
+        }
+
+        // file names of a task are ordered by first log time. Files before
+        // the cursor are already read.
+        Optional<String> cursorFile = fileName;
+        long cursorOffset = offset;
+        long cursorChunkOffset = chunkOffset;
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        boolean more = false;
+
+        for (int i = 0; i < handles.size() && !more; i++) {
+            String name = handles.get(i).getFileName();
+            long size = handles.get(i).getFileSize();
+            long start;
+            long skip;
+            if (!cursorFile.isPresent() || name.compareTo(cursorFile.get()) > 0) {
+                start = 0;
+                skip = 0;
+            }
+            else if (name.equals(cursorFile.get())) {
+                if (size <= cursorOffset) {
+                    // the cursor is at the end of this file and the file
+                    // didn't grow. Skip downloading it.
+                    continue;
+                }
+                start = cursorOffset;
+                skip = cursorChunkOffset;
+            }
+            else {
+                continue;
+            }
+            boolean lastFile = (i == handles.size() - 1);
+
+            List<Chunk> chunks = decompressChunks(logServer.getFile(prefix, name), (int) start);
+            for (int c = 0; c < chunks.size(); c++) {
+                Chunk chunk = chunks.get(c);
+                byte[] data = chunk.data;
+                int from = (c == 0) ? (int) Math.min(skip, data.length) : 0;
+
+                // the last chunk may be followed by the rest of its last line.
+                // Return only complete lines unless the task wrote all logs.
+                int end = data.length;
+                if (lastFile && c == chunks.size() - 1 && end > from && data[end - 1] != '\n') {
+                    if (!logComplete.getAsBoolean()) {
+                        end = Math.max(lastIndexOfLineEnd(data, from, end) + 1, from);
+                    }
+                }
+
+                int limit = maxSize - out.size();
+                if (end - from > limit) {
+                    int lineEnd = lastIndexOfLineEnd(data, from, from + limit) + 1;
+                    end = (lineEnd > from || out.size() > 0) ? Math.max(lineEnd, from) : from + limit;
+                    more = true;
+                }
+
+                out.write(data, from, end - from);
+                cursorFile = Optional.of(name);
+                if (end == data.length) {
+                    cursorOffset = chunk.end;
+                    cursorChunkOffset = 0;
+                }
+                else {
+                    cursorOffset = chunk.start;
+                    cursorChunkOffset = end;
+                }
+
+                if (more || end < data.length) {
+                    break;
+                }
+            }
+        }
+
+        return LogTail.builder()
+            .fileName(cursorFile)
+            .offset(cursorOffset)
+            .chunkOffset(cursorChunkOffset)
+            .data(out.toByteArray())
+            .more(more)
+            .build();
+    }
+
+    private static class Chunk
+    {
+        // compressed range of the gzip member in the file
+        private final long start;
+        private final long end;
+        private final byte[] data;
+
+        Chunk(long start, long end, byte[] data)
+        {
+            this.start = start;
+            this.end = end;
+            this.data = data;
+        }
+    }
+
+    private static final int GZIP_MAGIC = 0x8b1f;
+    private static final int FHCRC = 2;
+    private static final int FEXTRA = 4;
+    private static final int FNAME = 8;
+    private static final int FCOMMENT = 16;
+
+    // Decompresses gzip members of gzData from start one by one.
+    // An incomplete member at the end is ignored because a file could be
+    // still being written by a local task logger.
+    private static List<Chunk> decompressChunks(byte[] gzData, int start)
+    {
+        List<Chunk> chunks = new ArrayList<>();
+        int pos = start;
+        Inflater inflater = new Inflater(true);
+        try {
+            while (pos < gzData.length) {
+                int dataStart = skipGzipHeader(gzData, pos);
+                if (dataStart < 0) {
+                    break;
+                }
+                inflater.reset();
+                inflater.setInput(gzData, dataStart, gzData.length - dataStart);
+                ByteArrayOutputStream out = new ByteArrayOutputStream();
+                byte[] buffer = new byte[32*1024];
+                while (!inflater.finished()) {
+                    int n = inflater.inflate(buffer);
+                    if (n == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                        break;
+                    }
+                    out.write(buffer, 0, n);
+                }
+                // 8-byte trailer of CRC32 and size follows compressed data
+                int end = gzData.length - inflater.getRemaining() + 8;
+                if (!inflater.finished() || end > gzData.length) {
+                    break;
+                }
+                byte[] data = out.toByteArray();
+                CRC32 crc = new CRC32();
+                crc.update(data);
+                if (readInt(gzData, end - 8) != (int) crc.getValue()) {
+                    throw new IllegalStateException("Corrupted gzip data: CRC mismatch");
+                }
+                chunks.add(new Chunk(pos, end, data));
+                pos = end;
+            }
+        }
+        catch (DataFormatException ex) {
+            throw Throwables.propagate(ex);
+        }
+        finally {
+            inflater.end();
+        }
+        return chunks;
+    }
+
+    // returns the position of compressed data, or -1 if the header is incomplete
+    private static int skipGzipHeader(byte[] gzData, int pos)
+    {
+        if (gzData.length - pos < 10) {
+            return -1;
+        }
+        if (((gzData[pos] & 0xff) | ((gzData[pos + 1] & 0xff) << 8)) != GZIP_MAGIC) {
+            throw new IllegalStateException("Not in gzip format");
+        }
+        int flags = gzData[pos + 3] & 0xff;
+        int p = pos + 10;
+        if ((flags & FEXTRA) != 0) {
+            if (gzData.length - p < 2) {
+                return -1;
+            }
+            p += 2 + ((gzData[p] & 0xff) | ((gzData[p + 1] & 0xff) << 8));
+        }
+        if ((flags & FNAME) != 0) {
+            p = skipZeroTerminated(gzData, p);
+        }
+        if ((flags & FCOMMENT) != 0) {
+            p = skipZeroTerminated(gzData, p);
+        }
+        if ((flags & FHCRC) != 0) {
+            p += 2;
+        }
+        return p < gzData.length ? p : -1;
+    }
+
+    private static int skipZeroTerminated(byte[] data, int p)
+    {
+        while (p < data.length && data[p] != 0) {
+            p++;
+        }
+        return p + 1;
+    }
+
+    private static int readInt(byte[] data, int p)
+    {
+        return (data[p] & 0xff) | ((data[p + 1] & 0xff) << 8) |
+            ((data[p + 2] & 0xff) << 16) | ((data[p + 3] & 0xff) << 24);
+    }
+
+    // returns index of the last '\n' in data[from, end), or -1
+    private static int lastIndexOfLineEnd(byte[] data, int from, int end)
+    {
+        for (int i = end - 1; i >= from; i--) {
+            if (data[i] == '\n') {
+                return i;
+            }
+        }
+        return -1;
+    }
 }
@@ -1,6 +1,12 @@
 package io.digdag.core.log;
 
+import java.time.Duration;
 import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import javax.annotation.PreDestroy;
+import com.google.common.base.Optional;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import com.google.inject.Inject;
 import io.digdag.core.session.StoredSessionAttemptWithSession;
 import io.digdag.spi.LogServer;
@@ -20,6 +26,9 @@ public class LogServerManager
 {
     private final LogServer logServer;
     private final TempFileManager tempFiles;
+    private final int flushSize;
+    private final Duration flushInterval;
+    private final ScheduledExecutorService flushScheduler;
 
     @Inject
     public LogServerManager(Set<LogServerFactory> factories, Config systemConfig, TempFileManager tempFiles,
@@ -34,6 +43,24 @@ public class LogServerManager
             this.logServer = factory.getLogServer();
         }
         this.tempFiles = tempFiles;
+        this.flushSize = systemConfig.get("log-server.flushSize", int.class, BufferedRemoteTaskLogger.DEFAULT_FLUSH_SIZE);
+        this.flushInterval = Duration.ofSeconds(
+                systemConfig.get("log-server.flushInterval", long.class, BufferedRemoteTaskLogger.DEFAULT_FLUSH_INTERVAL.getSeconds()));
+        if (flushSize <= 0 || flushInterval.isNegative() || flushInterval.isZero()) {
+            throw new ConfigException("log-server.flushSize and log-server.flushInterval must be positive");
+        }
+        this.flushScheduler = Executors.newSingleThreadScheduledExecutor(
+                new ThreadFactoryBuilder()
+                .setDaemon(true)
+                .setNameFormat("log-flush-%d")
+                .build()
+                );
+    }
+
+    @PreDestroy
+    public void shutdown()
+    {
+        flushScheduler.shutdown();
     }
 
     private static LogServerFactory findLogServer(Set<LogServerFactory> factories, String type)
@@ -78,9 +105,10 @@ public class LogServerManager
         }
         else {
             return new BufferedRemoteTaskLogger(tempFiles, taskName,
-                    (firstLogTime, gzData) -> {
-                        logServer.putFile(prefix, taskName, firstLogTime, agentId.toString(), gzData);
-                    });
+                    (firstLogTime, gzFile) -> {
+                        logServer.putFile(prefix, taskName, firstLogTime, agentId.toString(), gzFile);
+                    },
+                    flushSize, flushInterval, Optional.of(flushScheduler));
         }
     }
 
@@ -0,0 +1,31 @@
+package io.digdag.core.log;
+
+import com.google.common.base.Optional;
+import org.immutables.value.Value;
+
+@Value.Immutable
+public interface LogTail
+{
+    // cursor to read the following logs. fileName is absent if no logs are written yet.
+    Optional<String> getFileName();
+
+    // compressed offset of the chunk (gzip member) in the file where the
+    // following logs start. A file whose size equals to this offset has no
+    // new data and is not read again.
+    long getOffset();
+
+    // decompressed bytes of the chunk at offset that are already read.
+    long getChunkOffset();
+
+    // decompressed log lines. This never ends with an incomplete line
+    // unless the line is followed by more logs or the task wrote all logs.
+    byte[] getData();
+
+    // true if data is truncated because of size limit.
+    boolean getMore();
+
+    static ImmutableLogTail.Builder builder()
+    {
+        return ImmutableLogTail.builder();
+    }
+}
@@ -4,6 +4,8 @@ import java.io.InputStream;
 import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.FileNotFoundException;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import com.google.common.io.ByteStreams;
 import com.google.common.base.Optional;
 import com.google.common.base.Throwables;
@@ -49,6 +51,14 @@ public class StorageFileLogServer
         }
     }
 
+    @Override
+    protected void putFile(String dateDir, String attemptDir, String fileName, Path gzFile)
+        throws IOException
+    {
+        String path = getPrefixDir(dateDir, attemptDir) + fileName;
+        storage.put(path, Files.size(gzFile), () -> Files.newInputStream(gzFile));
+    }
+
     @Override
     protected byte[] getFile(String dateDir, String attemptDir, String fileName)
         throws StorageFileNotFoundException
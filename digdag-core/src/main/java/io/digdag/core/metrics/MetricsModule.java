@@ -0,0 +1,15 @@
+package io.digdag.core.metrics;
+
+import com.google.inject.Binder;
+import com.google.inject.Module;
+import com.google.inject.Scopes;
+
+public class MetricsModule
+        implements Module
+{
+    @Override
+    public void configure(Binder binder)
+    {
+        binder.bind(MetricsRegistry.class).in(Scopes.SINGLETON);
+    }
+}
@@ -0,0 +1,309 @@
+package io.digdag.core.metrics;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.DoubleAdder;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.DoubleSupplier;
+import java.util.function.Supplier;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Registry of engine metrics.
+ *
+ * Components get counters and histograms from this registry when they're
+ * created and update them without locking. Gauges are evaluated when
+ * metrics are collected. {@link #toPrometheusText()} writes all metrics in
+ * Prometheus text exposition format (version 0.0.4).
+ *
+ * A metric is identified by name and an optional label. Getting a metric
+ * with the same name and label returns the same instance.
+ */
+public class MetricsRegistry
+{
+    private static final Logger logger = LoggerFactory.getLogger(MetricsRegistry.class);
+
+    public static final String PROMETHEUS_CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+
+    // seconds
+    private static final double[] DEFAULT_BUCKETS = new double[] {
+        0.001, 0.005, 0.01, 0.05, 0.1, 0.5, 1.0, 5.0, 10.0, 60.0,
+    };
+
+    private enum Type
+    {
+        COUNTER("counter"),
+        GAUGE("gauge"),
+        HISTOGRAM("histogram");
+
+        private final String name;
+
+        Type(String name)
+        {
+            this.name = name;
+        }
+    }
+
+    private interface Metric
+    {
+        void write(StringBuilder sb, String name, String labels);
+    }
+
+    private static class Family
+    {
+        private final Type type;
+        private final String help;
+        private final ConcurrentMap<String, Metric> metrics = new ConcurrentSkipListMap<>();  // {labels => metric}
+
+        Family(Type type, String help)
+        {
+            this.type = type;
+            this.help = help;
+        }
+    }
+
+    private final ConcurrentMap<String, Family> families = new ConcurrentSkipListMap<>();
+
+    public Counter counter(String name, String help)
+    {
+        return (Counter) getOrCreate(Type.COUNTER, name, help, "", Counter::new);
+    }
+
+    public Counter counter(String name, String help, String labelName, String labelValue)
+    {
+        return (Counter) getOrCreate(Type.COUNTER, name, help, formatLabel(labelName, labelValue), Counter::new);
+    }
+
+    public Histogram histogram(String name, String help)
+    {
+        return (Histogram) getOrCreate(Type.HISTOGRAM, name, help, "", () -> new Histogram(DEFAULT_BUCKETS));
+    }
+
+    public Histogram histogram(String name, String help, String labelName, String labelValue)
+    {
+        return (Histogram) getOrCreate(Type.HISTOGRAM, name, help, formatLabel(labelName, labelValue), () -> new Histogram(DEFAULT_BUCKETS));
+    }
+
+    // registering a gauge again replaces the function
+    public void gauge(String name, String help, DoubleSupplier function)
+    {
+        getFamily(Type.GAUGE, name, help).metrics.put("", new Gauge(function));
+    }
+
+    public void gauge(String name, String help, String labelName, String labelValue, DoubleSupplier function)
+    {
+        getFamily(Type.GAUGE, name, help).metrics.put(formatLabel(labelName, labelValue), new Gauge(function));
+    }
+
+    public String toPrometheusText()
+    {
+        StringBuilder sb = new StringBuilder();
+        for (Map.Entry<String, Family> pair : families.entrySet()) {
+            String name = pair.getKey();
+            Family family = pair.getValue();
+            sb.append("# HELP ").append(name).append(' ').append(escapeHelp(family.help)).append('\n');
+            sb.append("# TYPE ").append(name).append(' ').append(family.type.name).append('\n');
+            for (Map.Entry<String, Metric> metric : family.metrics.entrySet()) {
+                metric.getValue().write(sb, name, metric.getKey());
+            }
+        }
+        return sb.toString();
+    }
+
+    private Metric getOrCreate(Type type, String name, String help, String labels,
+            Supplier<Metric> factory)
+    {
+        return getFamily(type, name, help).metrics.computeIfAbsent(labels, (key) -> factory.get());
+    }
+
+    private Family getFamily(Type type, String name, String help)
+    {
+        Family family = families.computeIfAbsent(name, (key) -> new Family(type, help));
+        if (family.type != type) {
+            throw new IllegalArgumentException(String.format(
+                        "Metric %s is already registered as a %s", name, family.type.name));
+        }
+        return family;
+    }
+
+    private static String formatLabel(String labelName, String labelValue)
+    {
+        return labelName + "=\"" + escapeLabelValue(labelValue) + "\"";
+    }
+
+    private static String escapeHelp(String help)
+    {
+        return help.replace("\\", "\\\\").replace("\n", "\\n");
+    }
+
+    private static String escapeLabelValue(String value)
+    {
+        return value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+    }
+
+    private static void writeSample(StringBuilder sb, String name, String labels, String value)
+    {
+        sb.append(name);
+        if (!labels.isEmpty()) {
+            sb.append('{').append(labels).append('}');
+        }
+        sb.append(' ').append(value).append('\n');
+    }
+
+    private static String formatDouble(double value)
+    {
+        if (value == Double.POSITIVE_INFINITY) {
+            return "+Inf";
+        }
+        else if (value == Double.NEGATIVE_INFINITY) {
+            return "-Inf";
+        }
+        else if (value == Math.rint(value) && Math.abs(value) < 1e15) {
+            return Long.toString((long) value);
+        }
+        else {
+            return Double.toString(value);
+        }
+    }
+
+    public static class Counter
+            implements Metric
+    {
+        private final LongAdder value = new LongAdder();
+
+        public void inc()
+        {
+            value.increment();
+        }
+
+        public void inc(long n)
+        {
+            value.add(n);
+        }
+
+        public long get()
+        {
+            return value.sum();
+        }
+
+        @Override
+        public void write(StringBuilder sb, String name, String labels)
+        {
+            writeSample(sb, name, labels, Long.toString(get()));
+        }
+    }
+
+    private static class Gauge
+            implements Metric
+    {
+        private final DoubleSupplier function;
+
+        Gauge(DoubleSupplier function)
+        {
+            this.function = function;
+        }
+
+        @Override
+        public void write(StringBuilder sb, String name, String labels)
+        {
+            double value;
+            try {
+                value = function.getAsDouble();
+            }
+            catch (RuntimeException ex) {
+                logger.warn("Failed to collect metric {}{}. Skipping.", name, labels.isEmpty() ? "" : "{" + labels + "}", ex);
+                return;
+            }
+            writeSample(sb, name, labels, formatDouble(value));
+        }
+    }
+
+    public static class Histogram
+            implements Metric
+    {
+        private final double[] upperBounds;
+        private final LongAdder[] bucketCounts;  // not cumulative. the last one is +Inf
+        private final DoubleAdder sum = new DoubleAdder();
+
+        Histogram(double[] upperBounds)
+        {
+            this.upperBounds = upperBounds;
+            this.bucketCounts = new LongAdder[upperBounds.length + 1];
+            for (int i = 0; i < bucketCounts.length; i++) {
+                bucketCounts[i] = new LongAdder();
+            }
+        }
+
+        public void observe(double seconds)
+        {
+            int i = 0;
+            while (i < upperBounds.length && seconds > upperBounds[i]) {
+                i++;
+            }
+            bucketCounts[i].increment();
+            sum.add(seconds);
+        }
+
+        public void observeNanos(long nanos)
+        {
+            observe(nanos / (double) TimeUnit.SECONDS.toNanos(1));
+        }
+
+        public Timer start()
+        {
+            return new Timer(this);
+        }
+
+        public long getCount()
+        {
+            long count = 0;
+            for (LongAdder c : bucketCounts) {
+                count += c.sum();
+            }
+            return count;
+        }
+
+        public double getSum()
+        {
+            return sum.sum();
+        }
+
+        @Override
+        public void write(StringBuilder sb, String name, String labels)
+        {
+            String prefix = labels.isEmpty() ? "" : labels + ",";
+            long cumulative = 0;
+            for (int i = 0; i < upperBounds.length; i++) {
+                cumulative += bucketCounts[i].sum();
+                writeSample(sb, name + "_bucket", prefix + "le=\"" + formatDouble(upperBounds[i]) + "\"", Long.toString(cumulative));
+            }
+            cumulative += bucketCounts[upperBounds.length].sum();
+            writeSample(sb, name + "_bucket", prefix + "le=\"+Inf\"", Long.toString(cumulative));
+            writeSample(sb, name + "_sum", labels, Double.toString(getSum()));
+            writeSample(sb, name + "_count", labels, Long.toString(cumulative));
+        }
+    }
+
+    // try (Timer timer = histogram.start()) { ... } observes the elapsed time of the block
+    public static class Timer
+            implements AutoCloseable
+    {
+        private final Histogram histogram;
+        private final long startNanos;
+
+        private Timer(Histogram histogram)
+        {
+            this.histogram = histogram;
+            this.startNanos = System.nanoTime();
+        }
+
+        @Override
+        public void close()
+        {
+            histogram.observeNanos(System.nanoTime() - startNanos);
+        }
+    }
+}
@@ -0,0 +1,47 @@
+package io.digdag.core.queue;
+
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+public class LocalTaskSignalChannel
+        implements TaskSignalChannel
+{
+    private static final Logger logger = LoggerFactory.getLogger(LocalTaskSignalChannel.class);
+
+    private final Map<Signal, List<Runnable>> listeners = new EnumMap<>(Signal.class);
+
+    public LocalTaskSignalChannel()
+    {
+        for (Signal signal : Signal.values()) {
+            listeners.put(signal, new CopyOnWriteArrayList<>());
+        }
+    }
+
+    @Override
+    public void publish(Signal signal)
+    {
+        deliver(signal);
+    }
+
+    @Override
+    public void subscribe(Signal signal, Runnable listener)
+    {
+        listeners.get(signal).add(listener);
+    }
+
+    protected void deliver(Signal signal)
+    {
+        for (Runnable listener : listeners.get(signal)) {
+            try {
+                listener.run();
+            }
+            catch (RuntimeException ex) {
+                logger.warn("Uncaught exception in a listener of {} signal. Ignoring.", signal, ex);
+            }
+        }
+    }
+}
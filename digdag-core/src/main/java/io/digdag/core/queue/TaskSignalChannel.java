@@ -0,0 +1,28 @@
+package io.digdag.core.queue;
+
+/**
+ * A channel to wake up agents and workflow executors, including ones running
+ * on other servers, without waiting for their next poll.
+ *
+ * Signals are hints. A subscriber must not assume that a signal is delivered
+ * exactly once, or delivered at all; it only shortens the sleep of a poller.
+ * A published signal is delivered to subscribers in this process as well.
+ */
+public interface TaskSignalChannel
+{
+    enum Signal
+    {
+        // a task is added to a task queue
+        TASK_ENQUEUED,
+
+        // state of a task changed and status propagation is necessary
+        TASK_STATE_CHANGED,
+
+        // a change that is not visible to incremental status propagation happened
+        FULL_PROPAGATION_REQUESTED,
+    }
+
+    void publish(Signal signal);
+
+    void subscribe(Signal signal, Runnable listener);
+}
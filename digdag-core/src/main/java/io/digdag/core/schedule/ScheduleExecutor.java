@@ -4,6 +4,8 @@ import java.util.List;
 import java.util.ArrayList;
 import java.util.Locale;
 import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
@@ -16,6 +18,9 @@ import com.google.common.collect.ImmutableList;
 import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import io.digdag.spi.ScheduleTime;
 import io.digdag.spi.Scheduler;
+import io.digdag.client.config.Config;
+import io.digdag.client.config.ConfigException;
+import io.digdag.core.metrics.MetricsRegistry;
 import io.digdag.core.repository.ProjectStoreManager;
 import io.digdag.core.repository.ResourceConflictException;
 import io.digdag.core.repository.ResourceNotFoundException;
@@ -40,7 +45,12 @@ public class ScheduleExecutor
     private final SchedulerManager srm;
     private final ScheduleHandler handler;
     private final SessionStoreManager sessionStoreManager;  // used for validation at backfill
+    private final int threads;
+    private final int batchSize;
     private final ScheduledExecutorService executor;
+    private final MetricsRegistry.Histogram firedLagTime;
+    private final MetricsRegistry.Histogram skippedLagTime;
+    private final MetricsRegistry.Histogram failedLagTime;
 
     @Inject
     public ScheduleExecutor(
@@ -48,19 +58,39 @@ public class ScheduleExecutor
             ScheduleStoreManager sm,
             SchedulerManager srm,
             ScheduleHandler handler,
-            SessionStoreManager sessionStoreManager)
+            SessionStoreManager sessionStoreManager,
+            Config systemConfig,
+            MetricsRegistry metrics)
     {
         this.rm = rm;
         this.sm = sm;
         this.srm = srm;
         this.handler = handler;
         this.sessionStoreManager = sessionStoreManager;
-        this.executor = Executors.newSingleThreadScheduledExecutor(
+        // threads lock different schedules using SKIP LOCKED on PostgreSQL 9.5
+        // or later. H2 and older PostgreSQL don't support it and threads wait
+        // for each other.
+        this.threads = systemConfig.get("schedule.threads", int.class, 1);
+        this.batchSize = systemConfig.get("schedule.batchSize", int.class, 10);  // number of schedules locked in a transaction
+        if (threads <= 0 || batchSize <= 0) {
+            throw new ConfigException("schedule.threads and schedule.batchSize must be positive");
+        }
+        this.executor = Executors.newScheduledThreadPool(threads,
                 new ThreadFactoryBuilder()
                 .setDaemon(true)
                 .setNameFormat("scheduler-%d")
                 .build()
                 );
+        this.firedLagTime = lagTimeHistogram(metrics, "fired");
+        this.skippedLagTime = lagTimeHistogram(metrics, "skipped");
+        this.failedLagTime = lagTimeHistogram(metrics, "failed");
+    }
+
+    private static MetricsRegistry.Histogram lagTimeHistogram(MetricsRegistry metrics, String result)
+    {
+        return metrics.histogram("digdag_schedule_lag_seconds",
+                "Delay from the scheduled run time to the time when a schedule is processed",
+                "result", result);
     }
 
     @PreDestroy
@@ -72,16 +102,32 @@ public class ScheduleExecutor
 
     public void start()
     {
-        executor.scheduleWithFixedDelay(() -> run(),
-                1, 1, TimeUnit.SECONDS);
+        for (int i = 0; i < threads; i++) {
+            executor.scheduleWithFixedDelay(() -> run(),
+                    1, 1, TimeUnit.SECONDS);
+        }
     }
 
     public void run()
     {
         try {
-            sm.lockReadySchedules(Instant.now(), (store, storedSchedule) -> {
-                runSchedule(new ScheduleControl(store, storedSchedule));
-            });
+            // keep locking schedules while batches are full so that schedules
+            // due at the same time don't wait for the next interval. Only
+            // schedules whose next run time moved forward are counted.
+            // Otherwise a schedule that fails to update is locked again
+            // immediately and this loop never ends.
+            Set<Integer> updatedIds = new HashSet<>();
+            do {
+                updatedIds.clear();
+                sm.lockReadySchedules(Instant.now(), batchSize, (store, storedSchedule) -> {
+                    if (runSchedule(new ScheduleControl(store, storedSchedule))) {
+                        updatedIds.add(storedSchedule.getId());
+                    }
+                    else {
+                        logger.warn("Failed to update next schedule time. Retrying at the next interval: {}", storedSchedule);
+                    }
+                });
+            } while (updatedIds.size() >= batchSize && !executor.isShutdown());
         }
         catch (Throwable t) {
             logger.error("An uncaught exception is ignored. Scheduling will be retried.", t);
@@ -91,6 +137,7 @@ public class ScheduleExecutor
     private boolean runSchedule(ScheduleControl lockedSched)
     {
         StoredSchedule sched = lockedSched.get();
+        double lagSeconds = Math.max(Instant.now().toEpochMilli() - sched.getNextRunTime().toEpochMilli(), 0) / 1000.0;
 
         // TODO If a workflow has wait-until-last-schedule attribute, don't start
         //      new session and return a ScheduleTime with delayed nextRunTime and
@@ -101,17 +148,19 @@ public class ScheduleExecutor
             Scheduler sr = srm.getScheduler(def);
 
             try {
-                ScheduleTime nextTime = startSchedule(sched, sr, def);
+                ScheduleTime nextTime = startSchedule(sched, sr, def, lagSeconds);
                 return lockedSched.tryUpdateNextScheduleTimeAndLastSessionTime(nextTime, sched.getNextScheduleTime());
             }
             catch (ResourceConflictException ex) {
                 Exception error = new IllegalStateException("Detected duplicated excution of a scheduled workflow for the same scheduling time.", ex);
                 logger.error("Database state error during scheduling. Skipping this schedule: {}", sched, error);
+                skippedLagTime.observe(lagSeconds);
                 ScheduleTime nextTime = sr.nextScheduleTime(sched.getNextScheduleTime());
                 return lockedSched.tryUpdateNextScheduleTime(nextTime);
             }
             catch (RuntimeException ex) {
                 logger.error("Error during scheduling. Pending this schedule for 1 hour: {}", sched, ex);
+                failedLagTime.observe(lagSeconds);
                 ScheduleTime nextTime = ScheduleTime.of(
                         sched.getNextScheduleTime(),
                         sched.getNextRunTime().plusSeconds(3600));
@@ -121,6 +170,7 @@ public class ScheduleExecutor
         catch (ResourceNotFoundException ex) {
             Exception error = new IllegalStateException("Workflow for a schedule id=" + sched.getId() + " is scheduled but does not exist.", ex);
             logger.error("Database state error during scheduling. Pending this schedule for 1 hour: {}", sched, error);
+            failedLagTime.observe(lagSeconds);
             ScheduleTime nextTime = ScheduleTime.of(
                     sched.getNextScheduleTime(),
                     sched.getNextRunTime().plusSeconds(3600));
@@ -129,7 +179,7 @@ public class ScheduleExecutor
     }
 
     private ScheduleTime startSchedule(StoredSchedule sched, Scheduler sr,
-            StoredWorkflowDefinitionWithProject def)
+            StoredWorkflowDefinitionWithProject def, double lagSeconds)
         throws ResourceNotFoundException, ResourceConflictException
     {
         Instant scheduleTime = sched.getNextScheduleTime();
@@ -139,9 +189,11 @@ public class ScheduleExecutor
             handler.start(def,
                     ScheduleTime.of(scheduleTime, runTime),
                     Optional.absent());
+            firedLagTime.observe(lagSeconds);
         }
         catch (SessionAttemptConflictException ex) {
             logger.debug("Scheduled attempt {} is already executed. Skipping", ex.getConflictedSession());
+            skippedLagTime.observe(lagSeconds);
         }
         return sr.nextScheduleTime(scheduleTime);
     }
@@ -266,22 +318,17 @@ public class ScheduleExecutor
             }
 
             // confirm sessions with the same attemptName doesn't exist
-            for (Instant instant : instants) {
-                try {
-                    ss.getAttemptByName(def.getProject().getId(), def.getName(), instant, attemptName);
-                    throw new ResourceConflictException(String.format(Locale.ENGLISH,
-                                "Attempt of project id=%d workflow=%s instant=%s attempt name=%s already exists",
-                                def.getProject().getId(), def.getName(), instant, attemptName));
-                }
-                catch (ResourceNotFoundException ex) {
-                    // OK
-                }
+            List<Instant> conflictedInstants = ss.getSessionTimesWithAttemptName(def.getProject().getId(), def.getName(), instants, attemptName);
+            if (!conflictedInstants.isEmpty()) {
+                throw new ResourceConflictException(String.format(Locale.ENGLISH,
+                            "Attempt of project id=%d workflow=%s instant=%s attempt name=%s already exists",
+                            def.getProject().getId(), def.getName(), conflictedInstants.get(0), attemptName));
             }
 
             // run sessions
             ImmutableList.Builder<StoredSessionAttemptWithSession> attempts = ImmutableList.builder();
-            for (Instant instant : instants) {
-                if (dryRun) {
+            if (dryRun) {
+                for (Instant instant : instants) {
                     attempts.add(
                             StoredSessionAttemptWithSession.dryRunDummy(siteId,
                                 Session.of(def.getProject().getId(), def.getName(), instant),
@@ -298,18 +345,15 @@ public class ScheduleExecutor
                             )
                         );
                 }
-                else {
-                    try {
-                        StoredSessionAttemptWithSession attempt = handler.start(def,
-                                ScheduleTime.of(instant, sched.getNextScheduleTime()),
-                                Optional.of(attemptName));
-                        attempts.add(attempt);
-                    }
-                    catch (SessionAttemptConflictException ex) {
-                        // ignore because above start already committed other attempts. here can't rollback.
-                        logger.warn("Session attempt conflicted after validation", ex);
-                    }
+            }
+            else {
+                List<ScheduleTime> times = new ArrayList<>();
+                for (Instant instant : instants) {
+                    times.add(ScheduleTime.of(instant, sched.getNextScheduleTime()));
                 }
+                // attempts conflicted after the validation are skipped because
+                // attempts submitted before can't be rolled back.
+                attempts.addAll(handler.start(def, times, Optional.of(attemptName)));
             }
             return attempts.build();
         });
@@ -59,4 +59,19 @@ public class ScheduleHandler
         return exec.submitWorkflow(def.getProject().getSiteId(),
                 ar, def);
     }
+
+    // starts sessions in batches. Attempts that conflict with existing ones are skipped.
+    public List<StoredSessionAttemptWithSession> start(StoredWorkflowDefinitionWithProject def,
+            List<ScheduleTime> times, Optional<String> retryAttemptName)
+            throws ResourceNotFoundException
+    {
+        List<AttemptRequest> ars = attemptBuilder.buildFromStoredWorkflow(
+                def,
+                cf.create(),
+                times,
+                retryAttemptName);
+
+        return exec.submitWorkflows(def.getProject().getSiteId(),
+                ars, def);
+    }
 }
@@ -16,7 +16,10 @@ public interface ScheduleStoreManager
         void schedule(ScheduleControlStore store, StoredSchedule schedule);
     }
 
-    void lockReadySchedules(Instant currentTime, ScheduleAction func);
+    // locks at most limit schedules of next_run_time <= currentTime and
+    // calls func for each of them in a transaction. Returns number of
+    // locked schedules.
+    int lockReadySchedules(Instant currentTime, int limit, ScheduleAction func);
 
     interface ScheduleLockAction <T>
     {
@@ -11,6 +11,11 @@ public interface SessionControlStore
     StoredSessionAttempt insertAttempt(long sessionId, int projId, SessionAttempt attempt)
         throws ResourceConflictException, ResourceNotFoundException;
 
+    // inserts attempts.get(i) to sessionIds.get(i) using batch statements. returned
+    // attempts are in the same order with attempts.
+    List<StoredSessionAttempt> insertAttempts(List<Long> sessionIds, int projId, List<SessionAttempt> attempts)
+        throws ResourceConflictException, ResourceNotFoundException;
+
     StoredSessionAttempt getLastAttempt(long sessionId)
         throws ResourceNotFoundException;
 
@@ -37,8 +37,13 @@ public interface SessionStore
     List<StoredSessionAttemptWithSession> getOtherAttempts(long attemptId)
         throws ResourceNotFoundException;
 
+    // returns session times in the given list that already have an attempt named retryAttemptName
+    List<Instant> getSessionTimesWithAttemptName(int projectId, String workflowName, List<Instant> sessionTimes, String retryAttemptName);
+
     List<ArchivedTask> getTasksOfAttempt(long attemptId);
 
+    List<ArchivedTask> getTasksOfAttempt(long attemptId, int pageSize, Optional<Long> lastId);
+
     interface SessionLockAction <T>
     {
         T call(SessionControlStore store, StoredSession storedSession)
@@ -47,4 +52,15 @@ public interface SessionStore
 
     <T> T putAndLockSession(Session session, SessionLockAction<T> func)
         throws ResourceConflictException, ResourceNotFoundException;
+
+    interface SessionsLockAction <T>
+    {
+        T call(SessionControlStore store, List<StoredSession> storedSessions)
+            throws ResourceConflictException, ResourceNotFoundException;
+    }
+
+    // same with putAndLockSession but puts and locks sessions of a workflow in one transaction.
+    // storedSessions given to the action are in the same order with sessionTimes.
+    <T> T putAndLockSessions(int projectId, String workflowName, List<Instant> sessionTimes, SessionsLockAction<T> func)
+        throws ResourceConflictException, ResourceNotFoundException;
 }
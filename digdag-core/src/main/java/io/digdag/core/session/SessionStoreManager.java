@@ -1,6 +1,7 @@
 package io.digdag.core.session;
 
 import java.util.List;
+import java.util.Map;
 import java.time.Instant;
 import com.google.common.base.*;
 import io.digdag.client.config.Config;
@@ -28,7 +29,10 @@ public interface SessionStoreManager
     boolean isAnyNotDoneAttempts();
 
     // for WorkflowExecutor.enqueueReadyTasks
-    List<Long> findAllReadyTaskIds(int maxEntries);
+    List<TaskAttemptSummary> findReadyTasks(long lastId, int limit);
+
+    // for metrics of WorkflowExecutor
+    Map<TaskStateCode, Long> countTasksByState(List<TaskStateCode> states);
 
     interface AttemptLockAction <T>
     {
@@ -77,6 +81,9 @@ public interface SessionStoreManager
 
     List<TaskRelation> getTaskRelations(long attemptId);
 
+    // reads a counter updated when tasks are inserted instead of counting tasks
+    long getTaskCountOfAttempt(long attemptId);
+
     List<Config> getExportParams(List<Long> idList);
 
     List<Config> getStoreParams(List<Long> idList);
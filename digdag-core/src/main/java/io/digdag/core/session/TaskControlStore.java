@@ -13,6 +13,14 @@ public interface TaskControlStore
 
     long addSubtask(long attemptId, Task task);
 
+    // Adds tasks at once. Parent and upstreams of a task can refer to a task
+    // in the list by index because ids of the tasks are not known until they are
+    // added. parentIndexes.get(i) is the index of the parent of tasks.get(i), or
+    // absent to use Task.getParentId. A parent must appear before its children.
+    // Returns ids of the added tasks in the same order with tasks.
+    List<Long> addSubtasks(long attemptId, List<Task> tasks,
+            List<Optional<Integer>> parentIndexes, List<List<Integer>> upstreamIndexes);
+
     long addResumedSubtask(long attemptId, long parentId,
             TaskType taskType, TaskStateCode state, TaskStateFlags flags,
             ResumingTask resumingTask);
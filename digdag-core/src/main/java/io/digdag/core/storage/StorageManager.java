@@ -2,6 +2,9 @@ package io.digdag.core.storage;
 
 import java.util.Set;
 import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import javax.annotation.PreDestroy;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import com.google.inject.Inject;
@@ -13,11 +16,19 @@ import io.digdag.client.config.Config;
 import io.digdag.client.config.ConfigException;
 import io.digdag.spi.Storage;
 import io.digdag.spi.StorageFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 public class StorageManager
 {
+    private static final Logger logger = LoggerFactory.getLogger(StorageManager.class);
+
     private final Map<String, StorageFactory> registry;  // TODO this should be extracted to a class named StorageRegistry as like OperatorRegistry to support system plugins
 
+    // Storage instances hold clients with connection pools and threads.
+    // They are shared by all callers using the same configuration and closed at shutdown.
+    private final Map<StorageKey, Storage> storages = new ConcurrentHashMap<>();
+
     @Inject
     public StorageManager(Set<StorageFactory> factories)
     {
@@ -41,7 +52,49 @@ public class StorageManager
         if (factory == null) {
             throw new ConfigException("Unknown storage type: " + type);
         }
-        return factory.newStorage(config);
+        return storages.computeIfAbsent(new StorageKey(type, config), (key) -> factory.newStorage(config));
+    }
+
+    @PreDestroy
+    public void shutdown()
+    {
+        for (Storage storage : storages.values()) {
+            try {
+                storage.close();
+            }
+            catch (RuntimeException ex) {
+                logger.warn("Failed to close a storage. Ignoring.", ex);
+            }
+        }
+        storages.clear();
+    }
+
+    private static class StorageKey
+    {
+        private final String type;
+        private final Config config;
+
+        StorageKey(String type, Config config)
+        {
+            this.type = type;
+            this.config = config;
+        }
+
+        @Override
+        public boolean equals(Object other)
+        {
+            if (!(other instanceof StorageKey)) {
+                return false;
+            }
+            StorageKey o = (StorageKey) other;
+            return type.equals(o.type) && config.equals(o.config);
+        }
+
+        @Override
+        public int hashCode()
+        {
+            return Objects.hash(type, config);
+        }
     }
 
     public static Config extractKeyPrefix(Config config, String configKeyPrefix)
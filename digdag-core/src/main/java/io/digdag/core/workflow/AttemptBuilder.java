@@ -97,6 +97,33 @@ public class AttemptBuilder
             .build();
     }
 
+    // builds requests of multiple session times at once. The scheduler of the
+    // workflow is resolved only once.
+    public List<AttemptRequest> buildFromStoredWorkflow(
+            StoredWorkflowDefinitionWithProject def,
+            Config overwriteParams,
+            List<ScheduleTime> times,
+            Optional<String> retryAttemptName)
+    {
+        ZoneId timeZone = def.getTimeZone();
+        Optional<Scheduler> sr = schedulerManager.tryGetScheduler(def);
+        ImmutableList.Builder<AttemptRequest> builder = ImmutableList.builder();
+        for (ScheduleTime time : times) {
+            builder.add(ImmutableAttemptRequest.builder()
+                .stored(AttemptRequest.Stored.of(def))
+                .workflowName(def.getName())
+                .sessionMonitors(buildSessionMonitors(def, time.getRunTime(), timeZone))
+                .timeZone(timeZone)
+                .sessionParams(buildSessionParameters(overwriteParams, sr, time.getTime(), timeZone))
+                .retryAttemptName(retryAttemptName)
+                .sessionTime(time.getTime())
+                .resumingAttemptId(Optional.absent())
+                .resumingTasks(ImmutableList.of())
+                .build());
+        }
+        return builder.build();
+    }
+
     private List<SessionMonitor> buildSessionMonitors(WorkflowDefinition def, Instant runTime, ZoneId timeZone)
     {
         // TODO move this to WorkflowExecutor?
@@ -0,0 +1,58 @@
+package io.digdag.core.workflow;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import io.digdag.core.metrics.MetricsRegistry;
+import io.digdag.core.repository.StoredWorkflowDefinition;
+import io.digdag.core.repository.WorkflowDefinition;
+
+/**
+ * Caches compiled workflows of stored workflow definitions.
+ *
+ * A stored workflow definition is never updated once it's stored. Uploading a
+ * new revision creates new definitions with new ids. So the id of a definition
+ * identifies its config and the compiled workflow can be reused for all
+ * sessions of the definition, such as scheduled runs and backfills.
+ *
+ * Compiled workflows are shared. Callers must not modify configs of the tasks.
+ */
+public class CachedWorkflowCompiler
+{
+    private final WorkflowCompiler compiler;
+    private final Cache<Long, Workflow> cache;
+    private final MetricsRegistry.Counter hits;
+    private final MetricsRegistry.Counter misses;
+
+    public CachedWorkflowCompiler(WorkflowCompiler compiler, int cacheSize, MetricsRegistry metrics)
+    {
+        this.compiler = compiler;
+        this.cache = CacheBuilder.newBuilder()
+            .maximumSize(cacheSize)
+            .build();
+        this.hits = metrics.counter("digdag_executor_workflow_cache_total",
+                "Number of lookups of compiled workflows", "result", "hit");
+        this.misses = metrics.counter("digdag_executor_workflow_cache_total",
+                "Number of lookups of compiled workflows", "result", "miss");
+    }
+
+    public Workflow compile(WorkflowDefinition def)
+    {
+        if (!(def instanceof StoredWorkflowDefinition)) {
+            // config of a definition that isn't stored has no stable key
+            return compiler.compile(def.getName(), def.getConfig());
+        }
+
+        long id = ((StoredWorkflowDefinition) def).getId();
+        Workflow cached = cache.getIfPresent(id);
+        if (cached != null) {
+            hits.inc();
+            return cached;
+        }
+
+        // a workflow that fails to compile isn't cached. The error is thrown again next time.
+        misses.inc();
+        Workflow workflow = compiler.compile(def.getName(), def.getConfig());
+        cache.put(id, workflow);
+        return workflow;
+    }
+}
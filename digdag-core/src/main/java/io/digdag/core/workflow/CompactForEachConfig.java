@@ -0,0 +1,146 @@
+package io.digdag.core.workflow;
+
+import java.util.ArrayList;
+import java.util.List;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.google.common.collect.ImmutableList;
+import io.digdag.client.config.Config;
+import io.digdag.client.config.ConfigException;
+
+/**
+ * Compact representation of subtasks generated by for-each operators.
+ *
+ * Operators such as td_for_each> generate thousands of subtasks that differ
+ * only in export params. Copying _do config into each subtask makes the
+ * subtask config huge while it's built by an agent, sent to the server and
+ * stored in the database. Instead, the subtask config keeps the _do config
+ * once and the rows as arrays of values with column names:
+ *
+ * <pre>
+ * _compact_for_each:
+ *   template: {...}            # _do config
+ *   name_prefix: +td-for-each-
+ *   export_path: [td, each]    # rows are exported to _export.td.each
+ *   columns: [a, b]
+ *   rows: [[1, "x"], [2, "y"]]
+ * _parallel: true
+ * </pre>
+ *
+ * WorkflowExecutor expands it to regular subtasks right before compiling them.
+ * All rows are expanded at once because the executor inserts every generated
+ * task when the operator finishes. This reduces the size of the config sent
+ * by agents and stored in task_state_details, not the number of tasks.
+ */
+public final class CompactForEachConfig
+{
+    private CompactForEachConfig()
+    { }
+
+    public static final String KEY = "_compact_for_each";
+
+    public static Builder builder(Config template, String namePrefix, List<String> exportPath, List<String> columns)
+    {
+        return new Builder(template, namePrefix, exportPath, columns);
+    }
+
+    public static class Builder
+    {
+        private final Config template;
+        private final String namePrefix;
+        private final List<String> exportPath;
+        private final List<String> columns;
+        private final List<List<?>> rows = new ArrayList<>();
+        private boolean parallel = false;
+
+        private Builder(Config template, String namePrefix, List<String> exportPath, List<String> columns)
+        {
+            this.template = template;
+            this.namePrefix = namePrefix;
+            this.exportPath = ImmutableList.copyOf(exportPath);
+            this.columns = ImmutableList.copyOf(columns);
+        }
+
+        // values are in the same order with columns. null values are not exported.
+        public Builder addRow(List<?> row)
+        {
+            rows.add(row);
+            return this;
+        }
+
+        public int getRowCount()
+        {
+            return rows.size();
+        }
+
+        public Builder parallel(boolean parallel)
+        {
+            this.parallel = parallel;
+            return this;
+        }
+
+        public Config build()
+        {
+            Config compact = template.getFactory().create()
+                .setNested("template", template)
+                .set("name_prefix", namePrefix)
+                .set("export_path", exportPath)
+                .set("columns", columns)
+                .set("rows", rows);
+            Config subtasks = template.getFactory().create()
+                .setNested(KEY, compact);
+            if (parallel) {
+                subtasks.set("_parallel", true);
+            }
+            return subtasks;
+        }
+    }
+
+    public static boolean isCompact(Config subtaskConfig)
+    {
+        return subtaskConfig.has(KEY);
+    }
+
+    public static Config expand(Config subtaskConfig)
+    {
+        Config compact = subtaskConfig.getNested(KEY);
+        Config template = compact.getNested("template");
+        String namePrefix = compact.get("name_prefix", String.class);
+        List<String> exportPath = compact.getList("export_path", String.class);
+        List<String> columns = compact.getList("columns", String.class);
+        List<JsonNode> rows = compact.getList("rows", JsonNode.class);
+
+        Config expanded = subtaskConfig.getFactory().create();
+
+        for (int i = 0; i < rows.size(); i++) {
+            JsonNode row = rows.get(i);
+            if (!row.isArray()) {
+                throw new ConfigException("Row of " + KEY + " must be an array: " + row);
+            }
+
+            Config subtask = template.deepCopy();
+            Config export = subtask.getNestedOrSetEmpty("_export");
+            for (String key : exportPath) {
+                export = export.getNestedOrSetEmpty(key);
+            }
+
+            int n = Math.min(columns.size(), row.size());
+            for (int c = 0; c < n; c++) {
+                JsonNode value = row.get(c);
+                if (!value.isNull()) {
+                    export.set(columns.get(c), value);
+                }
+            }
+
+            expanded.setNested(namePrefix + i, subtask);
+        }
+
+        // other keys such as _parallel follow the generated tasks
+        for (String key : subtaskConfig.getKeys()) {
+            if (!key.equals(KEY)) {
+                expanded.set(key, subtaskConfig.get(key, JsonNode.class));
+            }
+        }
+
+        return expanded;
+    }
+}
@@ -98,6 +98,12 @@ public class TaskControl
             throw new TaskLimitExceededException("Too many tasks. Limit: " + Limits.maxWorkflowTasks() + ", Current: " + taskCount + ", Adding: " + tasks.size());
         }
 
+        boolean anyResumed = tasks.stream().anyMatch(wt -> resumingTaskMap.containsKey(wt.getFullName()));
+        if (!anyResumed) {
+            return addTasksInBulk(store, attemptId, parentTaskId, tasks, rootUpstreamIds,
+                    firstTaskIsRootStoredParentTask, isInitialTask);
+        }
+
         boolean firstTask = true;
         for (WorkflowTask wt : tasks) {
 
@@ -157,6 +163,51 @@ public class TaskControl
         return rootTaskId;
     }
 
+    private static long addTasksInBulk(TaskControlStore store,
+            long attemptId, long parentTaskId, WorkflowTaskList tasks, List<Long> rootUpstreamIds,
+            boolean firstTaskIsRootStoredParentTask, boolean isInitialTask)
+    {
+        // tasks.get(0) is skipped if it's the already-stored parent task. In that case,
+        // index i of WorkflowTaskList is index i - 1 of the list given to the store.
+        int offset = firstTaskIsRootStoredParentTask ? 1 : 0;
+
+        List<Task> newTasks = new ArrayList<>();
+        List<Optional<Integer>> parentIndexes = new ArrayList<>();
+        List<List<Integer>> upstreamIndexes = new ArrayList<>();
+        for (WorkflowTask wt : tasks.subList(offset, tasks.size())) {
+            Optional<Integer> parentIndex = wt.getParentIndex();
+            if (parentIndex.isPresent() && parentIndex.get() < offset) {
+                // parent is the stored root task
+                parentIndex = Optional.absent();
+            }
+            newTasks.add(Task.taskBuilder()
+                    .parentId(Optional.of(parentTaskId))
+                    .fullName(wt.getFullName())
+                    .config(TaskConfig.validate(wt.getConfig()))
+                    .taskType(wt.getTaskType())
+                    .state(TaskStateCode.BLOCKED)
+                    .stateFlags(isInitialTask ? TaskStateFlags.empty().withInitialTask() : TaskStateFlags.empty())
+                    .build());
+            parentIndexes.add(parentIndex.transform(index -> index - offset));
+            upstreamIndexes.add(wt.getUpstreamIndexes()
+                    .stream()
+                    .map(index -> index - offset)
+                    .collect(Collectors.toList()));
+        }
+
+        List<Long> ids = store.addSubtasks(attemptId, newTasks, parentIndexes, upstreamIndexes);
+
+        if (firstTaskIsRootStoredParentTask) {
+            return parentTaskId;
+        }
+        else {
+            // the root task was stored right now.
+            long rootTaskId = ids.get(0);
+            store.addDependencies(rootTaskId, rootUpstreamIds);
+            return rootTaskId;
+        }
+    }
+
     private static void addResumingTasks(TaskControlStore store, long attemptId, List<ResumingTask> resumingTasks)
     {
         // store only dynamically-generated tasks
@@ -1,16 +1,20 @@
 package io.digdag.core.workflow;
 
+import java.util.Comparator;
 import java.util.Objects;
 import java.util.List;
 import java.util.Map;
 import java.util.HashMap;
 import java.util.Set;
 import java.util.HashSet;
+import java.util.stream.Collectors;
 import com.google.common.base.Optional;
 import com.google.common.collect.Iterables;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableListMultimap;
+import com.google.common.collect.ListMultimap;
 import com.google.common.collect.Lists;
 import io.digdag.core.session.TaskRelation;
 
@@ -23,13 +27,31 @@ public class TaskTree
 
     private final Map<Long, TaskRelation> map;
 
+    // indexes to walk a tree without scanning all tasks. Both keep order of map.values.
+    private final ListMultimap<Long, TaskRelation> children;
+    private final Map<Long, Integer> positions;
+
     public TaskTree(List<TaskRelation> rels)
     {
         ImmutableMap.Builder<Long, TaskRelation> builder = ImmutableMap.builder();
+        ImmutableListMultimap.Builder<Long, TaskRelation> childrenBuilder = ImmutableListMultimap.builder();
+        ImmutableMap.Builder<Long, Integer> positionsBuilder = ImmutableMap.builder();
+        int position = 0;
         for (TaskRelation rel : rels) {
             builder.put(rel.getId(), rel);
+            if (rel.getParentId().isPresent()) {
+                childrenBuilder.put(rel.getParentId().get(), rel);
+            }
+            positionsBuilder.put(rel.getId(), position++);
         }
         this.map = builder.build();
+        this.children = childrenBuilder.build();
+        this.positions = positionsBuilder.build();
+    }
+
+    public int size()
+    {
+        return map.size();
     }
 
     public long getRootTaskId()
@@ -96,12 +118,9 @@ public class TaskTree
 
     public <T> T walkChildrenRecursively(long id, T value, Walker<T> walker)
     {
-        for (TaskRelation rel : map.values()) {
-            if (rel.getParentId().isPresent() && rel.getParentId().get() == id) {
-                TaskRelation child = rel;
-                value = walker.walk(value, child);
-                value = walkChildrenRecursively(child.getId(), value, walker);
-            }
+        for (TaskRelation child : children.get(id)) {
+            value = walker.walk(value, child);
+            value = walkChildrenRecursively(child.getId(), value, walker);
         }
         return value;
     }
@@ -113,17 +132,19 @@ public class TaskTree
 
     private <T> T walkUpstreamSiblings(long id, T value, Walker<T> walker, Set<Long> walkedSet)
     {
-        Set<Long> upstreams = ImmutableSet.copyOf(get(id).getUpstreams());
-        for (TaskRelation rel : map.values()) {
-            // here uses order of map.values instead of order of get(id).getUpstreams
-            // so that farther (younger) siblings always comes first
-            if (upstreams.contains(rel.getId())) {
-                // here has deduplication because upstream ids could include
-                // same id with with upstream's upstreams.
-                if (walkedSet.add(rel.getId())) {
-                    value = walkUpstreamSiblings(rel.getId(), value, walker, walkedSet);
-                    value = walker.walk(value, rel);
-                }
+        // here uses order of map.values instead of order of get(id).getUpstreams
+        // so that farther (younger) siblings always comes first
+        List<Long> upstreams = ImmutableSet.copyOf(get(id).getUpstreams()).stream()
+            .filter(upstreamId -> positions.containsKey(upstreamId))
+            .sorted(Comparator.comparing(upstreamId -> positions.get(upstreamId)))
+            .collect(Collectors.toList());
+        for (long upstreamId : upstreams) {
+            // here has deduplication because upstream ids could include
+            // same id with with upstream's upstreams.
+            if (walkedSet.add(upstreamId)) {
+                TaskRelation rel = get(upstreamId);
+                value = walkUpstreamSiblings(rel.getId(), value, walker, walkedSet);
+                value = walker.walk(value, rel);
             }
         }
         return value;
@@ -2,14 +2,23 @@ package io.digdag.core.workflow;
 
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.google.common.base.Optional;
+import com.google.common.base.Supplier;
+import com.google.common.base.Suppliers;
 import com.google.common.base.Throwables;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
 import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Lists;
 import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import com.google.inject.Inject;
 import io.digdag.client.config.Config;
 import io.digdag.client.config.ConfigException;
 import io.digdag.client.config.ConfigFactory;
 import io.digdag.core.agent.AgentId;
+import io.digdag.core.metrics.MetricsRegistry;
+import io.digdag.core.queue.TaskSignalChannel;
+import io.digdag.core.queue.TaskSignalChannel.Signal;
 import io.digdag.core.repository.ProjectStoreManager;
 import io.digdag.core.repository.ResourceConflictException;
 import io.digdag.core.repository.ResourceNotFoundException;
@@ -19,6 +28,7 @@ import io.digdag.core.repository.WorkflowDefinition;
 import io.digdag.core.session.ResumingTask;
 import io.digdag.core.session.Session;
 import io.digdag.core.session.SessionAttempt;
+import io.digdag.core.session.SessionControlStore;
 import io.digdag.core.session.SessionMonitor;
 import io.digdag.core.session.SessionStoreManager;
 import io.digdag.core.session.StoredSessionAttempt;
@@ -43,11 +53,12 @@ import org.slf4j.LoggerFactory;
 import java.time.Instant;
 import java.time.format.DateTimeFormatter;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
@@ -148,15 +159,30 @@ public class WorkflowExecutor
     private final ProjectStoreManager rm;
     private final SessionStoreManager sm;
     private final WorkflowCompiler compiler;
+    private final CachedWorkflowCompiler cachedCompiler;
     private final TaskQueueDispatcher dispatcher;
     private final ConfigFactory cf;
     private final ObjectMapper archiveMapper;
     private final Config systemConfig;
+    private final boolean incrementalPropagation;
+    private final int enqueueThreads;
+    private final Cache<Long, TaskTree> taskTreeCache;
+    private final Cache<Long, Config> doneTaskStoreParamsCache;
     private Notifier notifier;
+    private final TaskSignalChannel signalChannel;
+
+    private final MetricsRegistry.Histogram blockedToReadyTime;
+    private final MetricsRegistry.Histogram retryWaitingTime;
+    private final MetricsRegistry.Histogram sessionArchiveTime;
+    private final MetricsRegistry.Histogram enqueueReadyTime;
+    private final MetricsRegistry.Histogram plannedToDoneTime;
+    private final MetricsRegistry.Histogram incrementalPropagationTime;
+    private final MetricsRegistry.Histogram dispatchTime;
 
     private final Lock propagatorLock = new ReentrantLock();
     private final Condition propagatorCondition = propagatorLock.newCondition();
     private volatile boolean propagatorNotice = false;
+    private volatile boolean fullPropagationRequested = false;
 
     @Inject
     public WorkflowExecutor(
@@ -167,16 +193,56 @@ public class WorkflowExecutor
             ConfigFactory cf,
             ObjectMapper archiveMapper,
             Config systemConfig,
-            Notifier notifier)
+            Notifier notifier,
+            TaskSignalChannel signalChannel,
+            MetricsRegistry metrics)
     {
         this.rm = rm;
         this.sm = sm;
         this.compiler = compiler;
+        this.cachedCompiler = new CachedWorkflowCompiler(compiler,
+                systemConfig.get("executor.workflowCacheSize", int.class, 1000),  // number of workflow definitions
+                metrics);
         this.dispatcher = dispatcher;
         this.cf = cf;
         this.archiveMapper = archiveMapper;
         this.systemConfig = systemConfig;
+        this.incrementalPropagation = systemConfig.get("executor.incrementalPropagation", boolean.class, false);
+        this.enqueueThreads = systemConfig.get("executor.enqueueThreads", int.class, 4);
+        this.taskTreeCache = CacheBuilder.newBuilder()
+            .maximumSize(systemConfig.get("executor.taskTreeCacheSize", int.class, 100))  // number of attempts
+            .build();
+        this.doneTaskStoreParamsCache = CacheBuilder.newBuilder()
+            .maximumSize(systemConfig.get("executor.storeParamsCacheSize", int.class, 10000))  // number of tasks
+            .build();
         this.notifier = notifier;
+        this.signalChannel = signalChannel;
+
+        String phaseHelp = "Time spent in each phase of the propagation loop";
+        this.blockedToReadyTime = metrics.histogram("digdag_executor_phase_seconds", phaseHelp, "phase", "blocked_to_ready");
+        this.retryWaitingTime = metrics.histogram("digdag_executor_phase_seconds", phaseHelp, "phase", "retry_waiting");
+        this.sessionArchiveTime = metrics.histogram("digdag_executor_phase_seconds", phaseHelp, "phase", "session_archive");
+        this.enqueueReadyTime = metrics.histogram("digdag_executor_phase_seconds", phaseHelp, "phase", "enqueue_ready");
+        this.plannedToDoneTime = metrics.histogram("digdag_executor_phase_seconds", phaseHelp, "phase", "planned_to_done");
+        this.incrementalPropagationTime = metrics.histogram("digdag_executor_phase_seconds", phaseHelp, "phase", "incremental_propagation");
+        this.dispatchTime = metrics.histogram("digdag_executor_enqueue_seconds",
+                "Time to dispatch a task to a queue");
+
+        // counting tasks reads indexes of the tasks table. Cache the result so that frequent scrapes don't add load.
+        List<TaskStateCode> countedStates = ImmutableList.of(TaskStateCode.BLOCKED, TaskStateCode.READY, TaskStateCode.RUNNING);
+        Supplier<Map<TaskStateCode, Long>> taskCounts = Suppliers.memoizeWithExpiration(
+                () -> sm.countTasksByState(countedStates), TASK_COUNT_CACHE_SECONDS, TimeUnit.SECONDS);
+        for (TaskStateCode state : countedStates) {
+            metrics.gauge("digdag_executor_tasks", "Number of tasks in a state",
+                    "state", state.toString().toLowerCase(ENGLISH),
+                    () -> taskCounts.get().getOrDefault(state, 0L));
+        }
+
+        signalChannel.subscribe(Signal.TASK_STATE_CHANGED, () -> wakeUpPropagator());
+        signalChannel.subscribe(Signal.FULL_PROPAGATION_REQUESTED, () -> {
+            fullPropagationRequested = true;
+            wakeUpPropagator();
+        });
     }
 
     public StoredSessionAttemptWithSession submitWorkflow(int siteId,
@@ -184,7 +250,7 @@ public class WorkflowExecutor
             WorkflowDefinition def)
         throws ResourceNotFoundException, SessionAttemptConflictException
     {
-        Workflow workflow = compiler.compile(def.getName(), def.getConfig());  // TODO cache (CachedWorkflowCompiler which takes def id as the cache key)
+        Workflow workflow = cachedCompiler.compile(def);
         WorkflowTaskList tasks = workflow.getTasks();
 
         logger.debug("Checking a session of workflow '{}' ({}) with session parameters: {}",
@@ -195,6 +261,9 @@ public class WorkflowExecutor
         return submitTasks(siteId, ar, tasks);
     }
 
+    // number of attempts inserted in a transaction by submitWorkflows
+    private static final int SUBMIT_BATCH_SIZE = 100;
+
     private static final DateTimeFormatter SESSION_TIME_FORMATTER =
         DateTimeFormatter.ofPattern("yyyy-MM-dd'T'HH:mm:ssxxx", ENGLISH);
 
@@ -212,13 +281,7 @@ public class WorkflowExecutor
         int projId = ar.getStored().getProjectId();
         Session session = Session.of(projId, ar.getWorkflowName(), ar.getSessionTime());
 
-        SessionAttempt attempt = SessionAttempt.of(
-                ar.getRetryAttemptName(),
-                ar.getSessionParams(),
-                ar.getTimeZone(),
-                Optional.of(ar.getStored().getWorkflowDefinitionId()));
-
-        TaskConfig.validateAttempt(attempt);
+        SessionAttempt attempt = buildSessionAttempt(ar);
 
         final WorkflowTask root = tasks.get(0);
 
@@ -238,9 +301,7 @@ public class WorkflowExecutor
             resumingTasks = ImmutableList.of();
         }
 
-        TaskStateCode rootTaskState = root.getTaskType().isGroupingOnly()
-                ? TaskStateCode.PLANNED
-                : TaskStateCode.READY;
+        TaskStateCode rootTaskState = getRootTaskState(tasks);
 
         StoredSessionAttemptWithSession stored;
         try {
@@ -248,37 +309,13 @@ public class WorkflowExecutor
                 .getSessionStore(siteId)
                 // putAndLockSession + insertAttempt might be able to be faster by combining them into one method and optimize using a single SQL with CTE
                 .putAndLockSession(session, (store, storedSession) -> {
-                    StoredProject proj = rm.getProjectStore(siteId).getProjectById(projId);
-                    if (proj.getDeletedAt().isPresent()) {
-                        throw new ResourceNotFoundException(String.format(ENGLISH,
-                                    "Project id={} name={} is already deleted",
-                                    proj.getId(), proj.getName()));
-                    }
+                    checkProjectNotDeleted(siteId, projId);
                     StoredSessionAttempt storedAttempt = store.insertAttempt(storedSession.getId(), projId, attempt);  // this may throw ResourceConflictException
 
                     logger.info("Starting a new session project id={} workflow name={} session_time={}",
                             projId, ar.getWorkflowName(), SESSION_TIME_FORMATTER.withZone(ar.getTimeZone()).format(ar.getSessionTime()));
 
-                    // root task is already ready to run
-                    final Task rootTask = Task.taskBuilder()
-                        .parentId(Optional.absent())
-                        .fullName(root.getFullName())
-                        .config(TaskConfig.validate(root.getConfig()))
-                        .taskType(root.getTaskType())
-                        .state(rootTaskState)
-                        .stateFlags(TaskStateFlags.empty().withInitialTask())
-                        .build();
-                    store.insertRootTask(storedAttempt.getId(), rootTask, (taskStore, storedTaskId) -> {
-                        TaskControl.addInitialTasksExceptingRootTask(taskStore, storedAttempt.getId(),
-                                storedTaskId, tasks, resumingTasks);
-                        return null;
-                    });
-                    if (!ar.getSessionMonitors().isEmpty()) {
-                        for (SessionMonitor monitor : ar.getSessionMonitors()) {
-                            logger.debug("Using session monitor: {}", monitor);
-                        }
-                        store.insertMonitors(storedAttempt.getId(), ar.getSessionMonitors());
-                    }
+                    insertTasksOfAttempt(store, storedAttempt.getId(), tasks, rootTaskState, resumingTasks, ar.getSessionMonitors());
                     return StoredSessionAttemptWithSession.of(siteId, storedSession, storedAttempt);
                 });
         }
@@ -314,6 +351,157 @@ public class WorkflowExecutor
         return stored;
     }
 
+    /**
+     * Submits attempts of a workflow in batches.
+     *
+     * Sessions and attempts of a batch are inserted in one transaction using
+     * batch statements. If a batch conflicts with existing sessions or
+     * attempts, attempts of the batch are submitted one by one and the
+     * conflicted attempts are skipped. All requests must be of the same
+     * project and workflow, and can't resume other attempts.
+     *
+     * Returns submitted attempts.
+     */
+    public List<StoredSessionAttemptWithSession> submitWorkflows(int siteId,
+            List<AttemptRequest> ars,
+            WorkflowDefinition def)
+        throws ResourceNotFoundException
+    {
+        Workflow workflow = cachedCompiler.compile(def);
+        WorkflowTaskList tasks = workflow.getTasks();
+
+        ImmutableList.Builder<StoredSessionAttemptWithSession> submitted = ImmutableList.builder();
+        for (List<AttemptRequest> batch : Lists.partition(ars, SUBMIT_BATCH_SIZE)) {
+            try {
+                submitted.addAll(submitTasksInBatch(siteId, batch, tasks));
+            }
+            catch (ResourceConflictException ex) {
+                logger.debug("Some of {} sessions conflicted. Submitting them one by one", batch.size(), ex);
+                for (AttemptRequest ar : batch) {
+                    try {
+                        submitted.add(submitTasks(siteId, ar, tasks));
+                    }
+                    catch (SessionAttemptConflictException conflict) {
+                        logger.warn("Session attempt already exists. Skipping: {}", conflict.getConflictedSession());
+                    }
+                }
+            }
+        }
+
+        // root tasks are dispatched by the propagator
+        noticeStatusPropagate();
+
+        return submitted.build();
+    }
+
+    private List<StoredSessionAttemptWithSession> submitTasksInBatch(int siteId, List<AttemptRequest> ars,
+            WorkflowTaskList tasks)
+        throws ResourceConflictException, ResourceNotFoundException
+    {
+        if (ars.isEmpty()) {
+            return ImmutableList.of();
+        }
+
+        int projId = ars.get(0).getStored().getProjectId();
+        String workflowName = ars.get(0).getWorkflowName();
+
+        List<Instant> sessionTimes = new ArrayList<>();
+        List<SessionAttempt> attempts = new ArrayList<>();
+        for (AttemptRequest ar : ars) {
+            if (ar.getStored().getProjectId() != projId || !ar.getWorkflowName().equals(workflowName)) {
+                throw new IllegalArgumentException("Attempts submitted at once must be of the same workflow");
+            }
+            if (ar.getResumingAttemptId().isPresent()) {
+                throw new IllegalArgumentException("Resuming attempts can't be submitted at once");
+            }
+            sessionTimes.add(ar.getSessionTime());
+            attempts.add(buildSessionAttempt(ar));
+        }
+
+        TaskStateCode rootTaskState = getRootTaskState(tasks);
+
+        return sm
+            .getSessionStore(siteId)
+            .putAndLockSessions(projId, workflowName, sessionTimes, (store, storedSessions) -> {
+                checkProjectNotDeleted(siteId, projId);
+
+                List<Long> sessionIds = storedSessions.stream()
+                    .map(storedSession -> storedSession.getId())
+                    .collect(Collectors.toList());
+                List<StoredSessionAttempt> storedAttempts = store.insertAttempts(sessionIds, projId, attempts);  // this may throw ResourceConflictException
+
+                logger.info("Starting {} new sessions project id={} workflow name={}",
+                        storedAttempts.size(), projId, workflowName);
+
+                ImmutableList.Builder<StoredSessionAttemptWithSession> builder = ImmutableList.builder();
+                for (int i = 0; i < storedAttempts.size(); i++) {
+                    StoredSessionAttempt storedAttempt = storedAttempts.get(i);
+                    insertTasksOfAttempt(store, storedAttempt.getId(), tasks, rootTaskState, ImmutableList.of(), ars.get(i).getSessionMonitors());
+                    builder.add(StoredSessionAttemptWithSession.of(siteId, storedSessions.get(i), storedAttempt));
+                }
+                return builder.build();
+            });
+    }
+
+    private static SessionAttempt buildSessionAttempt(AttemptRequest ar)
+    {
+        SessionAttempt attempt = SessionAttempt.of(
+                ar.getRetryAttemptName(),
+                ar.getSessionParams(),
+                ar.getTimeZone(),
+                Optional.of(ar.getStored().getWorkflowDefinitionId()));
+
+        TaskConfig.validateAttempt(attempt);
+
+        return attempt;
+    }
+
+    private static TaskStateCode getRootTaskState(WorkflowTaskList tasks)
+    {
+        return tasks.get(0).getTaskType().isGroupingOnly()
+                ? TaskStateCode.PLANNED
+                : TaskStateCode.READY;
+    }
+
+    private void checkProjectNotDeleted(int siteId, int projId)
+        throws ResourceNotFoundException
+    {
+        StoredProject proj = rm.getProjectStore(siteId).getProjectById(projId);
+        if (proj.getDeletedAt().isPresent()) {
+            throw new ResourceNotFoundException(String.format(ENGLISH,
+                        "Project id={} name={} is already deleted",
+                        proj.getId(), proj.getName()));
+        }
+    }
+
+    private static void insertTasksOfAttempt(SessionControlStore store, long attemptId,
+            WorkflowTaskList tasks, TaskStateCode rootTaskState,
+            List<ResumingTask> resumingTasks, List<SessionMonitor> monitors)
+    {
+        WorkflowTask root = tasks.get(0);
+
+        // root task is already ready to run
+        final Task rootTask = Task.taskBuilder()
+            .parentId(Optional.absent())
+            .fullName(root.getFullName())
+            .config(TaskConfig.validate(root.getConfig()))
+            .taskType(root.getTaskType())
+            .state(rootTaskState)
+            .stateFlags(TaskStateFlags.empty().withInitialTask())
+            .build();
+        store.insertRootTask(attemptId, rootTask, (taskStore, storedTaskId) -> {
+            TaskControl.addInitialTasksExceptingRootTask(taskStore, attemptId,
+                    storedTaskId, tasks, resumingTasks);
+            return null;
+        });
+        if (!monitors.isEmpty()) {
+            for (SessionMonitor monitor : monitors) {
+                logger.debug("Using session monitor: {}", monitor);
+            }
+            store.insertMonitors(attemptId, monitors);
+        }
+    }
+
     public boolean killAttemptById(int siteId, long attemptId)
         throws ResourceNotFoundException
     {
@@ -321,13 +509,21 @@ public class WorkflowExecutor
         boolean updated = sm.requestCancelAttempt(attempt.getId());
 
         if (updated) {
-            noticeStatusPropagate();
+            // requestCancelAttempt updates state_flags without updating updated_at.
+            // IncrementalStatusPropagator can't find the change.
+            signalChannel.publish(Signal.FULL_PROPAGATION_REQUESTED);
         }
 
         return updated;
     }
 
     private void noticeStatusPropagate()
+    {
+        // wakes up the propagator of this server through the subscription as well
+        signalChannel.publish(Signal.TASK_STATE_CHANGED);
+    }
+
+    private void wakeUpPropagator()
     {
         propagatorLock.lock();
         try {
@@ -374,32 +570,53 @@ public class WorkflowExecutor
     private static final int INITIAL_INTERVAL = 100;
     private static final int MAX_INTERVAL = 5000;
 
+    // IncrementalStatusPropagator misses a change if the transaction that
+    // changed the task takes longer than CHANGE_DETECTION_MARGIN. Full scan
+    // runs at least once in FULL_PROPAGATION_INTERVAL to recover from that.
+    private static final long CHANGE_DETECTION_MARGIN = 5 * 1000;
+    private static final long FULL_PROPAGATION_INTERVAL = 60 * 1000;
+
+    private static final long TASK_COUNT_CACHE_SECONDS = 10;
+
     private void runWhile(BooleanSupplier cond)
             throws InterruptedException
     {
         try (TaskQueuer queuer = new TaskQueuer()) {
-            Instant date = sm.getStoreTime();
-            propagateAllBlockedToReady();
-            retryRetryWaitingTasks();
-            propagateSessionArchive();
-            enqueueReadyTasks(queuer);  // TODO enqueue all (not only first 100)
-            propagateAllPlannedToDone();
-
-            //IncrementalStatusPropagator prop = new IncrementalStatusPropagator(date);  // TODO doesn't work yet
+            // take the time before the first full scan so that
+            // changes made during the scan are found by the propagator
+            IncrementalStatusPropagator prop = new IncrementalStatusPropagator(sm.getStoreTime());
+            long lastFullPropagation = System.currentTimeMillis();
+            timed(blockedToReadyTime, () -> propagateAllBlockedToReady());
+            timed(retryWaitingTime, () -> retryRetryWaitingTasks());
+            timed(sessionArchiveTime, () -> propagateSessionArchive());
+            timed(enqueueReadyTime, () -> enqueueReadyTasks(queuer));
+            timed(plannedToDoneTime, () -> propagateAllPlannedToDone());
+
             int waitMsec = INITIAL_INTERVAL;
             while (cond.getAsBoolean()) {
-                //boolean inced = prop.run();
-                //boolean retried = retryRetryWaitingTasks();
-                //if (inced || retried) {
-                //    enqueueReadyTasks(queuer);
-                //    propagatorNotice = true;
-                //}
-
-                propagateAllBlockedToReady();
-                retryRetryWaitingTasks();
-                propagateSessionArchive();
-                enqueueReadyTasks(queuer);
-                boolean someDone = propagateAllPlannedToDone();
+                boolean someDone;
+
+                if (incrementalPropagation && !fullPropagationRequested &&
+                        System.currentTimeMillis() - lastFullPropagation < FULL_PROPAGATION_INTERVAL) {
+                    boolean inced = timed(incrementalPropagationTime, () -> prop.run());
+                    boolean retried = timed(retryWaitingTime, () -> retryRetryWaitingTasks());
+                    timed(sessionArchiveTime, () -> propagateSessionArchive());
+                    timed(enqueueReadyTime, () -> enqueueReadyTasks(queuer));
+                    someDone = inced || retried;
+                }
+                else {
+                    fullPropagationRequested = false;
+                    Instant scanStartedAt = sm.getStoreTime();
+                    lastFullPropagation = System.currentTimeMillis();
+
+                    timed(blockedToReadyTime, () -> propagateAllBlockedToReady());
+                    timed(retryWaitingTime, () -> retryRetryWaitingTasks());
+                    timed(sessionArchiveTime, () -> propagateSessionArchive());
+                    timed(enqueueReadyTime, () -> enqueueReadyTasks(queuer));
+                    someDone = timed(plannedToDoneTime, () -> propagateAllPlannedToDone());
+
+                    prop.reset(scanStartedAt);
+                }
 
                 if (!someDone) {
                     propagatorLock.lock();
@@ -427,6 +644,13 @@ public class WorkflowExecutor
         }
     }
 
+    private static boolean timed(MetricsRegistry.Histogram histogram, BooleanSupplier phase)
+    {
+        try (MetricsRegistry.Timer timer = histogram.start()) {
+            return phase.getAsBoolean();
+        }
+    }
+
     private boolean propagateAllBlockedToReady()
     {
         boolean anyChanged = false;
@@ -576,7 +800,7 @@ public class WorkflowExecutor
     {
         List<Long> childrenFromThis;
         {
-            TaskTree tree = new TaskTree(sm.getTaskRelations(task.getAttemptId()));
+            TaskTree tree = getTaskTree(task.getAttemptId());
             childrenFromThis = tree.getRecursiveChildrenIdList(task.getId());
         }
 
@@ -626,91 +850,97 @@ public class WorkflowExecutor
         return anyChanged;
     }
 
+    /**
+     * Propagates state changes only around tasks updated since the last run.
+     *
+     * For each task whose updated_at is newer than the last run, this locks
+     * the task itself if it can run children (PLANNED or SUCCESS), and its
+     * parent. Locking a task sets its BLOCKED children to READY and transits
+     * it from PLANNED to done if all children are done. Thus a change of a
+     * task propagates to its children, its siblings and its parent.
+     * Changes made by the propagator update updated_at again and are
+     * propagated by the next run.
+     *
+     * Every run reads changes again since CHANGE_DETECTION_MARGIN before
+     * the last run so that changes committed late are also found. Changes
+     * already propagated are skipped by comparing updated_at.
+     */
     private class IncrementalStatusPropagator
     {
         private Instant updatedSince;
-
-        private Instant lastUpdatedAt;
-        private long lastUpdatedId;
+        private final Map<Long, Instant> propagatedUpdates = new HashMap<>();
 
         public IncrementalStatusPropagator(Instant updatedSince)
         {
             this.updatedSince = updatedSince;
         }
 
-        public boolean run()
+        public synchronized void reset(Instant updatedSince)
         {
-            return propagateStatus();
+            this.updatedSince = updatedSince;
+            propagatedUpdates.clear();
         }
 
-        private synchronized boolean propagateStatus()
+        public synchronized boolean run()
         {
             boolean anyChanged = false;
-            Set<Long> checkedParentIds = new HashSet<>();
 
-            Instant nextUpdatedSince = sm.getStoreTime();
-            lastUpdatedAt = updatedSince;
-            lastUpdatedId = 0;
+            Instant nextUpdatedSince = sm.getStoreTime().minusMillis(CHANGE_DETECTION_MARGIN);
+            Instant lastUpdatedAt = updatedSince;
+            long lastUpdatedId = 0;
 
             while (true) {
                 List<TaskStateSummary> tasks = sm.findRecentlyChangedTasks(lastUpdatedAt, lastUpdatedId);
                 if (tasks.isEmpty()) {
                     break;
                 }
-                anyChanged =
-                    tasks
-                    .stream()
-                    .map(task -> {
-                        boolean propagatedToChildren = false;
-                        boolean propagatedFromChildren = false;
-                        boolean propagatedToSelf = false;
-
-                        if (Tasks.isDone(task.getState()) || task.getState() == TaskStateCode.PLANNED) {
-                            // this parent became planned or done. may be transite from planned to done immediately
-                            propagatedToSelf = sm.lockTaskIfExists(task.getId(), (store, storedTask) -> {
-                                return setDoneFromDoneChildren(new TaskControl(store, storedTask));
-                            }).or(false);
-
-                            if (!propagatedToSelf) {
-                                // if this task is not done yet, transite children from blocked to ready
-                                propagatedToChildren = sm.lockTaskIfExists(task.getId(), (store) ->
-                                    // collect parameters and set them to ready tasks at the same time? no, because children's export_params/store_params are not propagated to parents
-                                    store.trySetChildrenBlockedToReadyOrShortCircuitPlannedOrCanceled(task.getId()) > 0
-                                ).or(false);
-                            }
-                        }
 
-                        if (Tasks.isDone(task.getState())) {
-                            if (task.getParentId().isPresent()) {
-                                // this child became done. try to transite parent from planned to done.
-                                // and dependint siblings tasks may be able to start
-                                if (checkedParentIds.add(task.getParentId().get())) {
-                                    propagatedFromChildren = sm.lockTaskIfExists(task.getParentId().get(), (store, storedTask) -> {
-                                        boolean doneFromChildren = setDoneFromDoneChildren(new TaskControl(store, storedTask));
-                                        boolean siblingsToReady = store.trySetChildrenBlockedToReadyOrShortCircuitPlannedOrCanceled(task.getId()) > 0;
-                                        return doneFromChildren || siblingsToReady;
-                                    }).or(false);
-                                }
-                            }
-                            else {
-                                // root task became done.
-                                // TODO return archiveSession(task.getid());
-                                //logger.info("Root task is done with state {}",
-                                //        task.getState());
-                            }
-                        }
+                // all changes in a page are committed before the page is read.
+                // locking a parent once is enough for all of its children in a page.
+                Set<Long> checkedTaskIds = new HashSet<>();
+                for (TaskStateSummary task : tasks) {
+                    lastUpdatedAt = task.getUpdatedAt();
+                    lastUpdatedId = task.getId();
 
-                        lastUpdatedAt = task.getUpdatedAt();
-                        lastUpdatedId = task.getId();
+                    if (task.getUpdatedAt().equals(propagatedUpdates.get(task.getId()))) {
+                        // already propagated by the last run
+                        continue;
+                    }
+                    propagatedUpdates.put(task.getId(), task.getUpdatedAt());
+
+                    if (task.getState() == TaskStateCode.PLANNED || task.getState() == TaskStateCode.SUCCESS) {
+                        // children of this task may be able to start, or
+                        // this task may transit from planned to done immediately
+                        if (checkedTaskIds.add(task.getId())) {
+                            anyChanged = propagateToChildrenAndSelf(task.getId()) || anyChanged;
+                        }
+                    }
 
-                        return propagatedToChildren || propagatedFromChildren || propagatedToSelf;
-                    })
-                    .reduce(anyChanged, (a, b) -> a || b);
+                    if (task.getParentId().isPresent()) {
+                        // dependent siblings may be able to start, or
+                        // the parent may transit from planned to done
+                        long parentId = task.getParentId().get();
+                        if (checkedTaskIds.add(parentId)) {
+                            anyChanged = propagateToChildrenAndSelf(parentId) || anyChanged;
+                        }
+                    }
+                }
             }
+
             updatedSince = nextUpdatedSince;
+            propagatedUpdates.values().removeIf(updatedAt -> updatedAt.isBefore(nextUpdatedSince));
 
             return anyChanged;
         }
+
+        private boolean propagateToChildrenAndSelf(long taskId)
+        {
+            return sm.lockTaskIfExists(taskId, (store, storedTask) -> {
+                boolean childrenToReady = store.trySetChildrenBlockedToReadyOrShortCircuitPlannedOrCanceled(taskId) > 0;
+                boolean doneFromChildren = setDoneFromDoneChildren(new TaskControl(store, storedTask));
+                return childrenToReady || doneFromChildren;
+            }).or(false);
+        }
     }
 
     private boolean retryRetryWaitingTasks()
@@ -718,136 +948,218 @@ public class WorkflowExecutor
         return sm.trySetRetryWaitingToReady() > 0;
     }
 
+    private static final int ENQUEUE_BATCH_SIZE = 100;
+
+    /**
+     * Enqueues READY tasks using multiple threads.
+     *
+     * Tasks are partitioned by attempt so that tasks of an attempt are
+     * always enqueued by the same thread in order of id. This avoids lock
+     * contention between threads. Each task is locked, dispatched and
+     * changed to RUNNING in its own transaction so that a task in the queue
+     * is never left READY.
+     */
     private class TaskQueuer
             implements AutoCloseable
     {
-        private final Map<Long, Future<Void>> waiting = new ConcurrentHashMap<>();
-        private final ExecutorService executor;
+        private final ExecutorService[] partitions;
 
         public TaskQueuer()
         {
-            this.executor = Executors.newCachedThreadPool(
-                    new ThreadFactoryBuilder()
-                    .setDaemon(true)
-                    .setNameFormat("task-queuer-%d")
-                    .build()
-                    );
+            this.partitions = new ExecutorService[enqueueThreads];
+            for (int i = 0; i < partitions.length; i++) {
+                partitions[i] = Executors.newSingleThreadExecutor(
+                        new ThreadFactoryBuilder()
+                        .setDaemon(true)
+                        .setNameFormat("task-queuer-" + i)
+                        .build()
+                        );
+            }
+        }
+
+        public Future<Integer> asyncEnqueueTasks(long attemptId, List<Long> taskIds)
+        {
+            ExecutorService executor = partitions[(int) (attemptId % partitions.length)];
+            return executor.submit(() -> enqueueTasks(dispatcher, taskIds));
         }
 
         public void close()
         {
-            // TODO
-            executor.shutdown();
-            //executor.awaitShutdown(10, TimeUnit.SECONDS);
-            //executor.shutdownNow();
-        }
-
-        //public synchronized Future<Void> asyncEnqueueTask(final long taskId)
-        //{
-        //    if (waiting.containsKey(taskId)) {
-        //        return waiting.get(taskId);
-        //    }
-        //    Future<Void> future = executor.submit(() -> {
-        //        try {
-        //            enqueueTask(dispatcher, taskId);
-        //        }
-        //        catch (Throwable t) {
-        //            logger.error("Uncaught exception during enqueuing a task request. This enqueue attempt will be retried", t);
-        //        }
-        //        finally {
-        //            waiting.remove(taskId);
-        //        }
-        //        return null;
-        //    });
-        //    waiting.put(taskId, future);
-        //    return future;
-        //}
+            for (ExecutorService executor : partitions) {
+                executor.shutdown();
+            }
+        }
     }
 
-    private void enqueueReadyTasks(TaskQueuer queuer)
+    // returns true if any tasks are enqueued
+    private boolean enqueueReadyTasks(TaskQueuer queuer)
     {
-        for (long taskId : sm.findAllReadyTaskIds(100)) {  // TODO randomize this resut to achieve concurrency
-            enqueueTask(dispatcher, taskId);
-            //queuer.asyncEnqueueTask(taskId);  // TODO async queuing is probably unnecessary but not sure
+        long startNanos = System.nanoTime();
+
+        List<Future<Integer>> futures = new ArrayList<>();
+        long lastTaskId = 0;
+        while (true) {
+            List<TaskAttemptSummary> tasks = sm.findReadyTasks(lastTaskId, ENQUEUE_BATCH_SIZE);
+            if (tasks.isEmpty()) {
+                break;
+            }
+            Map<Long, List<Long>> attemptTaskIds = new HashMap<>();
+            for (TaskAttemptSummary task : tasks) {
+                attemptTaskIds.computeIfAbsent(task.getAttemptId(), (id) -> new ArrayList<>())
+                    .add(task.getId());
+            }
+            for (Map.Entry<Long, List<Long>> pair : attemptTaskIds.entrySet()) {
+                futures.add(queuer.asyncEnqueueTasks(pair.getKey(), pair.getValue()));
+            }
+            lastTaskId = tasks.get(tasks.size() - 1).getId();
         }
+
+        int enqueued = 0;
+        for (Future<Integer> future : futures) {
+            try {
+                enqueued += future.get();
+            }
+            catch (ExecutionException ex) {
+                logger.error("Uncaught exception during enqueuing task requests. This enqueue attempt will be retried", ex.getCause());
+            }
+            catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                throw Throwables.propagate(ex);
+            }
+        }
+
+        if (enqueued > 0) {
+            long elapsedMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos);
+            logger.debug("Enqueued {} tasks in {} ms ({} tasks/sec)",
+                    enqueued, elapsedMillis, enqueued * 1000L / Math.max(elapsedMillis, 1));
+        }
+        return enqueued > 0;
+    }
+
+    // taskIds must be tasks of the same session attempt
+    private int enqueueTasks(final TaskQueueDispatcher dispatcher, final List<Long> taskIds)
+    {
+        int siteId;
+        try {
+            siteId = sm.getSiteIdOfTask(taskIds.get(0));
+        }
+        catch (ResourceNotFoundException ex) {
+            Exception error = new IllegalStateException("Task id="+taskIds.get(0)+" is ready to run but associated session attempt does not exist.", ex);
+            logger.error("Database state error enqueuing task.", error);
+            return 0;
+        }
+
+        // each task is locked, dispatched and moved to RUNNING in its own
+        // transaction. If a transaction that dispatched a task rolled back,
+        // the task would stay READY in the queue and fail at next dispatch.
+        int enqueued = 0;
+        for (long taskId : taskIds) {
+            if (enqueueTask(dispatcher, taskId, siteId)) {
+                enqueued++;
+            }
+        }
+        return enqueued;
     }
 
     private void enqueueTask(final TaskQueueDispatcher dispatcher, final long taskId)
     {
-        sm.lockTaskIfExists(taskId, (store, task) -> {
+        int siteId;
+        try {
+            siteId = sm.getSiteIdOfTask(taskId);
+        }
+        catch (ResourceNotFoundException ex) {
+            Exception error = new IllegalStateException("Task id="+taskId+" is ready to run but associated session attempt does not exist.", ex);
+            logger.error("Database state error enqueuing task.", error);
+            return;
+        }
+        enqueueTask(dispatcher, taskId, siteId);
+    }
+
+    // returns true if the task is dispatched to a queue and moved to RUNNING
+    private boolean enqueueTask(final TaskQueueDispatcher dispatcher, final long taskId, final int siteId)
+    {
+        return sm.lockTaskIfExists(taskId, (store, task) -> {
             TaskControl lockedTask = new TaskControl(store, task);
             if (lockedTask.getState() != TaskStateCode.READY) {
                 return false;
             }
 
-            if (task.getTaskType().isGroupingOnly()) {
-                return retryGroupingTask(lockedTask);
+            if (!dispatchLockedTask(dispatcher, lockedTask, siteId)) {
+                return false;
             }
 
-            if (task.getStateFlags().isCancelRequested()) {
-                return lockedTask.setToCanceled();
-            }
+            ////
+            // don't throw exceptions after here. task is already dispatched to a queue
+            //
 
-            int siteId;
-            try {
-                siteId = sm.getSiteIdOfTask(taskId);
-            }
-            catch (ResourceNotFoundException ex) {
-                Exception error = new IllegalStateException("Task id="+taskId+" is ready to run but associated session attempt does not exist.", ex);
-                logger.error("Database state error enqueuing task.", error);
-                return false;
+            boolean updated = lockedTask.setReadyToRunning();
+            if (!updated) {
+                // return value of setReadyToRunning must be true because this task is locked
+                // (won't be updated by other machines concurrently) and confirmed that
+                // current state is READY.
+                logger.warn("Unexpected state change failure from READY to RUNNING: {}", task);
             }
 
-            try {
-                // TODO make queue name configurable. note that it also needs a new REST API and/or
-                //      CLI ccommands to create/delete/manage queues.
-                Optional<String> queueName = Optional.absent();
+            return updated;
+        }).or(false);
+    }
 
-                TaskQueueRequest request = TaskQueueRequest.builder()
-                    .priority(0)  // TODO make this configurable
-                    .uniqueTaskId(Optional.of(task.getId()))
-                    .data(Optional.absent())
-                    .build();
+    // returns true if the task is dispatched to a queue. Caller needs to set the state to RUNNING.
+    private boolean dispatchLockedTask(TaskQueueDispatcher dispatcher, TaskControl lockedTask, int siteId)
+    {
+        StoredTask task = lockedTask.get();
+        if (lockedTask.getState() != TaskStateCode.READY) {
+            return false;
+        }
 
-                logger.debug("Queuing task: [{}] {}", task.getId(), task.getFullName());
-                try {
-                    dispatcher.dispatch(siteId, queueName, request);
-                }
-                catch (TaskConflictException ex) {
-                    // TODO this code has a problem:
-                    //   1. When a thread "A" runs WorkflowExecutor.retryTask with a small retryInterval,
-                    //      another thread "B" may retry the task before "A" deletes the task from the queue
-                    //      at dispatcher.taskFinished call. If this happens, "B" will get TaskConflictException
-                    //      here at dispatcher.dispatch. In this case, dispatcher.dispatch should be retried.
-                    //   2. On the other hand, if dispatcher.dispatch throws exception but actually the task
-                    //      was enqueued to the task, dispatcher.dispatch throws TaskConflictException.
-                    //      In this case, the exception should be ignored so that task won't be enqueued twice.
-                    //   For now, here throws RuntimeException so that dispatch.dispatch is always retried because
-                    //   2. less likely happens, maybe.
-                    throw new RuntimeException(ex);
-                }
+        if (task.getTaskType().isGroupingOnly()) {
+            retryGroupingTask(lockedTask);
+            return false;
+        }
 
-                ////
-                // don't throw exceptions after here. task is already dispatched to a queue
-                //
+        if (task.getStateFlags().isCancelRequested()) {
+            lockedTask.setToCanceled();
+            return false;
+        }
 
-                boolean updated = lockedTask.setReadyToRunning();
-                if (!updated) {
-                    // return value of setReadyToRunning must be true because this task is locked
-                    // (won't be updated by other machines concurrently) and confirmed that
-                    // current state is READY.
-                    logger.warn("Unexpected state change failure from READY to RUNNING: {}", task);
-                }
+        try {
+            // TODO make queue name configurable. note that it also needs a new REST API and/or
+            //      CLI ccommands to create/delete/manage queues.
+            Optional<String> queueName = Optional.absent();
+
+            TaskQueueRequest request = TaskQueueRequest.builder()
+                .priority(0)  // TODO make this configurable
+                .uniqueTaskId(Optional.of(task.getId()))
+                .data(Optional.absent())
+                .build();
 
-                return updated;
+            logger.debug("Queuing task: [{}] {}", task.getId(), task.getFullName());
+            try (MetricsRegistry.Timer timer = dispatchTime.start()) {
+                dispatcher.dispatch(siteId, queueName, request);
             }
-            catch (Exception ex) {
-                logger.error("Enqueue error, making this task failed: {}", task, ex);
-                // TODO retry here?
-                return taskFailed(lockedTask,
-                        buildExceptionErrorConfig(ex).toConfig(cf));
+            catch (TaskConflictException ex) {
+                // TODO this code has a problem:
+                //   1. When a thread "A" runs WorkflowExecutor.retryTask with a small retryInterval,
+                //      another thread "B" may retry the task before "A" deletes the task from the queue
+                //      at dispatcher.taskFinished call. If this happens, "B" will get TaskConflictException
+                //      here at dispatcher.dispatch. In this case, dispatcher.dispatch should be retried.
+                //   2. On the other hand, if dispatcher.dispatch throws exception but actually the task
+                //      was enqueued to the task, dispatcher.dispatch throws TaskConflictException.
+                //      In this case, the exception should be ignored so that task won't be enqueued twice.
+                //   For now, here throws RuntimeException so that dispatch.dispatch is always retried because
+                //   2. less likely happens, maybe.
+                throw new RuntimeException(ex);
             }
-        }).or(false);
+
+            return true;
+        }
+        catch (Exception ex) {
+            logger.error("Enqueue error, making this task failed: {}", task, ex);
+            // TODO retry here?
+            taskFailed(lockedTask,
+                    buildExceptionErrorConfig(ex).toConfig(cf));
+            return false;
+        }
     }
 
     // called by InProcessTaskServerApi
@@ -965,7 +1277,7 @@ public class WorkflowExecutor
         // rest task state of subtasks
         StoredTask task = lockedTask.get();
 
-        TaskTree tree = new TaskTree(sm.getTaskRelations(task.getAttemptId()));
+        TaskTree tree = getTaskTree(task.getAttemptId());
         List<Long> childrenIdList = tree.getRecursiveChildrenIdList(task.getId());
         lockedTask.copyInitialTasksForRetry(childrenIdList);
 
@@ -1134,7 +1446,7 @@ public class WorkflowExecutor
         List<Long> parentsFromRoot;
         List<Long> parentsUpstreamChildrenFromFar;
         {
-            TaskTree tree = new TaskTree(sm.getTaskRelations(attempt.getId()));
+            TaskTree tree = getTaskTree(attempt.getId());
             parentsFromRoot = tree.getRecursiveParentIdListFromRoot(task.getId());
             parentsUpstreamChildrenFromFar = tree.getRecursiveParentsUpstreamChildrenIdListFromFar(task.getId());
         }
@@ -1142,10 +1454,9 @@ public class WorkflowExecutor
         // task merge order is:
         //   export < store < local
         List<Config> exports = sm.getExportParams(parentsFromRoot);
-        List<Config> stores = sm.getStoreParams(parentsUpstreamChildrenFromFar);
-        for (int si=0; si < parentsUpstreamChildrenFromFar.size(); si++) {
-            Config stored = stores.get(si);
-            long taskId = parentsUpstreamChildrenFromFar.get(si);
+        Map<Long, Config> stores = getStoreParams(parentsUpstreamChildrenFromFar, ImmutableSet.copyOf(parentsFromRoot));
+        for (long taskId : parentsUpstreamChildrenFromFar) {
+            Config stored = stores.get(taskId);
             int ei = parentsFromRoot.indexOf(taskId);
             if (ei >= 0) {
                 // this is a parent task of the task
@@ -1157,12 +1468,63 @@ public class WorkflowExecutor
         params.merge(task.getConfig().getExport());
     }
 
+    // Returns a tree of tasks of an attempt. A cached tree is used if number of tasks
+    // of the attempt is same with the tree. Tasks are only added to a running attempt.
+    // Thus a changed count means that subtasks are inserted, possibly by another server.
+    // The count is a single row of attempt_task_counts updated when tasks are inserted.
+    private TaskTree getTaskTree(long attemptId)
+    {
+        long taskCount = sm.getTaskCountOfAttempt(attemptId);
+        TaskTree cached = taskTreeCache.getIfPresent(attemptId);
+        if (cached != null && cached.size() == taskCount) {
+            return cached;
+        }
+        TaskTree tree = new TaskTree(sm.getTaskRelations(attemptId));
+        taskTreeCache.put(attemptId, tree);
+        return tree;
+    }
+
+    // Store params of upstream siblings of parents and their children are cached because
+    // they are done before the task becomes ready and done tasks never update store params.
+    // Store params of parents may be updated (e.g. when a group is retried) and are always loaded.
+    // Config is mutable. The cache keeps its own copies and returns a copy on every read so that
+    // a caller can't change the cached params.
+    private Map<Long, Config> getStoreParams(List<Long> taskIds, Set<Long> parentIds)
+    {
+        Map<Long, Config> stores = new HashMap<>();
+        List<Long> loadingIds = new ArrayList<>();
+        for (long taskId : taskIds) {
+            Config cached = parentIds.contains(taskId) ? null : doneTaskStoreParamsCache.getIfPresent(taskId);
+            if (cached != null) {
+                stores.put(taskId, cached.deepCopy());
+            }
+            else {
+                loadingIds.add(taskId);
+            }
+        }
+
+        List<Config> loaded = sm.getStoreParams(loadingIds);
+        for (int i = 0; i < loadingIds.size(); i++) {
+            long taskId = loadingIds.get(i);
+            Config stored = loaded.get(i);
+            stores.put(taskId, stored);
+            if (!parentIds.contains(taskId)) {
+                doneTaskStoreParamsCache.put(taskId, stored.deepCopy());
+            }
+        }
+        return stores;
+    }
+
     private Optional<Long> addSubtasksIfNotEmpty(TaskControl lockedTask, Config subtaskConfig)
     {
         if (subtaskConfig.isEmpty()) {
             return Optional.absent();
         }
 
+        if (CompactForEachConfig.isCompact(subtaskConfig)) {
+            subtaskConfig = CompactForEachConfig.expand(subtaskConfig);
+        }
+
         WorkflowTaskList tasks = compiler.compileTasks(lockedTask.get().getFullName(), "^sub", subtaskConfig);
         if (tasks.isEmpty()) {
             return Optional.absent();
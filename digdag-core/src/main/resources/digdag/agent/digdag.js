@@ -1,5 +1,5 @@
 // Code from Underscore.js
-function template(code, variables)
+function template(code, variables, locals)
 {
   var matcher = RegExp([
     (/\$(?!\$){%([\s\S]+?)%}/g).source,
@@ -52,8 +52,44 @@ function template(code, variables)
 
   if (typeof variables == "string") {
     variables = JSON.parse(variables);
+  } else {
+    // parsed params are shared by templates of a task. Each template
+    // gets its own copy so that it can't change params seen by others.
+    variables = copyParams(variables);
+  }
+  if (typeof locals == "string") {
+    locals = JSON.parse(locals);
+    for (var key in locals) {
+      variables[key] = locals[key];
+    }
   }
   vs = func.call(variables);
 
   return vs;
 }
+
+function parseParams(json)
+{
+  return JSON.parse(json);
+}
+
+// copies a value made by JSON.parse without serializing it again
+function copyParams(value)
+{
+  if (value === null || typeof value != "object") {
+    return value;
+  }
+  var copy;
+  if (Array.isArray(value)) {
+    copy = new Array(value.length);
+    for (var i = 0; i < value.length; i++) {
+      copy[i] = copyParams(value[i]);
+    }
+  } else {
+    copy = {};
+    for (var key in value) {
+      copy[key] = copyParams(value[key]);
+    }
+  }
+  return copy;
+}
@@ -0,0 +1,132 @@
+package io.digdag.core.agent;
+
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import com.google.common.collect.ImmutableList;
+import io.digdag.client.config.Config;
+import org.junit.Before;
+import org.junit.Test;
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+import static io.digdag.core.database.DatabaseTestingUtils.createConfig;
+
+public class ConfigEvalEngineTest
+{
+    private final Path workspacePath = Paths.get("").toAbsolutePath();
+
+    private ConfigEvalEngine engine;
+
+    @Before
+    public void setUp()
+    {
+        // keep only 1 idle engine so that the same engine is reused by each evaluation
+        engine = new ConfigEvalEngine(1);
+    }
+
+    private Config params()
+    {
+        return createConfig()
+            .set("timezone", "UTC")
+            .set("name", "digdag");
+    }
+
+    @Test
+    public void evalTemplates()
+        throws Exception
+    {
+        Config config = createConfig()
+            .set("message", "hello ${name}")
+            .set("nested", createConfig().set("value", "${1 + 2}"))
+            .set("number", 1);
+
+        Config evaluated = engine.eval(workspacePath, config, params());
+
+        assertThat(evaluated.get("message", String.class), is("hello digdag"));
+        assertThat(evaluated.getNested("nested").get("value", String.class), is("3"));
+        assertThat(evaluated.get("number", int.class), is(1));
+    }
+
+    @Test
+    public void evalPlainTextAndEscapes()
+        throws Exception
+    {
+        Config config = createConfig()
+            .set("plain", "costs $10 {total}")
+            .set("escaped", "$${name}")
+            .set("dollars", "$$");
+
+        Config evaluated = engine.eval(workspacePath, config, params());
+
+        assertThat(evaluated.get("plain", String.class), is("costs $10 {total}"));
+        assertThat(evaluated.get("escaped", String.class), is("${name}"));
+        assertThat(evaluated.get("dollars", String.class), is("$"));
+    }
+
+    @Test
+    public void localFieldsOverwriteParams()
+        throws Exception
+    {
+        Config config = createConfig()
+            .set("before", "${name}")
+            .set("name", "local")
+            .set("after", "${name}")
+            .set("list", "${[name, 1]}");
+
+        Config evaluated = engine.eval(workspacePath, config, params());
+
+        assertThat(evaluated.get("before", String.class), is("digdag"));
+        assertThat(evaluated.get("after", String.class), is("local"));
+        assertThat(evaluated.get("list", String.class), is("[\"local\",1]"));
+    }
+
+    @Test
+    public void templatesDoNotChangeSharedParams()
+        throws Exception
+    {
+        Config config = createConfig()
+            .set("first", "${nested.value = 'changed'}")
+            .set("second", "${nested.value}")
+            .set("local", "x")
+            .set("third", "${nested.value}");
+
+        Config evaluated = engine.eval(workspacePath, config, params().set("nested", createConfig().set("value", "original")));
+
+        assertThat(evaluated.get("first", String.class), is("changed"));
+        assertThat(evaluated.get("second", String.class), is("original"));
+        assertThat(evaluated.get("third", String.class), is("original"));
+    }
+
+    @Test
+    public void templatesCanMutateTheirCopyOfParams()
+        throws Exception
+    {
+        Config config = createConfig()
+            .set("sorted", "${arr.sort()}")
+            .set("reversed", "${arr.reverse().join(',')}")
+            .set("original", "${arr}");
+
+        Config evaluated = engine.eval(workspacePath, config, params().set("arr", ImmutableList.of(3, 1, 2)));
+
+        assertThat(evaluated.get("sorted", String.class), is("[1,2,3]"));
+        assertThat(evaluated.get("reversed", String.class), is("2,1,3"));
+        assertThat(evaluated.get("original", String.class), is("[3,1,2]"));
+    }
+
+    @Test
+    public void reusedEngineDoesNotLeakGlobals()
+        throws Exception
+    {
+        assertThat(engine.template(workspacePath, "${leaked = 1}", params()), is("1"));
+        assertThat(engine.template(workspacePath, "${typeof leaked}", params()), is("undefined"));
+    }
+
+    @Test
+    public void enginesArePooledPerTimeZone()
+        throws Exception
+    {
+        String code = "${new Date(0).getHours()}";
+        assertThat(engine.template(workspacePath, code, params().set("timezone", "UTC")), is("0"));
+        assertThat(engine.template(workspacePath, code, params().set("timezone", "Asia/Tokyo")), is("9"));
+        assertThat(engine.template(workspacePath, code, params().set("timezone", "UTC")), is("0"));
+    }
+}
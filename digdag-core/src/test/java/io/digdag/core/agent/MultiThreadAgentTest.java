@@ -0,0 +1,304 @@
+package io.digdag.core.agent;
+
+import java.time.Instant;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import com.google.common.base.Optional;
+import io.digdag.core.metrics.MetricsRegistry;
+import io.digdag.spi.TaskRequest;
+import org.junit.Test;
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.lessThan;
+import static org.junit.Assert.assertThat;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+import static io.digdag.core.database.DatabaseTestingUtils.createConfig;
+
+public class MultiThreadAgentTest
+{
+    private final AgentId agentId = AgentId.of("test-agent");
+
+    @Test
+    public void finishedTaskTriggersNextPollImmediately()
+        throws Exception
+    {
+        int taskCount = 20;
+        QueueTaskServer taskServer = new QueueTaskServer();
+        for (int i = 0; i < taskCount; i++) {
+            taskServer.tasks.add(newTaskRequest(i));
+        }
+
+        CountDownLatch done = new CountDownLatch(taskCount);
+        OperatorManager runner = mock(OperatorManager.class);
+        doAnswer((invocation) -> {
+            Thread.sleep(10);
+            done.countDown();
+            return null;
+        }).when(runner).run(any());
+
+        MultiThreadAgent agent = new MultiThreadAgent(
+                AgentConfig.defaultBuilder().maxThreads(1).build(),
+                agentId, taskServer, runner, new MetricsRegistry());
+        Thread thread = new Thread(agent);
+        long startTime = System.currentTimeMillis();
+        thread.start();
+        try {
+            assertThat(done.await(30, TimeUnit.SECONDS), is(true));
+            // a fixed 500ms sleep after each task would take 10 seconds
+            assertThat(System.currentTimeMillis() - startTime, lessThan(5000L));
+        }
+        finally {
+            agent.shutdown();
+            thread.join();
+        }
+    }
+
+    // The first task finishes quickly so that the agent knows the average
+    // duration of tasks. While the second task runs, the agent locks the
+    // third task in advance.
+    private static final long FIRST_TASK_MILLIS = 10;
+    private static final long SECOND_TASK_MILLIS = 200;
+
+    private static AgentConfig prefetchConfig()
+    {
+        return AgentConfig.defaultBuilder()
+            .maxThreads(1)
+            .prefetchMaxTasks(5)
+            .build();
+    }
+
+    @Test
+    public void prefetchedTaskStartsWhenThreadIsFree()
+        throws Exception
+    {
+        QueueTaskServer taskServer = new QueueTaskServer();
+        List<TaskRequest> reqs = new ArrayList<>();
+        for (int i = 0; i < 3; i++) {
+            reqs.add(newTaskRequest(i));
+        }
+        taskServer.tasks.addAll(reqs);
+
+        Queue<TaskRequest> started = new ConcurrentLinkedQueue<>();
+        CountDownLatch done = new CountDownLatch(reqs.size());
+        OperatorManager runner = mock(OperatorManager.class);
+        doAnswer((invocation) -> {
+            TaskRequest req = (TaskRequest) invocation.getArguments()[0];
+            started.add(req);
+            Thread.sleep(req.getTaskId() == 0 ? FIRST_TASK_MILLIS : SECOND_TASK_MILLIS);
+            done.countDown();
+            return null;
+        }).when(runner).run(any());
+        when(runner.removePrefetchedTask(any())).thenReturn(true);
+
+        MultiThreadAgent agent = new MultiThreadAgent(prefetchConfig(), agentId, taskServer, runner, new MetricsRegistry());
+        Thread thread = new Thread(agent);
+        thread.start();
+        try {
+            assertThat(done.await(30, TimeUnit.SECONDS), is(true));
+        }
+        finally {
+            agent.shutdown();
+            thread.join();
+        }
+
+        assertThat(started, contains(reqs.get(0), reqs.get(1), reqs.get(2)));
+        verify(runner).addPrefetchedTask(reqs.get(2));
+        verify(runner).removePrefetchedTask(reqs.get(2));
+        verify(runner, never()).releasePrefetchedTask(any());
+    }
+
+    @Test
+    public void prefetchedTaskIsSkippedIfLockIsLost()
+        throws Exception
+    {
+        QueueTaskServer taskServer = new QueueTaskServer();
+        List<TaskRequest> reqs = new ArrayList<>();
+        for (int i = 0; i < 3; i++) {
+            reqs.add(newTaskRequest(i));
+        }
+        taskServer.tasks.addAll(reqs);
+
+        OperatorManager runner = mock(OperatorManager.class);
+        doAnswer((invocation) -> {
+            TaskRequest req = (TaskRequest) invocation.getArguments()[0];
+            Thread.sleep(req.getTaskId() == 0 ? FIRST_TASK_MILLIS : SECOND_TASK_MILLIS);
+            return null;
+        }).when(runner).run(any());
+        // heartbeat found that the lock expired
+        CountDownLatch removed = new CountDownLatch(1);
+        doAnswer((invocation) -> {
+            removed.countDown();
+            return false;
+        }).when(runner).removePrefetchedTask(any());
+
+        MultiThreadAgent agent = new MultiThreadAgent(prefetchConfig(), agentId, taskServer, runner, new MetricsRegistry());
+        Thread thread = new Thread(agent);
+        thread.start();
+        try {
+            assertThat(removed.await(30, TimeUnit.SECONDS), is(true));
+        }
+        finally {
+            agent.shutdown();
+            thread.join();
+        }
+
+        verify(runner).addPrefetchedTask(reqs.get(2));
+        verify(runner, never()).run(reqs.get(2));
+        // the task is not in the buffer any more
+        verify(runner, never()).releasePrefetchedTask(any());
+    }
+
+    @Test
+    public void prefetchedTaskIsReleasedAtShutdown()
+        throws Exception
+    {
+        QueueTaskServer taskServer = new QueueTaskServer();
+        List<TaskRequest> reqs = new ArrayList<>();
+        for (int i = 0; i < 3; i++) {
+            reqs.add(newTaskRequest(i));
+        }
+        taskServer.tasks.addAll(reqs);
+
+        // the second task keeps running until the agent shuts down
+        CountDownLatch finish = new CountDownLatch(1);
+        OperatorManager runner = mock(OperatorManager.class);
+        doAnswer((invocation) -> {
+            TaskRequest req = (TaskRequest) invocation.getArguments()[0];
+            if (req.getTaskId() == 0) {
+                Thread.sleep(FIRST_TASK_MILLIS);
+            }
+            else {
+                finish.await();
+            }
+            return null;
+        }).when(runner).run(any());
+        CountDownLatch prefetched = new CountDownLatch(1);
+        doAnswer((invocation) -> {
+            prefetched.countDown();
+            return null;
+        }).when(runner).addPrefetchedTask(any());
+
+        MultiThreadAgent agent = new MultiThreadAgent(prefetchConfig(), agentId, taskServer, runner, new MetricsRegistry());
+        Thread thread = new Thread(agent);
+        thread.start();
+        try {
+            assertThat(prefetched.await(30, TimeUnit.SECONDS), is(true));
+            agent.shutdown();
+            thread.join();
+        }
+        finally {
+            finish.countDown();
+        }
+
+        verify(runner).addPrefetchedTask(reqs.get(2));
+        verify(runner).releasePrefetchedTask(reqs.get(2));
+        verify(runner, never()).run(reqs.get(2));
+    }
+
+    @Test
+    public void pollsOnlyFreeThreadsWithoutPrefetch()
+        throws Exception
+    {
+        int taskCount = 5;
+        AtomicInteger maxPollSize = new AtomicInteger();
+        QueueTaskServer taskServer = new QueueTaskServer() {
+            @Override
+            public List<TaskRequest> lockSharedAgentTasks(int count, AgentId agentId, int lockSeconds, long maxSleepMillis)
+            {
+                maxPollSize.accumulateAndGet(count, Math::max);
+                return super.lockSharedAgentTasks(count, agentId, lockSeconds, maxSleepMillis);
+            }
+        };
+        for (int i = 0; i < taskCount; i++) {
+            taskServer.tasks.add(newTaskRequest(i));
+        }
+
+        CountDownLatch done = new CountDownLatch(taskCount);
+        OperatorManager runner = mock(OperatorManager.class);
+        doAnswer((invocation) -> {
+            Thread.sleep(FIRST_TASK_MILLIS);
+            done.countDown();
+            return null;
+        }).when(runner).run(any());
+
+        // agent.prefetch.maxTasks is 0 by default
+        MultiThreadAgent agent = new MultiThreadAgent(
+                AgentConfig.defaultBuilder().maxThreads(2).build(),
+                agentId, taskServer, runner, new MetricsRegistry());
+        Thread thread = new Thread(agent);
+        thread.start();
+        try {
+            assertThat(done.await(30, TimeUnit.SECONDS), is(true));
+        }
+        finally {
+            agent.shutdown();
+            thread.join();
+        }
+
+        assertThat(maxPollSize.get(), is(2));
+        verify(runner, never()).addPrefetchedTask(any());
+    }
+
+    private static class QueueTaskServer
+            implements TaskServerApi
+    {
+        private final Queue<TaskRequest> tasks = new ConcurrentLinkedQueue<>();
+
+        @Override
+        public List<TaskRequest> lockSharedAgentTasks(int count, AgentId agentId, int lockSeconds, long maxSleepMillis)
+        {
+            List<TaskRequest> locked = new ArrayList<>();
+            while (locked.size() < count && !tasks.isEmpty()) {
+                locked.add(tasks.remove());
+            }
+            if (locked.isEmpty() && maxSleepMillis > 0) {
+                try {
+                    Thread.sleep(Math.min(maxSleepMillis, 100));
+                }
+                catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            return locked;
+        }
+
+        @Override
+        public void interruptLocalWait()
+        { }
+    }
+
+    private static TaskRequest newTaskRequest(long taskId)
+    {
+        return TaskRequest.builder()
+            .siteId(0)
+            .projectId(1)
+            .workflowName("wf")
+            .revision(Optional.absent())
+            .taskId(taskId)
+            .attemptId(1)
+            .sessionId(1)
+            .retryAttemptName(Optional.absent())
+            .taskName("+wf+task" + taskId)
+            .lockId("lock-" + taskId)
+            .timeZone(ZoneId.of("UTC"))
+            .sessionUuid(UUID.randomUUID())
+            .sessionTime(Instant.ofEpochSecond(1470000000))
+            .createdAt(Instant.now())
+            .localConfig(createConfig())
+            .config(createConfig())
+            .lastStateParams(createConfig())
+            .build();
+    }
+}
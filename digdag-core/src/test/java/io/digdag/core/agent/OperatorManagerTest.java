@@ -0,0 +1,130 @@
+package io.digdag.core.agent;
+
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.util.UUID;
+import com.google.common.base.Optional;
+import io.digdag.client.config.Config;
+import io.digdag.client.config.ConfigElement;
+import io.digdag.client.config.ConfigFactory;
+import io.digdag.core.log.NullTaskLogger;
+import io.digdag.core.metrics.MetricsRegistry;
+import io.digdag.spi.TaskExecutionException;
+import io.digdag.spi.TaskRequest;
+import io.digdag.spi.TaskResult;
+import org.junit.Before;
+import org.junit.Test;
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyInt;
+import static org.mockito.Matchers.anyLong;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+import static io.digdag.core.database.DatabaseTestingUtils.createConfig;
+import static io.digdag.core.database.DatabaseTestingUtils.createConfigFactory;
+
+public class OperatorManagerTest
+{
+    private final AgentId agentId = AgentId.of("test-agent");
+    private final ConfigFactory cf = createConfigFactory();
+
+    private TaskCallbackApi callback;
+
+    @Before
+    public void setUp()
+    {
+        callback = mock(TaskCallbackApi.class);
+        when(callback.newTaskLogger(any())).thenReturn(new NullTaskLogger());
+    }
+
+    @Test
+    public void pollingTaskStaysResident()
+    {
+        PollingOperatorManager manager = new PollingOperatorManager(AgentConfig.defaultBuilder().build());
+
+        manager.run(newTaskRequest());
+
+        assertThat(manager.calls, is(3));
+        verify(callback, never()).retryTask(anyInt(), anyLong(), anyString(), any(), anyInt(), any(), any());
+        verify(callback).taskSucceeded(anyInt(), anyLong(), anyString(), any(), any());
+    }
+
+    @Test
+    public void pollingTaskGoesBackToQueueIfDisabled()
+    {
+        PollingOperatorManager manager = new PollingOperatorManager(
+                AgentConfig.defaultBuilder().residentPollingMaxTasks(0).build());
+
+        manager.run(newTaskRequest());
+
+        assertThat(manager.calls, is(1));
+        verify(callback).retryTask(anyInt(), anyLong(), anyString(), any(), eq(1), any(), any());
+        verify(callback, never()).taskSucceeded(anyInt(), anyLong(), anyString(), any(), any());
+    }
+
+    private TaskRequest newTaskRequest()
+    {
+        return TaskRequest.builder()
+            .siteId(0)
+            .projectId(1)
+            .workflowName("wf")
+            .revision(Optional.absent())
+            .taskId(1)
+            .attemptId(1)
+            .sessionId(1)
+            .retryAttemptName(Optional.absent())
+            .taskName("+wf+poll")
+            .lockId("lock-1")
+            .timeZone(ZoneId.of("UTC"))
+            .sessionUuid(UUID.randomUUID())
+            .sessionTime(Instant.ofEpochSecond(1470000000))
+            .createdAt(Instant.now())
+            .localConfig(createConfig().set("poll>", "job"))
+            .config(createConfig())
+            .lastStateParams(createConfig())
+            .build();
+    }
+
+    private static class CurrentDirectoryWorkspaceManager
+            implements WorkspaceManager
+    {
+        @Override
+        public <T> T withExtractedArchive(TaskRequest request, ArchiveProvider archiveProvider, WithWorkspaceAction<T> func)
+        {
+            return func.run(Paths.get("").toAbsolutePath());
+        }
+    }
+
+    private class PollingOperatorManager
+            extends OperatorManager
+    {
+        private int calls = 0;
+
+        PollingOperatorManager(AgentConfig agentConfig)
+        {
+            super(agentConfig, agentId, callback, new CurrentDirectoryWorkspaceManager(),
+                    null, cf, new ConfigEvalEngine(), null, new MetricsRegistry());
+        }
+
+        // completes at the 3rd call after 2 pollings with 1-second interval
+        @Override
+        protected TaskResult callExecutor(Path workspacePath, String type, TaskRequest mergedRequest)
+        {
+            calls++;
+            Config state = mergedRequest.getLastStateParams().deepCopy();
+            int count = state.get("count", int.class, 0);
+            if (count < 2) {
+                state.set("count", count + 1);
+                throw TaskExecutionException.ofNextPolling(1, ConfigElement.copyOf(state));
+            }
+            return TaskResult.empty(cf);
+        }
+    }
+}
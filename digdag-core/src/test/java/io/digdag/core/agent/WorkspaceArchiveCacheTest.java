@@ -0,0 +1,93 @@
+package io.digdag.core.agent;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import io.digdag.core.metrics.MetricsRegistry;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.hamcrest.Matchers.containsString;
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+
+public class WorkspaceArchiveCacheTest
+{
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final AtomicInteger extractCount = new AtomicInteger(0);
+    private final MetricsRegistry metrics = new MetricsRegistry();
+
+    private WorkspaceArchiveCache.Extractor extractor(String content)
+    {
+        return (dir) -> {
+            extractCount.incrementAndGet();
+            Files.createDirectories(dir.resolve("sub"));
+            Files.write(dir.resolve("sub").resolve("file.txt"), content.getBytes(UTF_8));
+            return 100L;
+        };
+    }
+
+    private String read(Path workspace)
+        throws Exception
+    {
+        return new String(Files.readAllBytes(workspace.resolve("sub").resolve("file.txt")), UTF_8);
+    }
+
+    @Test
+    public void reuseExtractedArchive()
+        throws Exception
+    {
+        WorkspaceArchiveCache cache = new WorkspaceArchiveCache(folder.newFolder().toPath(), 1024, false, metrics);
+
+        Path ws1 = folder.newFolder().toPath();
+        Path ws2 = folder.newFolder().toPath();
+        cache.copyTo("1/rev1", ws1, extractor("a"));
+        cache.copyTo("1/rev1", ws2, extractor("a"));
+
+        assertThat(read(ws1), is("a"));
+        assertThat(read(ws2), is("a"));
+        assertThat(extractCount.get(), is(1));
+        assertThat(cache.getHitCount(), is(1L));
+        assertThat(cache.getMissCount(), is(1L));
+        assertThat(cache.getSavedBytes(), is(100L));
+        assertThat(metrics.toPrometheusText(), containsString("digdag_agent_workspace_cache_saved_bytes_total 100\n"));
+    }
+
+    @Test
+    public void modificationOfWorkspaceDoesNotChangeCache()
+        throws Exception
+    {
+        WorkspaceArchiveCache cache = new WorkspaceArchiveCache(folder.newFolder().toPath(), 1024, false, metrics);
+
+        Path ws1 = folder.newFolder().toPath();
+        cache.copyTo("1/rev1", ws1, extractor("a"));
+        Files.write(ws1.resolve("sub").resolve("file.txt"), "modified".getBytes(UTF_8));
+
+        Path ws2 = folder.newFolder().toPath();
+        cache.copyTo("1/rev1", ws2, extractor("a"));
+        assertThat(read(ws2), is("a"));
+    }
+
+    @Test
+    public void evictLeastRecentlyUsed()
+        throws Exception
+    {
+        // each entry is 1 byte
+        WorkspaceArchiveCache cache = new WorkspaceArchiveCache(folder.newFolder().toPath(), 2, false, metrics);
+
+        cache.copyTo("1/rev1", folder.newFolder().toPath(), extractor("a"));
+        cache.copyTo("1/rev2", folder.newFolder().toPath(), extractor("b"));
+        cache.copyTo("1/rev1", folder.newFolder().toPath(), extractor("a"));  // rev1 is used recently
+        cache.copyTo("1/rev3", folder.newFolder().toPath(), extractor("c"));  // evicts rev2
+        assertThat(extractCount.get(), is(3));
+
+        cache.copyTo("1/rev1", folder.newFolder().toPath(), extractor("a"));
+        assertThat(extractCount.get(), is(3));
+
+        cache.copyTo("1/rev2", folder.newFolder().toPath(), extractor("b"));
+        assertThat(extractCount.get(), is(4));
+    }
+}
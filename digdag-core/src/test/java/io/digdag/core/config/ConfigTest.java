@@ -0,0 +1,62 @@
+package io.digdag.core.config;
+
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.time.Instant;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.base.Optional;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import io.digdag.client.config.Config;
+import io.digdag.client.config.ConfigFactory;
+import org.junit.Test;
+import static io.digdag.client.DigdagClient.objectMapper;
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+
+public class ConfigTest
+{
+    private final ObjectMapper mapper = objectMapper();
+    private final ConfigFactory cf = new ConfigFactory(mapper);
+
+    @Test
+    public void setBuildsSameNodesAsJsonText()
+            throws Exception
+    {
+        Config nested = cf.create().set("a", 1).set("b", ImmutableList.of("x", 2L));
+        Object[] values = new Object[] {
+            "text",
+            true,
+            1,
+            (short) 2,
+            3L,
+            Long.MAX_VALUE,
+            0.5,
+            1.1f,
+            Double.NaN,
+            BigInteger.valueOf(4),
+            BigInteger.valueOf(Long.MAX_VALUE).add(BigInteger.ONE),
+            new BigDecimal("1.50"),
+            new byte[] {1, 2, 3},
+            Optional.of(5L),
+            Instant.ofEpochSecond(1470000000),
+            nested,
+            mapper.readTree("{\"k\":[1,2.5,null]}"),
+            ImmutableList.of(ImmutableList.of("row", 6L, 1.1f, false), ImmutableMap.of("k", 7L)),
+        };
+        for (Object value : values) {
+            JsonNode expected = mapper.readTree(mapper.writeValueAsString(value));
+            assertThat(value.toString(), cf.create().set("key", value).getInternalObjectNode().get("key"), is(expected));
+        }
+    }
+
+    @Test
+    public void setCopiesNestedConfig()
+    {
+        Config nested = cf.create().set("a", 1);
+        Config config = cf.create().set("key", nested);
+        nested.set("a", 2);
+        assertThat(config.getNested("key").get("a", int.class), is(1));
+    }
+}
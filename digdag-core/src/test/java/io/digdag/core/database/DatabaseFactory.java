@@ -5,9 +5,11 @@ import com.google.common.base.Optional;
 import com.google.inject.Provider;
 import io.digdag.client.config.ConfigFactory;
 import io.digdag.core.agent.AgentId;
+import io.digdag.core.metrics.MetricsRegistry;
 import io.digdag.core.repository.ResourceConflictException;
 import io.digdag.core.workflow.TaskQueueDispatcher;
 import io.digdag.core.workflow.WorkflowCompiler;
+import io.digdag.core.queue.LocalTaskSignalChannel;
 import io.digdag.core.workflow.WorkflowExecutor;
 import io.digdag.spi.Notifier;
 import io.digdag.spi.TaskQueueRequest;
@@ -15,7 +17,6 @@ import org.skife.jdbi.v2.DBI;
 
 import static io.digdag.client.DigdagClient.objectMapper;
 import static io.digdag.core.database.DatabaseTestingUtils.createConfigFactory;
-import static io.digdag.core.database.DatabaseTestingUtils.createConfigMapper;
 import static org.mockito.Mockito.mock;
 
 public class DatabaseFactory
@@ -43,19 +44,24 @@ public class DatabaseFactory
         return config;
     }
 
+    private ConfigMapper getConfigMapper()
+    {
+        return new ConfigMapper(createConfigFactory(), config);
+    }
+
     public DatabaseProjectStoreManager getProjectStoreManager()
     {
-        return new DatabaseProjectStoreManager(dbi, createConfigMapper(), config);
+        return new DatabaseProjectStoreManager(dbi, getConfigMapper(), config);
     }
 
     public DatabaseScheduleStoreManager getScheduleStoreManager()
     {
-        return new DatabaseScheduleStoreManager(dbi, createConfigMapper(), config);
+        return new DatabaseScheduleStoreManager(dbi, getConfigMapper(), config);
     }
 
     public DatabaseSessionStoreManager getSessionStoreManager()
     {
-        return new DatabaseSessionStoreManager(dbi, createConfigFactory(), createConfigMapper(), objectMapper(), config);
+        return new DatabaseSessionStoreManager(dbi, createConfigFactory(), getConfigMapper(), objectMapper(), config);
     }
 
     public WorkflowExecutor getWorkflowExecutor()
@@ -69,7 +75,9 @@ public class DatabaseFactory
                 configFactory,
                 objectMapper(),
                 configFactory.create(),
-                mock(Notifier.class));
+                mock(Notifier.class),
+                new LocalTaskSignalChannel(),
+                new MetricsRegistry());
     }
 
     public static class NullTaskQueueDispatcher
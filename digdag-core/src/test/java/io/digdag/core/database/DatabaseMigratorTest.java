@@ -0,0 +1,299 @@
+package io.digdag.core.database;
+
+import java.time.Instant;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import org.junit.*;
+import com.google.common.base.Optional;
+import com.google.common.collect.*;
+import io.digdag.core.repository.*;
+import io.digdag.core.schedule.*;
+import io.digdag.core.session.*;
+import io.digdag.core.workflow.*;
+import io.digdag.spi.ScheduleTime;
+import io.digdag.client.config.Config;
+import io.digdag.client.config.ConfigFactory;
+import org.skife.jdbi.v2.DBI;
+import org.skife.jdbi.v2.Handle;
+import static io.digdag.core.database.DatabaseTestingUtils.*;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.not;
+import static org.junit.Assert.*;
+
+public class DatabaseMigratorTest
+{
+    private ConfigFactory cf = createConfigFactory();
+
+    private DataSourceProvider dsp;
+    private DatabaseConfig textConfig;
+    private DatabaseConfig binaryConfig;
+
+    @Before
+    public void setUp()
+    {
+        textConfig = getEnvironmentDatabaseConfig();
+        binaryConfig = DatabaseConfig.builder()
+            .from(textConfig)
+            .configFormat(textConfig.getType().equals("postgresql") ? "jsonb" : "smile")
+            .build();
+        dsp = new DataSourceProvider(textConfig);
+    }
+
+    @After
+    public void destroy()
+    {
+        // leave the columns in text for other tests
+        new DatabaseMigrator(new DBI(dsp.get()), textConfig).migrate();
+        dsp.close();
+    }
+
+    @Test
+    public void convertConfigFormat()
+        throws Exception
+    {
+        DatabaseFactory textFactory = openDatabase(textConfig);
+        cleanDatabase(textConfig.getType(), textFactory.get());
+
+        Config params = cf.create()
+            .set("key", "value")
+            .set("nested", cf.create().set("n", 1).set("list", ImmutableList.of(true, 2.5)));
+        StoredProject proj = textFactory.getProjectStoreManager().getProjectStore(0).putAndLockProject(
+                Project.of("proj1"),
+                (store, stored) -> {
+                    ProjectControl lock = new ProjectControl(store, stored);
+                    StoredRevision rev = lock.insertRevision(ImmutableRevision.builder()
+                            .from(createRevision("rev1"))
+                            .defaultParams(params)
+                            .build());
+                    lock.insertWorkflowDefinitionsWithoutSchedules(rev, ImmutableList.of(createWorkflow("wf1")));
+                    return lock.get();
+                });
+        Instant sessionTime = Instant.ofEpochSecond(Instant.now().getEpochSecond() / 3600 * 3600);
+        StoredSessionAttemptWithSession attempt = submit(textFactory, proj, params, sessionTime);
+        List<ArchivedTask> tasks = getSessionStore(textFactory).getTasksOfAttempt(attempt.getId());
+
+        // text -> binary
+        DatabaseFactory binaryFactory = openDatabase(binaryConfig);
+        assertThat(getSessionStore(binaryFactory).getAttemptById(attempt.getId()), is(attempt));
+        assertThat(getSessionStore(binaryFactory).getTasksOfAttempt(attempt.getId()), is(tasks));
+        assertThat(binaryFactory.getProjectStoreManager().getProjectStore(0).getLatestRevision(proj.getId()).getDefaultParams(), is(params));
+
+        // binary -> text including values written in binary format
+        StoredSessionAttemptWithSession binaryAttempt = submit(binaryFactory, proj, params, sessionTime.plusSeconds(3600));
+        List<ArchivedTask> binaryTasks = getSessionStore(binaryFactory).getTasksOfAttempt(binaryAttempt.getId());
+
+        textFactory = openDatabase(textConfig);
+        assertThat(getSessionStore(textFactory).getAttemptById(attempt.getId()), is(attempt));
+        assertThat(getSessionStore(textFactory).getTasksOfAttempt(attempt.getId()), is(tasks));
+        assertThat(getSessionStore(textFactory).getAttemptById(binaryAttempt.getId()), is(binaryAttempt));
+        assertThat(getSessionStore(textFactory).getTasksOfAttempt(binaryAttempt.getId()), is(binaryTasks));
+    }
+
+    @Test
+    public void keepColumnDefinitions()
+    {
+        DatabaseFactory textFactory = openDatabase(textConfig);
+        cleanDatabase(textConfig.getType(), textFactory.get());
+        DBI dbi = textFactory.get();
+
+        // a converted column keeps its constraints
+        try (Handle handle = dbi.open()) {
+            handle.update("alter table queue_settings alter column config set not null");
+        }
+        try {
+            List<List<String>> textColumns = getColumnDefinitions(dbi);
+
+            openDatabase(binaryConfig);
+            List<List<String>> binaryColumns = getColumnDefinitions(dbi);
+            assertThat(withoutType(binaryColumns), is(withoutType(textColumns)));
+            assertThat(binaryColumns, is(not(textColumns)));
+
+            openDatabase(textConfig);
+            assertThat(getColumnDefinitions(dbi), is(textColumns));
+        }
+        finally {
+            try (Handle handle = dbi.open()) {
+                if (textConfig.getType().equals("postgresql")) {
+                    handle.update("alter table queue_settings alter column config drop not null");
+                }
+                else {
+                    handle.update("alter table queue_settings alter column config set null");
+                }
+            }
+        }
+    }
+
+    // [table, column, position, type, nullable, default] of tables that have Config columns
+    private List<List<String>> getColumnDefinitions(DBI dbi)
+    {
+        boolean isPostgres = textConfig.getType().equals("postgresql");
+        try (Handle handle = dbi.open()) {
+            return handle.createQuery(
+                    "select table_name, column_name, ordinal_position, " +
+                    (isPostgres ? "data_type" : "type_name") + ", is_nullable, column_default" +
+                    " from information_schema.columns" +
+                    " where table_schema = " + (isPostgres ? "current_schema()" : "schema()") +
+                    " and lower(table_name) in ('revisions', 'session_attempts', 'session_monitors', 'queue_settings'," +
+                    " 'tasks', 'task_details', 'task_state_details', 'resuming_tasks')" +
+                    " order by table_name, ordinal_position")
+                .<List<String>>map((index, r, ctx) -> {
+                    List<String> column = new ArrayList<>();
+                    for (int i = 1; i <= 6; i++) {
+                        column.add(r.getString(i));
+                    }
+                    return column;
+                })
+                .list();
+        }
+    }
+
+    private static List<List<String>> withoutType(List<List<String>> columns)
+    {
+        return columns.stream()
+            .map(column -> ImmutableList.of(column.get(0), column.get(1), column.get(2), column.get(4), String.valueOf(column.get(5))))
+            .collect(Collectors.toList());
+    }
+
+    @Test
+    public void keepOrderOfErrorTasks()
+        throws Exception
+    {
+        DatabaseFactory textFactory = openDatabase(textConfig);
+        cleanDatabase(textConfig.getType(), textFactory.get());
+
+        // jsonb sorts keys by length. These are in the reverse order.
+        Config errorConfig = cf.create()
+            .set("+zzzz", cf.create().set("sh>", "echo 1"))
+            .set("+b", cf.create().set("sh>", "echo 2"))
+            .set("+aaa", cf.create().set("sh>", "echo 3"));
+        WorkflowDefinition def = WorkflowDefinition.of(
+                "wf1",
+                cf.create()
+                    .set("_error", errorConfig)
+                    .set("+main", cf.create().set("sh>", "echo main")),
+                ZoneId.of("UTC"));
+        StoredProject proj = textFactory.getProjectStoreManager().getProjectStore(0).putAndLockProject(
+                Project.of("proj1"),
+                (store, stored) -> {
+                    ProjectControl lock = new ProjectControl(store, stored);
+                    StoredRevision rev = lock.insertRevision(createRevision("rev1"));
+                    lock.insertWorkflowDefinitionsWithoutSchedules(rev, ImmutableList.of(def));
+                    return lock.get();
+                });
+        Instant sessionTime = Instant.ofEpochSecond(Instant.now().getEpochSecond() / 3600 * 3600);
+        StoredSessionAttemptWithSession attempt = submit(textFactory, proj, cf.create(), sessionTime);
+
+        DatabaseFactory binaryFactory = openDatabase(binaryConfig);
+        StoredSessionAttemptWithSession binaryAttempt = submit(binaryFactory, proj, cf.create(), sessionTime.plusSeconds(3600));
+
+        for (long attemptId : ImmutableList.of(attempt.getId(), binaryAttempt.getId())) {
+            assertThat(getErrorTaskNames(binaryFactory, attemptId), is(ImmutableList.of("+zzzz", "+b", "+aaa")));
+        }
+    }
+
+    @Test
+    public void keepOrderOfSlaTasks()
+        throws Exception
+    {
+        DatabaseFactory textFactory = openDatabase(textConfig);
+        cleanDatabase(textConfig.getType(), textFactory.get());
+
+        // jsonb sorts keys by length. These are in the reverse order.
+        Config slaConfig = cf.create()
+            .set("time", "02:00")
+            .set("+zzzz", cf.create().set("sh>", "echo 1"))
+            .set("+b", cf.create().set("sh>", "echo 2"));
+        WorkflowDefinition def = WorkflowDefinition.of(
+                "wf1",
+                cf.create()
+                    .set("sla", slaConfig)
+                    .set("+main", cf.create().set("sh>", "echo main")),
+                ZoneId.of("UTC"));
+        StoredProject proj = textFactory.getProjectStoreManager().getProjectStore(0).putAndLockProject(
+                Project.of("proj1"),
+                (store, stored) -> {
+                    ProjectControl lock = new ProjectControl(store, stored);
+                    StoredRevision rev = lock.insertRevision(createRevision("rev1"));
+                    lock.insertWorkflowDefinitionsWithoutSchedules(rev, ImmutableList.of(def));
+                    return lock.get();
+                });
+        Instant sessionTime = Instant.ofEpochSecond(Instant.now().getEpochSecond() / 3600 * 3600);
+        submit(textFactory, proj, cf.create(), sessionTime);
+
+        DatabaseFactory binaryFactory = openDatabase(binaryConfig);
+        submit(binaryFactory, proj, cf.create(), sessionTime.plusSeconds(3600));
+
+        // compiles sla tasks from stored monitors as WorkflowExecutor.addMonitorTask does
+        List<List<String>> taskNames = new ArrayList<>();
+        binaryFactory.getSessionStoreManager().lockReadySessionMonitors(Instant.now().plusSeconds(3 * 24 * 3600), (monitor) -> {
+            Config config = monitor.getConfig().deepCopy();
+            config.remove("time");
+            WorkflowTaskList tasks = new WorkflowCompiler().compileTasks("+wf1", "^sla", config);
+            taskNames.add(tasks.subList(1, tasks.size()).stream()
+                    .map(WorkflowTask::getName)
+                    .collect(Collectors.toList()));
+            return Optional.absent();
+        });
+        assertThat(taskNames, is(ImmutableList.of(
+                        ImmutableList.of("+zzzz", "+b"),
+                        ImmutableList.of("+zzzz", "+b"))));
+    }
+
+    // builds error tasks from the stored root task as WorkflowExecutor does
+    private static List<String> getErrorTaskNames(DatabaseFactory factory, long attemptId)
+    {
+        ArchivedTask rootTask = getSessionStore(factory).getTasksOfAttempt(attemptId).stream()
+            .filter(task -> !task.getParentId().isPresent())
+            .findFirst()
+            .get();
+        WorkflowTaskList tasks = new WorkflowCompiler()
+            .compileTasks(rootTask.getFullName(), "^error", rootTask.getConfig().getErrorConfig());
+        return tasks.subList(1, tasks.size()).stream()
+            .map(WorkflowTask::getName)
+            .collect(Collectors.toList());
+    }
+
+    @Test
+    public void binaryCodecRoundTrip()
+    {
+        ConfigMapper cfm = new ConfigMapper(cf, "smile");
+        Config config = cf.create()
+            .set("string", "v")
+            .set("long", Long.MAX_VALUE)
+            .set("double", 0.5)
+            .set("nested", cf.create().set("array", ImmutableList.of(1, "a", cf.create().set("b", false))));
+        assertThat(cfm.fromBinary(cfm.toBinary(config)), is(config));
+    }
+
+    private DatabaseFactory openDatabase(DatabaseConfig config)
+    {
+        DBI dbi = new DBI(dsp.get());
+        new DatabaseMigrator(dbi, config).migrate();
+        return new DatabaseFactory(dbi, () -> { }, config);
+    }
+
+    private static SessionStore getSessionStore(DatabaseFactory factory)
+    {
+        return factory.getSessionStoreManager().getSessionStore(0);
+    }
+
+    private StoredSessionAttemptWithSession submit(DatabaseFactory factory, StoredProject proj, Config params, Instant sessionTime)
+        throws Exception
+    {
+        ProjectStore projectStore = factory.getProjectStoreManager().getProjectStore(0);
+        StoredRevision rev = projectStore.getLatestRevision(proj.getId());
+        StoredWorkflowDefinition def = projectStore.getWorkflowDefinitionByName(rev.getId(), "wf1");
+        AttemptBuilder attemptBuilder = new AttemptBuilder(
+                new SchedulerManager(ImmutableSet.of()),
+                new SlaCalculator());
+        AttemptRequest ar = attemptBuilder.buildFromStoredWorkflow(
+                rev,
+                def,
+                params,
+                ScheduleTime.runNow(sessionTime));
+        return factory.getWorkflowExecutor().submitWorkflow(0, ar, def);
+    }
+}
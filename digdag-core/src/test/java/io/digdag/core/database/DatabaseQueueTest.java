@@ -5,6 +5,8 @@ import java.time.Instant;
 import java.util.List;
 import java.util.UUID;
 import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+import java.util.stream.Collectors;
 import io.digdag.client.config.Config;
 import io.digdag.client.config.ConfigFactory;
 import io.digdag.spi.TaskQueueData;
@@ -13,6 +15,8 @@ import io.digdag.spi.TaskQueueLock;
 import io.digdag.spi.ImmutableTaskRequest;
 import io.digdag.spi.TaskConflictException;
 import io.digdag.spi.TaskNotFoundException;
+import io.digdag.core.metrics.MetricsRegistry;
+import io.digdag.core.queue.LocalTaskSignalChannel;
 import io.digdag.core.repository.ResourceNotFoundException;
 import com.google.common.base.Optional;
 import org.junit.Rule;
@@ -52,7 +56,9 @@ public class DatabaseQueueTest
                 factory.get(),
                 factory.getConfig(),
                 new DatabaseTaskQueueConfig(systemConfig),
-                objectMapper());
+                objectMapper(),
+                new LocalTaskSignalChannel(),
+                new MetricsRegistry());
     }
 
     @After
@@ -123,6 +129,61 @@ public class DatabaseQueueTest
         assertThat(poll2.get(1).getUniqueTaskId(), is(Optional.of(4L)));
     }
 
+    @Test
+    public void fairSitePollingLocksAcrossSites()
+        throws Exception
+    {
+        Config systemConfig = createConfigFactory()
+            .create()
+            .set("queue.db.fair_site_polling", true);
+        DatabaseTaskQueueServer fairQueue = new DatabaseTaskQueueServer(
+                factory.get(),
+                factory.getConfig(),
+                new DatabaseTaskQueueConfig(systemConfig),
+                objectMapper(),
+                new LocalTaskSignalChannel(),
+                new MetricsRegistry());
+
+        fairQueue.enqueueDefaultQueueTask(1, generateRequest(1L));
+        fairQueue.enqueueDefaultQueueTask(1, generateRequest(2L));
+        fairQueue.enqueueDefaultQueueTask(1, generateRequest(3L));
+        fairQueue.enqueueDefaultQueueTask(2, generateRequest(4L));
+
+        List<TaskQueueLock> poll1 = fairQueue.lockSharedAgentTasks(2, "agent1", 300, 10);
+        assertThat(poll1.size(), is(2));
+        assertThat(poll1.stream().map(lock -> lock.getUniqueTaskId().get()).sorted().collect(Collectors.toList()),
+                is(Arrays.asList(1L, 4L)));
+
+        // site 2 has no more tasks. the whole count goes to site 1.
+        List<TaskQueueLock> poll2 = fairQueue.lockSharedAgentTasks(2, "agent1", 300, 10);
+        assertThat(poll2.size(), is(2));
+        assertThat(poll2.get(0).getUniqueTaskId(), is(Optional.of(2L)));
+        assertThat(poll2.get(1).getUniqueTaskId(), is(Optional.of(3L)));
+    }
+
+    @Test
+    public void enqueueWakesUpSleepingPollerOfAnotherServer()
+        throws Exception
+    {
+        LocalTaskSignalChannel channel = new LocalTaskSignalChannel();
+        Config systemConfig = createConfigFactory().create();
+        DatabaseTaskQueueServer server1 = new DatabaseTaskQueueServer(
+                factory.get(), factory.getConfig(), new DatabaseTaskQueueConfig(systemConfig), objectMapper(), channel, new MetricsRegistry());
+        DatabaseTaskQueueServer server2 = new DatabaseTaskQueueServer(
+                factory.get(), factory.getConfig(), new DatabaseTaskQueueConfig(systemConfig), objectMapper(), channel, new MetricsRegistry());
+
+        CompletableFuture<Long> elapsed = CompletableFuture.supplyAsync(() -> {
+            long start = System.currentTimeMillis();
+            server1.lockSharedAgentTasks(1, "agent1", 300, 30000);
+            return System.currentTimeMillis() - start;
+        });
+
+        Thread.sleep(500);
+        server2.enqueueDefaultQueueTask(siteId, generateRequest(1L));
+
+        assertThat(elapsed.get() < 30000, is(true));
+    }
+
     @Test
     public void enqueueRejectedIfDuplicatedTaskId()
         throws Exception
@@ -212,6 +273,26 @@ public class DatabaseQueueTest
         assertThat(poll2.get(0).getUniqueTaskId(), is(Optional.of(2L)));
     }
 
+    @Test
+    public void heartbeatReturnsOnlyNotFoundLocks()
+        throws Exception
+    {
+        TaskQueueRequest req1 = generateRequest(1L);
+        TaskQueueRequest req2 = generateRequest(2L);
+
+        taskQueue.enqueueDefaultQueueTask(siteId, req1);
+        taskQueue.enqueueDefaultQueueTask(siteId, req2);
+
+        List<TaskQueueLock> poll1 = taskQueue.lockSharedAgentTasks(2, "agent1", 300, 10);
+        assertThat(poll1.size(), is(2));
+
+        taskQueue.deleteTask(siteId, poll1.get(1).getLockId(), "agent1");
+
+        List<String> failedLockIdList = taskQueue.taskHeartbeat(siteId,
+                Arrays.asList(poll1.get(0).getLockId(), poll1.get(1).getLockId()), "agent1", 300);
+        assertThat(failedLockIdList, is(Arrays.asList(poll1.get(1).getLockId())));
+    }
+
     @Test
     public void heartbeatRejectedIfAgentIdMismatch()
         throws Exception
@@ -162,20 +162,20 @@ public class DatabaseScheduleStoreManagerTest
         assertEquals(sched4.getId(), (long) schedManager.lockScheduleById(sched4.getId(), (store, schedule) -> schedule.getId()));
 
         List<Integer> lockedByRuntime1 = new ArrayList<>();
-        schedManager.lockReadySchedules(runTime1, (store, schedule) -> {
+        schedManager.lockReadySchedules(runTime1, 10, (store, schedule) -> {
             lockedByRuntime1.add(schedule.getId());
         });
         assertEquals(ImmutableList.of(sched1.getId()), lockedByRuntime1);
 
         List<Integer> lockedByRuntime2 = new ArrayList<>();
-        schedManager.lockReadySchedules(runTime2, (store, schedule) -> {
+        schedManager.lockReadySchedules(runTime2, 10, (store, schedule) -> {
             lockedByRuntime2.add(schedule.getId());
         });
         assertEquals(ImmutableList.of(sched3.getId(), sched4.getId()), lockedByRuntime2);
 
         // exception during lockReadySchedules
         try {
-            schedManager.lockReadySchedules(runTime2, (store, schedule) -> {
+            schedManager.lockReadySchedules(runTime2, 10, (store, schedule) -> {
                 throw new RuntimeException("processing " + schedule.getId());
             });
             fail();
@@ -193,7 +193,7 @@ public class DatabaseScheduleStoreManagerTest
         Instant schedTime4 = now.plusSeconds(40);
 
         try {
-            schedManager.lockReadySchedules(runTime2, (store, schedule) -> {
+            schedManager.lockReadySchedules(runTime2, 10, (store, schedule) -> {
                 if (schedule.getId() == sched3.getId()) {
                     throw new RuntimeException();
                 }
@@ -207,7 +207,7 @@ public class DatabaseScheduleStoreManagerTest
         }
 
         List<Integer> updated = new ArrayList<>();
-        schedManager.lockReadySchedules(runTime2, (store, schedule) -> {
+        schedManager.lockReadySchedules(runTime2, 10, (store, schedule) -> {
             updated.add(schedule.getId());
             store.updateNextScheduleTime(schedule.getId(), ScheduleTime.of(schedTime4, runTime4), schedTime1);
         });
@@ -217,5 +217,13 @@ public class DatabaseScheduleStoreManagerTest
         assertEquals(sched1.getId(), updatedSched1.getId());
         assertEquals(runTime4, updatedSched1.getNextRunTime());
         assertEquals(schedTime4, updatedSched1.getNextScheduleTime());
+
+        // limit locks schedules in order of next run time
+        List<Integer> lockedWithLimit = new ArrayList<>();
+        assertEquals(1, schedManager.lockReadySchedules(runTime4, 1, (store, schedule) -> {
+            lockedWithLimit.add(schedule.getId());
+        }));
+        assertEquals(ImmutableList.of(sched4.getId()), lockedWithLimit);
+        assertEquals(2, schedManager.lockReadySchedules(runTime4, 10, (store, schedule) -> { }));
     }
 }
@@ -12,6 +12,7 @@ import io.digdag.core.schedule.*;
 import io.digdag.core.session.*;
 import io.digdag.core.workflow.*;
 import io.digdag.spi.ScheduleTime;
+import io.digdag.client.config.Config;
 import io.digdag.client.config.ConfigFactory;
 import static io.digdag.core.database.DatabaseTestingUtils.*;
 import static org.hamcrest.Matchers.is;
@@ -422,6 +423,177 @@ public class DatabaseSessionStoreManagerTest
         assertEquals(activeArchive, store.getTasksOfAttempt(attempt1.getId()));
     }
 
+    @Test
+    public void initialTasksAreInsertedWithParentsAndUpstreams()
+        throws Exception
+    {
+        WorkflowDefinition def = WorkflowDefinition.of(
+                wf1.getName(),
+                cf.create()
+                    .setNested("+step1", cf.create().set("sh>", "echo step1"))
+                    .setNested("+group", cf.create()
+                            .set("_parallel", true)
+                            .setNested("+a", cf.create().set("sh>", "echo a"))
+                            .setNested("+b", cf.create().set("sh>", "echo b")))
+                    .setNested("+step3", cf.create().set("sh>", "echo step3")),
+                ZoneId.of("UTC")
+                );
+
+        AttemptRequest ar = attemptBuilder.buildFromStoredWorkflow(
+                rev,
+                wf1,
+                cf.create(),
+                ScheduleTime.runNow(Instant.ofEpochSecond(Instant.now().getEpochSecond())));
+        StoredSessionAttemptWithSession attempt = exec.submitWorkflow(0, ar, def);
+
+        Map<String, ArchivedTask> tasks = new HashMap<>();
+        for (ArchivedTask task : store.getTasksOfAttempt(attempt.getId())) {
+            tasks.put(task.getFullName(), task);
+        }
+        assertThat(tasks.size(), is(6));
+
+        long rootId = tasks.get("+wf1").getId();
+        long step1Id = tasks.get("+wf1+step1").getId();
+        long groupId = tasks.get("+wf1+group").getId();
+
+        assertThat(tasks.get("+wf1+step1").getParentId(), is(Optional.of(rootId)));
+        assertThat(tasks.get("+wf1+group").getParentId(), is(Optional.of(rootId)));
+        assertThat(tasks.get("+wf1+group+a").getParentId(), is(Optional.of(groupId)));
+        assertThat(tasks.get("+wf1+group+b").getParentId(), is(Optional.of(groupId)));
+
+        assertThat(tasks.get("+wf1+step1").getUpstreams(), is(ImmutableList.of()));
+        assertThat(tasks.get("+wf1+group").getUpstreams(), is(ImmutableList.of(step1Id)));
+        assertThat(tasks.get("+wf1+group+a").getUpstreams(), is(ImmutableList.of()));
+        assertThat(tasks.get("+wf1+group+b").getUpstreams(), is(ImmutableList.of()));
+        assertThat(tasks.get("+wf1+step3").getUpstreams(), is(ImmutableList.of(groupId)));
+
+        assertThat(tasks.get("+wf1+group+a").getConfig().getLocal().get("sh>", String.class), is("echo a"));
+    }
+
+    @Test
+    public void archivedTasksAreReadPageByPage()
+        throws Exception
+    {
+        WorkflowDefinition def = WorkflowDefinition.of(
+                wf1.getName(),
+                cf.create()
+                    .setNested("+step1", cf.create().set("sh>", "echo step1"))
+                    .setNested("+step2", cf.create().set("sh>", "echo step2"))
+                    .setNested("+step3", cf.create().set("sh>", "echo step3"))
+                    .setNested("+step4", cf.create().set("sh>", "echo step4")),
+                ZoneId.of("UTC")
+                );
+
+        AttemptRequest ar = attemptBuilder.buildFromStoredWorkflow(
+                rev,
+                wf1,
+                cf.create(),
+                ScheduleTime.runNow(Instant.ofEpochSecond(Instant.now().getEpochSecond())));
+        StoredSessionAttemptWithSession attempt = exec.submitWorkflow(0, ar, def);
+
+        List<ArchivedTask> activeTasks = store.getTasksOfAttempt(attempt.getId());
+        assertThat(activeTasks.size(), is(5));
+        assertEquals(activeTasks.subList(0, 2), store.getTasksOfAttempt(attempt.getId(), 2, Optional.absent()));
+
+        manager.lockAttemptIfExists(
+                attempt.getId(),
+                (store, summary) -> {
+                    assertThat(store.aggregateAndInsertTaskArchive(attempt.getId()), is(5));
+                    store.deleteAllTasksOfAttempt(attempt.getId());
+                    return summary;
+                }).get();
+
+        assertEquals(activeTasks, store.getTasksOfAttempt(attempt.getId()));
+        assertEquals(activeTasks.subList(0, 2), store.getTasksOfAttempt(attempt.getId(), 2, Optional.absent()));
+        assertEquals(activeTasks.subList(2, 4), store.getTasksOfAttempt(attempt.getId(), 2, Optional.of(activeTasks.get(1).getId())));
+        assertEquals(activeTasks.subList(4, 5), store.getTasksOfAttempt(attempt.getId(), 2, Optional.of(activeTasks.get(3).getId())));
+        assertEquals(ImmutableList.of(), store.getTasksOfAttempt(attempt.getId(), 2, Optional.of(activeTasks.get(4).getId())));
+        assertEquals(ImmutableList.of(), manager.getSessionStore(1).getTasksOfAttempt(attempt.getId()));
+    }
+
+    @Test
+    public void submitWorkflowsInBatch()
+        throws Exception
+    {
+        Instant t1 = Instant.ofEpochSecond(1470000000);
+        Instant t2 = t1.plusSeconds(3600);
+        Instant t3 = t2.plusSeconds(3600);
+        Instant t4 = t3.plusSeconds(3600);
+
+        StoredSessionAttemptWithSession existing = exec.submitWorkflow(0, buildAttemptRequest(t2, "backfill"), wf1);
+        StoredSessionAttemptWithSession otherName = exec.submitWorkflow(0, buildAttemptRequest(t3, "other"), wf1);
+
+        assertThat(store.getSessionTimesWithAttemptName(proj.getId(), wf1.getName(), ImmutableList.of(t1, t2, t3), "backfill"), is(ImmutableList.of(t2)));
+        assertThat(store.getSessionTimesWithAttemptName(proj.getId(), wf1.getName(), ImmutableList.of(t1, t3), "backfill"), is(ImmutableList.of()));
+        assertThat(manager.getSessionStore(1).getSessionTimesWithAttemptName(proj.getId(), wf1.getName(), ImmutableList.of(t2), "backfill"), is(ImmutableList.of()));
+
+        // t3 has a session already
+        List<StoredSessionAttemptWithSession> submitted = exec.submitWorkflows(0,
+                ImmutableList.of(buildAttemptRequest(t1, "backfill"), buildAttemptRequest(t3, "backfill")), wf1);
+        assertThat(submitted.size(), is(2));
+        assertThat(submitted.get(0).getSession().getSessionTime(), is(t1));
+        assertThat(submitted.get(1).getSession().getSessionTime(), is(t3));
+        assertThat(submitted.get(1).getSessionId(), is(otherName.getSessionId()));
+        for (StoredSessionAttemptWithSession attempt : submitted) {
+            assertThat(attempt.getRetryAttemptName(), is(Optional.of("backfill")));
+            assertSessionAndLastAttemptEquals(store.getSessionById(attempt.getSessionId()), attempt);
+            assertThat(store.getTasksOfAttempt(attempt.getId()).size(), is(2));
+        }
+
+        // attempt at t2 conflicts. others are submitted
+        List<StoredSessionAttemptWithSession> partial = exec.submitWorkflows(0,
+                ImmutableList.of(buildAttemptRequest(t2, "backfill"), buildAttemptRequest(t4, "backfill")), wf1);
+        assertThat(partial.size(), is(1));
+        assertThat(partial.get(0).getSession().getSessionTime(), is(t4));
+        assertSessionAndLastAttemptEquals(store.getSessionById(existing.getSessionId()), existing);
+    }
+
+    @Test
+    public void countTasksByState()
+        throws Exception
+    {
+        // setUp submitted an attempt of otherProjWf1 that has 2 tasks
+        assertThat(manager.countTasksByState(ImmutableList.of(TaskStateCode.BLOCKED, TaskStateCode.READY, TaskStateCode.RUNNING)),
+                is(ImmutableMap.of(TaskStateCode.BLOCKED, 2L, TaskStateCode.READY, 0L, TaskStateCode.RUNNING, 0L)));
+
+        exec.submitWorkflow(0, buildAttemptRequest(Instant.ofEpochSecond(1470000000), "count"), wf1);
+        assertThat(manager.countTasksByState(ImmutableList.of(TaskStateCode.BLOCKED)),
+                is(ImmutableMap.of(TaskStateCode.BLOCKED, 4L)));
+    }
+
+    @Test
+    public void taskCountOfAttempt()
+        throws Exception
+    {
+        StoredSessionAttemptWithSession attempt = exec.submitWorkflow(0, buildAttemptRequest(Instant.ofEpochSecond(1470000000), "count"), wf1);
+        assertThat(manager.getTaskCountOfAttempt(attempt.getId()), is(2L));
+
+        // generated tasks are counted
+        long rootTaskId = store.getTasksOfAttempt(attempt.getId()).get(0).getId();
+        manager.lockTaskIfExists(rootTaskId, (store, task) -> {
+            Config subtasks = cf.create();
+            subtasks.getNestedOrSetEmpty("+a").set("sh>", "echo a");
+            subtasks.getNestedOrSetEmpty("+b").set("sh>", "echo b");
+            return new TaskControl(store, task).addGeneratedSubtasks(
+                    new WorkflowCompiler().compileTasks(task.getFullName(), "^sub", subtasks),
+                    ImmutableList.of(), false);
+        });
+        assertThat(manager.getTaskCountOfAttempt(attempt.getId()), is(5L));
+        assertThat(manager.getTaskCountOfAttempt(attempt.getId()), is((long) manager.getTaskRelations(attempt.getId()).size()));
+    }
+
+    private AttemptRequest buildAttemptRequest(Instant sessionTime, String retryAttemptName)
+    {
+        return attemptBuilder.buildFromStoredWorkflow(
+                rev,
+                wf1,
+                cf.create(),
+                ScheduleTime.of(sessionTime, sessionTime),
+                Optional.of(retryAttemptName),
+                Optional.absent(),
+                ImmutableList.of());
+    }
+
     private void assertSessionAndLastAttemptEquals(StoredSessionWithLastAttempt session, StoredSessionAttemptWithSession attempt)
     {
         assertThat(session.getId(), is(attempt.getSessionId()));
@@ -101,7 +101,9 @@ public class DatabaseTestingUtils
         "schedules",
         "sessions",
         "session_attempts",
+        "attempt_task_counts",
         "task_archives",
+        "task_archive_chunks",
         "session_monitors",
         "task_dependencies",
         "queue_settings",
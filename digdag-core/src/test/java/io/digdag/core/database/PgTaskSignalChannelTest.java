@@ -0,0 +1,130 @@
+package io.digdag.core.database;
+
+import java.sql.Connection;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BooleanSupplier;
+import javax.sql.DataSource;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static io.digdag.core.database.DatabaseTestingUtils.getEnvironmentDatabaseConfig;
+import static io.digdag.core.queue.TaskSignalChannel.Signal.TASK_ENQUEUED;
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+import static org.junit.Assume.assumeThat;
+
+public class PgTaskSignalChannelTest
+{
+    private DatabaseConfig config;
+    private DataSourceProvider dsp;
+    private DataSource ds;
+    private final List<PgTaskSignalChannel> channels = new ArrayList<>();
+
+    @Before
+    public void setUp()
+    {
+        config = getEnvironmentDatabaseConfig();
+        // LISTEN / NOTIFY needs PostgreSQL
+        assumeThat(config.getType(), is("postgresql"));
+        dsp = new DataSourceProvider(config);
+        ds = dsp.get();
+    }
+
+    @After
+    public void destroy()
+    {
+        for (PgTaskSignalChannel channel : channels) {
+            channel.close();
+        }
+        if (dsp != null) {
+            dsp.close();
+        }
+    }
+
+    @Test
+    public void deliverNotificationsOfOtherChannels()
+        throws Exception
+    {
+        AtomicInteger countA = new AtomicInteger();
+        AtomicInteger countB = new AtomicInteger();
+        PgTaskSignalChannel channelA = startChannel(countA, 60 * 1000, 5 * 1000);
+        startChannel(countB, 60 * 1000, 5 * 1000);
+
+        // a channel delivers all signals once it starts listening
+        waitFor(() -> countA.get() == 1 && countB.get() == 1);
+
+        channelA.publish(TASK_ENQUEUED);
+        assertThat(countA.get(), is(2));
+        waitFor(() -> countB.get() == 2);
+
+        // a notification sent by a channel itself is not delivered again
+        Thread.sleep(1000);
+        assertThat(countA.get(), is(2));
+        assertThat(countB.get(), is(2));
+    }
+
+    @Test
+    public void keepListeningWhenNoNotificationArrives()
+        throws Exception
+    {
+        AtomicInteger countA = new AtomicInteger();
+        AtomicInteger countB = new AtomicInteger();
+        PgTaskSignalChannel channelA = startChannel(countA, 60 * 1000, 5 * 1000);
+        startChannel(countB, 100, 5 * 1000);
+        waitFor(() -> countA.get() == 1 && countB.get() == 1);
+
+        // getNotifications of channel B times out several times
+        Thread.sleep(1000);
+        assertThat(countB.get(), is(1));
+
+        channelA.publish(TASK_ENQUEUED);
+        waitFor(() -> countB.get() == 2);
+    }
+
+    @Test
+    public void listenAgainWhenConnectionIsLost()
+        throws Exception
+    {
+        AtomicInteger count = new AtomicInteger();
+        startChannel(count, 60 * 1000, 100);
+        waitFor(() -> count.get() == 1);
+
+        try (Connection conn = ds.getConnection();
+                Statement stmt = conn.createStatement()) {
+            stmt.execute("select pg_terminate_backend(pid) from pg_stat_activity" +
+                    " where pid <> pg_backend_pid() and query like 'LISTEN digdag_%'");
+            if (!conn.getAutoCommit()) {
+                conn.commit();
+            }
+        }
+
+        // signals sent while reconnecting are lost. The channel delivers
+        // all signals again when it listens again.
+        waitFor(() -> count.get() == 2);
+    }
+
+    private PgTaskSignalChannel startChannel(AtomicInteger count, int listenTimeout, int reconnectInterval)
+    {
+        PgTaskSignalChannel channel = new PgTaskSignalChannel(config, ds, listenTimeout, reconnectInterval);
+        channel.subscribe(TASK_ENQUEUED, () -> count.incrementAndGet());
+        channels.add(channel);
+        channel.start();
+        return channel;
+    }
+
+    private static void waitFor(BooleanSupplier condition)
+        throws InterruptedException
+    {
+        long deadline = System.currentTimeMillis() + 30 * 1000;
+        while (!condition.getAsBoolean()) {
+            if (System.currentTimeMillis() > deadline) {
+                fail("Timed out");
+            }
+            Thread.sleep(50);
+        }
+    }
+}
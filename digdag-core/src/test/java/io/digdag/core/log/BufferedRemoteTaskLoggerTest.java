@@ -0,0 +1,179 @@
+package io.digdag.core.log;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Stream;
+import java.util.zip.GZIPInputStream;
+import com.google.common.base.Optional;
+import com.google.common.io.ByteStreams;
+import io.digdag.core.TempFileManager;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.hamcrest.Matchers.greaterThan;
+import static org.hamcrest.Matchers.instanceOf;
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class BufferedRemoteTaskLoggerTest
+{
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private Path tempDir;
+    private TempFileManager tempFiles;
+    private ScheduledExecutorService scheduler;
+
+    private final List<Instant> chunkTimes = new ArrayList<>();
+    private final ByteArrayOutputStream uploaded = new ByteArrayOutputStream();
+
+    @Before
+    public void setUp()
+        throws IOException
+    {
+        tempDir = folder.newFolder().toPath();
+        tempFiles = new TempFileManager(tempDir);
+        scheduler = Executors.newSingleThreadScheduledExecutor();
+    }
+
+    @After
+    public void shutdown()
+    {
+        scheduler.shutdownNow();
+    }
+
+    private synchronized void upload(Instant firstLogTime, Path gzFile)
+        throws IOException
+    {
+        chunkTimes.add(firstLogTime);
+        try (InputStream in = new GZIPInputStream(Files.newInputStream(gzFile))) {
+            ByteStreams.copy(in, uploaded);
+        }
+    }
+
+    @Test
+    public void flushBySize()
+    {
+        BufferedRemoteTaskLogger taskLogger = new BufferedRemoteTaskLogger(tempFiles, "test",
+                this::upload, 10, Duration.ofHours(1), Optional.absent());
+
+        StringBuilder expected = new StringBuilder();
+        for (int i = 0; i < 5; i++) {
+            String line = "log line " + i + "\n";
+            taskLogger.log(LogLevel.INFO, 0L, line);
+            expected.append(line);
+        }
+        assertThat(chunkTimes.size(), is(5));
+
+        taskLogger.close();
+
+        assertThat(new String(uploaded.toByteArray(), UTF_8), is(expected.toString()));
+        for (int i = 1; i < chunkTimes.size(); i++) {
+            assertTrue(chunkTimes.get(i).isAfter(chunkTimes.get(i - 1)));
+        }
+    }
+
+    @Test
+    public void flushByInterval()
+        throws Exception
+    {
+        BufferedRemoteTaskLogger taskLogger = new BufferedRemoteTaskLogger(tempFiles, "test",
+                this::upload, 1024 * 1024, Duration.ofMillis(100), Optional.of(scheduler));
+
+        taskLogger.log(LogLevel.INFO, 0L, "first\n");
+
+        long deadline = System.currentTimeMillis() + 10_000;
+        while (uploadedSize() == 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(50);
+        }
+        assertThat(uploadedSize(), greaterThan(0));
+
+        taskLogger.log(LogLevel.INFO, 0L, "second\n");
+        taskLogger.close();
+
+        assertThat(new String(uploaded.toByteArray(), UTF_8), is("first\nsecond\n"));
+    }
+
+    @Test
+    public void retryFailedChunkAtNextFlush()
+        throws Exception
+    {
+        AtomicInteger failures = new AtomicInteger(2);
+        BufferedRemoteTaskLogger taskLogger = new BufferedRemoteTaskLogger(tempFiles, "test",
+                (firstLogTime, gzFile) -> {
+                    if (failures.getAndDecrement() > 0) {
+                        throw new IOException("failed");
+                    }
+                    upload(firstLogTime, gzFile);
+                },
+                10, Duration.ofHours(1), Optional.absent());
+
+        taskLogger.log(LogLevel.INFO, 0L, "log line 0\n");
+        taskLogger.log(LogLevel.INFO, 0L, "log line 1\n");
+        assertThat(chunkTimes.size(), is(0));
+        assertThat(countTempFiles(), is(2L));
+
+        // the third flush uploads the failed chunks first
+        taskLogger.log(LogLevel.INFO, 0L, "log line 2\n");
+        assertThat(chunkTimes.size(), is(3));
+        assertThat(countTempFiles(), is(0L));
+
+        taskLogger.close();
+
+        assertThat(new String(uploaded.toByteArray(), UTF_8), is("log line 0\nlog line 1\nlog line 2\n"));
+        for (int i = 1; i < chunkTimes.size(); i++) {
+            assertTrue(chunkTimes.get(i).isAfter(chunkTimes.get(i - 1)));
+        }
+    }
+
+    @Test
+    public void failAtCloseIfChunksCanNotBeUploaded()
+        throws Exception
+    {
+        BufferedRemoteTaskLogger taskLogger = new BufferedRemoteTaskLogger(tempFiles, "test",
+                (firstLogTime, gzFile) -> {
+                    throw new IOException("failed");
+                },
+                10, Duration.ofHours(1), Optional.absent());
+
+        taskLogger.log(LogLevel.INFO, 0L, "log line 0\n");
+        taskLogger.log(LogLevel.INFO, 0L, "log line 1\n");
+
+        try {
+            taskLogger.close();
+            fail();
+        }
+        catch (RuntimeException ex) {
+            assertThat(ex.getCause(), instanceOf(IOException.class));
+        }
+        assertThat(countTempFiles(), is(0L));
+    }
+
+    private long countTempFiles()
+        throws IOException
+    {
+        try (Stream<Path> files = Files.walk(tempDir)) {
+            return files.filter(Files::isRegularFile).count();
+        }
+    }
+
+    private synchronized int uploadedSize()
+    {
+        return uploaded.size();
+    }
+}
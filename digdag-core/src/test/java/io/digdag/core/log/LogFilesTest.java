@@ -0,0 +1,221 @@
+package io.digdag.core.log;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.zip.GZIPOutputStream;
+import com.google.common.base.Optional;
+import io.digdag.spi.DirectUploadHandle;
+import io.digdag.spi.LogFilePrefix;
+import io.digdag.spi.StorageFileNotFoundException;
+import org.junit.Test;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+
+public class LogFilesTest
+{
+    private final LogFilePrefix prefix = LogFilePrefix.builder()
+        .siteId(0)
+        .projectId(1)
+        .workflowName("wf")
+        .sessionTime(Instant.ofEpochSecond(1470000000))
+        .timeZone(ZoneId.of("UTC"))
+        .retryAttemptName(Optional.absent())
+        .createdAt(Instant.ofEpochSecond(1470000000))
+        .build();
+
+    private final MemoryLogServer logServer = new MemoryLogServer();
+
+    @Test
+    public void readTailFromCursor()
+        throws Exception
+    {
+        putLog("+wf+a", 1, "a1\na2\n");
+        putLog("+wf+a", 2, "a3\na4 incomplete");
+        putLog("+wf+ab", 1, "ab1\n");
+
+        LogTail tail = LogFiles.readLogTail(logServer, prefix, "+wf+a", Optional.absent(), 0, 0, () -> false, 1024);
+        assertThat(new String(tail.getData(), UTF_8), is("a1\na2\na3\n"));
+        assertThat(tail.getMore(), is(false));
+
+        // nothing new
+        LogTail next = LogFiles.readLogTail(logServer, prefix, "+wf+a", tail.getFileName(), tail.getOffset(), tail.getChunkOffset(), () -> false, 1024);
+        assertThat(next.getData().length, is(0));
+        assertThat(next.getFileName(), is(tail.getFileName()));
+        assertThat(next.getOffset(), is(tail.getOffset()));
+
+        // a new file completes the last line of the previous file
+        putLog("+wf+a", 3, "a5\n");
+        next = LogFiles.readLogTail(logServer, prefix, "+wf+a", tail.getFileName(), tail.getOffset(), tail.getChunkOffset(), () -> false, 1024);
+        assertThat(new String(next.getData(), UTF_8), is("a4 incompletea5\n"));
+    }
+
+    @Test
+    public void readTailWithSizeLimit()
+        throws Exception
+    {
+        putLog("+wf+a", 1, "line1\nline2\nline3\n");
+
+        LogTail tail = LogFiles.readLogTail(logServer, prefix, "+wf+a", Optional.absent(), 0, 0, () -> false, 14);
+        assertThat(new String(tail.getData(), UTF_8), is("line1\nline2\n"));
+        assertThat(tail.getMore(), is(true));
+
+        tail = LogFiles.readLogTail(logServer, prefix, "+wf+a", tail.getFileName(), tail.getOffset(), tail.getChunkOffset(), () -> false, 14);
+        assertThat(new String(tail.getData(), UTF_8), is("line3\n"));
+        assertThat(tail.getMore(), is(false));
+    }
+
+    @Test
+    public void skipUnchangedFile()
+        throws Exception
+    {
+        putLog("+wf+a", 1, "a1\n");
+
+        LogTail tail = LogFiles.readLogTail(logServer, prefix, "+wf+a", Optional.absent(), 0, 0, () -> false, 1024);
+        assertThat(new String(tail.getData(), UTF_8), is("a1\n"));
+        assertThat(tail.getOffset(), is(logServer.getFileSize(tail.getFileName().get())));
+        assertThat(tail.getChunkOffset(), is(0L));
+
+        logServer.getFileCount = 0;
+        LogTail next = LogFiles.readLogTail(logServer, prefix, "+wf+a", tail.getFileName(), tail.getOffset(), tail.getChunkOffset(), () -> false, 1024);
+        assertThat(next.getData().length, is(0));
+        assertThat(next.getOffset(), is(tail.getOffset()));
+        assertThat(logServer.getFileCount, is(0));
+
+        // a file that ends with an incomplete line is read again
+        putLog("+wf+a", 2, "a2\na3");
+        tail = LogFiles.readLogTail(logServer, prefix, "+wf+a", tail.getFileName(), tail.getOffset(), tail.getChunkOffset(), () -> false, 1024);
+        assertThat(new String(tail.getData(), UTF_8), is("a2\n"));
+        assertThat(tail.getOffset(), is(0L));
+        assertThat(tail.getChunkOffset(), is(3L));
+
+        logServer.getFileCount = 0;
+        next = LogFiles.readLogTail(logServer, prefix, "+wf+a", tail.getFileName(), tail.getOffset(), tail.getChunkOffset(), () -> false, 1024);
+        assertThat(next.getData().length, is(0));
+        assertThat(logServer.getFileCount, is(1));
+    }
+
+    @Test
+    public void readAppendedChunksFromCursor()
+        throws Exception
+    {
+        // local log server appends a gzip member to a file at every flush
+        byte[] chunk1 = gzip("a1\na2");
+        putLogData("+wf+a", 1, chunk1);
+
+        LogTail tail = LogFiles.readLogTail(logServer, prefix, "+wf+a", Optional.absent(), 0, 0, () -> false, 1024);
+        assertThat(new String(tail.getData(), UTF_8), is("a1\n"));
+        assertThat(tail.getOffset(), is(0L));
+        assertThat(tail.getChunkOffset(), is(3L));
+
+        byte[] chunk2 = gzip(" continued\na3\n");
+        putLogData("+wf+a", 1, concat(chunk1, chunk2));
+
+        tail = LogFiles.readLogTail(logServer, prefix, "+wf+a", tail.getFileName(), tail.getOffset(), tail.getChunkOffset(), () -> false, 1024);
+        assertThat(new String(tail.getData(), UTF_8), is("a2 continued\na3\n"));
+        assertThat(tail.getOffset(), is((long) (chunk1.length + chunk2.length)));
+        assertThat(tail.getChunkOffset(), is(0L));
+
+        // the next read starts from the third chunk
+        byte[] chunk3 = gzip("a4\n");
+        byte[] broken = new byte[] {0x1f};  // incomplete chunk being written
+        putLogData("+wf+a", 1, concat(concat(chunk1, chunk2), concat(chunk3, broken)));
+
+        tail = LogFiles.readLogTail(logServer, prefix, "+wf+a", tail.getFileName(), tail.getOffset(), tail.getChunkOffset(), () -> false, 1024);
+        assertThat(new String(tail.getData(), UTF_8), is("a4\n"));
+        assertThat(tail.getOffset(), is((long) (chunk1.length + chunk2.length + chunk3.length)));
+    }
+
+    @Test
+    public void readLastIncompleteLineWhenLogIsComplete()
+        throws Exception
+    {
+        putLog("+wf+a", 1, "a1\na2 no newline");
+
+        LogTail tail = LogFiles.readLogTail(logServer, prefix, "+wf+a", Optional.absent(), 0, 0, () -> false, 1024);
+        assertThat(new String(tail.getData(), UTF_8), is("a1\n"));
+
+        tail = LogFiles.readLogTail(logServer, prefix, "+wf+a", tail.getFileName(), tail.getOffset(), tail.getChunkOffset(), () -> true, 1024);
+        assertThat(new String(tail.getData(), UTF_8), is("a2 no newline"));
+
+        LogTail next = LogFiles.readLogTail(logServer, prefix, "+wf+a", tail.getFileName(), tail.getOffset(), tail.getChunkOffset(), () -> true, 1024);
+        assertThat(next.getData().length, is(0));
+    }
+
+    private void putLog(String taskName, long time, String content)
+        throws IOException
+    {
+        putLogData(taskName, time, gzip(content));
+    }
+
+    private void putLogData(String taskName, long time, byte[] gzData)
+    {
+        logServer.putFile(prefix, taskName, Instant.ofEpochSecond(time), "agent", gzData);
+    }
+
+    private static byte[] gzip(String content)
+        throws IOException
+    {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (GZIPOutputStream out = new GZIPOutputStream(bytes)) {
+            out.write(content.getBytes(UTF_8));
+        }
+        return bytes.toByteArray();
+    }
+
+    private static byte[] concat(byte[] a, byte[] b)
+    {
+        byte[] c = Arrays.copyOf(a, a.length + b.length);
+        System.arraycopy(b, 0, c, a.length, b.length);
+        return c;
+    }
+
+    private static class MemoryLogServer
+        extends AbstractFileLogServer
+    {
+        private final Map<String, byte[]> files = new TreeMap<>();
+        private int getFileCount = 0;
+
+        long getFileSize(String fileName)
+        {
+            return files.get(fileName).length;
+        }
+
+        @Override
+        public Optional<DirectUploadHandle> getDirectUploadHandle(String dateDir, String attemptDir, String fileName)
+        {
+            return Optional.absent();
+        }
+
+        @Override
+        protected void putFile(String dateDir, String attemptDir, String fileName, byte[] gzData)
+        {
+            files.put(fileName, gzData);
+        }
+
+        @Override
+        protected byte[] getFile(String dateDir, String attemptDir, String fileName)
+            throws StorageFileNotFoundException
+        {
+            getFileCount++;
+            byte[] data = files.get(fileName);
+            if (data == null) {
+                throw new StorageFileNotFoundException(fileName);
+            }
+            return data;
+        }
+
+        @Override
+        protected void listFiles(String dateDir, String attemptDir, FileMetadataConsumer consumer)
+        {
+            for (Map.Entry<String, byte[]> pair : files.entrySet()) {
+                consumer.accept(pair.getKey(), pair.getValue().length, null);
+            }
+        }
+    }
+}
@@ -0,0 +1,69 @@
+package io.digdag.core.metrics;
+
+import org.junit.Test;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.sameInstance;
+import static org.junit.Assert.assertThat;
+
+public class MetricsRegistryTest
+{
+    private final MetricsRegistry metrics = new MetricsRegistry();
+
+    @Test
+    public void sameNameAndLabelReturnsSameMetric()
+    {
+        MetricsRegistry.Counter a = metrics.counter("test_total", "Test", "kind", "a");
+        assertThat(metrics.counter("test_total", "Test", "kind", "a"), is(sameInstance(a)));
+
+        a.inc();
+        metrics.counter("test_total", "Test", "kind", "b").inc(3);
+        assertThat(a.get(), is(1L));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsDifferentTypeWithSameName()
+    {
+        metrics.counter("test", "Test");
+        metrics.histogram("test", "Test");
+    }
+
+    @Test
+    public void writesPrometheusText()
+    {
+        metrics.counter("test_total", "Test counter", "kind", "b").inc(3);
+        metrics.counter("test_total", "Test counter", "kind", "a").inc();
+        metrics.gauge("test_gauge", "Test gauge", () -> 2.5);
+        metrics.gauge("test_failing", "Failing gauge", () -> { throw new IllegalStateException("failed"); });
+
+        MetricsRegistry.Histogram histogram = metrics.histogram("test_seconds", "Test\nhistogram", "phase", "x\"y");
+        histogram.observe(0.002);
+        histogram.observe(0.5);
+        histogram.observe(100.0);
+
+        assertThat(metrics.toPrometheusText(), is(
+                    "# HELP test_failing Failing gauge\n" +
+                    "# TYPE test_failing gauge\n" +
+                    "# HELP test_gauge Test gauge\n" +
+                    "# TYPE test_gauge gauge\n" +
+                    "test_gauge 2.5\n" +
+                    "# HELP test_seconds Test\\nhistogram\n" +
+                    "# TYPE test_seconds histogram\n" +
+                    "test_seconds_bucket{phase=\"x\\\"y\",le=\"0.001\"} 0\n" +
+                    "test_seconds_bucket{phase=\"x\\\"y\",le=\"0.005\"} 1\n" +
+                    "test_seconds_bucket{phase=\"x\\\"y\",le=\"0.01\"} 1\n" +
+                    "test_seconds_bucket{phase=\"x\\\"y\",le=\"0.05\"} 1\n" +
+                    "test_seconds_bucket{phase=\"x\\\"y\",le=\"0.1\"} 1\n" +
+                    "test_seconds_bucket{phase=\"x\\\"y\",le=\"0.5\"} 2\n" +
+                    "test_seconds_bucket{phase=\"x\\\"y\",le=\"1\"} 2\n" +
+                    "test_seconds_bucket{phase=\"x\\\"y\",le=\"5\"} 2\n" +
+                    "test_seconds_bucket{phase=\"x\\\"y\",le=\"10\"} 2\n" +
+                    "test_seconds_bucket{phase=\"x\\\"y\",le=\"60\"} 2\n" +
+                    "test_seconds_bucket{phase=\"x\\\"y\",le=\"+Inf\"} 3\n" +
+                    "test_seconds_sum{phase=\"x\\\"y\"} 100.502\n" +
+                    "test_seconds_count{phase=\"x\\\"y\"} 3\n" +
+                    "# HELP test_total Test counter\n" +
+                    "# TYPE test_total counter\n" +
+                    "test_total{kind=\"a\"} 1\n" +
+                    "test_total{kind=\"b\"} 3\n"));
+    }
+}
@@ -0,0 +1,112 @@
+package io.digdag.core.storage;
+
+import java.util.ArrayList;
+import java.util.List;
+import com.google.common.collect.ImmutableSet;
+import io.digdag.client.config.Config;
+import io.digdag.spi.Storage;
+import io.digdag.spi.StorageFactory;
+import io.digdag.spi.StorageObject;
+import org.junit.Before;
+import org.junit.Test;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.not;
+import static org.hamcrest.Matchers.sameInstance;
+import static org.junit.Assert.assertThat;
+import static io.digdag.core.database.DatabaseTestingUtils.createConfig;
+
+public class StorageManagerTest
+{
+    private final List<MockStorage> created = new ArrayList<>();
+
+    private StorageManager storageManager;
+
+    @Before
+    public void setUp()
+    {
+        storageManager = new StorageManager(ImmutableSet.of(new MockStorageFactory()));
+    }
+
+    @Test
+    public void storagesAreSharedPerConfig()
+    {
+        Config systemConfig = createConfig()
+            .set("archive.type", "mock")
+            .set("archive.mock.bucket", "a")
+            .set("log-server.type", "mock")
+            .set("log-server.mock.bucket", "a")
+            .set("other.type", "mock")
+            .set("other.mock.bucket", "b");
+
+        Storage archive1 = storageManager.create(systemConfig, "archive.");
+        Storage archive2 = storageManager.create(systemConfig, "archive.");
+        Storage log = storageManager.create(systemConfig, "log-server.");
+        Storage other = storageManager.create(systemConfig, "other.");
+
+        assertThat(archive1, sameInstance(archive2));
+        assertThat(archive1, sameInstance(log));
+        assertThat(archive1, not(sameInstance(other)));
+        assertThat(created.size(), is(2));
+    }
+
+    @Test
+    public void shutdownClosesStorages()
+    {
+        Config systemConfig = createConfig()
+            .set("archive.type", "mock");
+
+        storageManager.create(systemConfig, "archive.");
+        storageManager.shutdown();
+
+        assertThat(created.size(), is(1));
+        assertThat(created.get(0).closed, is(true));
+    }
+
+    private class MockStorageFactory
+            implements StorageFactory
+    {
+        @Override
+        public String getType()
+        {
+            return "mock";
+        }
+
+        @Override
+        public Storage newStorage(Config config)
+        {
+            MockStorage storage = new MockStorage();
+            created.add(storage);
+            return storage;
+        }
+    }
+
+    private static class MockStorage
+            implements Storage
+    {
+        private boolean closed = false;
+
+        @Override
+        public StorageObject open(String key)
+        {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public String put(String key, long contentLength, UploadStreamProvider payload)
+        {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public void list(String keyPrefix, FileListing callback)
+        {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public void close()
+        {
+            closed = true;
+        }
+    }
+}
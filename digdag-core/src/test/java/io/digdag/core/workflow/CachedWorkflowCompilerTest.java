@@ -0,0 +1,58 @@
+package io.digdag.core.workflow;
+
+import java.time.ZoneId;
+import io.digdag.client.config.Config;
+import io.digdag.core.metrics.MetricsRegistry;
+import io.digdag.core.repository.ImmutableStoredWorkflowDefinition;
+import io.digdag.core.repository.StoredWorkflowDefinition;
+import io.digdag.core.repository.WorkflowDefinition;
+import org.junit.Test;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.not;
+import static org.hamcrest.Matchers.sameInstance;
+import static org.junit.Assert.assertThat;
+import static io.digdag.core.database.DatabaseTestingUtils.createConfig;
+
+public class CachedWorkflowCompilerTest
+{
+    private final MetricsRegistry metrics = new MetricsRegistry();
+    private final CachedWorkflowCompiler compiler = new CachedWorkflowCompiler(new WorkflowCompiler(), 10, metrics);
+
+    private final Config config = createConfig()
+        .setNested("+a", createConfig().set("echo>", "a"))
+        .setNested("+b", createConfig().set("echo>", "b"));
+
+    @Test
+    public void reusesCompiledWorkflowOfStoredDefinition()
+    {
+        StoredWorkflowDefinition def1 = storedDefinition(1, "wf");
+        StoredWorkflowDefinition def2 = storedDefinition(2, "wf");
+
+        Workflow workflow = compiler.compile(def1);
+        assertThat(workflow, is(new WorkflowCompiler().compile("wf", config)));
+        assertThat(compiler.compile(def1), is(sameInstance(workflow)));
+        assertThat(compiler.compile(def2), is(not(sameInstance(workflow))));
+
+        assertThat(metrics.counter("digdag_executor_workflow_cache_total", "", "result", "hit").get(), is(1L));
+        assertThat(metrics.counter("digdag_executor_workflow_cache_total", "", "result", "miss").get(), is(2L));
+    }
+
+    @Test
+    public void compilesDefinitionNotStoredEveryTime()
+    {
+        WorkflowDefinition def = WorkflowDefinition.of("wf", config, ZoneId.of("UTC"));
+
+        assertThat(compiler.compile(def), is(not(sameInstance(compiler.compile(def)))));
+    }
+
+    private StoredWorkflowDefinition storedDefinition(long id, String name)
+    {
+        return ImmutableStoredWorkflowDefinition.builder()
+            .id(id)
+            .revisionId(1)
+            .name(name)
+            .config(config)
+            .timeZone(ZoneId.of("UTC"))
+            .build();
+    }
+}
@@ -0,0 +1,48 @@
+package io.digdag.core.workflow;
+
+import java.util.Arrays;
+import com.google.common.collect.ImmutableList;
+import io.digdag.client.config.Config;
+import io.digdag.client.config.ConfigFactory;
+import org.junit.Test;
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+import static io.digdag.core.database.DatabaseTestingUtils.createConfigFactory;
+
+public class CompactForEachConfigTest
+{
+    private final ConfigFactory cf = createConfigFactory();
+
+    @Test
+    public void expandGeneratesSameSubtasksWithCopiedTemplate()
+    {
+        Config template = cf.create()
+            .set("echo>", "${td.each.a}")
+            .setNested("_export", cf.create().set("x", 1));
+
+        Config compact = CompactForEachConfig.builder(template, "+td-for-each-",
+                ImmutableList.of("td", "each"), ImmutableList.of("a", "b"))
+            .addRow(Arrays.asList(1L, "x"))
+            .addRow(Arrays.asList(2L, null))
+            .parallel(true)
+            .build();
+
+        // compact form is stored in the database as json
+        Config stored = cf.fromJsonString(compact.toString());
+        assertThat(CompactForEachConfig.isCompact(stored), is(true));
+
+        Config expected = cf.create();
+        expected.setNested("+td-for-each-0", template.deepCopy());
+        expected.getNested("+td-for-each-0").getNested("_export")
+            .setNested("td", cf.create().setNested("each", cf.create().set("a", 1L).set("b", "x")));
+        expected.setNested("+td-for-each-1", template.deepCopy());
+        expected.getNested("+td-for-each-1").getNested("_export")
+            .setNested("td", cf.create().setNested("each", cf.create().set("a", 2L)));
+        expected.set("_parallel", true);
+
+        Config expanded = CompactForEachConfig.expand(stored);
+        assertThat(expanded, is(expected));
+        assertThat(expanded.getKeys(), is(ImmutableList.of("+td-for-each-0", "+td-for-each-1", "_parallel")));
+        assertThat(CompactForEachConfig.isCompact(expanded), is(false));
+    }
+}
@@ -6,6 +6,7 @@ import java.io.IOException;
 import java.time.Instant;
 import java.time.ZoneId;
 import java.util.concurrent.atomic.AtomicReference;
+import java.util.stream.Collectors;
 import org.skife.jdbi.v2.IDBI;
 import com.google.common.base.Optional;
 import com.google.common.base.Throwables;
@@ -20,6 +21,7 @@ import io.digdag.core.workflow.*;
 import io.digdag.core.config.YamlConfigLoader;
 import io.digdag.spi.ScheduleTime;
 import io.digdag.client.config.Config;
+import io.digdag.client.config.ConfigElement;
 import io.digdag.client.config.ConfigException;
 import io.digdag.client.config.ConfigFactory;
 import io.digdag.core.DigdagEmbed;
@@ -90,6 +92,77 @@ public class WorkflowExecutorTest
         assertThat(new String(Files.readAllBytes(folder.getRoot().toPath().resolve("out")), UTF_8), is("trytrytrytry"));
     }
 
+    @Test
+    public void incrementalPropagationReachesSameStates()
+        throws Exception
+    {
+        Config config = loadYamlResource("/digdag/workflow/cases/propagation.dig");
+
+        List<String> fullScanStates = getTaskStates(localSite,
+                WorkflowTestingUtils.runWorkflow(localSite, folder.newFolder().toPath(), "propagation", config));
+
+        try (DigdagEmbed incremental = setupEmbed(ConfigElement.ofMap(ImmutableMap.of("executor.incrementalPropagation", "true")))) {
+            LocalSite incrementalSite = incremental.getInjector().getInstance(LocalSite.class);
+            List<String> incrementalStates = getTaskStates(incrementalSite,
+                    WorkflowTestingUtils.runWorkflow(incrementalSite, folder.newFolder().toPath(), "propagation", config));
+
+            assertThat(incrementalStates, is(fullScanStates));
+        }
+    }
+
+    @Test
+    public void enqueueReadyTasksOfMultipleAttempts()
+        throws Exception
+    {
+        // more ready tasks than a page of findReadyTasks, spread over
+        // attempts that are enqueued by different threads
+        Config config = cf.create().set("_parallel", true);
+        for (int i = 0; i < 150; i++) {
+            config.setNested("+task" + i, cf.create().set("noop>", ""));
+        }
+
+        try (DigdagEmbed partitioned = setupEmbed(ConfigElement.ofMap(ImmutableMap.of("executor.enqueueThreads", "3")))) {
+            LocalSite site = partitioned.getInjector().getInstance(LocalSite.class);
+            ArchiveMetadata meta = ArchiveMetadata.of(
+                    WorkflowDefinitionList.of(ImmutableList.of(
+                            WorkflowFile.fromConfig("fan_out", config).toWorkflowDefinition())),
+                    cf.create().set("_workdir", folder.getRoot().toString()));
+            LocalSite.StoreWorkflowResult stored = site.storeLocalWorkflowsWithoutSchedule(
+                    "default", "revision-1", meta);
+            StoredWorkflowDefinition def = stored.getWorkflowDefinitions().get(0);
+
+            Instant sessionTime = Instant.ofEpochSecond(Instant.now().getEpochSecond() / 3600 * 3600);
+            List<Long> attemptIds = new ArrayList<>();
+            for (int i = 0; i < 4; i++) {
+                AttemptRequest ar = site.getAttemptBuilder()
+                    .buildFromStoredWorkflow(
+                            stored.getRevision(),
+                            def,
+                            cf.create(),
+                            ScheduleTime.runNow(sessionTime.plusSeconds(3600 * i)));
+                attemptIds.add(site.submitWorkflow(ar, def).getId());
+            }
+            site.runUntilAllDone();
+
+            for (long attemptId : attemptIds) {
+                List<ArchivedTask> tasks = site.getSessionStore().getTasksOfAttempt(attemptId);
+                assertThat(tasks.size(), is(151));
+                for (ArchivedTask task : tasks) {
+                    assertThat(task.getFullName(), task.getState(), is(TaskStateCode.SUCCESS));
+                }
+            }
+        }
+    }
+
+    private static List<String> getTaskStates(LocalSite site, StoredSessionAttemptWithSession attempt)
+    {
+        return site.getSessionStore().getTasksOfAttempt(attempt.getId())
+            .stream()
+            .map(task -> task.getFullName() + ":" + task.getState())
+            .sorted()
+            .collect(Collectors.toList());
+    }
+
     private Config loadYamlResource(String name)
     {
         try {
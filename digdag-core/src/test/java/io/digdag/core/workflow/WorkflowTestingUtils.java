@@ -6,6 +6,7 @@ import com.google.common.base.Throwables;
 import com.google.common.collect.ImmutableList;
 import com.google.inject.multibindings.Multibinder;
 import io.digdag.client.config.Config;
+import io.digdag.client.config.ConfigElement;
 import io.digdag.spi.OperatorFactory;
 import io.digdag.spi.CommandExecutor;
 import io.digdag.spi.SchedulerFactory;
@@ -32,8 +33,14 @@ public class WorkflowTestingUtils
     private WorkflowTestingUtils() { }
 
     public static DigdagEmbed setupEmbed()
+    {
+        return setupEmbed(ConfigElement.empty());
+    }
+
+    public static DigdagEmbed setupEmbed(ConfigElement systemConfig)
     {
         DigdagEmbed embed = new DigdagEmbed.Bootstrap()
+            .setSystemConfig(systemConfig)
             .withExtensionLoader(false)
             .addModules((binder) -> {
                 binder.bind(CommandExecutor.class).to(SimpleCommandExecutor.class).in(Scopes.SINGLETON);
@@ -53,7 +60,7 @@ public class WorkflowTestingUtils
         return embed;
     }
 
-    public static void runWorkflow(LocalSite localSite, Path workdir, String workflowName, Config config)
+    public static StoredSessionAttemptWithSession runWorkflow(LocalSite localSite, Path workdir, String workflowName, Config config)
         throws InterruptedException
     {
         try {
@@ -74,7 +81,7 @@ public class WorkflowTestingUtils
                         config.getFactory().create(),
                         ScheduleTime.runNow(Instant.ofEpochSecond(Instant.now().getEpochSecond())));
             StoredSessionAttemptWithSession attempt = localSite.submitWorkflow(ar, def);
-            localSite.runUntilDone(attempt.getId());
+            return localSite.runUntilDone(attempt.getId());
         }
         catch (ResourceNotFoundException | ResourceConflictException ex) {
             throw Throwables.propagate(ex);
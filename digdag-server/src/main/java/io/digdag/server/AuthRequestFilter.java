@@ -14,21 +14,27 @@ public class AuthRequestFilter
 {
     private Authenticator auth;
     private ConfigFactory cf;
+    private final boolean metricsPublic;
 
     private final GenericJsonExceptionHandler<NotAuthorizedException> errorResultHandler;
 
     @Inject
-    public AuthRequestFilter(Authenticator auth, ConfigFactory cf)
+    public AuthRequestFilter(Authenticator auth, ConfigFactory cf, ServerConfig serverConfig)
     {
         this.auth = auth;
         this.cf = cf;
+        this.metricsPublic = serverConfig.getMetricsPublic();
         this.errorResultHandler = new GenericJsonExceptionHandler<NotAuthorizedException>(Response.Status.UNAUTHORIZED) { };
     }
 
     @Override
     public void filter(ContainerRequestContext requestContext)
     {
-        if (requestContext.getUriInfo().getPath().equals("/api/version")) {
+        String path = requestContext.getUriInfo().getPath();
+        if (path.equals("/api/version")) {
+            return;
+        }
+        if (metricsPublic && path.equals("/api/metrics")) {
             return;
         }
 
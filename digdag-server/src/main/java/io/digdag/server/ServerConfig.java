@@ -37,6 +37,9 @@ public interface ServerConfig
 
     public boolean getExecutorEnabled();
 
+    // /api/metrics doesn't require authentication if true
+    public boolean getMetricsPublic();
+
     public Map<String, String> getHeaders();
 
     public ConfigElement getSystemConfig();
@@ -47,7 +50,8 @@ public interface ServerConfig
             .port(DEFAULT_PORT)
             .bind(DEFAULT_BIND)
             .accessLogPattern(DEFAULT_ACCESS_LOG_PATTERN)
-            .executorEnabled(true);
+            .executorEnabled(true)
+            .metricsPublic(false);
     }
 
     public static ServerConfig defaultConfig()
@@ -69,6 +73,7 @@ public interface ServerConfig
             .accessLogPath(config.getOptional("server.access-log.path", String.class))
             .accessLogPattern(config.get("server.access-log.pattern", String.class, DEFAULT_ACCESS_LOG_PATTERN))
             .executorEnabled(config.get("server.executor.enabled", boolean.class, true))
+            .metricsPublic(config.get("server.metrics.public", boolean.class, false))
             .headers(headers)
             .systemConfig(ConfigElement.copyOf(config))  // systemConfig needs to include other keys such as server.port so that ServerBootstrap.initialize can recover ServerConfig from this systemConfig
             .build();
@@ -4,6 +4,7 @@ import com.fasterxml.jackson.databind.ObjectMapper;
 import com.fasterxml.jackson.jaxrs.json.JacksonJsonProvider;
 import com.fasterxml.jackson.databind.DeserializationFeature;
 import com.google.inject.Inject;
+import com.google.inject.Scopes;
 import io.digdag.client.config.ConfigException;
 import io.digdag.core.repository.ModelValidationException;
 import io.digdag.core.repository.ResourceConflictException;
@@ -12,6 +13,8 @@ import io.digdag.spi.StorageFileNotFoundException;
 import io.digdag.guice.rs.GuiceRsModule;
 import io.digdag.server.rs.AttemptResource;
 import io.digdag.server.rs.LogResource;
+import io.digdag.server.rs.LogTailPoller;
+import io.digdag.server.rs.MetricsResource;
 import io.digdag.server.rs.ProjectResource;
 import io.digdag.server.rs.ScheduleResource;
 import io.digdag.server.rs.SessionResource;
@@ -42,6 +45,7 @@ public class ServerModule
             ;
         bindResources(builder);
         bindAuthenticator();
+        binder().bind(LogTailPoller.class).in(Scopes.SINGLETON);
         bindExceptionhandlers(builder);
     }
 
@@ -54,7 +58,8 @@ public class ServerModule
                 SessionResource.class,
                 AttemptResource.class,
                 LogResource.class,
-                VersionResource.class
+                VersionResource.class,
+                MetricsResource.class
             );
     }
 
@@ -41,10 +41,13 @@ public class AttemptResource
     // GET  /api/attempts?project=<name>&workflow=<name>     # list attempts that belong to a particular workflow
     // GET  /api/attempts/{id}                               # show a session
     // GET  /api/attempts/{id}/tasks                         # list tasks of a session
+    // GET  /api/attempts/{id}/tasks?last_id=<id>&page_size=<n>  # list tasks of a session page by page
     // GET  /api/attempts/{id}/retries                       # list retried attempts of this session
     // PUT  /api/attempts                                    # starts a new session
     // POST /api/attempts/{id}/kill                          # kill a session
 
+    private static final int MAX_TASKS_PAGE_SIZE = 1000;
+
     private final ProjectStoreManager rm;
     private final SessionStoreManager sm;
     private final SchedulerManager srm;
@@ -128,10 +131,21 @@ public class AttemptResource
 
     @GET
     @Path("/api/attempts/{id}/tasks")
-    public List<RestTask> getTasks(@PathParam("id") long id)
+    public List<RestTask> getTasks(@PathParam("id") long id,
+            @QueryParam("last_id") Long lastId,
+            @QueryParam("page_size") Integer pageSize)
     {
-        return sm.getSessionStore(getSiteId())
-            .getTasksOfAttempt(id)
+        List<ArchivedTask> tasks;
+        if (lastId == null && pageSize == null) {
+            tasks = sm.getSessionStore(getSiteId())
+                .getTasksOfAttempt(id);
+        }
+        else {
+            int limit = Math.min(Math.max(pageSize == null ? MAX_TASKS_PAGE_SIZE : pageSize, 1), MAX_TASKS_PAGE_SIZE);
+            tasks = sm.getSessionStore(getSiteId())
+                .getTasksOfAttempt(id, limit, Optional.fromNullable(lastId));
+        }
+        return tasks
             .stream()
             .map(task -> RestModels.task(task))
             .collect(Collectors.toList());
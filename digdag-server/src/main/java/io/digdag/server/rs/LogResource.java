@@ -15,13 +15,17 @@ import javax.ws.rs.PUT;
 import javax.ws.rs.GET;
 import javax.ws.rs.core.Response;
 import javax.ws.rs.ServerErrorException;
+import javax.ws.rs.container.AsyncResponse;
+import javax.ws.rs.container.Suspended;
 import com.google.inject.Inject;
 import com.google.common.base.Optional;
 import com.google.common.io.ByteStreams;
 import io.digdag.core.session.SessionStoreManager;
 import io.digdag.core.session.*;
 import io.digdag.core.repository.*;
+import io.digdag.core.log.LogFiles;
 import io.digdag.core.log.LogServerManager;
+import io.digdag.core.log.LogTail;
 import io.digdag.client.api.*;
 import io.digdag.spi.*;
 
@@ -36,17 +40,24 @@ public class LogResource
     // GET  /api/logs/{attempt_id}/files[?task=<name>]
     // GET  /api/logs/{attempt_id}/files/{file_name}
     // GET  /api/logs/{attempt_id}/upload_handle?task=<name>&file_time=<unixtime sec>&node_id=<nodeId>
+    // GET  /api/logs/{attempt_id}/tail?task=<name>[&file=<file_name>&offset=<bytes>[&chunk_offset=<bytes>]][&wait=<sec>]
+
+    private static final int MAX_TAIL_WAIT_SECONDS = 60;
+    private static final int MAX_TAIL_SIZE = 1024 * 1024;
 
     private final SessionStoreManager sm;
     private final LogServer logServer;
+    private final LogTailPoller tailPoller;
 
     @Inject
     public LogResource(
             SessionStoreManager sm,
-            LogServerManager lm)
+            LogServerManager lm,
+            LogTailPoller tailPoller)
     {
         this.sm = sm;
         this.logServer = lm.getLogServer();
+        this.tailPoller = tailPoller;
     }
 
     @PUT
@@ -123,6 +134,46 @@ public class LogResource
         return logServer.getFile(prefix, fileName);
     }
 
+    @GET
+    @Path("/api/logs/{attempt_id}/tail")
+    public void getTail(
+            @PathParam("attempt_id") long attemptId,
+            @QueryParam("task") String taskName,
+            @QueryParam("file") String fileName,
+            @QueryParam("offset") long offset,
+            @QueryParam("chunk_offset") long chunkOffset,
+            @QueryParam("wait") int waitSeconds,
+            @Suspended AsyncResponse response)
+        throws StorageFileNotFoundException, ResourceNotFoundException
+    {
+        if (taskName == null) {
+            throw new IllegalArgumentException("task parameter is required");
+        }
+        LogFilePrefix prefix = getPrefix(attemptId);
+
+        LogTailPoller.TailReader reader = () -> LogFiles.readLogTail(logServer, prefix, taskName,
+                Optional.fromNullable(fileName), offset, chunkOffset,
+                () -> isTaskLogComplete(attemptId, taskName), MAX_TAIL_SIZE);
+        LogTail tail = reader.read();
+        if (tail.getData().length > 0 || waitSeconds <= 0) {
+            response.resume(RestModels.logTail(tail));
+            return;
+        }
+
+        long deadline = System.currentTimeMillis() + Math.min(waitSeconds, MAX_TAIL_WAIT_SECONDS) * 1000L;
+        tailPoller.poll(reader, deadline, response);
+    }
+
+    // A task uploads all logs before it leaves RUNNING state. A retried task
+    // writes logs to new files.
+    private boolean isTaskLogComplete(long attemptId, String taskName)
+    {
+        return sm.getSessionStore(getSiteId())
+            .getTasksOfAttempt(attemptId)
+            .stream()
+            .anyMatch(task -> task.getFullName().equals(taskName) && task.getState() != TaskStateCode.RUNNING);
+    }
+
     private LogFilePrefix getPrefix(long attemptId)
         throws ResourceNotFoundException
     {
@@ -0,0 +1,72 @@
+package io.digdag.server.rs;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import javax.annotation.PreDestroy;
+import javax.ws.rs.container.AsyncResponse;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import io.digdag.core.log.LogTail;
+import io.digdag.spi.StorageFileNotFoundException;
+
+// Waits for new logs of long-polling tail requests. Requests are suspended
+// while waiting so that they don't occupy server worker threads.
+public class LogTailPoller
+{
+    private static final int POLL_THREADS = 2;
+    private static final long POLL_INTERVAL_MILLIS = 1000;
+
+    public interface TailReader
+    {
+        LogTail read()
+            throws StorageFileNotFoundException;
+    }
+
+    private final ScheduledExecutorService executor;
+
+    public LogTailPoller()
+    {
+        this.executor = Executors.newScheduledThreadPool(POLL_THREADS,
+                new ThreadFactoryBuilder()
+                .setDaemon(true)
+                .setNameFormat("log-tail-%d")
+                .build()
+                );
+    }
+
+    @PreDestroy
+    public void shutdown()
+    {
+        executor.shutdownNow();
+    }
+
+    // resumes the response when the reader returns data or deadline passes
+    public void poll(TailReader reader, long deadline, AsyncResponse response)
+    {
+        executor.schedule(() -> check(reader, deadline, response), POLL_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    private void check(TailReader reader, long deadline, AsyncResponse response)
+    {
+        if (response.isDone()) {
+            // cancelled or client disconnected
+            return;
+        }
+        LogTail tail;
+        try {
+            tail = reader.read();
+        }
+        catch (Exception ex) {
+            response.resume(ex);
+            return;
+        }
+        long remaining = deadline - System.currentTimeMillis();
+        if (tail.getData().length > 0 || remaining <= 0) {
+            response.resume(RestModels.logTail(tail));
+        }
+        else {
+            executor.schedule(() -> check(reader, deadline, response),
+                    Math.min(remaining, POLL_INTERVAL_MILLIS), TimeUnit.MILLISECONDS);
+        }
+    }
+}
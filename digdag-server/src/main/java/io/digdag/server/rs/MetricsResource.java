@@ -0,0 +1,28 @@
+package io.digdag.server.rs;
+
+import com.google.inject.Inject;
+import io.digdag.core.metrics.MetricsRegistry;
+
+import javax.ws.rs.GET;
+import javax.ws.rs.Path;
+import javax.ws.rs.Produces;
+
+@Path("/")
+@Produces(MetricsRegistry.PROMETHEUS_CONTENT_TYPE)
+public class MetricsResource
+{
+    private final MetricsRegistry metrics;
+
+    @Inject
+    public MetricsResource(MetricsRegistry metrics)
+    {
+        this.metrics = metrics;
+    }
+
+    @GET
+    @Path("/api/metrics")
+    public String getMetrics()
+    {
+        return metrics.toPrometheusText();
+    }
+}
@@ -4,6 +4,7 @@ import io.digdag.client.api.IdName;
 import io.digdag.client.api.NameLongId;
 import io.digdag.client.api.NameOptionalId;
 import io.digdag.client.api.RestLogFileHandle;
+import io.digdag.client.api.RestLogTail;
 import io.digdag.client.api.RestProject;
 import io.digdag.client.api.RestRevision;
 import io.digdag.client.api.RestSchedule;
@@ -14,6 +15,7 @@ import io.digdag.client.api.RestTask;
 import io.digdag.client.api.RestWorkflowDefinition;
 import io.digdag.client.api.RestWorkflowSessionTime;
 import io.digdag.client.api.RestDirectDownloadHandle;
+import io.digdag.core.log.LogTail;
 import io.digdag.core.repository.ProjectMap;
 import io.digdag.core.repository.ProjectStore;
 import io.digdag.core.repository.ProjectStoreManager;
@@ -39,6 +41,8 @@ import java.util.List;
 import java.util.UUID;
 import java.util.stream.Collectors;
 
+import static java.nio.charset.StandardCharsets.UTF_8;
+
 public final class RestModels
 {
     private RestModels()
@@ -208,6 +212,17 @@ public final class RestModels
             .build();
     }
 
+    public static RestLogTail logTail(LogTail tail)
+    {
+        return RestLogTail.builder()
+            .fileName(tail.getFileName())
+            .offset(tail.getOffset())
+            .chunkOffset(tail.getChunkOffset())
+            .content(new String(tail.getData(), UTF_8))
+            .more(tail.getMore())
+            .build();
+    }
+
     static List<RestSession> sessionModels(
             ProjectStore ps,
             List<StoredSessionWithLastAttempt> sessions)
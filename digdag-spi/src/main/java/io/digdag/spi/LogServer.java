@@ -1,5 +1,8 @@
 package io.digdag.spi;
 
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.util.List;
 import java.time.Instant;
 import java.time.ZoneId;
@@ -9,6 +12,13 @@ public interface LogServer
 {
     String putFile(LogFilePrefix prefix, String taskName, Instant firstLogTime, String agentId, byte[] gzData);
 
+    // Implementations should override this method to upload the file without reading it into memory.
+    default String putFile(LogFilePrefix prefix, String taskName, Instant firstLogTime, String agentId, Path gzFile)
+        throws IOException
+    {
+        return putFile(prefix, taskName, firstLogTime, agentId, Files.readAllBytes(gzFile));
+    }
+
     Optional<DirectUploadHandle> getDirectUploadHandle(LogFilePrefix prefix, String taskName, Instant firstLogTime, String agentId);
 
     List<LogFileHandle> getFileHandles(LogFilePrefix prefix, Optional<String> taskName);
@@ -6,6 +6,7 @@ import java.util.List;
 import com.google.common.base.Optional;
 
 public interface Storage
+    extends AutoCloseable
 {
     StorageObject open(String key)
         throws StorageFileNotFoundException;
@@ -35,4 +36,10 @@ public interface Storage
     {
         return Optional.absent();
     }
+
+    // Storage instances are shared and closed by the owner of the instance when
+    // the system shuts down. Implementations release clients and threads here.
+    @Override
+    default void close()
+    { }
 }
@@ -68,6 +68,7 @@ public abstract class PgConnectionConfig
         if (ssl()) {
             props.setProperty("ssl", "true");
             props.setProperty("sslfactory", "org.postgresql.ssl.NonValidatingFactory");
+            props.setProperty("sslmode", "require");
         }
         props.setProperty("applicationName", "digdag");
 
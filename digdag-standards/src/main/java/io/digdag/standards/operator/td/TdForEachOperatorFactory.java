@@ -1,5 +1,6 @@
 package io.digdag.standards.operator.td;
 
+import com.google.common.collect.ImmutableList;
 import com.google.inject.Inject;
 import com.treasuredata.client.model.TDJobRequest;
 import com.treasuredata.client.model.TDJobRequestBuilder;
@@ -8,6 +9,7 @@ import io.digdag.client.config.Config;
 import io.digdag.client.config.ConfigException;
 import io.digdag.client.config.ConfigFactory;
 import io.digdag.core.Limits;
+import io.digdag.core.workflow.CompactForEachConfig;
 import io.digdag.core.workflow.TaskLimitExceededException;
 import io.digdag.spi.Operator;
 import io.digdag.spi.OperatorFactory;
@@ -78,22 +80,14 @@ public class TdForEachOperatorFactory
         @Override
         protected TaskResult processJobResult(TDOperator op, TDJobOperator j)
         {
-            List<Config> rows = fetchRows(j);
-
             boolean parallel = params.get("_parallel", boolean.class, false);
 
-            Config subtasks = doConfig.getFactory().create();
-            for (int i = 0; i < rows.size(); i++) {
-                Config row = rows.get(i);
-                Config subtask = params.getFactory().create();
-                subtask.setAll(doConfig);
-                subtask.getNestedOrSetEmpty("_export").getNestedOrSetEmpty("td").getNestedOrSetEmpty("each").setAll(row);
-                subtasks.set("+td-for-each-" + i, subtask);
-            }
-
-            if (parallel) {
-                subtasks.set("_parallel", true);
-            }
+            // rows are stored once as arrays with the _do config as a shared template
+            // instead of copying _do config to every subtask. WorkflowExecutor expands
+            // it into +td-for-each-N tasks when it adds subtasks.
+            Config subtasks = fetchRows(j)
+                .parallel(parallel)
+                .build();
 
             return TaskResult.defaultBuilder(request)
                     .subtaskConfig(subtasks)
@@ -123,30 +117,30 @@ public class TdForEachOperatorFactory
             return jobId;
         }
 
-        private List<Config> fetchRows(TDJobOperator job)
+        private CompactForEachConfig.Builder fetchRows(TDJobOperator job)
         {
             List<String> columnNames = job.getResultColumnNames();
+            CompactForEachConfig.Builder builder = CompactForEachConfig.builder(
+                    doConfig, "+td-for-each-", ImmutableList.of("td", "each"), columnNames);
             return job.getResult(ite -> {
-                List<Config> rows = new ArrayList<>();
                 while (ite.hasNext()) {
-                    rows.add(row(columnNames, ite.next().asArrayValue()));
-                    if (rows.size() > Limits.maxWorkflowTasks()) {
+                    builder.addRow(row(ite.next().asArrayValue()));
+                    if (builder.getRowCount() > Limits.maxWorkflowTasks()) {
                         throw new TaskLimitExceededException("Too many tasks. Limit: " + Limits.maxWorkflowTasks());
                     }
                 }
-                return rows;
+                return builder;
             });
         }
 
-        private Config row(List<String> keys, ArrayValue values)
+        private List<Object> row(ArrayValue values)
         {
-            Config config = configFactory.create();
             // TODO: fail on keys and values count mismatch?
-            int n = Math.min(keys.size(), values.size());
-            for (int i = 0; i < n; i++) {
-                config.set(keys.get(i), value(values.get(i)));
+            List<Object> row = new ArrayList<>(values.size());
+            for (Value value : values) {
+                row.add(value(value));
             }
-            return config;
+            return row;
         }
 
         private Object value(Value value)
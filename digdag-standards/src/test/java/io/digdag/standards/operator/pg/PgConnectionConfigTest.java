@@ -80,6 +80,7 @@ public class PgConnectionConfigTest
             assertThat(properties.get("tcpKeepAlive"), is("true"));
             assertThat(properties.get("ssl"), is(nullValue()));
             assertThat(properties.get("sslfactory"), is(nullValue()));
+            assertThat(properties.get("sslmode"), is(nullValue()));
             assertThat(properties.get("applicationName"), is("digdag"));
         }
 
@@ -94,6 +95,7 @@ public class PgConnectionConfigTest
             assertThat(properties.get("tcpKeepAlive"), is("true"));
             assertThat(properties.get("ssl"), is("true"));
             assertThat(properties.get("sslfactory"), is("org.postgresql.ssl.NonValidatingFactory"));
+            assertThat(properties.get("sslmode"), is("require"));
             assertThat(properties.get("applicationName"), is("digdag"));
         }
     }
@@ -64,6 +64,13 @@ public class S3Storage
         //      any GET or PUT don't get 404 Not Found error.
     }
 
+    @Override
+    public void close()
+    {
+        // shuts down uploadExecutor and the client as well
+        transferManager.shutdownNow(true);
+    }
+
     private RetryExecutor uploadRetryExecutor()
     {
         return RetryExecutor.retryExecutor();